@@ -27,6 +27,7 @@ import android.widget.ImageView;
 import com.smilemeback.R;
 import com.smilemeback.activities.screens.Screen;
 import com.smilemeback.misc.Dialogs;
+import com.smilemeback.views.BitmapCache;
 import com.squareup.picasso.Picasso;
 
 import org.javatuples.Triplet;
@@ -128,10 +129,10 @@ public abstract class AddBaseActivity extends HomeEnabledActivity {
      * @param view The view where the image will be loaded.
      */
     public void loadImageFromFile(File file, ImageView view) {
-        // now load the real image
-        Picasso.with(this).invalidate(file);
+        // the file is overwritten when the picture is taken again, which changes the key
         Picasso.with(this)
                 .load(file)
+                .stableKey(BitmapCache.key(BitmapCache.Pool.PREVIEW, file.getPath() + "@" + file.lastModified()))
                 .fit()
                 .centerCrop()
                 .into(view);
@@ -18,31 +18,40 @@ package com.smilemeback.activities;
 
 
 import android.app.ActionBar;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.widget.Toast;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.R;
 import com.smilemeback.adapters.CategoryGridAdapter;
 import com.smilemeback.misc.Constants;
 import com.smilemeback.misc.Dialogs;
-import com.smilemeback.storage.Categories;
 import com.smilemeback.storage.Category;
+import com.smilemeback.storage.Library;
+import com.smilemeback.storage.LibraryArchive;
 import com.smilemeback.storage.Name;
 import com.smilemeback.storage.NameException;
-import com.smilemeback.storage.Storage;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageService;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Top-level activity that displays available categories
@@ -76,13 +85,48 @@ public class CategoriesActivity extends GalleryBaseActivity {
     protected void initializeGridView() {
         data.gridView.setAdapter(gridAdapter);
         gridAdapter.initialize();
-        showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_categories);
+        reloadGrid();
     }
 
+    /**
+     * Load the categories in the background and show them in the grid.
+     */
     protected void reloadGrid() {
-        selectionManager.deselectAll();
-        data.gridView.setAdapter(gridAdapter);
-        gridAdapter.initialize();
+        getStorageService().loadCategories(new CategoriesCallback());
+    }
+
+    /**
+     * Run an edit of the categories in the background and show the resulting categories.
+     */
+    protected void submitEdit(final StorageService.Task<?> edit) {
+        getStorageService().submit(new StorageService.Task<ImmutableList<Category>>() {
+            @Override
+            public ImmutableList<Category> run(Library library) throws StorageException {
+                edit.run(library);
+                return library.getCategories().snapshot();
+            }
+        }, new CategoriesCallback());
+    }
+
+    /**
+     * Shows the loaded categories in the grid.
+     */
+    private class CategoriesCallback extends StorageCallback<ImmutableList<Category>> {
+        CategoriesCallback() {
+            super(CategoriesActivity.this);
+        }
+
+        @Override
+        protected void done(ImmutableList<Category> categories) {
+            // already shown in case the changes were delivered
+            gridAdapter.setCategories(categories);
+            showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_categories);
+        }
+    }
+
+    @Override
+    public void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes) {
+        gridAdapter.applyChanges(categories, changes);
         showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_categories);
     }
 
@@ -105,23 +149,23 @@ public class CategoriesActivity extends GalleryBaseActivity {
     public void rearrangeIconsAccordingToTarget(int position) {
         List<Integer> sortedIdxs = new ArrayList<>(selectionManager.getSelectedPositions());
         Collections.sort(sortedIdxs);
-        List<Category> selectedCategories = new ArrayList<>();
+        final List<Category> selectedCategories = new ArrayList<>();
         for (int selectedIdx : sortedIdxs) {
             selectedCategories.add((Category) gridAdapter.getItem(selectedIdx));
         }
-        Category target = (Category)gridAdapter.getItem(position);
+        final Category target = (Category)gridAdapter.getItem(position);
 
-        if (selectedCategories.contains(target)) {
+        if (selectionManager.isSelected(position)) {
             return;
         }
 
-        try {
-            new Storage(this).getCategories().rearrange(selectedCategories, target);
-        } catch (StorageException e) {
-            showStorageExceptionAlertAndFinish(e);
-        } finally {
-            reloadGrid();
-        }
+        submitEdit(new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                library.getCategories().rearrange(selectedCategories, target);
+                return null;
+            }
+        });
     }
 
     @Override
@@ -134,14 +178,19 @@ public class CategoriesActivity extends GalleryBaseActivity {
             @Override
             public void inputDone(String text) {
                 logger.info("Renaming current category to " + text);
+                final Name name;
                 try {
-                    category.rename(new Name(text));
-                } catch (StorageException e) {
-                    showStorageExceptionAlertAndFinish(e);
+                    name = new Name(text);
                 } catch (NameException e) {
                     showStorageExceptionAlertAndFinish(new StorageException(e.getMessage(), e));
+                    return;
                 }
-                reloadGrid();
+                submitEdit(new StorageService.Task<Category>() {
+                    @Override
+                    public Category run(Library library) throws StorageException {
+                        return library.getCategories().rename(category, name);
+                    }
+                });
             }
         };
         Dialogs.input(this, title, category.getName().toString(), posTitle, negTitle, callback);
@@ -161,22 +210,34 @@ public class CategoriesActivity extends GalleryBaseActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 logger.info("Deleting selection categories");
-                try {
-                    List<Category> selectedCategories = new ArrayList<>();
-                    for (int idx : selectionManager.getSelectedPositions()) {
-                        selectedCategories.add((Category)gridAdapter.getItem(idx));
-                    }
-                    Categories categories = new Storage(CategoriesActivity.this).getCategories();
-                    categories.delete(selectedCategories);
-                } catch (StorageException e) {
-                    showStorageExceptionAlertAndFinish(e);
+                final List<Category> selectedCategories = new ArrayList<>();
+                for (int idx : selectionManager.getSelectedPositions()) {
+                    selectedCategories.add((Category)gridAdapter.getItem(idx));
                 }
-                reloadGrid();
+                submitEdit(new StorageService.Task<Void>() {
+                    @Override
+                    public Void run(Library library) throws StorageException {
+                        library.getCategories().delete(selectedCategories);
+                        return null;
+                    }
+                });
             }
         };
         Dialogs.confirmation(this, title, posTitle, negTitle, callback);
     }
 
+    /**
+     * Undo the last edit of the categories or of the images in one of them.
+     */
+    public void undo() {
+        submitEdit(new StorageService.Task<Boolean>() {
+            @Override
+            public Boolean run(Library library) throws StorageException {
+                return library.undo();
+            }
+        });
+    }
+
     @Override
     public void addNewIcon() {
         Intent intent = new Intent(this, AddCategoryActivity.class);
@@ -187,19 +248,167 @@ public class CategoriesActivity extends GalleryBaseActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == ADD_CATEGORY_ACTIVITY && resultCode == RESULT_OK) {
             String name = data.getStringExtra(Constants.ADDED_IMAGE_NAME);
-            String imagePath = data.getStringExtra(Constants.ADDED_IMAGE_PATH);
+            final String imagePath = data.getStringExtra(Constants.ADDED_IMAGE_PATH);
             // user just pressed "back" from add category activity
             if (name == null || imagePath == null) {
                 return;
             }
-            // try to add a new category
+            final Name categoryName;
             try {
-                Categories categories = new Storage(this).getCategories();
-                categories.add(new Name(name), new BufferedInputStream(new FileInputStream(new File(imagePath))));
-                showHowToEditPopup();
-            } catch (NameException | IOException | StorageException e) {
+                categoryName = new Name(name);
+            } catch (NameException e) {
                 throw new RuntimeException(e.getMessage(), e);
             }
+            // try to add a new category
+            submitEdit(new StorageService.Task<Category>() {
+                @Override
+                public Category run(Library library) throws StorageException {
+                    try {
+                        InputStream thumbnail = new BufferedInputStream(new FileInputStream(new File(imagePath)));
+                        return library.getCategories().add(categoryName, thumbnail);
+                    } catch (IOException e) {
+                        throw new StorageException(e.getMessage(), e);
+                    }
+                }
+            });
+            showHowToEditPopup();
+        }
+    }
+
+    /**
+     * Back up all categories to a new archive in the backups folder.
+     */
+    public void backupLibrary() {
+        final ProgressDialog dialog = showProgressDialog(R.string.dialog_backup_title);
+        getStorageService().submit(new StorageService.Task<File>() {
+            @Override
+            public File run(Library library) throws StorageException {
+                String name = "smilemeback-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+                File target = new File(library.getStorage().getBackupsFolder(), name + LibraryArchive.SUFFIX);
+                library.exportArchive(library.getCategories().snapshot(), target, new DialogProgress(dialog));
+                return target;
+            }
+        }, new StorageCallback<File>(this) {
+            @Override
+            protected void done(File target) {
+                dialog.dismiss();
+                String text = getString(R.string.dialog_backup_done).replace("#path", target.getPath());
+                Toast.makeText(CategoriesActivity.this, text, Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onFailure(StorageException e) {
+                dialog.dismiss();
+                super.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Replace all categories with the latest archive in the backups folder, after confirmation.
+     */
+    public void restoreLibrary() {
+        getStorageService().submit(new StorageService.Task<File>() {
+            @Override
+            public File run(Library library) throws StorageException {
+                return library.getStorage().getBackupsFolder();
+            }
+        }, new StorageCallback<File>(this) {
+            @Override
+            protected void done(File folder) {
+                final File latest = findLatestBackup(folder);
+                if (latest == null) {
+                    String text = getString(R.string.dialog_restore_no_backups).replace("#path", folder.getPath());
+                    Toast.makeText(CategoriesActivity.this, text, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                Dialogs.confirmation(CategoriesActivity.this,
+                        getString(R.string.dialog_restore_confirm_title).replace("#name", latest.getName()),
+                        getString(R.string.dialog_restore_confirmation),
+                        getString(R.string.dialog_restore_cancel),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int which) {
+                                restoreLibrary(latest);
+                            }
+                        });
+            }
+        });
+    }
+
+    private void restoreLibrary(final File archive) {
+        final ProgressDialog dialog = showProgressDialog(R.string.dialog_restore_title);
+        getStorageService().submit(new StorageService.Task<ImmutableList<Category>>() {
+            @Override
+            public ImmutableList<Category> run(Library library) throws StorageException {
+                library.restoreArchive(archive, new DialogProgress(dialog));
+                return library.getCategories().snapshot();
+            }
+        }, new CategoriesCallback() {
+            @Override
+            protected void done(ImmutableList<Category> categories) {
+                dialog.dismiss();
+                super.done(categories);
+            }
+
+            @Override
+            public void onFailure(StorageException e) {
+                dialog.dismiss();
+                super.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * @return The backup archive with the greatest name, which is the latest one, or null if there are none.
+     */
+    private static File findLatestBackup(File folder) {
+        File[] archives = folder.listFiles();
+        File latest = null;
+        if (archives != null) {
+            for (File archive : archives) {
+                if (archive.getName().endsWith(LibraryArchive.SUFFIX)
+                        && (latest == null || archive.getName().compareTo(latest.getName()) > 0)) {
+                    latest = archive;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private ProgressDialog showProgressDialog(int titleId) {
+        ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setTitle(getString(titleId));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setMax(100);
+        dialog.setCancelable(false);
+        dialog.show();
+        return dialog;
+    }
+
+    /**
+     * Shows the progress of a backup or a restore in a dialog, updated once per percent.
+     */
+    private class DialogProgress implements LibraryArchive.Progress {
+        private final ProgressDialog dialog;
+        private int percent = -1;
+
+        DialogProgress(ProgressDialog dialog) {
+            this.dialog = dialog;
+        }
+
+        @Override
+        public void onProgress(long done, long total) {
+            final int current = total > 0 ? (int) Math.min(100, done * 100 / total) : 100;
+            if (current != percent) {
+                percent = current;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialog.setProgress(current);
+                    }
+                });
+            }
         }
     }
 
@@ -218,6 +427,15 @@ public class CategoriesActivity extends GalleryBaseActivity {
             case R.id.gallery_selectionmode_menu_add_album:
                 addNewIcon();
                 return true;
+            case R.id.backup_library:
+                backupLibrary();
+                return true;
+            case R.id.restore_library:
+                restoreLibrary();
+                return true;
+            case R.id.undo:
+                undo();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -20,6 +20,7 @@ import android.animation.Animator;
 import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -35,6 +36,7 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.RelativeLayout;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.R;
 import com.smilemeback.adapters.BaseGridAdapter;
 import com.smilemeback.adapters.GridAdapterListener;
@@ -48,9 +50,14 @@ import com.smilemeback.selection.SelectionManager;
 import com.smilemeback.selectionmode.GallerySelectionModeListener;
 import com.smilemeback.selectionmode.SelectionMode;
 import com.smilemeback.storage.Categories;
-import com.smilemeback.storage.Storage;
+import com.smilemeback.storage.Category;
+import com.smilemeback.storage.Image;
+import com.smilemeback.storage.Library;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageService;
 
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,7 +65,7 @@ import java.util.logging.Logger;
  * {@link GalleryBaseActivity} is the main activity of the application,
  * which manages interactions between all other activities of the application.
  */
-public abstract class GalleryBaseActivity extends Activity implements GallerySelectionModeListener, SelectionListener, GridAdapterListener {
+public abstract class GalleryBaseActivity extends Activity implements GallerySelectionModeListener, SelectionListener, GridAdapterListener, StorageService.ChangeListener {
     protected static Logger logger = Logger.getLogger("SmileMeBack");
 
     protected GalleryActivityData data = new GalleryActivityData();
@@ -79,11 +86,30 @@ public abstract class GalleryBaseActivity extends Activity implements GallerySel
     @Override
     public void onStart() {
         super.onStart();
+        getStorageService().addChangeListener(this);
         setupActionBar();
         initializeListView();
         initializeGridView();
     }
 
+    @Override
+    public void onStop() {
+        getStorageService().removeChangeListener(this);
+        super.onStop();
+    }
+
+    /**
+     * Called on the main thread with the changes of the published categories, while the activity is started.
+     */
+    @Override
+    public void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes) { }
+
+    /**
+     * Called on the main thread with the changes of the published images, while the activity is started.
+     */
+    @Override
+    public void imagesChanged(Category category, ImmutableList<Image> images, List<StorageChange<Image>> changes) { }
+
     /**
      * In case there are no categories or no images in a category, show a help layout
      * with instructions how to add one.
@@ -145,12 +171,20 @@ public abstract class GalleryBaseActivity extends Activity implements GallerySel
      * This is intended only for development purposes.
      */
     protected void setupTestingCategories() {
-        try {
-            Categories categories = new Storage(this).getCategories();
-            categories.initializeTestingCategories(this);
-        } catch (StorageException e) {
-            showStorageExceptionAlertAndFinish(e);
-        }
+        final Context context = getApplicationContext();
+        getStorageService().submit(new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                library.invalidate();
+                Categories categories = library.getCategories();
+                categories.initializeTestingCategories(context);
+                library.invalidate();
+                return null;
+            }
+        }, new StorageCallback<Void>(this) {
+            @Override
+            protected void done(Void result) { }
+        });
     }
 
     /**
@@ -300,6 +334,13 @@ public abstract class GalleryBaseActivity extends Activity implements GallerySel
         return (SmbApplication)getApplication();
     }
 
+    /**
+     * @return The service, which all storage work of the activities must go through.
+     */
+    public StorageService getStorageService() {
+        return getSmbApplication().getStorageService();
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         final boolean locked = getSmbApplication().isLocked();
@@ -25,6 +25,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.R;
 import com.smilemeback.adapters.CategoryListAdapter;
 import com.smilemeback.adapters.IconGridAdapter;
@@ -33,14 +34,14 @@ import com.smilemeback.drag.ListDragResultListener;
 import com.smilemeback.drag.ListViewDragListener;
 import com.smilemeback.misc.Constants;
 import com.smilemeback.misc.Dialogs;
-import com.smilemeback.storage.Categories;
 import com.smilemeback.storage.Category;
 import com.smilemeback.storage.Image;
-import com.smilemeback.storage.Images;
+import com.smilemeback.storage.Library;
 import com.smilemeback.storage.Name;
 import com.smilemeback.storage.NameException;
-import com.smilemeback.storage.Storage;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageService;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -58,20 +59,34 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
 
         // define the category we will be living in
         Intent intent = getIntent();
-        int startCategoryIndex = intent.getIntExtra(Constants.CATEGORY_INDEX, 0);
-
-        // load categories
-        Categories categories = loadCategories();
-        Category currentCategory = categories.get(startCategoryIndex);
+        final int startCategoryIndex = intent.getIntExtra(Constants.CATEGORY_INDEX, 0);
 
         gridAdapter = new IconGridAdapter(this, this, selectionMode, selectionManager, data);
-        gridAdapter.setCurrentCategory(currentCategory);
-        gridAdapter.initialize();
 
-        listAdapter = new CategoryListAdapter(this, this, gridAdapter.getCurrentCategory(), data.listView);
+        listAdapter = new CategoryListAdapter(this, this, data.listView);
         listAdapter.setSelectedItemPosition(startCategoryIndex);
 
-        setActionBarTitle(currentCategory.getName().toString());
+        // show the published categories right away, they are corrected by the changes found when loading
+        ImmutableList<Category> published = getStorageService().getCategories();
+        if (startCategoryIndex < published.size()) {
+            Category currentCategory = published.get(startCategoryIndex);
+            listAdapter.setCategories(published, currentCategory);
+            showCategory(currentCategory);
+        }
+
+        // load categories
+        getStorageService().loadCategories(new StorageCallback<ImmutableList<Category>>(this) {
+            @Override
+            protected void done(ImmutableList<Category> categories) {
+                if (gridAdapter.getCurrentCategory() != null) {
+                    listAdapter.showChangedCategories(categories);
+                    return;
+                }
+                Category currentCategory = categories.get(startCategoryIndex);
+                listAdapter.setCategories(categories, currentCategory);
+                showCategory(currentCategory);
+            }
+        });
     }
 
     @Override
@@ -85,29 +100,90 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
         getActionBar().setTitle(title);
     }
 
-    protected Categories loadCategories() {
-        try {
-            return new Storage(this).getCategories();
-        } catch (StorageException e) {
-            showStorageExceptionAlertAndFinish(e);
-        }
-        return null;
+    /**
+     * Show the last published images of the category and reload them in the background.
+     */
+    protected void showCategory(Category category) {
+        gridAdapter.setCurrentCategory(category);
+        setActionBarTitle(category.getName().toString());
+        reloadGrid();
     }
 
     /**
-     * Deselect all collection, reload and initialize grid.
+     * Load the images of the current category in the background and show them in the grid.
      */
     protected void reloadGrid() {
-        selectionManager.deselectAll();
-        data.gridView.setAdapter(gridAdapter);
-        gridAdapter.initialize();
-        showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_images);
+        Category category = gridAdapter.getCurrentCategory();
+        getStorageService().loadImages(category, new ImagesCallback(category));
+    }
+
+    /**
+     * Run an edit of the images in the background and show the resulting images of the category.
+     *
+     * @param category The category to show after the edit.
+     */
+    protected void submitEdit(final Category category, final StorageService.Task<?> edit) {
+        getStorageService().submit(new StorageService.Task<ImmutableList<Image>>() {
+            @Override
+            public ImmutableList<Image> run(Library library) throws StorageException {
+                edit.run(library);
+                return library.getImages(category).snapshot();
+            }
+        }, new ImagesCallback(category));
+    }
+
+    /**
+     * Shows the loaded images, unless another category was selected in the meantime.
+     */
+    private class ImagesCallback extends StorageCallback<ImmutableList<Image>> {
+        private final Category category;
+
+        ImagesCallback(Category category) {
+            super(IconsActivity.this);
+            this.category = category;
+        }
+
+        @Override
+        protected void done(ImmutableList<Image> images) {
+            if (gridAdapter.getCurrentCategory() == category) {
+                // already shown in case the changes were delivered
+                gridAdapter.setImages(images);
+                showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_images);
+            }
+        }
+    }
+
+    @Override
+    public void imagesChanged(Category category, ImmutableList<Image> images, List<StorageChange<Image>> changes) {
+        if (category.equals(gridAdapter.getCurrentCategory())) {
+            gridAdapter.applyChanges(images, changes);
+            showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_images);
+        }
+    }
+
+    @Override
+    public void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes) {
+        Category current = gridAdapter.getCurrentCategory();
+        if (current == null) {
+            // still loading, the loaded categories are shown by the callback
+            return;
+        }
+        int position = categories.indexOf(current);
+        if (position < 0) {
+            // the category was deleted, possibly outside of the application
+            finish();
+            return;
+        }
+        listAdapter.showChangedCategories(categories);
+        if (categories.get(position).getFolder().equals(current.getFolder())) {
+            return;
+        }
+        showCategory(categories.get(position));
     }
 
     @Override
     protected void initializeGridView() {
         data.gridView.setAdapter(gridAdapter);
-        showHelpLayoutIfNecessary(gridAdapter, R.layout.gallery_no_images);
     }
 
 
@@ -144,48 +220,51 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
 
     @Override
     public void categorySelected(Category category) {
-        gridAdapter.setCurrentCategory(category);
-        setActionBarTitle(category.getName().toString());
+        showCategory(category);
     }
 
     @Override
     public void rearrangeIconsAccordingToTarget(int position) {
         List<Integer> sortedIdxs = new ArrayList<>(selectionManager.getSelectedPositions());
         Collections.sort(sortedIdxs);
-        List<Image> selectedImages = new ArrayList<>();
+        final List<Image> selectedImages = new ArrayList<>();
         for (int selectedIdx : sortedIdxs) {
             selectedImages.add((Image)gridAdapter.getItem(selectedIdx));
         }
-        Image target = (Image)gridAdapter.getItem(position);
+        final Image target = (Image)gridAdapter.getItem(position);
 
-        if (selectedImages.contains(target)) {
+        if (selectionManager.isSelected(position)) {
             return;
         }
 
-        try {
-            gridAdapter.getCurrentCategory().getImages().rearrange(selectedImages, target);
-        } catch (StorageException e) {
-            showStorageExceptionAlertAndFinish(e);
-        } finally {
-            reloadGrid();
-        }
+        final Category category = gridAdapter.getCurrentCategory();
+        submitEdit(category, new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                library.getImages(category).rearrange(selectedImages, target);
+                return null;
+            }
+        });
     }
 
     @Override
     public void moveSelectedIconsToCategory(int categoryIndex) {
-        List<Image> selectedImages = new ArrayList<>();
+        final List<Image> selectedImages = new ArrayList<>();
         for (int idx : selectionManager.getSelectedPositions()) {
             selectedImages.add((Image)gridAdapter.getItem(idx));
         }
-        try {
-            Categories categories = loadCategories();
-            Category destination = categories.get(categoryIndex);
-            gridAdapter.getCurrentCategory().getImages().moveTo(destination, selectedImages);
-            gridAdapter.setCurrentCategory(destination);
-            listAdapter.setSelectedItemPosition(categoryIndex);
-        } catch (StorageException e) {
-            showStorageExceptionAlertAndFinish(e);
-        }
+        final Category source = gridAdapter.getCurrentCategory();
+        final Category destination = (Category)listAdapter.getItem(categoryIndex);
+        gridAdapter.setCurrentCategory(destination);
+        setActionBarTitle(destination.getName().toString());
+        listAdapter.setSelectedItemPosition(categoryIndex);
+        submitEdit(destination, new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                library.getImages(source).moveTo(destination, selectedImages);
+                return null;
+            }
+        });
     }
 
     @Override
@@ -198,14 +277,20 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
             @Override
             public void inputDone(String text) {
                 logger.info("Renaming current icon to " + text);
+                final Name name;
                 try {
-                    image.rename(new Name(text));
-                } catch (StorageException e) {
-                    showStorageExceptionAlertAndFinish(e);
+                    name = new Name(text);
                 } catch (NameException e) {
                     showStorageExceptionAlertAndFinish(new StorageException(e.getMessage(), e));
+                    return;
                 }
-                reloadGrid();
+                final Category category = gridAdapter.getCurrentCategory();
+                submitEdit(category, new StorageService.Task<Image>() {
+                    @Override
+                    public Image run(Library library) throws StorageException {
+                        return library.getImages(category).rename(image, name);
+                    }
+                });
             }
         };
         Dialogs.input(this, title, image.getName().toString(), posTitle, negTitle, callback);
@@ -224,22 +309,35 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 logger.info("Deleting selection images");
-                try {
-                    List<Image> selectedImages = new ArrayList<>();
-                    for (int idx : selectionManager.getSelectedPositions()) {
-                        selectedImages.add((Image)gridAdapter.getItem(idx));
-                    }
-                    Images images = new Images(gridAdapter.getCurrentCategory());
-                    images.delete(selectedImages);
-                } catch (StorageException e) {
-                    showStorageExceptionAlertAndFinish(e);
+                final List<Image> selectedImages = new ArrayList<>();
+                for (int idx : selectionManager.getSelectedPositions()) {
+                    selectedImages.add((Image)gridAdapter.getItem(idx));
                 }
-                reloadGrid();
+                final Category category = gridAdapter.getCurrentCategory();
+                submitEdit(category, new StorageService.Task<Void>() {
+                    @Override
+                    public Void run(Library library) throws StorageException {
+                        library.getImages(category).delete(selectedImages);
+                        return null;
+                    }
+                });
             }
         };
         Dialogs.confirmation(this, title, posTitle, negTitle, callback);
     }
 
+    /**
+     * Undo the last edit, which may have been made in another category.
+     */
+    public void undo() {
+        submitEdit(gridAdapter.getCurrentCategory(), new StorageService.Task<Boolean>() {
+            @Override
+            public Boolean run(Library library) throws StorageException {
+                return library.undo();
+            }
+        });
+    }
+
     @Override
     public void addNewIcon() {
         Intent intent = new Intent(this, AddImageActivity.class);
@@ -250,21 +348,28 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == ADD_IMAGE_ACTIVITY && resultCode == RESULT_OK) {
             String name = data.getStringExtra(Constants.ADDED_IMAGE_NAME);
-            String imagePath = data.getStringExtra(Constants.ADDED_IMAGE_PATH);
-            String audioPath = data.getStringExtra(Constants.ADDED_IMAGE_AUDIO_PATH);
+            final String imagePath = data.getStringExtra(Constants.ADDED_IMAGE_PATH);
+            final String audioPath = data.getStringExtra(Constants.ADDED_IMAGE_AUDIO_PATH);
             // user pressed "back" from add image activity
             if (name == null || imagePath == null || audioPath == null) {
                 return;
             }
-            // try to add a new image
+            final Name imageName;
             try {
-                Images images = new Images(gridAdapter.getCurrentCategory());
-                images.add(new Name(name), new File(imagePath), new File(audioPath));
-                reloadGrid();
-                showHowToEditPopup();
-            } catch (StorageException | NameException e) {
+                imageName = new Name(name);
+            } catch (NameException e) {
                 throw new RuntimeException(e.getMessage(), e);
             }
+            // try to add a new image
+            final Category category = gridAdapter.getCurrentCategory();
+            submitEdit(category, new StorageService.Task<Image>() {
+                @Override
+                public Image run(Library library) throws StorageException {
+                    // the recorded files are temporary, so they can be moved into the category
+                    return library.getImages(category).add(imageName, new File(imagePath), new File(audioPath), true);
+                }
+            });
+            showHowToEditPopup();
         }
     }
 
@@ -286,6 +391,9 @@ public class IconsActivity extends GalleryBaseActivity implements ListAdapterLis
             case R.id.menu_add_image:
                 addNewIcon();
                 return true;
+            case R.id.undo:
+                undo();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
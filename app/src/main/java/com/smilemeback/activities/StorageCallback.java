@@ -0,0 +1,51 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.activities;
+
+import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageService;
+
+/**
+ * {@link com.smilemeback.storage.StorageService.Callback} of an activity, which ignores
+ * results arriving after the activity was finished and shows failures to the user.
+ */
+public abstract class StorageCallback<T> implements StorageService.Callback<T> {
+    protected final GalleryBaseActivity activity;
+
+    public StorageCallback(GalleryBaseActivity activity) {
+        this.activity = activity;
+    }
+
+    @Override
+    public final void onSuccess(T result) {
+        if (!activity.isFinishing()) {
+            done(result);
+        }
+    }
+
+    @Override
+    public void onFailure(StorageException e) {
+        if (!activity.isFinishing()) {
+            activity.showStorageExceptionAlertAndFinish(e);
+        }
+    }
+
+    /**
+     * Called on the main thread with the result of the storage task.
+     */
+    protected abstract void done(T result);
+}
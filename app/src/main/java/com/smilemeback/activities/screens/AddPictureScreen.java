@@ -16,8 +16,9 @@
  */
 package com.smilemeback.activities.screens;
 
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -30,12 +31,12 @@ import com.smilemeback.activities.AddBaseActivity;
 import com.smilemeback.misc.Constants;
 import com.smilemeback.storage.Storage;
 import com.smilemeback.storage.StorageException;
-
-import org.apache.commons.io.FileUtils;
+import com.smilemeback.views.PictureImporter;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 public class AddPictureScreen extends Screen {
     private static String TAG = AddPictureScreen.class.getCanonicalName();
@@ -49,6 +50,7 @@ public class AddPictureScreen extends Screen {
     protected boolean imageSelected = false;
 
     private File temporaryImage;
+    private Future<File> pictureImport = null;
 
     public AddPictureScreen(AddBaseActivity activity, int layoutResId) {
         super(activity, layoutResId);
@@ -132,7 +134,8 @@ public class AddPictureScreen extends Screen {
 
     private void dispatchPickPhotoIntent() {
         Intent intent = new Intent();
-        intent.setType("image/jpg");
+        // any decodable picture, it is imported as a JPEG
+        intent.setType("image/*");
         intent.setAction(Intent.ACTION_GET_CONTENT);
         activity.startActivityForResult(
                 Intent.createChooser(
@@ -143,30 +146,71 @@ public class AddPictureScreen extends Screen {
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        try {
-            if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == activity.RESULT_OK) {
-                Log.d(TAG, "Adding image from camera");
-                loadTemporaryImageIntoView();
-                imageSelected = true;
-            } else if (requestCode == PICK_PHOTO_GALLERY && data != null && data.getData() != null) {
-                Log.d(TAG, "Adding image from gallery");
-                Uri uri = data.getData();
-                Cursor cursor = activity.getContentResolver().query(
-                        uri,
-                        new String[] {android.provider.MediaStore.Images.ImageColumns.DATA},
-                        null, null, null);
-                cursor.moveToFirst();
-                final String imagePath = cursor.getString(0);
-                Log.d(TAG, "Gallery image is located at <" + imagePath + ">");
-                FileUtils.copyFile(new File(imagePath), temporaryImage);
+        if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == activity.RESULT_OK) {
+            Log.d(TAG, "Adding image from camera");
+            importPicture(Uri.fromFile(temporaryImage));
+        } else if (requestCode == PICK_PHOTO_GALLERY && data != null && data.getData() != null) {
+            Log.d(TAG, "Adding image from gallery <" + data.getData() + ">");
+            importPicture(data.getData());
+        }
+        updateNavButtons();
+    }
+
+    /**
+     * Import the picture into the temporary image in the background, showing the progress
+     * in a dialog that cancels the import. A cancelled gallery import keeps the previous picture.
+     * @param uri The picture, which may be the temporary image itself.
+     */
+    private void importPicture(Uri uri) {
+        if (pictureImport != null) {
+            pictureImport.cancel(true);
+        }
+        final ProgressDialog dialog = new ProgressDialog(activity);
+        dialog.setTitle(activity.getString(R.string.addimage_common_importing_picture));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setMax(100);
+        dialog.setCancelable(true);
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialogInterface) {
+                if (pictureImport != null) {
+                    pictureImport.cancel(true);
+                    pictureImport = null;
+                }
+            }
+        });
+        dialog.show();
+
+        PictureImporter importer = new PictureImporter(activity.getContentResolver(), Constants.IMPORTED_PICTURE_SIZE);
+        pictureImport = importer.start(uri, temporaryImage, new PictureImporter.Callback() {
+            @Override
+            public void onProgress(int percent) {
+                dialog.setProgress(percent);
+            }
+
+            @Override
+            public void onImported(File picture) {
+                pictureImport = null;
+                if (activity.isFinishing()) {
+                    return;
+                }
+                dialog.dismiss();
                 loadTemporaryImageIntoView();
                 imageSelected = true;
+                updateNavButtons();
             }
-        } catch (IOException e) {
-            activity.showExceptionAlertAndFinish(e);
-        } finally {
-            updateNavButtons();
-        }
+
+            @Override
+            public void onFailure(IOException e) {
+                pictureImport = null;
+                if (activity.isFinishing()) {
+                    return;
+                }
+                dialog.dismiss();
+                activity.showExceptionAlertAndFinish(e);
+            }
+        });
     }
 
     private void loadTemporaryImageIntoView() {
@@ -18,13 +18,11 @@ package com.smilemeback.adapters;
 
 import android.content.ClipData;
 import android.content.ClipDescription;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
 import android.view.DragEvent;
 import android.view.MotionEvent;
 import android.view.View;
@@ -37,11 +35,15 @@ import com.smilemeback.activities.GalleryBaseActivity;
 import com.smilemeback.misc.Constants;
 import com.smilemeback.misc.GalleryActivityData;
 import com.smilemeback.misc.GalleryActivityState;
+import com.smilemeback.selection.SelectionListener;
 import com.smilemeback.selection.SelectionManager;
 import com.smilemeback.selectionmode.SelectionMode;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.views.IconView;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Manages basic gridview operations and ties common functionality with
@@ -56,6 +58,15 @@ abstract public class BaseGridAdapter extends BaseAdapter implements View.OnDrag
 
     protected boolean isDragging = false;
 
+    protected DragShadowComposer shadowComposer;
+    private final Handler handler = new Handler();
+    private final Runnable prepareShadow = new Runnable() {
+        @Override
+        public void run() {
+            shadowComposer.prepare(getSelectedImagePaths());
+        }
+    };
+
     /**
      * Initialize the {@link com.smilemeback.adapters.BaseGridAdapter}.
      */
@@ -66,6 +77,45 @@ abstract public class BaseGridAdapter extends BaseAdapter implements View.OnDrag
         this.data = data;
         this.selectionMode = selectionMode;
         data.gridView.setOnDragListener(this);
+
+        // use the width/height the same as with the IconViewSide dimensions.
+        final int singleWidth = (int)activity.getResources().getDimension(R.dimen.iconview_side_width);
+        final int singleHeight = (int)(activity.getResources().getDimension(R.dimen.iconview_side_height)*0.8);
+        this.shadowComposer = new DragShadowComposer(
+                activity.getResources(),
+                activity.getSmbApplication().getBitmapCache(),
+                singleWidth,
+                singleHeight,
+                (int)(0.1f*singleHeight),
+                Constants.MAX_ICONS_IN_DRAG_SHADOW);
+        // compose the drag shadow of the selection before it is dragged
+        selectionManager.addListener(new SelectionListener() {
+            @Override
+            public void positionSelected(int position) {
+                schedulePrepareShadow();
+            }
+
+            @Override
+            public void positionDeselected(int position) {
+                schedulePrepareShadow();
+            }
+
+            @Override
+            public void numTotalChanged(int total) {
+            }
+
+            @Override
+            public void numSelectedChanged(int selected) {
+            }
+        });
+    }
+
+    /**
+     * Prepare the drag shadow once for all selection events of the current message.
+     */
+    private void schedulePrepareShadow() {
+        handler.removeCallbacks(prepareShadow);
+        handler.post(prepareShadow);
     }
 
     /**
@@ -147,6 +197,33 @@ abstract public class BaseGridAdapter extends BaseAdapter implements View.OnDrag
         return view;
     }
 
+    /**
+     * Show changed items, which the adapter already holds. Only the visible icons of renamed items
+     * and of items with updated media are prepared again. Inserted, removed or moved items refresh
+     * the grid, which keeps its scroll position and its views unlike setting the adapter again.
+     *
+     * @param changes The changes of the items.
+     */
+    protected void showChanges(List<? extends StorageChange<?>> changes) {
+        Set<Integer> updated = new HashSet<>();
+        for (StorageChange<?> change : changes) {
+            if (change.isStructural()) {
+                selectionManager.deselectAll();
+                selectionManager.setNumTotal(getCount());
+                notifyDataSetChanged();
+                return;
+            }
+            updated.add(change.getPosition());
+        }
+        final int n = data.gridView.getChildCount();
+        for (int i=0 ; i<n ; ++i) {
+            IconView view = (IconView)data.gridView.getChildAt(i);
+            if (updated.contains(view.getPosition())) {
+                prepareIconView(view, view.getPosition());
+            }
+        }
+    }
+
     /**
      * Update the checked states of icons in the view right now.
      */
@@ -207,9 +284,9 @@ abstract public class BaseGridAdapter extends BaseAdapter implements View.OnDrag
     private class ImageDragShadowBuilder extends View.DragShadowBuilder {
         private Drawable shadow;
 
-        public ImageDragShadowBuilder(View view) {
+        public ImageDragShadowBuilder(IconView view) {
             super(view);
-            shadow = getCombinedIconViewDrawable();
+            shadow = shadowComposer.getShadow(getSelectedImagePaths(), view.getDrawable());
         }
 
         @Override
@@ -227,48 +304,6 @@ abstract public class BaseGridAdapter extends BaseAdapter implements View.OnDrag
         }
     }
 
-    /**
-     * Get a drag shadow of selection positions.
-     * @return
-     */
-    private Drawable getCombinedIconViewDrawable() {
-        List<String> selectedPaths = getSelectedImagePaths();
-        // use the width/height the same as with the IconViewSide dimensions.
-        final int singleWidth = (int)activity.getResources().getDimension(R.dimen.iconview_side_width);
-        final int singleHeight = (int)(activity.getResources().getDimension(R.dimen.iconview_side_height)*0.8);
-        final int offset = (int)(0.1f*singleHeight);
-        int totalWidth = singleWidth + (offset*(selectedPaths.size()-1));
-        int totalHeight = singleHeight + (offset*(selectedPaths.size()-1));
-        final int maxIcons = Math.min(selectedPaths.size(), Constants.MAX_ICONS_IN_DRAG_SHADOW);
-
-        // create a big combined bitmap and erase its contents
-        Bitmap combined = Bitmap.createBitmap(
-                totalWidth,
-                totalHeight,
-                Bitmap.Config.ARGB_8888);
-        combined.eraseColor(0x00000000);
-
-        // more efficient bitmap loading
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize=8;
-
-        Canvas canvas = new Canvas(combined);
-        for (int iconIndex=maxIcons-1 ; iconIndex >= 0 ; --iconIndex) {
-            Drawable drawable = new BitmapDrawable(
-                    activity.getResources(),
-                    BitmapFactory.decodeFile(selectedPaths.get(iconIndex), options));
-            drawable.setBounds(
-                    iconIndex*offset,
-                    iconIndex*offset,
-                    singleWidth + iconIndex*offset,
-                    singleHeight + iconIndex*offset);
-            drawable.draw(canvas);
-        }
-
-
-        return new BitmapDrawable(activity.getResources(), combined);
-    }
-
     /**
      * @return The list of paths representing selected icons/categories.
      */
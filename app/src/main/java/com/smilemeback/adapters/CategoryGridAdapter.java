@@ -19,16 +19,15 @@ package com.smilemeback.adapters;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.activities.CategoriesActivity;
 import com.smilemeback.activities.IconsActivity;
 import com.smilemeback.misc.Constants;
 import com.smilemeback.misc.GalleryActivityData;
 import com.smilemeback.selection.SelectionManager;
 import com.smilemeback.selectionmode.SelectionMode;
-import com.smilemeback.storage.Categories;
 import com.smilemeback.storage.Category;
-import com.smilemeback.storage.Storage;
-import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.views.IconView;
 
 import java.util.ArrayList;
@@ -39,28 +38,57 @@ import java.util.List;
  */
 public class CategoryGridAdapter extends BaseGridAdapter {
 
-    private Categories categories;
+    private List<Category> categories = ImmutableList.of();
 
     public CategoryGridAdapter(CategoriesActivity activity, GridAdapterListener listener, SelectionMode selectionMode, SelectionManager selectionManager, GalleryActivityData data) {
         super(activity, listener, selectionMode, selectionManager, data);
     }
 
     /**
-     * Load the categories and initialize the adapter,
+     * Initialize the adapter with the last published categories,
      * also refresh the associated gridview.
-     *
-     * @throws StorageException
      */
     public void initialize()  {
-        try {
-            Storage storage = new Storage(activity);
-            categories = storage.getCategories();
-            selectionManager.setNumTotal(categories.size());
-            selectionManager.deselectAll();
-            data.gridView.setAdapter(this);
-        } catch (StorageException e) {
-            activity.showStorageExceptionAlertAndFinish(e);
+        setCategories(activity.getStorageService().getCategories());
+    }
+
+    /**
+     * Show the given categories and refresh the associated gridview.
+     * Nothing is refreshed when the categories are already shown, and the icons are only
+     * prepared again when the same categories are shown, for example after a restored snapshot was loaded.
+     *
+     * @param categories Snapshot of the categories.
+     */
+    public void setCategories(List<Category> categories) {
+        if (data.gridView.getAdapter() == this && this.categories.equals(categories)) {
+            if (!StorageChange.sameItems(this.categories, categories)) {
+                this.categories = categories;
+                notifyDataSetChanged();
+            }
+            return;
+        }
+        this.categories = categories;
+        selectionManager.setNumTotal(categories.size());
+        selectionManager.deselectAll();
+        data.gridView.setAdapter(this);
+    }
+
+    /**
+     * Show the changes of the categories, falling back to showing all categories in case
+     * the changes do not match the shown categories.
+     *
+     * @param categories Snapshot of the changed categories.
+     * @param changes The changes from the previous snapshot.
+     */
+    public void applyChanges(List<Category> categories, List<StorageChange<Category>> changes) {
+        List<Category> updated = new ArrayList<>(this.categories);
+        StorageChange.apply(updated, changes);
+        if (!updated.equals(categories)) {
+            setCategories(categories);
+            return;
         }
+        this.categories = categories;
+        showChanges(changes);
     }
 
     @Override
@@ -76,7 +104,7 @@ public class CategoryGridAdapter extends BaseGridAdapter {
     @Override
     void prepareIconView(IconView view, int position) {
         final Category category = categories.get(position);
-        view.setImageBitmap(category.getThumbnail());
+        view.setImageBitmap(category.getThumbnailData());
         view.setLabel(category.getName().toString());
     }
 
@@ -93,7 +121,7 @@ public class CategoryGridAdapter extends BaseGridAdapter {
         for (int idx=0 ; idx<categories.size() ; ++idx) {
             if (selectionManager.isSelected(idx)) {
                 Category category = categories.get(idx);
-                selected.add(category.getThumbnail().getPath());
+                selected.add(category.getThumbnailData().getPath());
             }
         }
         return selected;
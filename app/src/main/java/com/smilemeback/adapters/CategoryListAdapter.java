@@ -23,12 +23,10 @@ import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.R;
 import com.smilemeback.activities.IconsActivity;
-import com.smilemeback.storage.Categories;
 import com.smilemeback.storage.Category;
-import com.smilemeback.storage.Storage;
-import com.smilemeback.storage.StorageException;
 import com.smilemeback.views.IconViewSide;
 
 import java.util.ArrayList;
@@ -41,29 +39,22 @@ public class CategoryListAdapter extends BaseAdapter {
     protected IconsActivity activity;
     protected int selectedPosition = 0;
     protected int hoverPosition = -1;
-    protected Categories categories;
+    protected List<Category> categories = ImmutableList.of();
     protected Category currentCategory;
     protected ListAdapterListener listener;
     protected ListView listView;
 
-    public CategoryListAdapter(IconsActivity activity, final ListAdapterListener listener, final Category currentCategory, ListView listView) {
+    public CategoryListAdapter(IconsActivity activity, final ListAdapterListener listener, ListView listView) {
         this.activity = activity;
         this.listener = listener;
-        this.currentCategory = currentCategory;
         this.listView = listView;
 
-        try {
-            Storage storage = new Storage(activity);
-            categories = storage.getCategories();
-        } catch (StorageException e) {
-            activity.showStorageExceptionAlertAndFinish(e);
-        }
-
         this.listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Category category = categories.get(position);
                 if (category != currentCategory) {
+                    currentCategory = category;
                     setSelectedItemPosition(position);
                     setHoverPosition(-1);
                     notifyDataSetChanged();
@@ -73,6 +64,34 @@ public class CategoryListAdapter extends BaseAdapter {
         });
     }
 
+    /**
+     * Show the given categories, one of which is the current category.
+     *
+     * @param categories Snapshot of the categories.
+     * @param currentCategory The category that is displayed in the grid.
+     */
+    public void setCategories(List<Category> categories, Category currentCategory) {
+        this.categories = categories;
+        this.currentCategory = currentCategory;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show changed categories, keeping the current category selected.
+     * The list only rebinds its visible items, so it does not need the individual changes.
+     *
+     * @param categories Snapshot of the changed categories.
+     */
+    public void showChangedCategories(List<Category> categories) {
+        this.categories = categories;
+        int position = categories.indexOf(currentCategory);
+        if (position >= 0) {
+            currentCategory = categories.get(position);
+            selectedPosition = position;
+        }
+        notifyDataSetChanged();
+    }
+
     @Override
     public int getCount() {
         return categories.size();
@@ -115,7 +134,7 @@ public class CategoryListAdapter extends BaseAdapter {
         }
         view.setPosition(position);
 
-        view.setImageBitmap(category.getThumbnail());
+        view.setImageBitmap(category.getThumbnailData());
         view.setLabel(category.getName().toString());
 
         view.setCheckboxVisible(false);
@@ -0,0 +1,288 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.adapters;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.base.Optional;
+import com.smilemeback.storage.Thumbnails;
+import com.smilemeback.views.BitmapCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Composes the drag shadows of selected icons in the background, so that starting a drag never
+ * decodes pictures on the main thread.
+ *
+ * The shadow of a selection is composed as soon as the selection changes (see {@link #prepare(List)})
+ * and reused for every drag until the selection changes again. The icons are taken from the shared
+ * {@link com.smilemeback.views.BitmapCache}, preferring the bitmaps the grid shows, and the smallest
+ * thumbnail of a picture is only decoded if it is not cached. A drag started before the shadow is composed gets a placeholder: the dragged icon as it
+ * is shown, stacked once for every selected icon.
+ */
+public class DragShadowComposer {
+    private static final String TAG = DragShadowComposer.class.getCanonicalName();
+
+    // shadows are composed one at a time, independent of the activity
+    private static final ExecutorService composer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DragShadowComposer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Resources resources;
+    private final BitmapCache cache;
+    private final int singleWidth;
+    private final int singleHeight;
+    private final int offset;
+    private final int maxIcons;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // the selection that was prepared last, and its shadow once composed
+    private List<String> paths = new ArrayList<>();
+    private Drawable shadow = null;
+
+    /**
+     * @param singleWidth The width of a single icon in the shadow.
+     * @param singleHeight The height of a single icon in the shadow.
+     * @param offset The offset of each icon from the previous one.
+     * @param maxIcons The most icons shown in a shadow.
+     */
+    public DragShadowComposer(Resources resources, BitmapCache cache, int singleWidth, int singleHeight, int offset, int maxIcons) {
+        this.resources = resources;
+        this.cache = cache;
+        this.singleWidth = singleWidth;
+        this.singleHeight = singleHeight;
+        this.offset = offset;
+        this.maxIcons = maxIcons;
+    }
+
+    /**
+     * Start composing the shadow of a selection in the background, unless it is composed already.
+     * Must be called on the main thread.
+     *
+     * @param selectedPaths The pictures of the selected icons.
+     */
+    public void prepare(List<String> selectedPaths) {
+        final List<String> requested = limit(selectedPaths);
+        if (requested.equals(paths)) {
+            return;
+        }
+        paths = requested;
+        shadow = null;
+        if (requested.isEmpty()) {
+            return;
+        }
+        composer.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Drawable composed = compose(requested);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the selection may have changed while composing
+                        if (requested.equals(paths)) {
+                            shadow = composed;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get the shadow of a selection without blocking. Must be called on the main thread.
+     *
+     * @param selectedPaths The pictures of the selected icons.
+     * @param dragged The image of the dragged icon, as it is shown, which may be null.
+     * @return The composed shadow, or a placeholder while it is being composed.
+     */
+    public Drawable getShadow(List<String> selectedPaths, Drawable dragged) {
+        prepare(selectedPaths);
+        if (shadow != null) {
+            return shadow;
+        }
+        return new StackDrawable(dragged, paths.size());
+    }
+
+    private List<String> limit(List<String> selectedPaths) {
+        return new ArrayList<>(selectedPaths.subList(0, Math.min(selectedPaths.size(), maxIcons)));
+    }
+
+    private int totalWidth(int count) {
+        return singleWidth + offset * Math.max(0, count - 1);
+    }
+
+    private int totalHeight(int count) {
+        return singleHeight + offset * Math.max(0, count - 1);
+    }
+
+    /**
+     * Compose the shadow, runs in the background.
+     */
+    private Drawable compose(List<String> selectedPaths) {
+        int count = selectedPaths.size();
+        // create a big combined bitmap and erase its contents
+        Bitmap combined = Bitmap.createBitmap(totalWidth(count), totalHeight(count), Bitmap.Config.ARGB_8888);
+        combined.eraseColor(0x00000000);
+
+        Canvas canvas = new Canvas(combined);
+        for (int iconIndex = count - 1; iconIndex >= 0; --iconIndex) {
+            Bitmap bitmap = getIcon(selectedPaths.get(iconIndex));
+            if (bitmap == null) {
+                continue;
+            }
+            Drawable drawable = new BitmapDrawable(resources, bitmap);
+            drawable.setBounds(
+                    iconIndex * offset,
+                    iconIndex * offset,
+                    singleWidth + iconIndex * offset,
+                    singleHeight + iconIndex * offset);
+            drawable.draw(canvas);
+        }
+        return new BitmapDrawable(resources, combined);
+    }
+
+    /**
+     * Get the bitmap of an icon in the shadow from the cache, decoding the smallest thumbnail
+     * of the picture, or the picture subsampled to about the size of the icon if it is not cached.
+     */
+    private Bitmap getIcon(String path) {
+        Bitmap bitmap = findShown(path);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        String key = BitmapCache.key(BitmapCache.Pool.SIDEBAR, "shadow:" + path);
+        bitmap = cache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        Optional<File> thumbnail = Thumbnails.find(new File(path), Thumbnails.SIZES[0]);
+        String source = thumbnail.isPresent() && thumbnail.get().isFile() ? thumbnail.get().getPath() : path;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= singleWidth
+                && options.outHeight / (options.inSampleSize * 2) >= singleHeight) {
+            options.inSampleSize *= 2;
+        }
+        bitmap = BitmapFactory.decodeFile(source, options);
+        if (bitmap == null) {
+            Log.d(TAG, "Could not decode <" + source + "> for a drag shadow");
+            return null;
+        }
+        cache.set(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Get the bitmap the grid shows for a picture from the cache. The grid caches pictures with thumbnails
+     * by the name of the thumbnail and the others by their path
+     * (see {@link com.smilemeback.views.IconView#setImageBitmap(com.smilemeback.storage.MediaRange, File)}).
+     *
+     * @return The bitmap, or null if the grid has not loaded the picture.
+     */
+    private Bitmap findShown(String path) {
+        File data = new File(path);
+        for (int size : Thumbnails.SIZES) {
+            Optional<File> thumbnail = Thumbnails.find(data, size);
+            if (!thumbnail.isPresent()) {
+                break;
+            }
+            Bitmap bitmap = cache.find(BitmapCache.Pool.GRID, thumbnail.get().getName());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return cache.find(BitmapCache.Pool.GRID, path);
+    }
+
+    /**
+     * Placeholder shadow drawing the same image once for every selected icon,
+     * without allocating any bitmaps.
+     */
+    private class StackDrawable extends Drawable {
+        private final Drawable image;
+        private final int count;
+
+        StackDrawable(Drawable image, int count) {
+            // a copy sharing the bitmap, so that the bounds of the shown image are not changed
+            Drawable.ConstantState state = image != null ? image.getConstantState() : null;
+            this.image = state != null ? state.newDrawable(resources) : null;
+            this.count = Math.max(1, count);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return totalWidth(count);
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return totalHeight(count);
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (image == null) {
+                return;
+            }
+            for (int iconIndex = count - 1; iconIndex >= 0; --iconIndex) {
+                image.setBounds(
+                        iconIndex * offset,
+                        iconIndex * offset,
+                        singleWidth + iconIndex * offset,
+                        singleHeight + iconIndex * offset);
+                image.draw(canvas);
+            }
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.smilemeback.adapters;
 
 import android.media.MediaPlayer;
 
+import com.google.common.collect.ImmutableList;
 import com.smilemeback.activities.IconsActivity;
 import com.smilemeback.misc.GalleryActivityData;
 import com.smilemeback.misc.Toasts;
@@ -25,10 +26,12 @@ import com.smilemeback.selection.SelectionManager;
 import com.smilemeback.selectionmode.SelectionMode;
 import com.smilemeback.storage.Category;
 import com.smilemeback.storage.Image;
-import com.smilemeback.storage.Images;
-import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.MediaRange;
+import com.smilemeback.storage.StorageChange;
 import com.smilemeback.views.IconView;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -39,7 +42,7 @@ import java.util.List;
  */
 public class IconGridAdapter extends BaseGridAdapter {
 
-    private Images images;
+    private List<Image> images = ImmutableList.of();
     private Category currentCategory;
     private MediaPlayer player = new MediaPlayer();
 
@@ -56,16 +59,51 @@ public class IconGridAdapter extends BaseGridAdapter {
         return currentCategory;
     }
 
+    /**
+     * Initialize the adapter with the last published images of the current category.
+     */
     @Override
     public void initialize()  {
-        try {
-            images = currentCategory.getImages();
-            selectionManager.deselectAll();
-            selectionManager.setNumTotal(images.size());
-            data.gridView.setAdapter(this);
-        } catch (StorageException e) {
-            activity.showStorageExceptionAlertAndFinish(e);
+        setImages(activity.getStorageService().getImages(currentCategory));
+    }
+
+    /**
+     * Show the given images of the current category and refresh the associated gridview.
+     * Nothing is refreshed when the images are already shown, and the icons are only
+     * prepared again when the same images are shown, for example after a restored snapshot was loaded.
+     *
+     * @param images Snapshot of the images.
+     */
+    public void setImages(List<Image> images) {
+        if (data.gridView.getAdapter() == this && this.images.equals(images)) {
+            if (!StorageChange.sameItems(this.images, images)) {
+                this.images = images;
+                notifyDataSetChanged();
+            }
+            return;
         }
+        this.images = images;
+        selectionManager.deselectAll();
+        selectionManager.setNumTotal(images.size());
+        data.gridView.setAdapter(this);
+    }
+
+    /**
+     * Show the changes of the images of the current category, falling back to showing
+     * all images in case the changes do not match the shown images.
+     *
+     * @param images Snapshot of the changed images.
+     * @param changes The changes from the previous snapshot.
+     */
+    public void applyChanges(List<Image> images, List<StorageChange<Image>> changes) {
+        List<Image> updated = new ArrayList<>(this.images);
+        StorageChange.apply(updated, changes);
+        if (!updated.equals(images)) {
+            setImages(images);
+            return;
+        }
+        this.images = images;
+        showChanges(changes);
     }
 
     /**
@@ -88,7 +126,7 @@ public class IconGridAdapter extends BaseGridAdapter {
     @Override
     void prepareIconView(IconView view, int position) {
         final Image image = images.get(position);
-        view.setImageBitmap(image.getImage());
+        view.setImageBitmap(image.getImageRange(), image.getImageData());
         view.setLabel(image.getName().toString());
     }
 
@@ -97,7 +135,18 @@ public class IconGridAdapter extends BaseGridAdapter {
         try {
             if (!player.isPlaying()) {
                 player.reset();
-                player.setDataSource(new FileInputStream(images.get(position).getAudio()).getFD());
+                MediaRange audio = images.get(position).getAudioRange();
+                FileInputStream in = audio.openFile();
+                try {
+                    if (audio.isWholeFile()) {
+                        player.setDataSource(in.getFD());
+                    } else {
+                        player.setDataSource(in.getFD(), audio.getOffset(), audio.getLength());
+                    }
+                } finally {
+                    // the player keeps its own duplicate of the descriptor
+                    IOUtils.closeQuietly(in);
+                }
                 player.prepare();
 
                 player.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -124,7 +173,7 @@ public class IconGridAdapter extends BaseGridAdapter {
         for (int idx=0 ; idx<images.size() ; ++idx) {
             if (selectionManager.isSelected(idx)) {
                 Image image = images.get(idx);
-                selected.add(image.getImage().getPath());
+                selected.add(image.getImageData().getPath());
             }
         }
         return selected;
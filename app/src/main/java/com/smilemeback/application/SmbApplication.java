@@ -17,14 +17,54 @@
 package com.smilemeback.application;
 
 import android.app.Application;
+import android.util.Log;
 
+import com.smilemeback.misc.Constants;
+import com.smilemeback.storage.Library;
+import com.smilemeback.storage.Storage;
+import com.smilemeback.storage.StorageException;
+import com.smilemeback.storage.StorageService;
+import com.smilemeback.storage.StorageWatcher;
+import com.smilemeback.views.BitmapCache;
+import com.smilemeback.views.BitmapScaler;
+import com.smilemeback.views.MediaRequestHandler;
+import com.squareup.picasso.Picasso;
 
 /**
  * Global state of the application.
  */
 public class SmbApplication extends Application {
+    private static final String TAG = SmbApplication.class.getCanonicalName();
 
     private boolean locked = false;
+    private Library library = null;
+    private StorageService storageService = null;
+    private StorageWatcher storageWatcher = null;
+    private BitmapCache bitmapCache = null;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        bitmapCache = BitmapCache.forContext(this);
+        // let picasso load the images stored in category packs, caching them in the shared cache
+        Picasso.setSingletonInstance(new Picasso.Builder(this)
+                .addRequestHandler(new MediaRequestHandler())
+                .memoryCache(bitmapCache)
+                .build());
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        bitmapCache.trimMemory(level);
+    }
+
+    /**
+     * @return The memory cache of all bitmaps shown by the application.
+     */
+    public BitmapCache getBitmapCache() {
+        return bitmapCache;
+    }
 
     public boolean isLocked() {
         return locked;
@@ -33,4 +73,42 @@ public class SmbApplication extends Application {
     public void setLocked(boolean locked) {
         this.locked = locked;
     }
+
+    /**
+     * @return The process-wide {@link com.smilemeback.storage.Library} of categories and images.
+     */
+    public synchronized Library getLibrary() {
+        if (library == null) {
+            library = new Library(new Storage(this));
+        }
+        return library;
+    }
+
+    /**
+     * @return The process-wide {@link com.smilemeback.storage.StorageService}, which runs
+     *         all storage work of the library off the main thread.
+     */
+    public synchronized StorageService getStorageService() {
+        if (storageService == null) {
+            storageService = new StorageService(getLibrary());
+            storageService.setPackingEnabled(Constants.PACK_CATEGORIES);
+            storageService.setTrashRetention(Constants.TRASH_RETENTION_MILLIS);
+            storageService.setThumbnailScaler(new BitmapScaler());
+            storageService.setThumbnailsSize(Constants.THUMBNAILS_SIZE_BYTES);
+            // show the library as it was last published until it is loaded
+            try {
+                storageService.restoreSnapshot();
+            } catch (StorageException e) {
+                Log.e(TAG, "Could not restore the library snapshot: " + e.getMessage());
+            }
+            // pick up changes made outside of the application, for example over USB
+            try {
+                storageWatcher = new StorageWatcher(storageService, getLibrary().getStorage().getCategoriesFolder());
+                storageWatcher.start();
+            } catch (StorageException e) {
+                Log.e(TAG, "Could not watch the categories folder: " + e.getMessage());
+            }
+        }
+        return storageService;
+    }
 }
@@ -40,4 +40,16 @@ public class Constants {
     public static final int MAX_NAME_LENGTH = 20;
 
     public static final String PREFS_DEFAULT_PASSWORD = "smile";
+
+    // keep a copy of the images of each category in a single pack file, which takes as much space again
+    public static final boolean PACK_CATEGORIES = false;
+
+    // deleted albums and images can be recovered from the trash for a day
+    public static final long TRASH_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // downscaled pictures kept for the grids and previews, least recently used evicted first
+    public static final long THUMBNAILS_SIZE_BYTES = 64 * 1024 * 1024L;
+
+    // longest side of the pictures added to the library, which are never shown larger
+    public static final int IMPORTED_PICTURE_SIZE = 1280;
 }
@@ -22,7 +22,7 @@ import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
 
-import com.smilemeback.storage.Name;
+import com.smilemeback.storage.FileNameCodec;
 
 /**
  * {@link android.text.InputFilter} for removing illegal characters from image names.
@@ -57,6 +57,6 @@ public class ValidNameInputFilter implements InputFilter {
     }
 
     private boolean isCharAllowed(char c) {
-        return Name.ILLEGAL_CHARACTERS.indexOf(c) == -1;
+        return FileNameCodec.isValidChar(c);
     }
 }
@@ -0,0 +1,318 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Content-addressed store of image, audio and thumbnail data shared by the categories.
+ *
+ * Every blob is stored once in the blobs folder, named by the SHA-1 hash of its contents
+ * and the suffix of its data type: {hash}{suffix}. Instead of the data, the files in the
+ * category folders may hold a link to a blob: a file of exactly {@link #LINK_SIZE} bytes
+ * consisting of {@link #LINK_MAGIC} and the hash. Links keep the names of the files they
+ * replace, so renaming, moving and copying icons only touches the small link files.
+ * Files holding the data directly are still supported.
+ *
+ * Blobs that are no longer linked from any category are deleted by {@link #collectGarbage(java.util.List)}.
+ */
+public class BlobStore {
+    private static final String TAG = BlobStore.class.getCanonicalName();
+    public static final String FOLDER = "blobs";
+    public static final String LINK_MAGIC = "SMBLOB1:";
+    private static final int HASH_LENGTH = 40;
+    public static final int LINK_SIZE = LINK_MAGIC.length() + HASH_LENGTH;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // temporary files created since the process started may belong to a plan that is being prepared
+    private static final long SESSION_START = System.currentTimeMillis();
+
+    protected final File folder;
+
+    public BlobStore(final File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param categoriesFolder The folder containing the categories.
+     * @return The store next to the categories folder.
+     */
+    public static BlobStore forCategoriesFolder(final File categoriesFolder) {
+        return new BlobStore(new File(categoriesFolder.getParentFile(), FOLDER));
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return The blob with the given hash and suffix, which may not exist.
+     */
+    public File getBlob(final String hash, final String suffix) {
+        return new File(folder, hash + suffix);
+    }
+
+    /**
+     * Read the hash from a link file. Files that do not have the size of a link
+     * are not read at all.
+     *
+     * @param file The file that may be a link.
+     * @param size The size of the file if known, otherwise -1.
+     * @return The hash of the linked blob, absent if the file holds the data directly.
+     */
+    public static Optional<String> readLink(final File file, final long size) {
+        if ((size < 0 ? file.length() : size) != LINK_SIZE) {
+            return Optional.absent();
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[LINK_SIZE];
+            IOUtils.readFully(in, data);
+            String link = new String(data, ASCII);
+            if (!link.startsWith(LINK_MAGIC)) {
+                return Optional.absent();
+            }
+            return Optional.of(link.substring(LINK_MAGIC.length()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read link <" + file + ">: " + e.getMessage());
+            return Optional.absent();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param file A file in a category folder.
+     * @param size The size of the file if known, otherwise -1.
+     * @return The blob the file links to, or the file itself if it holds the data directly.
+     */
+    public File resolve(final File file, final long size) {
+        Optional<String> hash = readLink(file, size);
+        return hash.isPresent() ? getBlob(hash.get(), suffixOf(file)) : file;
+    }
+
+    private static String suffixOf(final File file) {
+        String name = file.getName();
+        int idx = name.lastIndexOf('.');
+        return idx < 0 ? "" : name.substring(idx);
+    }
+
+    /**
+     * @return The SHA-1 hash of the file contents.
+     */
+    public static String hash(final File file) throws StorageException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return hash(in, null);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Hash a stream, optionally writing its contents to another stream on the way.
+     */
+    private static String hash(final InputStream in, final OutputStream copy) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            if (copy != null) {
+                copy.write(buffer, 0, read);
+            }
+        }
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int idx = 0; idx < bytes.length; ++idx) {
+            hex[idx * 2] = HEX[(bytes[idx] >> 4) & 0xf];
+            hex[idx * 2 + 1] = HEX[bytes[idx] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Plan storing the contents of a file as a blob. Nothing is written in case the blob already exists.
+     *
+     * @param plan The plan to add the steps to.
+     * @param source The file to store.
+     * @param move If true, the source is moved into the store, otherwise it is copied.
+     * @param suffix The suffix of the data type.
+     * @return The hash of the stored blob.
+     */
+    public String planStore(final Journal.Plan plan, final File source, final boolean move, final String suffix) throws StorageException {
+        String hash = hash(source);
+        File blob = getBlob(hash, suffix);
+        if (!blob.exists()) {
+            if (move) {
+                plan.move(source, blob);
+            } else {
+                plan.copy(source, blob);
+            }
+        } else if (move) {
+            plan.delete(source);
+        }
+        return hash;
+    }
+
+    /**
+     * Plan creating a link to a blob. The link is written to a temporary file right away,
+     * which the plan moves to its place.
+     *
+     * @param plan The plan to add the steps to.
+     * @param hash The hash of the blob.
+     * @param target The file in a category folder that links to the blob.
+     */
+    public void planLink(final Journal.Plan plan, final String hash, final File target) throws StorageException {
+        try {
+            FileUtils.forceMkdir(folder);
+            File temp = File.createTempFile("link", TEMP_SUFFIX, folder);
+            writeLink(hash, temp);
+            plan.move(temp, target);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Store the contents of a stream as a blob and link a file to it.
+     *
+     * @param in The stream to store, which is not closed.
+     * @param target The file in a category folder that links to the blob.
+     */
+    public void store(final InputStream in, final File target) throws StorageException {
+        File temp = null;
+        OutputStream out = null;
+        try {
+            FileUtils.forceMkdir(folder);
+            temp = File.createTempFile("blob", TEMP_SUFFIX, folder);
+            out = new FileOutputStream(temp);
+            String hash = hash(in, out);
+            out.close();
+            File blob = getBlob(hash, suffixOf(target));
+            if (blob.exists()) {
+                FileUtils.deleteQuietly(temp);
+            } else {
+                FileUtils.moveFile(temp, blob);
+            }
+            writeLink(hash, target);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private static void writeLink(final String hash, final File file) throws IOException {
+        FileUtils.writeByteArrayToFile(file, (LINK_MAGIC + hash).getBytes(ASCII));
+    }
+
+    /**
+     * Delete the blobs that are not linked from any file in the category folders,
+     * and temporary files left behind by interrupted operations of earlier processes.
+     * Must not run while a plan that creates blobs or links is in progress.
+     *
+     * @param categoriesFolder The folder containing the categories.
+     * @return The number of deleted files.
+     */
+    public int collectGarbage(final File categoriesFolder) throws StorageException {
+        return collectGarbage(Collections.singletonList(categoriesFolder));
+    }
+
+    /**
+     * Delete the blobs that are not linked from any file in the category folders of the given
+     * folders, and temporary files left behind by interrupted operations of earlier processes.
+     * Temporary files of this process are kept, as they may be referenced by a plan that is
+     * planned but not run yet. The first folder is the categories folder, the others may
+     * disappear while they are scanned.
+     *
+     * @param categoriesFolders The folders containing category folders.
+     * @return The number of deleted files.
+     */
+    public int collectGarbage(final List<File> categoriesFolders) throws StorageException {
+        String[] blobs = folder.list();
+        if (blobs == null || blobs.length == 0) {
+            return 0;
+        }
+        Set<String> linked = new HashSet<>();
+        for (int idx = 0; idx < categoriesFolders.size(); ++idx) {
+            File[] categories = categoriesFolders.get(idx).listFiles();
+            if (categories == null) {
+                if (idx == 0) {
+                    throw new StorageException("Could not list categories folder <" + categoriesFolders.get(idx) + ">");
+                }
+                continue;
+            }
+            for (File category : categories) {
+                File[] files = category.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    Optional<String> hash = readLink(file, -1);
+                    if (hash.isPresent()) {
+                        linked.add(hash.get() + suffixOf(file));
+                    }
+                }
+            }
+        }
+
+        int deleted = 0;
+        for (String blob : blobs) {
+            if (blob.endsWith(TEMP_SUFFIX) && new File(folder, blob).lastModified() >= SESSION_START) {
+                continue;
+            }
+            if (!linked.contains(blob)) {
+                Log.d(TAG, "Deleting unreferenced blob <" + blob + ">");
+                if (FileUtils.deleteQuietly(new File(folder, blob))) {
+                    ++deleted;
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -20,8 +20,10 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.util.Log;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.smilemeback.storage.datamover.DataMover;
+import com.google.common.collect.ImmutableList;
+import com.smilemeback.storage.datamover.ReorderPlanner;
 
 import org.apache.commons.io.FileUtils;
 
@@ -29,26 +31,58 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Class representing a list of categories.
  */
 public class Categories implements Iterable<Category> {
     private static String TAG = Categories.class.getCanonicalName();
+    private static final Function<Category, Integer> ID = new Function<Category, Integer>() {
+        @Override
+        public Integer apply(Category category) {
+            return category.getId();
+        }
+    };
 
     private final File parent;
+    private final OrderRecord order;
+    private final Journal journal;
+    private final BlobStore blobs;
+    private final Trash trash;
     private final List<Category> categories = new ArrayList<>();
+    private boolean ordered = false;
+    private final boolean verify;
+    private StorageListener listener = null;
+    private UndoLog undoLog = null;
 
 
     public Categories(final File parent) throws StorageException {
+        this(parent, false);
+    }
+
+    /**
+     * @param parent The categories folder.
+     * @param verify If true, every category folder and thumbnail is checked on the filesystem
+     *               when scanning, instead of trusting the folder listing.
+     */
+    public Categories(final File parent, final boolean verify) throws StorageException {
         super();
         this.parent = parent;
+        this.verify = verify;
+        this.order = new OrderRecord(parent);
+        this.journal = Journal.forCategoriesFolder(parent);
+        this.blobs = BlobStore.forCategoriesFolder(parent);
+        this.trash = Trash.forCategoriesFolder(parent);
 
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Parent folder <" + parent.getName() + "> not a directory!");
@@ -57,11 +91,39 @@ public class Categories implements Iterable<Category> {
         parseCategories();
     }
 
+    /**
+     * Initialize the categories from an already scanned folder
+     * (see {@link com.smilemeback.storage.LibraryLoader}).
+     *
+     * @param parent The categories folder.
+     * @param found The categories found in the folder, sorted by their ids.
+     */
+    Categories(final File parent, final List<Category> found) throws StorageException {
+        this.parent = parent;
+        this.verify = false;
+        this.order = new OrderRecord(parent);
+        this.journal = Journal.forCategoriesFolder(parent);
+        this.blobs = BlobStore.forCategoriesFolder(parent);
+        this.trash = Trash.forCategoriesFolder(parent);
+        arrangeCategories(found);
+    }
+
     @Override
     public Iterator<Category> iterator() {
         return categories.iterator();
     }
 
+    /**
+     * @return Immutable copy of the current categories, safe to read from other threads.
+     *         The thumbnails are resolved, so that readers do not touch the storage.
+     */
+    public ImmutableList<Category> snapshot() {
+        for (Category category : categories) {
+            category.getThumbnailData();
+        }
+        return ImmutableList.copyOf(categories);
+    }
+
     public Category get(int position) {
         return categories.get(position);
     }
@@ -74,27 +136,135 @@ public class Categories implements Iterable<Category> {
         return parent;
     }
 
+    /**
+     * Set the listener that is notified when categories are deleted or their folders renamed.
+     */
+    public void setListener(StorageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param undoLog The log that the inverses of the committed transactions are recorded in, may be null.
+     */
+    public void setUndoLog(UndoLog undoLog) {
+        this.undoLog = undoLog;
+    }
+
+    /**
+     * @return The category with the given id, absent if there is none.
+     */
+    public Optional<Category> findById(final int id) {
+        for (Category category : categories) {
+            if (category.getId() == id) {
+                return Optional.of(category);
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Notify the listener about categories that were removed or whose folders changed.
+     * @param before The categories before the change.
+     * @param removed The categories that were explicitly removed.
+     */
+    private void notifyChanged(final List<Category> before, final Collection<Category> removed) {
+        if (listener == null) {
+            return;
+        }
+        Set<File> after = new HashSet<>(categories.size() * 2);
+        for (Category category : categories) {
+            after.add(category.getFolder());
+        }
+        Set<Category> affected = new HashSet<>(removed);
+        for (Category category : before) {
+            if (!after.contains(category.getFolder())) {
+                affected.add(category);
+            }
+        }
+        if (!affected.isEmpty()) {
+            listener.categoriesChanged(affected);
+        }
+    }
+
+    /**
+     * @return True if the categories use the ordered layout, where the folder names contain
+     *         stable ids and the order is stored in an {@link com.smilemeback.storage.OrderRecord}.
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Convert the categories and the images in them from positional to ordered layout.
+     * The current folder and file names become the stable ids, so nothing is renamed.
+     * Categories that fail to load are left in positional layout, which stays readable.
+     * Nothing is loaded once the categories are ordered, and only the category folders
+     * without an {@link com.smilemeback.storage.OrderRecord} are loaded before that.
+     * @throws StorageException
+     */
+    public void migrateToOrderedLayout() throws StorageException {
+        if (ordered) {
+            return;
+        }
+        for (Category category : categories) {
+            if (new OrderRecord(category.getFolder()).exists()) {
+                continue;
+            }
+            try {
+                new Images(category).migrateToOrderedLayout();
+            } catch (StorageException e) {
+                Log.e(TAG, "Could not migrate <" + category + "> to ordered layout: " + e.getMessage());
+            }
+        }
+        Log.i(TAG, "Migrating categories <" + parent + "> to ordered layout");
+        order.setOrder(categories, ID);
+        order.save();
+        ordered = true;
+    }
+
     private void parseCategories() throws StorageException {
-        categories.clear();
         // Parse all directories as categories.
         parent.mkdirs();
-        for (File folder : parent.listFiles()) {
-            if (folder.isDirectory()) {
-                categories.add(new Category(folder));
-            } else {
-                Log.d(TAG, "\"Non-directory in categories folder <\" + folder.getAbsolutePath() + \">\". Deleting it!");
-                folder.delete();
-            }
+        arrangeCategories(FolderScanner.scanCategories(parent, verify));
+    }
+
+    /**
+     * Order the found categories according to the layout of the folder.
+     */
+    private void arrangeCategories(final List<Category> found) throws StorageException {
+        categories.clear();
+        ordered = order.exists();
+        if (ordered) {
+            order.load();
+            setCategories(order.arrange(found, ID));
+            saveOrder();
+            return;
         }
-        Collections.sort(categories);
         // check that the category indices correspond to their positions in the list
-        for (int idx=0 ; idx<categories.size() ; ++idx) {
-            Category category = categories.get(idx);
+        for (int idx=0 ; idx<found.size() ; ++idx) {
+            Category category = found.get(idx);
             if (category.getPosition() != idx) {
                 String err = "Category <" + category + "> position in name <" + category.getPosition() + "> does not correspond to position in category list <" + idx + ">";
                 throw new StorageException(err);
             }
         }
+        categories.addAll(found);
+    }
+
+    /**
+     * Replace the categories with the given ones, updating their positions.
+     */
+    private void setCategories(final List<Category> arranged) {
+        categories.clear();
+        for (int idx = 0; idx < arranged.size(); ++idx) {
+            categories.add(arranged.get(idx).withPosition(idx));
+        }
+    }
+
+    private void saveOrder() throws StorageException {
+        if (order.setOrder(categories, ID)) {
+            order.save();
+        }
     }
 
     /**
@@ -103,13 +273,21 @@ public class Categories implements Iterable<Category> {
      */
     public void truncate() throws StorageException {
         Log.d(TAG, "Truncating all categories");
+        List<Category> before = new ArrayList<>(categories);
+        boolean wasOrdered = ordered;
         try {
             FileUtils.deleteDirectory(parent);
             parent.mkdirs();
             categories.clear();
+            if (wasOrdered) {
+                order.clear();
+                order.save();
+            }
             parseCategories();
         } catch (IOException e) {
             throw new StorageException(e.getMessage(), e);
+        } finally {
+            notifyChanged(before, before);
         }
     }
 
@@ -123,16 +301,24 @@ public class Categories implements Iterable<Category> {
      */
     public Category add(final Name name, final InputStream thumbnailStream) throws StorageException {
         Log.d(TAG, "Adding empty category with name <" + name + ">");
+        int id = ordered ? order.allocateId() : size();
         File folder = new File(
                 parent,
-                StorageNameUtils.constructCategoryFileName(size(), name));
+                StorageNameUtils.constructCategoryFileName(id, name));
         // create category and add thumbnail directory.
         try {
             FileUtils.forceMkdir(folder);
-            File thumbNailFile = new File(folder, Category.THUMBNAIL);
-            FileUtils.copyInputStreamToFile(thumbnailStream, thumbNailFile);
-            Category category = new Category(folder);
+            // categories sharing a thumbnail store it only once
+            blobs.store(thumbnailStream, new File(folder, Category.THUMBNAIL));
+            if (ordered) {
+                // new categories of an ordered library start in ordered layout too
+                new OrderRecord(folder).save();
+            }
+            Category category = new Category(folder, id, size(), name);
             categories.add(category);
+            if (ordered) {
+                saveOrder();
+            }
             return category;
         } catch (IOException e) {
             throw new StorageException(e.getMessage(), e);
@@ -146,27 +332,57 @@ public class Categories implements Iterable<Category> {
     }
 
     public void delete(final Collection<Category> selection) throws StorageException {
-        if (!categories.containsAll(selection)) {
-            throw new StorageException("Selection contains categories not in storage!");
-        }
+        transaction().delete(selection).commit();
+    }
+
+    /**
+     * Start a batch of edits of the categories.
+     * @return A new transaction, whose edits are applied by {@link Transaction#commit()}.
+     */
+    public Transaction transaction() {
+        return new Transaction();
+    }
+
+    /**
+     * Rename a category.
+     *
+     * @param category The category to rename.
+     * @param newName The new {@link com.smilemeback.storage.Name}.
+     * @return Instance of the renamed category.
+     * @throws StorageException In case the category is not in storage.
+     */
+    public Category rename(final Category category, final Name newName) throws StorageException {
+        Log.i(TAG, "Renaming category <" + category.getName() + "> to <" + newName + ">");
+        transaction().rename(category, newName).commit();
+        return categories.get(category.getPosition());
+    }
+
+    /**
+     * Repair the categories folder after it was modified outside of the storage classes: stray
+     * files and folders that are not valid categories are deleted and in positional layout
+     * the gaps between positions are closed.
+     *
+     * Edits do not need this, as they only touch the folders of the categories they change
+     * and keep the categories in sync themselves.
+     */
+    public void organize() throws StorageException {
+        List<Category> before = new ArrayList<>(categories);
         try {
-            for (Category category : selection) {
-                category.delete();
-            }
-        } catch (StorageException e) {
-            throw new StorageException(e.getMessage(), e);
+            organizeFolders();
         } finally {
-            organize();
+            notifyChanged(before, Collections.<Category>emptyList());
         }
     }
 
-    public void organize() throws StorageException {
+    private void organizeFolders() throws StorageException {
         Log.i(TAG, "Organizing folder <" + parent + ">");
         try {
             FileUtils.forceMkdir(parent);
             List<Category> categories = new ArrayList<>();
             for (File file : parent.listFiles()) {
-                if (file.isFile()) {
+                if (file.equals(order.getFile())) {
+                    continue;
+                } else if (file.isFile()) {
                     Log.d(TAG, "Deleting file <" + file + ">");
                     FileUtils.deleteQuietly(file);
                 } else if (file.isDirectory()) {
@@ -180,6 +396,10 @@ public class Categories implements Iterable<Category> {
                 }
             }
 
+            if (ordered) {
+                // folder names are stable ids, nothing to rename
+                return;
+            }
             Collections.sort(categories);
             int nextPos = 0;
             for (Category category : categories) {
@@ -235,35 +455,307 @@ public class Categories implements Iterable<Category> {
      * @throws StorageException
      */
     public void rearrange(Collection<Category> selection, Category target) throws StorageException {
-        DataMover<Category> dm = new DataMover<>(categories, selection, target);
-        // move files to temporary paths (by doing this, we avoid possible name collisions)
-        Map<Integer, File> tempFolders = new HashMap<>(categories.size());
-        Map<Integer, Integer> map = dm.getSourceTargetMapping();
+        transaction().rearrange(selection, target).commit();
+    }
+
+    /**
+     * Undo an edit of the categories recorded in the {@link com.smilemeback.storage.UndoLog}:
+     * deleted categories are moved back from the trash under their previous folder names,
+     * then the previous names and the previous order are restored. Categories that are no
+     * longer in the trash are skipped.
+     *
+     * @param step The step to undo.
+     */
+    void undo(final UndoLog.Step step) throws StorageException {
+        Log.i(TAG, "Undoing edit of categories in <" + parent + ">");
+        Journal.Plan plan = new Journal.Plan("Undo edit of categories in <" + parent + ">");
+        File trashed = step.trash.isEmpty() ? null : trash.fileOf(step.trash);
+        List<File> folders = new ArrayList<>();
+        for (UndoLog.Restored item : step.restored) {
+            File source = new File(trashed, item.files[0]);
+            File folder = new File(parent, item.files[0]);
+            if (!source.isDirectory() || folder.exists()) {
+                Log.w(TAG, "Category <" + item.name + "> can not be restored from the trash");
+                continue;
+            }
+            plan.move(source, folder);
+            folders.add(folder);
+        }
+
         try {
-            for (int key : map.keySet()) {
-                Category category = categories.get(key);
-                File tempFolder = new File(
-                        category.getFolder().getParent(),
-                        String.format("temp%d", key));
-                FileUtils.moveDirectory(category.getFolder(), tempFolder);
-                tempFolders.put(key, tempFolder);
-            }
-            // rename temporary folders
-            for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
-                int key = entry.getKey();
-                int value = entry.getValue();
-
-                File tempFolder = tempFolders.get(key);
-                File destination = new File(
-                        tempFolder.getParent(),
-                        StorageNameUtils.constructCategoryFileName(value, categories.get(key).getName())
-                );
-                FileUtils.moveDirectory(tempFolder, destination);
+            journal.run(plan);
+        } catch (StorageException e) {
+            throw reloadAfterFailedPlan(e);
+        }
+        for (File folder : folders) {
+            categories.add(new Category(folder, categories.size()));
+        }
+        saveOrder();
+
+        Transaction transaction = transaction().arrange(step.order);
+        for (Map.Entry<Integer, String> name : step.names.entrySet()) {
+            Optional<Category> category = findById(name.getKey());
+            if (category.isPresent()) {
+                transaction.rename(category.get(), Name.valid(name.getValue()));
             }
-        } catch (IOException e) {
-            throw new StorageException(e.getMessage(), e);
+        }
+        transaction.commit();
+    }
+
+    /**
+     * Reload after a plan whose folder operations failed. The journal has rolled back the steps
+     * that were done, or left the plan for the recovery when the storage is opened again,
+     * so the categories are rescanned, without deleting any folders.
+     *
+     * @param failure The failure of the plan.
+     * @return The failure, to be thrown by the caller.
+     */
+    private StorageException reloadAfterFailedPlan(final StorageException failure) {
+        Log.e(TAG, failure.getMessage());
+        List<Category> before = new ArrayList<>(categories);
+        try {
+            parseCategories();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not reload <" + parent + ">: " + e.getMessage());
         } finally {
-            organize();
+            notifyChanged(before, Collections.<Category>emptyList());
+        }
+        return failure;
+    }
+
+    private File folderFor(final int id, final Name name) {
+        return new File(parent, StorageNameUtils.constructCategoryFileName(id, name));
+    }
+
+    private File tempFolder(final int key) {
+        return new File(parent, String.format("temp%d", key));
+    }
+
+    /**
+     * Category in a {@link Transaction}, with its pending name and position.
+     */
+    private static class Entry {
+        final Category category;
+        Name name;
+        int index;
+        boolean removed = false;
+
+        Entry(final Category category) {
+            this.category = category;
+            this.name = category.getName();
+            this.index = category.getPosition();
+        }
+    }
+
+    /**
+     * Batch of edits of the categories that are committed together.
+     *
+     * The edits are only recorded until {@link #commit()}, which runs a single planned sequence
+     * of folder operations through the {@link com.smilemeback.storage.Journal}, compacts the categories once
+     * and updates the list once. Deleted categories are moved to the {@link com.smilemeback.storage.Trash}.
+     */
+    public class Transaction {
+        private final Map<Integer, Entry> entries = new HashMap<>(categories.size() * 2);
+        private boolean pruned = true;
+        private final List<Entry> working = new ArrayList<>(categories.size());
+        private final List<Entry> deleted = new ArrayList<>();
+        private boolean committed = false;
+
+        private Transaction() {
+            for (Category category : categories) {
+                Entry entry = new Entry(category);
+                entries.put(category.getId(), entry);
+                working.add(entry);
+            }
+        }
+
+        private Entry entry(final Category category) throws StorageException {
+            Entry entry = entries.get(category.getId());
+            if (entry == null) {
+                throw new StorageException("Category <" + category.getName() + "> not in storage!");
+            }
+            if (entry.removed) {
+                throw new StorageException("Category <" + category.getName() + "> already removed in this transaction!");
+            }
+            return entry;
+        }
+
+        public Transaction delete(final Collection<Category> selection) throws StorageException {
+            for (Category category : selection) {
+                Entry entry = entry(category);
+                entry.removed = true;
+                pruned = false;
+                deleted.add(entry);
+            }
+            return this;
+        }
+
+        public Transaction rename(final Category category, final Name newName) throws StorageException {
+            entry(category).name = newName;
+            return this;
+        }
+
+        public Transaction rearrange(final Collection<Category> selection, final Category target) throws StorageException {
+            prune();
+            for (int idx = 0; idx < working.size(); ++idx) {
+                working.get(idx).index = idx;
+            }
+            int[] selected = new int[selection.size()];
+            int next = 0;
+            for (Category category : selection) {
+                selected[next++] = entry(category).index;
+            }
+            Arrays.sort(selected);
+            int[] order = ReorderPlanner.rearrange(working.size(), selected, entry(target).index);
+            List<Entry> result = new ArrayList<>(order.length);
+            for (int position : order) {
+                result.add(working.get(position));
+            }
+            working.clear();
+            working.addAll(result);
+            return this;
+        }
+
+        /**
+         * Put the categories in the order of the given ids. Categories whose ids are not given
+         * keep their order after the given ones, ids without categories are ignored.
+         */
+        public Transaction arrange(final int[] ids) {
+            prune();
+            List<Entry> result = new ArrayList<>(working.size());
+            Set<Entry> placed = new HashSet<>();
+            for (int id : ids) {
+                Entry entry = entries.get(id);
+                if (entry != null && !entry.removed && placed.add(entry)) {
+                    result.add(entry);
+                }
+            }
+            for (Entry entry : working) {
+                if (!placed.contains(entry)) {
+                    result.add(entry);
+                }
+            }
+            working.clear();
+            working.addAll(result);
+            return this;
+        }
+
+        /**
+         * Drop the removed entries from the working order in a single pass.
+         */
+        private void prune() {
+            if (pruned) {
+                return;
+            }
+            int kept = 0;
+            for (Entry entry : working) {
+                if (!entry.removed) {
+                    working.set(kept++, entry);
+                }
+            }
+            working.subList(kept, working.size()).clear();
+            pruned = true;
+        }
+
+        /**
+         * Apply the recorded edits.
+         * The categories whose folders were deleted or moved are reported to the listener.
+         *
+         * @return The deleted categories, as they were before the commit, and the categories
+         *         whose position, name or folder changed, as they are after the commit.
+         * @throws StorageException In case the folder operations failed and could not be finished
+         *         from the journal. The categories are then reloaded from the storage.
+         */
+        public TransactionResult<Category> commit() throws StorageException {
+            if (committed) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            committed = true;
+            prune();
+            int[] before = new int[categories.size()];
+            for (int idx = 0; idx < before.length; ++idx) {
+                before[idx] = categories.get(idx).getId();
+            }
+            Map<Integer, String> names = new LinkedHashMap<>();
+            List<UndoLog.Restored> restored = new ArrayList<>();
+            String trashPath = "";
+
+            Journal.Plan plan = new Journal.Plan("Edit categories in <" + parent + ">");
+            List<Category> removed = new ArrayList<>();
+            List<Category> affected = new ArrayList<>();
+            if (!deleted.isEmpty()) {
+                // deleted folders are moved to the trash, which is purged in the background
+                File trashed = trash.newEntry();
+                trashPath = trash.pathOf(trashed);
+                for (Entry entry : deleted) {
+                    File folder = entry.category.getFolder();
+                    plan.move(folder, new File(trashed, folder.getName()));
+                    removed.add(entry.category);
+                    affected.add(entry.category);
+                    restored.add(new UndoLog.Restored(entry.category.getId(), entry.category.getName().toString(),
+                            new String[] {folder.getName()}, -1, -1));
+                }
+            }
+
+            // in positional layout the remaining categories move to their new positions,
+            // only the categories whose folders change are part of the plan
+            List<File> folders = new ArrayList<>(working.size());
+            List<File[]> sources = new ArrayList<>();
+            List<File[]> targets = new ArrayList<>();
+            List<File[]> temps = new ArrayList<>();
+            for (int idx = 0; idx < working.size(); ++idx) {
+                Entry entry = working.get(idx);
+                Category category = entry.category;
+                int id = ordered ? category.getId() : idx;
+                File folder = id == category.getId() && entry.name.equals(category.getName())
+                        ? category.getFolder()
+                        : folderFor(id, entry.name);
+                folders.add(folder);
+                if (folder.equals(category.getFolder())) {
+                    continue;
+                }
+                if (!entry.name.equals(category.getName())) {
+                    names.put(category.getId(), category.getName().toString());
+                }
+                affected.add(category);
+                sources.add(new File[] {category.getFolder()});
+                targets.add(new File[] {folder});
+                temps.add(new File[] {tempFolder(category.getId())});
+            }
+            plan.relocate(sources, targets, temps);
+
+            try {
+                journal.run(plan);
+            } catch (StorageException e) {
+                throw reloadAfterFailedPlan(e);
+            } finally {
+                if (listener != null && !affected.isEmpty()) {
+                    listener.categoriesChanged(affected);
+                }
+            }
+
+            List<Category> changed = new ArrayList<>();
+            List<Category> result = new ArrayList<>(working.size());
+            for (int idx = 0; idx < working.size(); ++idx) {
+                Category category = working.get(idx).category;
+                Category after = folders.get(idx).equals(category.getFolder())
+                        ? category.withPosition(idx)
+                        : new Category(folders.get(idx), ordered ? category.getId() : idx, idx, working.get(idx).name);
+                if (after != category) {
+                    changed.add(after);
+                }
+                result.add(after);
+            }
+            categories.clear();
+            categories.addAll(result);
+            if (ordered) {
+                saveOrder();
+            }
+            // ids change with the positions in positional layout, so the edit can not be undone by id
+            if (undoLog != null && ordered && (!changed.isEmpty() || !restored.isEmpty())) {
+                undoLog.record(new UndoLog.Step(-1, before, names, trashPath, restored));
+            }
+            return new TransactionResult<>(removed, changed);
         }
     }
 }
@@ -18,8 +18,9 @@ package com.smilemeback.storage;
 
 import android.util.Log;
 
+import com.google.common.base.Optional;
+
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.builder.EqualsBuilder;
 
 import java.io.File;
 import java.io.IOException;
@@ -32,11 +33,14 @@ public class Category implements Comparable<Category> {
     private static final String TAG = Category.class.getCanonicalName();
     public static final String THUMBNAIL = "_thumbnail.jpg";
 
+    protected final int id;
     protected final int position;
     protected final Name name;
     protected final File folder;
     protected final File thumbnail;
     protected final File storageFolder;
+    // file holding the thumbnail data, resolved lazily through the blob store
+    protected transient File thumbnailData = null;
 
     /**
      * Initialize a new category.
@@ -48,18 +52,63 @@ public class Category implements Comparable<Category> {
      * @throws StorageException
      */
     public Category(File folder) throws StorageException {
-        try {
-            this.folder = folder;
-            this.position = StorageNameUtils.parsePosition(folder.getName()).get();
-            this.name = StorageNameUtils.parseName(folder.getName());
-            this.storageFolder = folder.getParentFile();
-            this.thumbnail = new File(this.folder, THUMBNAIL);
-        } catch (NameException | IllegalStateException e) {
-            throw new StorageException(e.getMessage(), e);
+        this(folder, -1);
+    }
+
+    /**
+     * Initialize a new category at the given position.
+     * Used for the ordered layout, where the number in the folder name is a stable id
+     * instead of the position (see {@link com.smilemeback.storage.OrderRecord}).
+     *
+     * @param folder The folder file of the category.
+     * @param position The position of the category or -1 to use the number in the folder name.
+     * @throws StorageException
+     */
+    Category(File folder, int position) throws StorageException {
+        Optional<StorageName> parsed = StorageNameUtils.parse(folder.getName());
+        if (!parsed.isPresent() || !parsed.get().getSuffix().isEmpty()) {
+            throw new StorageException("Invalid category folder name <" + folder.getName() + ">");
         }
+        this.folder = folder;
+        this.id = parsed.get().getId();
+        this.position = position < 0 ? id : position;
+        this.name = parsed.get().getName();
+        this.storageFolder = folder.getParentFile();
+        this.thumbnail = new File(this.folder, THUMBNAIL);
         makeAssertions();
     }
 
+    /**
+     * Construct a category from already known data, for example from a folder listing
+     * (see {@link com.smilemeback.storage.FolderScanner}).
+     * No files are checked, the caller is responsible for the data being correct.
+     */
+    Category(File folder, int id, int position, Name name) {
+        this.folder = folder;
+        this.id = id;
+        this.position = position;
+        this.name = name;
+        this.storageFolder = folder.getParentFile();
+        this.thumbnail = new File(folder, THUMBNAIL);
+    }
+
+    private Category(Category other, int position) {
+        this.folder = other.folder;
+        this.id = other.id;
+        this.position = position;
+        this.name = other.name;
+        this.storageFolder = other.storageFolder;
+        this.thumbnail = other.thumbnail;
+        this.thumbnailData = other.thumbnailData;
+    }
+
+    /**
+     * @return The same category at a different position. No files are touched.
+     */
+    Category withPosition(int position) {
+        return position == this.position ? this : new Category(this, position);
+    }
+
     private void makeAssertions() throws StorageException {
         if (!thumbnail.isFile()) {
             throw new StorageException("Category" + name + " thumbnail <" + thumbnail.getAbsolutePath() + "> not a file or does not exist!");
@@ -71,6 +120,12 @@ public class Category implements Comparable<Category> {
 
     public int getPosition() { return this.position; }
 
+    /**
+     * @return The number in the folder name, which equals the position in the positional layout
+     *         and is the stable identity of the category in the ordered layout.
+     */
+    public int getId() { return this.id; }
+
     public Name getName() { return this.name; }
 
     public File getFolder() { return this.folder; }
@@ -79,6 +134,17 @@ public class Category implements Comparable<Category> {
         return thumbnail;
     }
 
+    /**
+     * @return The file holding the thumbnail data, which is the blob the thumbnail links to
+     *         (see {@link com.smilemeback.storage.BlobStore}) or the thumbnail itself.
+     */
+    public File getThumbnailData() {
+        if (thumbnailData == null) {
+            thumbnailData = BlobStore.forCategoriesFolder(storageFolder).resolve(thumbnail, -1);
+        }
+        return thumbnailData;
+    }
+
     public Images getImages() throws StorageException {
         return new Images(this);
     }
@@ -93,14 +159,18 @@ public class Category implements Comparable<Category> {
         return getPosition() - another.getPosition();
     }
 
+    /**
+     * Categories are identified by their {@link #id}, which is stable in the ordered layout.
+     * Renamed or rearranged instances of a category are equal to the original.
+     */
     @Override
     public boolean equals(Object o) {
-        return EqualsBuilder.reflectionEquals(this, o);
+        return o instanceof Category && id == ((Category)o).id;
     }
 
     @Override
     public int hashCode() {
-        return position;
+        return id;
     }
 
     /**
@@ -117,10 +187,10 @@ public class Category implements Comparable<Category> {
         }
         File newFolder = new File(
                 storageFolder,
-                StorageNameUtils.constructCategoryFileName(position, newName));
+                StorageNameUtils.constructCategoryFileName(id, newName));
         try {
             FileUtils.moveDirectory(folder, newFolder);
-            return new Category(newFolder);
+            return new Category(newFolder, id, position, newName);
         } catch (IOException e) {
             throw new StorageException(e.getMessage(), e);
         }
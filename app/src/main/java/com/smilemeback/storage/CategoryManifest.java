@@ -0,0 +1,222 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact on-disk index of the images in a {@link com.smilemeback.storage.Category} folder.
+ *
+ * The manifest stores the name, id, file names, sizes and modification times of every image,
+ * and the blobs its files link to, so that {@link com.smilemeback.storage.Images} can be loaded with
+ * a single sequential read instead of listing and parsing the whole folder and opening every link.
+ *
+ * The manifest records the modification time of the category folder when it was written, and is
+ * stale as soon as the folder has a different time, in which case the folder has to be scanned again.
+ * A change within the same tick of a coarse file system clock (FAT and sdcardfs round to two seconds)
+ * as the last edit of the application is only noticed with the next change of the folder.
+ *
+ * The images are stored in the order of their ids and with their position equal to the id.
+ * In the ordered layout, the actual positions come from the {@link com.smilemeback.storage.OrderRecord}.
+ */
+public class CategoryManifest {
+    private static final String TAG = CategoryManifest.class.getCanonicalName();
+    public static final String FILENAME = "_manifest.idx";
+
+    private static final int MAGIC = 0x534d4249;
+    private static final int VERSION = 3;
+
+    private static final Comparator<Image> BY_ID = new Comparator<Image>() {
+        @Override
+        public int compare(Image lhs, Image rhs) {
+            return lhs.getId() - rhs.getId();
+        }
+    };
+
+    protected final Category category;
+    protected final File file;
+
+    public CategoryManifest(final Category category) {
+        this.category = category;
+        this.file = new File(category.getFolder(), FILENAME);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return True if the manifest exists and the category folder has not been modified
+     *         since the manifest was written. Only the header of the manifest is read.
+     */
+    public boolean isFresh() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC && in.readInt() == VERSION && isFresh(in.readLong());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param folderModified The modification time of the category folder recorded in the manifest.
+     */
+    private boolean isFresh(final long folderModified) {
+        return folderModified != 0 && folderModified == category.getFolder().lastModified();
+    }
+
+    /**
+     * Load the images listed in the manifest.
+     * No files are checked during loading, the manifest is trusted as long as it is fresh.
+     *
+     * @return The images in the order of their ids or absent value in case
+     *         the manifest is missing, stale or corrupt.
+     */
+    public Optional<List<Image>> load() {
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "Unknown manifest format in <" + file + ">");
+                return Optional.absent();
+            }
+            if (!isFresh(in.readLong())) {
+                return Optional.absent();
+            }
+            final int count = in.readInt();
+            List<Image> images = new ArrayList<>(count);
+            final File folder = category.getFolder();
+            final BlobStore blobs = BlobStore.forCategoriesFolder(folder.getParentFile());
+            for (int idx = 0; idx < count; ++idx) {
+                int id = in.readInt();
+                Name name = new Name(in.readUTF());
+                File image = new File(folder, in.readUTF());
+                long imageSize = in.readLong();
+                long imageModified = in.readLong();
+                File imageData = readData(in, blobs, image);
+                File audio = new File(folder, in.readUTF());
+                long audioSize = in.readLong();
+                long audioModified = in.readLong();
+                File audioData = readData(in, blobs, audio);
+                images.add(new Image(category, id, id, name, image, audio,
+                        imageSize, imageModified, audioSize, audioModified, imageData, audioData, null, null));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                Log.d(TAG, "Checksum mismatch in manifest <" + file + ">");
+                return Optional.absent();
+            }
+            return Optional.of(images);
+        } catch (IOException | NameException e) {
+            Log.d(TAG, "Could not read manifest <" + file + ">: " + e.getMessage());
+            return Optional.absent();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the manifest for the given images, together with the current modification time
+     * of the category folder. The file is overwritten in place, so that writing it does not
+     * modify the category folder once the manifest exists.
+     *
+     * @param images The images of the category, in any order.
+     * @throws StorageException
+     */
+    public void save(final List<Image> images) throws StorageException {
+        DataOutputStream out = null;
+        List<Image> byId = new ArrayList<>(images);
+        Collections.sort(byId, BY_ID);
+        try {
+            // creating the file modifies the folder, which has to happen before its time is recorded
+            file.createNewFile();
+            long folderModified = category.getFolder().lastModified();
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(folderModified);
+            out.writeInt(byId.size());
+            for (Image image : byId) {
+                out.writeInt(image.getId());
+                out.writeUTF(image.getName().toString());
+                out.writeUTF(image.getImage().getName());
+                out.writeLong(image.getImageSize());
+                out.writeLong(image.getImageLastModified());
+                writeData(out, image.getImage(), image.getImageData());
+                out.writeUTF(image.getAudio().getName());
+                out.writeLong(image.getAudioSize());
+                out.writeLong(image.getAudioLastModified());
+                writeData(out, image.getAudio(), image.getAudioData());
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Write the name of the blob the file links to, or an empty name if the file holds its data.
+     */
+    private static void writeData(final DataOutputStream out, final File file, final File data) throws IOException {
+        out.writeUTF(data.equals(file) ? "" : data.getName());
+    }
+
+    private static File readData(final DataInputStream in, final BlobStore blobs, final File file) throws IOException {
+        String blob = in.readUTF();
+        return blob.isEmpty() ? file : new File(blobs.getFolder(), blob);
+    }
+
+    /**
+     * Remove the manifest, forcing the next load to scan the category folder.
+     */
+    public void invalidate() {
+        FileUtils.deleteQuietly(file);
+    }
+}
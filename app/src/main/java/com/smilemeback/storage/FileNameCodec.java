@@ -0,0 +1,194 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+/**
+ * Decodes and encodes the file names of {@link com.smilemeback.storage.Category} folders
+ * and {@link com.smilemeback.storage.Image} files:
+ * {id}_{name}{optional_suffix}
+ *
+ * Decoding finds the id, the name and the suffix in a single pass over the file name without
+ * allocating, only the parts that are asked for are copied out. Names are validated with a
+ * precomputed table of the {@link com.smilemeback.storage.Name#ILLEGAL_CHARACTERS}.
+ *
+ * An instance keeps the parts of the last decoded file name and a buffer for building file
+ * names, so it must not be shared between threads.
+ */
+public class FileNameCodec {
+    private static final int TABLE_SIZE = 128;
+    private static final boolean[] ILLEGAL = new boolean[TABLE_SIZE];
+    // at most 9 digits, so that the id always fits into an int
+    private static final int MAX_DIGITS = 9;
+
+    static {
+        for (int idx = 0; idx < Name.ILLEGAL_CHARACTERS.length(); ++idx) {
+            ILLEGAL[Name.ILLEGAL_CHARACTERS.charAt(idx)] = true;
+        }
+    }
+
+    private final StringBuilder builder = new StringBuilder(64);
+    private String fileName = null;
+    private int id;
+    private int nameStart;
+    private int nameEnd;
+
+    /**
+     * @return True if the character may be used in a {@link com.smilemeback.storage.Name}.
+     */
+    public static boolean isValidChar(final char c) {
+        return c >= TABLE_SIZE || !ILLEGAL[c];
+    }
+
+    /**
+     * @return True if the characters from {@literal start} up to {@literal end} form a valid,
+     *         non-empty {@link com.smilemeback.storage.Name}.
+     */
+    public static boolean isValidName(final CharSequence text, final int start, final int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int idx = start; idx < end; ++idx) {
+            char c = text.charAt(idx);
+            if (c < TABLE_SIZE && ILLEGAL[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a file name. The parts of the name are available from the getters,
+     * if the file name was valid.
+     *
+     * @param fileName The file name to decode.
+     * @return False if the file name does not start with an id or the name is not valid.
+     */
+    public boolean decode(final String fileName) {
+        this.fileName = null;
+        final int length = fileName.length();
+        // ids out of order may be negative, for example after editing the files by hand
+        final boolean negative = length > 0 && fileName.charAt(0) == '-';
+        final int digitsStart = negative ? 1 : 0;
+        int idx = digitsStart;
+        int value = 0;
+        for (; idx < length; ++idx) {
+            char c = fileName.charAt(idx);
+            if (c == '_') {
+                break;
+            }
+            if (c < '0' || c > '9' || idx - digitsStart >= MAX_DIGITS) {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (idx == digitsStart || idx == length) {
+            return false;
+        }
+
+        // the name ends at the dot of the suffix, names can not contain dots themselves
+        final int start = idx + 1;
+        int end = -1;
+        for (idx = start; idx < length; ++idx) {
+            char c = fileName.charAt(idx);
+            if (c == '.') {
+                if (end >= 0) {
+                    return false;
+                }
+                end = idx;
+            } else if (end < 0 && c < TABLE_SIZE && ILLEGAL[c]) {
+                return false;
+            }
+        }
+        if (end < 0) {
+            end = length;
+        }
+        if (end == start) {
+            return false;
+        }
+
+        this.fileName = fileName;
+        this.id = negative ? -value : value;
+        this.nameStart = start;
+        this.nameEnd = end;
+        return true;
+    }
+
+    private void checkDecoded() {
+        if (fileName == null) {
+            throw new IllegalStateException("No valid file name decoded");
+        }
+    }
+
+    public int getId() {
+        checkDecoded();
+        return id;
+    }
+
+    /**
+     * @return A copy of the name part of the decoded file name.
+     */
+    public Name getName() {
+        checkDecoded();
+        return Name.valid(fileName.substring(nameStart, nameEnd));
+    }
+
+    /**
+     * @return True if the decoded file name has exactly the given suffix, which may be empty.
+     */
+    public boolean hasSuffix(final String suffix) {
+        checkDecoded();
+        return fileName.length() - nameEnd == suffix.length()
+                && fileName.regionMatches(nameEnd, suffix, 0, suffix.length());
+    }
+
+    /**
+     * @return The suffix including the dot, or an empty string if there is none.
+     *         The known suffixes are returned without copying.
+     */
+    public String getSuffix() {
+        if (hasSuffix("")) {
+            return "";
+        } else if (hasSuffix(Image.IMAGE_SUFFIX)) {
+            return Image.IMAGE_SUFFIX;
+        } else if (hasSuffix(Image.AUDIO_SUFFIX)) {
+            return Image.AUDIO_SUFFIX;
+        }
+        return fileName.substring(nameEnd);
+    }
+
+    /**
+     * @return The decoded file name.
+     */
+    public StorageName toStorageName() {
+        checkDecoded();
+        return new StorageName(fileName, id, getName(), getSuffix());
+    }
+
+    /**
+     * Build a file name from its parts, reusing the buffer of this codec.
+     *
+     * @param id The id of the category or image.
+     * @param name The name of the category or image.
+     * @param suffix The suffix including the dot, or an empty string.
+     * @return The file name.
+     */
+    public String encode(final int id, final Name name, final String suffix) {
+        builder.setLength(0);
+        builder.append(id).append('_').append(name.toString()).append(suffix);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds the storage model from folder listings.
+ *
+ * Every folder is listed once and every file name is parsed once into a
+ * {@link com.smilemeback.storage.StorageName}. Pairing of image and audio files and their
+ * suffixes are validated from the listing alone, the files are only checked with
+ * additional filesystem calls in verify mode.
+ */
+class FolderScanner {
+    private static final String TAG = FolderScanner.class.getCanonicalName();
+
+    private static final Comparator<StorageName> BY_ID = new Comparator<StorageName>() {
+        @Override
+        public int compare(StorageName lhs, StorageName rhs) {
+            return lhs.getId() < rhs.getId() ? -1 : (lhs.getId() == rhs.getId() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Image and audio files of a category folder, paired by their ids.
+     * Pairs are stored in arrays sorted by id.
+     */
+    static class CategoryListing {
+        private final File folder;
+        private final int size;
+        private final StorageName[] images;
+        private final StorageName[] audio;
+
+        private CategoryListing(File folder, int size, StorageName[] images, StorageName[] audio) {
+            this.folder = folder;
+            this.size = size;
+            this.images = images;
+            this.audio = audio;
+        }
+
+        /**
+         * @return The number of ids, that have both an image and an audio file.
+         */
+        int size() {
+            return size;
+        }
+
+        int getId(int idx) {
+            return images[idx].getId();
+        }
+
+        StorageName getImage(int idx) {
+            return images[idx];
+        }
+
+        StorageName getAudio(int idx) {
+            return audio[idx];
+        }
+
+        File getImageFile(int idx) {
+            return new File(folder, images[idx].getFileName());
+        }
+
+        File getAudioFile(int idx) {
+            return new File(folder, audio[idx].getFileName());
+        }
+
+        /**
+         * @return True if the image and audio file with the same id also have the same name.
+         */
+        boolean namesMatch(int idx) {
+            return images[idx].sameName(audio[idx]);
+        }
+    }
+
+    /**
+     * List a category folder and pair its image and audio files by id.
+     * Metadata files starting with an underscore and files with unknown names are ignored,
+     * as are images without audio and vice versa. Of files with duplicate ids only the
+     * first one is used.
+     *
+     * @param category The category to scan.
+     * @param verify If true, check that the listed files are regular files.
+     * @throws StorageException If the folder cannot be listed, or in verify mode
+     *                          if a listed file is not a regular file.
+     */
+    static CategoryListing scanCategory(final Category category, final boolean verify) throws StorageException {
+        File folder = category.getFolder();
+        String[] fileNames = folder.list();
+        if (fileNames == null) {
+            throw new StorageException("Could not list category folder <" + folder + ">");
+        }
+        StorageName[] images = new StorageName[fileNames.length];
+        StorageName[] audio = new StorageName[fileNames.length];
+        int numImages = 0;
+        int numAudio = 0;
+        FileNameCodec codec = new FileNameCodec();
+        for (String fileName : fileNames) {
+            if (fileName.startsWith("_")) {
+                continue;
+            }
+            if (!codec.decode(fileName)) {
+                Log.d(TAG, "Ignoring unknown file <" + fileName + ">");
+            } else if (codec.hasSuffix(Image.IMAGE_SUFFIX)) {
+                images[numImages++] = codec.toStorageName();
+            } else if (codec.hasSuffix(Image.AUDIO_SUFFIX)) {
+                audio[numAudio++] = codec.toStorageName();
+            }
+        }
+        Arrays.sort(images, 0, numImages, BY_ID);
+        Arrays.sort(audio, 0, numAudio, BY_ID);
+
+        // merge the sorted arrays into pairs, reusing the front of the arrays
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < numImages && j < numAudio) {
+            int imageId = images[i].getId();
+            int audioId = audio[j].getId();
+            if (imageId < audioId) {
+                Log.d(TAG, "Image <" + images[i] + "> has no audio, ignoring it");
+                ++i;
+            } else if (imageId > audioId) {
+                ++j;
+            } else {
+                images[size] = images[i];
+                audio[size] = audio[j];
+                ++size;
+                // skip duplicates of the same id
+                while (++i < numImages && images[i].getId() == imageId) { }
+                while (++j < numAudio && audio[j].getId() == audioId) { }
+            }
+        }
+
+        CategoryListing listing = new CategoryListing(folder, size, images, audio);
+        if (verify) {
+            for (int idx = 0; idx < size; ++idx) {
+                if (!listing.getImageFile(idx).isFile()) {
+                    throw new StorageException("Image <" + listing.getImageFile(idx) + "> is not a file!");
+                }
+                if (!listing.getAudioFile(idx).isFile()) {
+                    throw new StorageException("Audio <" + listing.getAudioFile(idx) + "> is not a file!");
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * List the categories folder and construct the categories from their folder names.
+     * Files in the categories folder that are not category folders are deleted, except
+     * for the metadata files starting with an underscore.
+     *
+     * @param parent The categories folder.
+     * @param verify If true, check that every category is a folder containing a thumbnail.
+     * @return The categories sorted by their ids, with positions equal to the ids.
+     * @throws StorageException If the folder cannot be listed, a folder has an invalid name,
+     *                          or in verify mode if a category is not valid.
+     */
+    static List<Category> scanCategories(final File parent, final boolean verify) throws StorageException {
+        return scanCategories(parent, verify, null);
+    }
+
+    /**
+     * List the categories folder, collecting folders with invalid names instead of failing.
+     *
+     * @param invalid Receives the folders with invalid names. If null, an exception is thrown instead.
+     * @see #scanCategories(java.io.File, boolean)
+     */
+    static List<Category> scanCategories(final File parent, final boolean verify, final List<File> invalid) throws StorageException {
+        String[] fileNames = parent.list();
+        if (fileNames == null) {
+            throw new StorageException("Could not list categories folder <" + parent + ">");
+        }
+        List<Category> categories = new ArrayList<>(fileNames.length);
+        FileNameCodec codec = new FileNameCodec();
+        for (String fileName : fileNames) {
+            if (fileName.startsWith("_")) {
+                continue;
+            }
+            File folder = new File(parent, fileName);
+            if (!codec.decode(fileName) || !codec.hasSuffix("")) {
+                // only names that are not valid folder names need to be checked on the filesystem
+                if (folder.isDirectory()) {
+                    if (invalid == null) {
+                        throw new StorageException("Invalid category folder name <" + folder + ">");
+                    }
+                    invalid.add(folder);
+                    continue;
+                }
+                Log.d(TAG, "Non-directory in categories folder <" + folder.getAbsolutePath() + ">. Deleting it!");
+                folder.delete();
+                continue;
+            }
+            Category category = new Category(folder, codec.getId(), codec.getId(), codec.getName());
+            if (verify) {
+                if (!folder.isDirectory()) {
+                    throw new StorageException("Category <" + folder + "> is not a directory!");
+                }
+                if (!category.getThumbnail().isFile()) {
+                    throw new StorageException("Category" + category.getName() + " thumbnail <" + category.getThumbnail().getAbsolutePath() + "> not a file or does not exist!");
+                }
+            }
+            categories.add(category);
+        }
+        Collections.sort(categories);
+        return categories;
+    }
+}
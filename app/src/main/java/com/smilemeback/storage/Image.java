@@ -19,8 +19,10 @@ package com.smilemeback.storage;
 
 import android.util.Log;
 
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.builder.EqualsBuilder;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,8 +40,21 @@ public class Image implements Comparable<Image> {
     protected final Name name;
     protected final File image;
     protected final File audio;
+    protected final int id;
     protected final int position;
 
+    // file sizes and modification times, -1 when not known and read from the files on every use
+    protected final long imageSize;
+    protected final long imageModified;
+    protected final long audioSize;
+    protected final long audioModified;
+    // files holding the data, null when not known and resolved through the blob store on every use
+    protected final File imageData;
+    protected final File audioData;
+    // ranges of the data in the pack of the category, null when it is not packed
+    protected final MediaRange imageRange;
+    protected final MediaRange audioRange;
+
     /**
      * Construct a new {@link com.smilemeback.storage.Image} instance.
      * @param category The {@link com.smilemeback.storage.Category} the image is in.
@@ -49,44 +64,105 @@ public class Image implements Comparable<Image> {
      * @throws com.smilemeback.storage.StorageException In case there were problems with finding image data.
      */
     public Image(final Category category, final File image, final File audio) throws StorageException {
-        try {
-            this.category = category;
-            this.name = StorageNameUtils.parseName(image.getName());
-            this.image = image;
-            this.audio = audio;
-            this.position = StorageNameUtils.parsePosition(image.getName()).get();
-
-            makeAssertions();
-        } catch (NameException | IllegalStateException e) {
-            throw new StorageException(e.getMessage(), e);
-        }
+        this(category, image, audio, -1);
     }
 
-    private void makeAssertions() throws StorageException, NameException {
-        if (category == null || name == null || audio == null) {
+    /**
+     * Construct a new {@link com.smilemeback.storage.Image} instance at the given position.
+     * Used for the ordered layout, where the number in the file names is a stable id
+     * instead of the position (see {@link com.smilemeback.storage.OrderRecord}).
+     *
+     * @param position The position of the image or -1 to use the number in the file names.
+     */
+    Image(final Category category, final File image, final File audio, final int position) throws StorageException {
+        if (category == null || image == null || audio == null) {
             throw new IllegalArgumentException("One of the arguments was null");
         }
+        StorageName imageName = parse(image);
+        StorageName audioName = parse(audio);
+        this.category = category;
+        this.name = imageName.getName();
+        this.image = image;
+        this.audio = audio;
+        this.id = imageName.getId();
+        this.position = position < 0 ? id : position;
+        this.imageSize = -1;
+        this.imageModified = -1;
+        this.audioSize = -1;
+        this.audioModified = -1;
+        this.imageData = null;
+        this.audioData = null;
+        this.imageRange = null;
+        this.audioRange = null;
+
+        makeAssertions(imageName, audioName);
+    }
+
+    /**
+     * Construct a new {@link com.smilemeback.storage.Image} instance from already known data,
+     * for example from a {@link com.smilemeback.storage.CategoryManifest}.
+     * No files are checked, the caller is responsible for the data being correct.
+     */
+    Image(final Category category, final int id, final int position, final Name name, final File image, final File audio,
+          final long imageSize, final long imageModified, final long audioSize, final long audioModified) {
+        this(category, id, position, name, image, audio, imageSize, imageModified, audioSize, audioModified,
+                null, null, null, null);
+    }
+
+    /**
+     * Construct a new {@link com.smilemeback.storage.Image} instance from already known data,
+     * including the files holding the data and their ranges in the pack of the category.
+     * No files are checked, the caller is responsible for the data being correct.
+     */
+    Image(final Category category, final int id, final int position, final Name name, final File image, final File audio,
+          final long imageSize, final long imageModified, final long audioSize, final long audioModified,
+          final File imageData, final File audioData, final MediaRange imageRange, final MediaRange audioRange) {
+        this.category = category;
+        this.id = id;
+        this.position = position;
+        this.name = name;
+        this.image = image;
+        this.audio = audio;
+        this.imageSize = imageSize;
+        this.imageModified = imageModified;
+        this.audioSize = audioSize;
+        this.audioModified = audioModified;
+        this.imageData = imageData;
+        this.audioData = audioData;
+        this.imageRange = imageRange;
+        this.audioRange = audioRange;
+    }
+
+    private static StorageName parse(final File file) throws StorageException {
+        Optional<StorageName> parsed = StorageNameUtils.parse(file.getName());
+        if (!parsed.isPresent()) {
+            throw new StorageException("Invalid file name <" + file.getName() + ">");
+        }
+        return parsed.get();
+    }
+
+    private void makeAssertions(final StorageName imageName, final StorageName audioName) throws StorageException {
+        if (!imageName.getSuffix().equals(IMAGE_SUFFIX)) {
+            throw new StorageException("Illegal suffix for <" + image.getName() + "> ");
+        }
+        if (!audioName.getSuffix().equals(AUDIO_SUFFIX)) {
+            throw new StorageException("Illegal suffix for <" + audio.getName() + ">");
+        }
+        if (imageName.getId() != audioName.getId()) {
+            throw new StorageException("Position different for image <" + image + "> and audio <" + audio + ">");
+        }
+        if (!imageName.sameName(audioName)) {
+            throw new StorageException("Name different for image <" + image + "> and audio <" + audio + ">");
+        }
         if (!category.getFolder().isDirectory()) {
             throw new StorageException("Category is not a directory!");
         }
         if (!image.isFile()) {
             throw new StorageException("Image <" + image + " is not a file!");
         }
-        if (!StorageNameUtils.parseSuffix(image.getName()).get().equals(IMAGE_SUFFIX)) {
-            throw new StorageException("Illegal suffix for <" + image.getName() + "> ");
-        }
         if (!audio.isFile()) {
             throw new StorageException("Audio <" + audio + " is not a file!");
         }
-        if (!StorageNameUtils.parseSuffix(audio.getName()).get().equals(AUDIO_SUFFIX)) {
-            throw new StorageException("Illegal suffix for <" + audio.getName() + ">");
-        }
-        if (StorageNameUtils.parsePosition(image.getName()).get() != StorageNameUtils.parsePosition(audio.getName()).get()) {
-            throw new StorageException("Position different for image <" + image + "> and audio <" + audio + ">");
-        }
-        if (!StorageNameUtils.parseName(image.getName()).equals(StorageNameUtils.parseName(audio.getName()))) {
-            throw new StorageException("Position different for image <" + image + "> and audio <" + audio + ">");
-        }
     }
 
     public Category getCategory() {
@@ -109,6 +185,102 @@ public class Image implements Comparable<Image> {
         return position;
     }
 
+    /**
+     * @return The number in the file names, which equals the position in the positional layout
+     *         and is the stable identity of the image in the ordered layout.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return The same image at a different position. No files are touched.
+     */
+    Image withPosition(int position) {
+        if (position == this.position) {
+            return this;
+        }
+        return new Image(category, id, position, name, image, audio,
+                imageSize, imageModified, audioSize, audioModified,
+                imageData, audioData, imageRange, audioRange);
+    }
+
+    /**
+     * @return The same image with its sizes, modification times and data files known and the
+     *         given ranges in the pack, this instance if nothing changes. Reads the files that
+     *         are not known yet.
+     */
+    Image resolved(final MediaRange imageRange, final MediaRange audioRange) {
+        if (imageSize >= 0 && imageModified >= 0 && audioSize >= 0 && audioModified >= 0
+                && imageData != null && audioData != null
+                && Objects.equal(this.imageRange, imageRange) && Objects.equal(this.audioRange, audioRange)) {
+            return this;
+        }
+        return new Image(category, id, position, name, image, audio,
+                getImageSize(), getImageLastModified(), getAudioSize(), getAudioLastModified(),
+                getImageData(), getAudioData(), imageRange, audioRange);
+    }
+
+    /**
+     * @return The same image with its files read again on next use, after they were
+     *         replaced by links to the {@link com.smilemeback.storage.BlobStore}. No files are touched.
+     */
+    Image withLinkedFiles() {
+        return new Image(category, id, position, name, image, audio, -1, -1, -1, -1);
+    }
+
+    private BlobStore blobs() {
+        return BlobStore.forCategoriesFolder(category.getFolder().getParentFile());
+    }
+
+    /**
+     * @return The file holding the image data, which is the blob the image file links to
+     *         (see {@link com.smilemeback.storage.BlobStore}) or the image file itself.
+     */
+    public File getImageData() {
+        return imageData != null ? imageData : blobs().resolve(image, getImageSize());
+    }
+
+    /**
+     * @return The file holding the audio data, which is the blob the audio file links to
+     *         (see {@link com.smilemeback.storage.BlobStore}) or the audio file itself.
+     */
+    public File getAudioData() {
+        return audioData != null ? audioData : blobs().resolve(audio, getAudioSize());
+    }
+
+    /**
+     * @return The range of the image data in the pack of the category, or the whole data file
+     *         when the image is not packed (see {@link com.smilemeback.storage.Images#updatePack()}).
+     */
+    public MediaRange getImageRange() {
+        return imageRange != null ? imageRange : MediaRange.of(getImageData());
+    }
+
+    /**
+     * @return The range of the audio data in the pack of the category, or the whole data file
+     *         when the image is not packed (see {@link com.smilemeback.storage.Images#updatePack()}).
+     */
+    public MediaRange getAudioRange() {
+        return audioRange != null ? audioRange : MediaRange.of(getAudioData());
+    }
+
+    public long getImageSize() {
+        return imageSize >= 0 ? imageSize : image.length();
+    }
+
+    public long getImageLastModified() {
+        return imageModified >= 0 ? imageModified : image.lastModified();
+    }
+
+    public long getAudioSize() {
+        return audioSize >= 0 ? audioSize : audio.length();
+    }
+
+    public long getAudioLastModified() {
+        return audioModified >= 0 ? audioModified : audio.lastModified();
+    }
+
     /**
      * Images are compared by their position in the {@link com.smilemeback.storage.Category} .
      * @param another
@@ -119,9 +291,27 @@ public class Image implements Comparable<Image> {
         return getPosition() - another.getPosition();
     }
 
+    /**
+     * Images are identified by the id of their {@link com.smilemeback.storage.Category} and their {@link #id}.
+     * In the ordered layout the id is stable, so renamed or rearranged instances of an image are equal
+     * to the original. In the positional layout the id is the position, which is reassigned when images
+     * are rearranged or deleted, so instances from different snapshots are equal when they are at the same
+     * position, whichever image they show, and should only be compared within a single snapshot.
+     * Folders are migrated to the ordered layout together with the categories
+     * (see {@link com.smilemeback.storage.Categories#migrateToOrderedLayout()}).
+     */
     @Override
     public boolean equals(Object o) {
-        return EqualsBuilder.reflectionEquals(this, o);
+        if (!(o instanceof Image)) {
+            return false;
+        }
+        Image other = (Image)o;
+        return id == other.id && category.getId() == other.category.getId();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * category.getId() + id;
     }
 
 
@@ -140,18 +330,16 @@ public class Image implements Comparable<Image> {
 
         File newAudio = new File(
                 category.getFolder(),
-                StorageNameUtils.constructImageFileName(position, newName, AUDIO_SUFFIX));
+                StorageNameUtils.constructImageFileName(id, newName, AUDIO_SUFFIX));
         File newImage = new File(
                 category.getFolder(),
-                StorageNameUtils.constructImageFileName(position, newName, IMAGE_SUFFIX));
+                StorageNameUtils.constructImageFileName(id, newName, IMAGE_SUFFIX));
         try {
             FileUtils.moveFile(getAudio(), newAudio);
             FileUtils.moveFile(getImage(), newImage);
 
-            return new Image(
-                    category,
-                    newImage,
-                    newAudio);
+            return new Image(category, id, position, newName, newImage, newAudio,
+                    imageSize, -1, audioSize, -1);
 
         } catch (IOException e) {
             throw new StorageException(e.getMessage(), e);
@@ -18,20 +18,22 @@ package com.smilemeback.storage;
 
 import android.util.Log;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.smilemeback.storage.datamover.DataMover;
+import com.google.common.collect.ImmutableList;
+import com.smilemeback.storage.datamover.ReorderPlanner;
 
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,12 +43,47 @@ import java.util.Set;
  */
 public class Images implements Iterable<Image> {
     private static String TAG = Storage.class.getCanonicalName();
+    public static final String PACK = "_pack.dat";
+
+    private static final Function<Image, Integer> ID = new Function<Image, Integer>() {
+        @Override
+        public Integer apply(Image image) {
+            return image.getId();
+        }
+    };
 
     private final Category category;
+    private final CategoryManifest manifest;
+    private final OrderRecord order;
+    private final Journal journal;
+    private final BlobStore blobs;
+    private final Trash trash;
+    private final File packFile;
+    private PackFile pack = null;
     private final List<Image> images = new ArrayList<>();
+    private boolean ordered = false;
+    private final boolean verify;
+    private StorageListener listener = null;
+    private UndoLog undoLog = null;
 
     public Images(final Category category) throws StorageException {
+        this(category, false);
+    }
+
+    /**
+     * @param category The category of the images.
+     * @param verify If true, every image and audio file is checked on the filesystem
+     *               when scanning, instead of trusting the folder listing.
+     */
+    public Images(final Category category, final boolean verify) throws StorageException {
         this.category = category;
+        this.verify = verify;
+        this.manifest = new CategoryManifest(category);
+        this.order = new OrderRecord(category.getFolder());
+        this.journal = Journal.forCategoriesFolder(category.getFolder().getParentFile());
+        this.blobs = BlobStore.forCategoriesFolder(category.getFolder().getParentFile());
+        this.trash = Trash.forCategoriesFolder(category.getFolder().getParentFile());
+        this.packFile = new File(category.getFolder(), PACK);
 
         if (!category.getFolder().isDirectory()) {
             throw new IllegalArgumentException("Category <" + category.getName() + "> not a directory!");
@@ -57,162 +94,391 @@ public class Images implements Iterable<Image> {
 
     @Override
     public Iterator<Image> iterator() {
-        return null;
+        return images.iterator();
+    }
+
+    /**
+     * @return Immutable copy of the current images, safe to read from other threads.
+     *         The files holding the data and their ranges in the pack are resolved, so that readers
+     *         do not touch the storage. Images whose data or ranges changed since the last snapshot
+     *         are new instances, the instances of earlier snapshots are never changed.
+     */
+    public ImmutableList<Image> snapshot() {
+        if (pack == null && packFile.isFile()) {
+            pack = new PackFile(packFile);
+        }
+        for (int idx = 0; idx < images.size(); ++idx) {
+            Image image = images.get(idx);
+            MediaRange imageRange = pack != null ? pack.get(imageKey(image)).orNull() : null;
+            MediaRange audioRange = pack != null ? pack.get(audioKey(image)).orNull() : null;
+            images.set(idx, image.resolved(imageRange, audioRange));
+        }
+        return ImmutableList.copyOf(images);
+    }
+
+    /**
+     * Bring the pack of the category up to date: the data of new images is appended, the
+     * data of removed images is dropped, and the pack is compacted when more than half of it
+     * is dead space. Snapshots taken afterwards read the images from the pack.
+     *
+     * The pack is a copy of the data in a single file, so that opening a category does
+     * not need to open every image file. It can always be deleted and packed again. As a copy
+     * it takes as much space as the stored data again, so packing is off unless enabled.
+     *
+     * @return True if the pack was changed.
+     */
+    public boolean updatePack() throws StorageException {
+        if (pack == null) {
+            pack = new PackFile(packFile);
+        }
+        Map<String, File> wanted = new LinkedHashMap<>();
+        for (Image image : images) {
+            wanted.put(imageKey(image), image.getImageData());
+            wanted.put(audioKey(image), image.getAudioData());
+        }
+        List<String> dead = new ArrayList<>();
+        for (String key : pack.keys()) {
+            if (!wanted.containsKey(key)) {
+                dead.add(key);
+            }
+        }
+        Map<String, File> missing = new LinkedHashMap<>();
+        for (Map.Entry<String, File> entry : wanted.entrySet()) {
+            if (!pack.contains(entry.getKey())) {
+                missing.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (dead.isEmpty() && missing.isEmpty()) {
+            return false;
+        }
+        Log.d(TAG, "Updating pack of <" + category.getName() + ">: " + missing.size() + " new, " + dead.size() + " removed");
+        boolean created = !packFile.exists();
+        try {
+            pack.remove(dead);
+            pack.append(missing);
+            if (pack.needsCompaction()) {
+                pack.compact();
+                created = true;
+            }
+            if (created) {
+                // the new file changed the category folder, which would make the manifest look stale
+                manifest.save(images);
+            }
+        } catch (StorageException e) {
+            // the pack is only a copy, start over the next time
+            FileUtils.deleteQuietly(packFile);
+            pack = null;
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Key of the image data in the pack. Stored data is named by its contents, files that hold
+     * the data directly by their name, size and modification time.
+     */
+    private static String imageKey(final Image image) {
+        File data = image.getImageData();
+        if (!data.equals(image.getImage())) {
+            return data.getName();
+        }
+        return data.getName() + ":" + image.getImageSize() + ":" + image.getImageLastModified();
+    }
+
+    private static String audioKey(final Image image) {
+        File data = image.getAudioData();
+        if (!data.equals(image.getAudio())) {
+            return data.getName();
+        }
+        return data.getName() + ":" + image.getAudioSize() + ":" + image.getAudioLastModified();
     }
 
     public int size() {
         return images.size();
     }
 
+    /**
+     * Set the listener that is notified when this instance modifies other categories.
+     */
+    public void setListener(StorageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param undoLog The log that the inverses of the committed transactions are recorded in, may be null.
+     */
+    public void setUndoLog(UndoLog undoLog) {
+        this.undoLog = undoLog;
+    }
+
+    /**
+     * @return The image with the given id, absent if it is not in this category.
+     */
+    public Optional<Image> findById(final int id) {
+        for (Image image : images) {
+            if (image.getId() == id) {
+                return Optional.of(image);
+            }
+        }
+        return Optional.absent();
+    }
+
     public Image get(int position) {
         return images.get(position);
     }
 
-    private void parseImages() throws StorageException {
-        images.clear();
-        // map icon indices to image and audio files
-        Map<Integer, File> imageFiles = scanCategoryImages(category);
-        Map<Integer, File> audioFiles = scanCategoryAudio(category);
+    /**
+     * @return True if the category folder was modified after the images were loaded or saved,
+     *         for example by files copied into it from outside of the application.
+     */
+    public boolean isStale() {
+        return !manifest.isFresh();
+    }
 
-        // zip them together and initialize icons
-        try {
-            for (int idx : imageFiles.keySet()) {
-                File imageFile = imageFiles.get(idx);
-                File audioFile = audioFiles.get(idx);
-                Name imageName = StorageNameUtils.parseName(imageFile.getName());
-                Name audioName = StorageNameUtils.parseName(audioFile.getName());
-                if (!imageName.equals(audioName)) {
-                    String err = "Names for image and audio differ for position <" + idx + ">: <" + imageName + "> <" + audioName + ">";
-                    throw new StorageException(err);
-                }
-                images.add(new Image(category, imageFile, audioFile));
-            }
-            Collections.sort(images);
+    /**
+     * @return True if the category uses the ordered layout, where the file names contain
+     *         stable ids and the order is stored in an {@link com.smilemeback.storage.OrderRecord}.
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
 
-            // check positions
-            for (int idx = 0; idx < images.size(); ++idx) {
-                if (images.get(idx).getPosition() != idx) {
-                    throw new StorageException("Image at position " + idx + " reports position " + images.get(idx).getPosition());
-                }
-            }
-        } catch (NameException e) {
-            throw new StorageException(e.getMessage(), e);
+    /**
+     * Convert the category from positional to ordered layout.
+     * The current file names become the stable ids, so no files are renamed.
+     * @throws StorageException
+     */
+    public void migrateToOrderedLayout() throws StorageException {
+        if (ordered) {
+            return;
         }
+        Log.i(TAG, "Migrating category <" + category.getName() + "> to ordered layout");
+        order.setOrder(images, ID);
+        order.save();
+        ordered = true;
+        // creating the record modified the folder, refresh the manifest so it stays fresh
+        manifest.save(images);
     }
 
     /**
-     * Filter files with given suffix and return them as indexed map.
-     * Assumes that the files are from a category folder, therefore
-     * ignores "_thumbnail.jpg" image.
-     *
-     * It assumes that the filenames are encoded as following:
-     * {icon_index}_{name}{suffix}
-     *
-     * @param category
-     * @param suffix The suffix the desired filenames have to end with.
-     * @return The mapping from icon position to files with given suffix.
-     *
-     * @throws com.smilemeback.storage.StorageException
-     */
-    public static Map<Integer, File> scanCategoryFiles(final Category category, final String suffix) throws StorageException {
-        Map<Integer, File> files = new HashMap<>();
-        for (File f : category.getFolder().listFiles()) {
-            String fnm = f.getName();
-            if (!fnm.equals(Category.THUMBNAIL)) {
-                if (fnm.endsWith(suffix)) {
-                    Log.d(TAG, "Scanning file <" + f.getAbsolutePath() + ">");
-                    Optional<Integer> position = StorageNameUtils.parsePosition(fnm);
-                    if (position.isPresent()) {
-                        files.put(position.get(), f);
-                    }
+     * Load the images from the category manifest, or scan the category folder
+     * in case the manifest is missing or stale.
+     */
+    private void parseImages() throws StorageException {
+        images.clear();
+        Optional<List<Image>> indexed = manifest.load();
+        List<Image> found = indexed.isPresent() ? indexed.get() : scanImages();
+        boolean changed = !indexed.isPresent();
+        ordered = order.exists();
+        if (ordered) {
+            order.load();
+            setImages(order.arrange(found, ID));
+            // saving the order modifies the folder, so the manifest is written after it
+            changed |= saveOrder();
+        } else {
+            // check positions
+            for (int idx = 0; idx < found.size(); ++idx) {
+                if (found.get(idx).getId() != idx) {
+                    throw new StorageException("Image at position " + idx + " reports position " + found.get(idx).getId());
                 }
             }
+            images.addAll(found);
+        }
+        if (changed) {
+            manifest.save(images);
         }
-        return files;
     }
 
-    public static Map<Integer, File> scanCategoryImages(final Category category) throws StorageException {
-        return scanCategoryFiles(category, Image.IMAGE_SUFFIX);
+    /**
+     * Replace the images with the given ones, updating their positions.
+     */
+    private void setImages(final List<Image> arranged) {
+        images.clear();
+        for (int idx = 0; idx < arranged.size(); ++idx) {
+            images.add(arranged.get(idx).withPosition(idx));
+        }
     }
 
-    public static Map<Integer, File> scanCategoryAudio(final Category category) throws StorageException {
-        return scanCategoryFiles(category, Image.AUDIO_SUFFIX);
+    /**
+     * @return True if the order changed and was saved.
+     */
+    private boolean saveOrder() throws StorageException {
+        if (!order.setOrder(images, ID)) {
+            return false;
+        }
+        order.save();
+        return true;
     }
 
+    /**
+     * Scan the category folder.
+     * @return The images sorted by their ids, with positions equal to the ids.
+     */
+    private List<Image> scanImages() throws StorageException {
+        FolderScanner.CategoryListing listing = FolderScanner.scanCategory(category, verify);
+        List<Image> images = new ArrayList<>(listing.size());
+        for (int idx = 0; idx < listing.size(); ++idx) {
+            int id = listing.getId(idx);
+            if (!listing.namesMatch(idx)) {
+                String err = "Names for image and audio differ for position <" + id + ">: <"
+                        + listing.getImage(idx).getName() + "> <" + listing.getAudio(idx).getName() + ">";
+                throw new StorageException(err);
+            }
+            images.add(new Image(category, id, id, listing.getImage(idx).getName(),
+                    listing.getImageFile(idx), listing.getAudioFile(idx), -1, -1, -1, -1));
+        }
+        return images;
+    }
 
     public Image add(final Name name, final File imagePath, final File audioPath) throws StorageException {
-        int position = size();
-        File imageFile = new File(
-                category.getFolder(),
-                StorageNameUtils.constructImageFileName(position, name, Image.IMAGE_SUFFIX));
-        File audioFile = new File(
-                category.getFolder(),
-                StorageNameUtils.constructImageFileName(position, name, Image.AUDIO_SUFFIX));
+        return add(name, imagePath, audioPath, false);
+    }
+
+    /**
+     * Add a new image to the end of the category.
+     *
+     * @param name The name of the image.
+     * @param imagePath The image file.
+     * @param audioPath The audio file.
+     * @param takeOwnership If true, the files are moved into the {@link com.smilemeback.storage.BlobStore}
+     *                      by renaming them (falling back to copying only when renaming fails),
+     *                      otherwise they are copied. Data that is already stored is not written again.
+     * @return The added image, whose files link to the stored data.
+     * @throws StorageException
+     */
+    public Image add(final Name name, final File imagePath, final File audioPath, final boolean takeOwnership) throws StorageException {
         Log.i(TAG, "Adding new Image to category " + category.getFolder());
+        final int position = size();
+        final int id = ordered ? order.allocateId() : position;
+        File imageFile = fileFor(id, name, Image.IMAGE_SUFFIX);
+        File audioFile = fileFor(id, name, Image.AUDIO_SUFFIX);
+        Journal.Plan plan = new Journal.Plan("Add <" + name + "> to <" + category.getFolder() + ">");
         try {
-            Log.d(TAG, "Copying image from " + imagePath + " to " + imageFile);
-            FileUtils.copyFile(imagePath, imageFile);
-            Log.d(TAG, "Copying audio from " + audioPath + " to " + audioFile);
-            FileUtils.copyFile(audioPath, audioFile);
-        } catch (IOException e) {
-            throw new StorageException(e.getMessage(), e);
-        } finally {
-            Image image = new Image(category, imageFile, audioFile);
-            images.add(image);
-            return image;
+            blobs.planLink(plan, blobs.planStore(plan, imagePath, takeOwnership, Image.IMAGE_SUFFIX), imageFile);
+            blobs.planLink(plan, blobs.planStore(plan, audioPath, takeOwnership, Image.AUDIO_SUFFIX), audioFile);
+            journal.run(plan);
+        } catch (StorageException e) {
+            throw reloadAfterFailedPlan(e);
         }
+        Image image = new Image(category, id, position, name, imageFile, audioFile, -1, -1, -1, -1);
+        images.add(image);
+        if (ordered) {
+            saveOrder();
+        }
+        manifest.save(images);
+        return image;
+    }
+
+    /**
+     * Start a batch of edits of this category.
+     * @return A new transaction, whose edits are applied by {@link Transaction#commit()}.
+     */
+    public Transaction transaction() {
+        return new Transaction();
+    }
+
+    /**
+     * Rename an image in this category.
+     *
+     * @param image The image to rename.
+     * @param newName The new {@link com.smilemeback.storage.Name}.
+     * @return Instance of the renamed image.
+     * @throws StorageException In case the image is not in this category.
+     */
+    public Image rename(final Image image, final Name newName) throws StorageException {
+        Log.i(TAG, "Renaming image <" + image.getName() + "> to <" + newName + ">");
+        transaction().rename(image, newName).commit();
+        return images.get(image.getPosition());
     }
 
     public void delete(final Collection<Image> selection) throws StorageException {
-        if (!images.containsAll(selection)) {
-            throw new StorageException("Selection contains images not in this category!");
-        }
-        try {
-            for (Image image : selection) {
-                image.delete();
-            }
-        } catch (StorageException e) {
-            throw new StorageException(e.getMessage(), e);
-        } finally {
-            organize();
-        }
+        transaction().delete(selection).commit();
+    }
+
+    /**
+     * Move selection of images to destination category.
+     * @param destination The destination category.
+     * @param selection The collection of images to be moved.
+     * @throws StorageException In case collection contains images not in this category.
+     */
+    public void moveTo(final Category destination, Collection<Image> selection) throws StorageException {
+        // the transaction checks that the selection is in this category
+        transaction().moveTo(destination, selection).commit();
+    }
+
+    /**
+     * Copy a selection of images to the end of the destination category.
+     * The copies share the stored data with the originals (see {@link com.smilemeback.storage.BlobStore}).
+     * @param destination The destination category.
+     * @param selection The collection of images to be copied.
+     * @throws StorageException In case collection contains images not in this category.
+     */
+    public void copyTo(final Category destination, final Collection<Image> selection) throws StorageException {
+        transaction().copyTo(destination, selection).commit();
     }
 
+    /**
+     * Rearrange the images.
+     * The selected images are moved before the target, if all of them are after the target.
+     * Otherwise, all selected images are moved after the target.
+     * @param selection The collection of selected images that are going to be moved.
+     * @param target The target image, which acts as a pivot of the move operation.
+     * @throws StorageException
+     */
+    public void rearrange(Collection<Image> selection, Image target) throws StorageException {
+        transaction().rearrange(selection, target).commit();
+    }
+
+    /**
+     * Repair the category folder after it was modified outside of the storage classes: the
+     * files are rescanned, broken images and unknown files are deleted and in positional layout
+     * the gaps between positions are closed.
+     *
+     * Edits do not need this, as they only touch the files of the images they change
+     * and keep the images in sync themselves.
+     */
     public void organize() throws StorageException {
+        if (ordered) {
+            organizeOrdered();
+            return;
+        }
         // TODO: make code in this method more readable and more robust
         Log.d(TAG, "Reorganizing category <" + category.getName() + ">");
-        Map<Integer, File> images = scanCategoryImages(category);
-        Map<Integer, File> sounds = scanCategoryAudio(category);
-        Set<Integer> common = new LinkedHashSet<>(images.keySet());
-        common.retainAll(sounds.keySet());
-        List<Integer> commonIdxs = new ArrayList<>(common);
-        Collections.sort(commonIdxs);
+        FolderScanner.CategoryListing listing = FolderScanner.scanCategory(category, false);
         int lastUnused = 0;
         Set<File> keepPaths = new HashSet<>();
         keepPaths.add(category.getThumbnail());
+        keepPaths.add(manifest.getFile());
+        keepPaths.add(packFile);
+        keepPaths.add(order.getFile());
+        List<Image> organized = new ArrayList<>(listing.size());
+        boolean consistent = true;
         try {
             Log.d(TAG, "Removing gaps between icons");
-            for (int current : commonIdxs) {
-                if (current != lastUnused) {
+            for (int idx = 0; idx < listing.size(); ++idx) {
+                Name name = listing.getImage(idx).getName();
+                File currentImage = listing.getImageFile(idx);
+                File currentAudio = listing.getAudioFile(idx);
+                File imagePath = currentImage;
+                File audioPath = currentAudio;
+                consistent &= listing.namesMatch(idx);
+                if (listing.getId(idx) != lastUnused) {
                     // rename the indices
-                    Name name = StorageNameUtils.parseName(images.get(current).getName());
-                    File imagePath = new File(
+                    imagePath = new File(
                             category.getFolder(),
                             StorageNameUtils.constructImageFileName(lastUnused, name, Image.IMAGE_SUFFIX));
-                    File audioPath = new File(
+                    audioPath = new File(
                             category.getFolder(),
                             StorageNameUtils.constructImageFileName(lastUnused, name, Image.AUDIO_SUFFIX));
                     // move files
-                    Log.d(TAG, "Moving <" + images.get(current) + "> to <" + imagePath + ">");
-                    FileUtils.moveFile(images.get(current), imagePath);
-                    Log.d(TAG, "Moving <" + sounds.get(current) + "> to <" + audioPath + ">");
-                    FileUtils.moveFile(sounds.get(current), audioPath);
-                    keepPaths.add(imagePath);
-                    keepPaths.add(audioPath);
-                } else {
-                    keepPaths.add(images.get(current));
-                    keepPaths.add(sounds.get(current));
+                    Log.d(TAG, "Moving <" + currentImage + "> to <" + imagePath + ">");
+                    FileUtils.moveFile(currentImage, imagePath);
+                    Log.d(TAG, "Moving <" + currentAudio + "> to <" + audioPath + ">");
+                    FileUtils.moveFile(currentAudio, audioPath);
                 }
+                keepPaths.add(imagePath);
+                keepPaths.add(audioPath);
+                organized.add(new Image(category, lastUnused, lastUnused, name, imagePath, audioPath, -1, -1, -1, -1));
                 lastUnused += 1;
             }
 
@@ -224,7 +490,12 @@ public class Images implements Iterable<Image> {
                     FileUtils.forceDelete(file);
                 }
             }
-        } catch (IOException | NameException e) {
+
+            // the organized state is known, so the rescan can be served from the manifest
+            if (consistent) {
+                manifest.save(organized);
+            }
+        } catch (IOException e) {
             throw new StorageException(e.getMessage(), e);
         } finally {
             parseImages();
@@ -232,77 +503,531 @@ public class Images implements Iterable<Image> {
     }
 
     /**
-     * Move selection of images to destination category.
-     * @param destination The destination category.
-     * @param selection The collection of images to be moved.
-     * @throws StorageException In case collection contains images not in this category.
+     * Organize the category in ordered layout.
+     * Images without both image and audio file and unknown files are deleted,
+     * the remaining files keep their names and their stored order.
      */
-    public void moveTo(final Category destination, Collection<Image> selection) throws StorageException {
-        // check that selection contains valid elements
-        if (!images.containsAll(selection)) {
-            throw new StorageException("Selection contains images not in source category");
-        }
+    private void organizeOrdered() throws StorageException {
+        Log.d(TAG, "Reorganizing category <" + category.getName() + "> in ordered layout");
+        FolderScanner.CategoryListing listing = FolderScanner.scanCategory(category, false);
+        Set<File> keepPaths = new HashSet<>();
+        keepPaths.add(category.getThumbnail());
+        keepPaths.add(manifest.getFile());
+        keepPaths.add(packFile);
+        keepPaths.add(order.getFile());
         try {
-            Images dest = destination.getImages();
-            for (Image image : selection) {
-                dest.add(image.getName(), image.getImage(), image.getAudio());
-                image.delete();
+            for (int idx = 0; idx < listing.size(); ++idx) {
+                if (listing.namesMatch(idx)) {
+                    keepPaths.add(listing.getImageFile(idx));
+                    keepPaths.add(listing.getAudioFile(idx));
+                }
             }
-        } catch (StorageException e) {
-            throw e;
+            for (File file : category.getFolder().listFiles()) {
+                if (!keepPaths.contains(file)) {
+                    Log.d(TAG, "Deleting unused file <" + file + ">");
+                    FileUtils.forceDelete(file);
+                }
+            }
+            manifest.invalidate();
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
         } finally {
-            organize();
+            parseImages();
         }
     }
 
     /**
-     * Rearrange the images.
-     * The selected images are moved before the target, if all of them are after the target.
-     * Otherwise, all selected images are moved after the target.
-     * @param selection The collection of selected images that are going to be moved.
-     * @param target The target image, which acts as a pivot of the move operation.
-     * @throws StorageException
+     * Reload after a plan whose file operations failed. The journal has rolled back the steps
+     * that were done, or left the plan for the recovery when the storage is opened again,
+     * so the images are rescanned, without deleting any files.
+     *
+     * @param failure The failure of the plan.
+     * @return The failure, to be thrown by the caller.
      */
-    public void rearrange(Collection<Image> selection, Image target) throws StorageException {
-        DataMover<Image> dm = new DataMover<>(images, selection, target);
-        // move files to temporary paths (by doing this, we avoid possible name collisions)
-        Map<Integer, File> imageFiles = new HashMap<>(images.size());
-        Map<Integer, File> audioFiles = new HashMap<>(images.size());
-        Map<Integer, Integer> map = dm.getSourceTargetMapping();
+    private StorageException reloadAfterFailedPlan(final StorageException failure) {
+        Log.e(TAG, failure.getMessage());
+        manifest.invalidate();
         try {
-            for (int key : map.keySet()) {
-                Image image = images.get(key);
-                File imageFile = new File(category.getFolder(), String.format("temp%d" + Image.IMAGE_SUFFIX, key));
-                File audioFile = new File(category.getFolder(), String.format("temp%d" + Image.AUDIO_SUFFIX, key));
-                FileUtils.moveFile(image.getImage(), imageFile);
-                FileUtils.moveFile(image.getAudio(), audioFile);
-                imageFiles.put(key, imageFile);
-                audioFiles.put(key, audioFile);
-            }
-            // move temporary paths to final location
-            for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
-                int key = entry.getKey();
-                int value = entry.getValue();
-
-                File tempImage = imageFiles.get(key);
-                File tempAudio = audioFiles.get(key);
-
-                File imageFile = new File(
-                        category.getFolder(),
-                        StorageNameUtils.constructImageFileName(value, images.get(key).getName(), Image.IMAGE_SUFFIX)
-                );
-                File audioFile = new File(
-                        category.getFolder(),
-                        StorageNameUtils.constructImageFileName(value, images.get(key).getName(), Image.AUDIO_SUFFIX)
-                );
-
-                FileUtils.moveFile(tempImage, imageFile);
-                FileUtils.moveFile(tempAudio, audioFile);
+            parseImages();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not reload <" + category.getName() + ">: " + e.getMessage());
+        }
+        return failure;
+    }
+
+    /**
+     * @return The inverse of an image leaving this category, for the {@link com.smilemeback.storage.UndoLog}.
+     */
+    private static UndoLog.Restored undoEntry(final Image image, final int toCategory, final int toId) {
+        return new UndoLog.Restored(image.getId(), image.getName().toString(),
+                new String[] {image.getImage().getName(), image.getAudio().getName()}, toCategory, toId);
+    }
+
+    /**
+     * Undo an edit of this category recorded in the {@link com.smilemeback.storage.UndoLog}:
+     * deleted images are moved back from the trash and moved images from the categories they
+     * were moved to, under their previous ids and file names. Then the previous names and the
+     * previous order are restored. Images that can no longer be found, for example because
+     * the trash was purged in the meantime, are skipped.
+     *
+     * @param step The step to undo.
+     * @param library The library holding the categories images were moved to.
+     */
+    void undo(final UndoLog.Step step, final Library library) throws StorageException {
+        Log.i(TAG, "Undoing edit of <" + category.getName() + ">");
+        Journal.Plan plan = new Journal.Plan("Undo edit of <" + category.getFolder() + ">");
+        File trashed = step.trash.isEmpty() ? null : trash.fileOf(step.trash);
+        List<Image> restored = new ArrayList<>();
+        Map<Images, List<Image>> released = new LinkedHashMap<>();
+        for (UndoLog.Restored item : step.restored) {
+            File image = new File(category.getFolder(), item.files[0]);
+            File audio = new File(category.getFolder(), item.files[1]);
+            if (item.fromCategory < 0) {
+                File trashedImage = new File(trashed, item.files[0]);
+                File trashedAudio = new File(trashed, item.files[1]);
+                if (!trashedImage.isFile() || !trashedAudio.isFile()) {
+                    Log.w(TAG, "Image <" + item.name + "> is no longer in the trash");
+                    continue;
+                }
+                plan.move(trashedImage, image).move(trashedAudio, audio);
+            } else {
+                Optional<Category> from = library.findCategory(item.fromCategory);
+                Optional<Image> current = from.isPresent()
+                        ? library.getImages(from.get()).findById(item.fromId)
+                        : Optional.<Image>absent();
+                if (!current.isPresent()) {
+                    Log.w(TAG, "Image <" + item.name + "> is no longer where it was moved to");
+                    continue;
+                }
+                Images fromImages = library.getImages(from.get());
+                if (!released.containsKey(fromImages)) {
+                    released.put(fromImages, new ArrayList<Image>());
+                }
+                released.get(fromImages).add(current.get());
+                plan.move(current.get().getImage(), image).move(current.get().getAudio(), audio);
             }
-        } catch (IOException e) {
-            throw new StorageException(e.getMessage(), e);
-        } finally {
-            organize();
+            restored.add(new Image(category, item.id, size() + restored.size(), Name.valid(item.name),
+                    image, audio, -1, -1, -1, -1));
+        }
+
+        try {
+            journal.run(plan);
+        } catch (StorageException e) {
+            throw reloadAfterFailedPlan(e);
+        }
+        for (Map.Entry<Images, List<Image>> entry : released.entrySet()) {
+            entry.getKey().released(entry.getValue());
+        }
+        images.addAll(restored);
+        saveOrder();
+        manifest.save(images);
+
+        Transaction transaction = transaction().arrange(step.order);
+        for (Map.Entry<Integer, String> name : step.names.entrySet()) {
+            Optional<Image> image = findById(name.getKey());
+            if (image.isPresent()) {
+                transaction.rename(image.get(), Name.valid(name.getValue()));
+            }
+        }
+        transaction.commit();
+    }
+
+    /**
+     * Drop images whose files were moved out of this category by another category.
+     */
+    private void released(final Collection<Image> gone) throws StorageException {
+        Set<Integer> ids = new HashSet<>();
+        for (Image image : gone) {
+            ids.add(image.getId());
+        }
+        List<Image> remaining = new ArrayList<>(images.size());
+        for (Image image : images) {
+            if (!ids.contains(image.getId())) {
+                remaining.add(image);
+            }
+        }
+        setImages(remaining);
+        if (ordered) {
+            saveOrder();
+        }
+        manifest.save(images);
+    }
+
+    /**
+     * @return The file of an image with given id and name in this category.
+     */
+    private File fileFor(final int id, final Name name, final String suffix) {
+        return new File(category.getFolder(), StorageNameUtils.constructImageFileName(id, name, suffix));
+    }
+
+    private File tempFile(final int key, final String suffix) {
+        return new File(category.getFolder(), String.format("temp%d" + suffix, key));
+    }
+
+    /**
+     * @return The image as it is after its files are moved to the given id and name in this category.
+     *         No files are touched.
+     */
+    private Image relocated(final Image image, final int id, final int position, final Name name) {
+        return new Image(category, id, position, name,
+                fileFor(id, name, Image.IMAGE_SUFFIX),
+                fileFor(id, name, Image.AUDIO_SUFFIX),
+                image.imageSize, image.imageModified, image.audioSize, image.audioModified);
+    }
+
+    /**
+     * Create the images that the given entries become when appended to this category.
+     * No files are touched, the images are added by {@link #appended(java.util.List)}
+     * after their files are in place.
+     */
+    private List<Image> planAppend(final List<Entry> sources) {
+        List<Image> planned = new ArrayList<>(sources.size());
+        for (Entry source : sources) {
+            int position = size() + planned.size();
+            int id = ordered ? order.allocateId() : position;
+            planned.add(relocated(source.image, id, position, source.name));
+        }
+        return planned;
+    }
+
+    /**
+     * Add the images created by {@link #planAppend(java.util.List)}, whose files are in place.
+     */
+    private void appended(final List<Image> planned) throws StorageException {
+        images.addAll(planned);
+        if (ordered) {
+            saveOrder();
+        }
+        manifest.save(images);
+    }
+
+    /**
+     * Image in a {@link Transaction}, with its pending name and position.
+     */
+    private static class Entry {
+        Image image;
+        Name name;
+        int index;
+        boolean removed = false;
+        boolean copied = false;
+
+        Entry(final Image image) {
+            this.image = image;
+            this.name = image.getName();
+            this.index = image.getPosition();
+        }
+    }
+
+    /**
+     * Batch of edits of the category that are committed together.
+     *
+     * The edits are only recorded until {@link #commit()}, which runs a single planned sequence
+     * of file operations through the {@link com.smilemeback.storage.Journal}, compacts the category once
+     * and updates the images once. Deleted images are moved to the {@link com.smilemeback.storage.Trash}.
+     */
+    public class Transaction {
+        private final Map<Integer, Entry> entries = new HashMap<>(images.size() * 2);
+        private boolean pruned = true;
+        private final List<Entry> working = new ArrayList<>(images.size());
+        private final List<Entry> deleted = new ArrayList<>();
+        private final Map<File, Category> destinations = new LinkedHashMap<>();
+        private final Map<File, List<Entry>> moved = new HashMap<>();
+        private final Map<File, List<Entry>> copied = new HashMap<>();
+        private boolean committed = false;
+
+        private Transaction() {
+            for (Image image : images) {
+                Entry entry = new Entry(image);
+                entries.put(image.getId(), entry);
+                working.add(entry);
+            }
+        }
+
+        private Entry entry(final Image image) throws StorageException {
+            Entry entry = entries.get(image.getId());
+            if (entry == null || !entry.image.equals(image)) {
+                throw new StorageException("Image <" + image.getName() + "> not in this category!");
+            }
+            if (entry.removed) {
+                throw new StorageException("Image <" + image.getName() + "> already removed in this transaction!");
+            }
+            return entry;
+        }
+
+        private Entry take(final Image image) throws StorageException {
+            Entry entry = entry(image);
+            if (entry.copied) {
+                throw new StorageException("Image <" + image.getName() + "> already copied in this transaction!");
+            }
+            entry.removed = true;
+            pruned = false;
+            return entry;
+        }
+
+        public Transaction delete(final Collection<Image> selection) throws StorageException {
+            for (Image image : selection) {
+                deleted.add(take(image));
+            }
+            return this;
+        }
+
+        public Transaction moveTo(final Category destination, final Collection<Image> selection) throws StorageException {
+            List<Entry> entries = entriesFor(moved, destination);
+            for (Image image : selection) {
+                entries.add(take(image));
+            }
+            return this;
+        }
+
+        /**
+         * Copy images to the end of another category. The files of the images are replaced
+         * by links to the {@link com.smilemeback.storage.BlobStore}, and the copies link
+         * to the same data, so no image or audio data is copied.
+         */
+        public Transaction copyTo(final Category destination, final Collection<Image> selection) throws StorageException {
+            if (destination.getFolder().equals(category.getFolder())) {
+                throw new StorageException("Images can not be copied into their own category!");
+            }
+            List<Entry> entries = entriesFor(copied, destination);
+            for (Image image : selection) {
+                Entry entry = entry(image);
+                entry.copied = true;
+                entries.add(entry);
+            }
+            return this;
+        }
+
+        private List<Entry> entriesFor(final Map<File, List<Entry>> byDestination, final Category destination) {
+            List<Entry> entries = byDestination.get(destination.getFolder());
+            if (entries == null) {
+                entries = new ArrayList<>();
+                byDestination.put(destination.getFolder(), entries);
+                destinations.put(destination.getFolder(), destination);
+            }
+            return entries;
+        }
+
+        /**
+         * Plan replacing the files of the image by links to the stored data, unless they are links already.
+         */
+        private void link(final Journal.Plan plan, final Entry entry) throws StorageException {
+            Image image = entry.image;
+            boolean changed = false;
+            if (!BlobStore.readLink(image.getImage(), image.getImageSize()).isPresent()) {
+                blobs.planLink(plan, blobs.planStore(plan, image.getImage(), true, Image.IMAGE_SUFFIX), image.getImage());
+                changed = true;
+            }
+            if (!BlobStore.readLink(image.getAudio(), image.getAudioSize()).isPresent()) {
+                blobs.planLink(plan, blobs.planStore(plan, image.getAudio(), true, Image.AUDIO_SUFFIX), image.getAudio());
+                changed = true;
+            }
+            if (changed) {
+                entry.image = image.withLinkedFiles();
+            }
+        }
+
+        public Transaction rename(final Image image, final Name newName) throws StorageException {
+            entry(image).name = newName;
+            return this;
+        }
+
+        public Transaction rearrange(final Collection<Image> selection, final Image target) throws StorageException {
+            prune();
+            for (int idx = 0; idx < working.size(); ++idx) {
+                working.get(idx).index = idx;
+            }
+            int[] selected = new int[selection.size()];
+            int next = 0;
+            for (Image image : selection) {
+                selected[next++] = entry(image).index;
+            }
+            Arrays.sort(selected);
+            int[] order = ReorderPlanner.rearrange(working.size(), selected, entry(target).index);
+            List<Entry> result = new ArrayList<>(order.length);
+            for (int position : order) {
+                result.add(working.get(position));
+            }
+            working.clear();
+            working.addAll(result);
+            return this;
+        }
+
+        /**
+         * Put the images in the order of the given ids. Images whose ids are not given
+         * keep their order after the given ones, ids without images are ignored.
+         */
+        public Transaction arrange(final int[] ids) {
+            prune();
+            List<Entry> result = new ArrayList<>(working.size());
+            Set<Entry> placed = new HashSet<>();
+            for (int id : ids) {
+                Entry entry = entries.get(id);
+                if (entry != null && !entry.removed && placed.add(entry)) {
+                    result.add(entry);
+                }
+            }
+            for (Entry entry : working) {
+                if (!placed.contains(entry)) {
+                    result.add(entry);
+                }
+            }
+            working.clear();
+            working.addAll(result);
+            return this;
+        }
+
+        /**
+         * Drop the removed entries from the working order in a single pass.
+         */
+        private void prune() {
+            if (pruned) {
+                return;
+            }
+            int kept = 0;
+            for (Entry entry : working) {
+                if (!entry.removed) {
+                    working.set(kept++, entry);
+                }
+            }
+            working.subList(kept, working.size()).clear();
+            pruned = true;
+        }
+
+        /**
+         * Apply the recorded edits.
+         *
+         * @return The images that were deleted or moved to other categories, as they were before the commit,
+         *         and the images whose position, name or files changed, as they are after the commit.
+         * @throws StorageException In case the file operations failed and could not be finished from
+         *         the journal. The images are then reloaded from the storage.
+         */
+        public TransactionResult<Image> commit() throws StorageException {
+            if (committed) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            committed = true;
+            prune();
+            int[] before = new int[images.size()];
+            for (int idx = 0; idx < before.length; ++idx) {
+                before[idx] = images.get(idx).getId();
+            }
+            Map<Integer, String> names = new LinkedHashMap<>();
+            List<UndoLog.Restored> restored = new ArrayList<>();
+            String trashPath = "";
+
+            Journal.Plan plan = new Journal.Plan("Edit images in <" + category.getFolder() + ">");
+            List<Image> removed = new ArrayList<>();
+            if (!deleted.isEmpty()) {
+                // deleted images are moved to the trash, which is purged in the background
+                File trashed = trash.newEntry(category.getFolder());
+                trashPath = trash.pathOf(trashed);
+                for (Entry entry : deleted) {
+                    Image image = entry.image;
+                    plan.move(image.getImage(), new File(trashed, image.getImage().getName()))
+                            .move(image.getAudio(), new File(trashed, image.getAudio().getName()));
+                    removed.add(image);
+                    restored.add(undoEntry(image, -1, -1));
+                }
+            }
+
+            // the copied images are linked first, so that only the links are copied
+            Set<Entry> linked = new HashSet<>();
+            for (List<Entry> entries : copied.values()) {
+                for (Entry entry : entries) {
+                    if (linked.add(entry)) {
+                        link(plan, entry);
+                    }
+                }
+            }
+
+            // both categories are on the same volume, so the files are renamed instead of copied
+            List<Images> targets = new ArrayList<>(destinations.size());
+            List<List<Image>> appended = new ArrayList<>(destinations.size());
+            for (Map.Entry<File, Category> destination : destinations.entrySet()) {
+                Images dest = destination.getValue().getImages();
+                List<Entry> entries = new ArrayList<>();
+                if (moved.containsKey(destination.getKey())) {
+                    entries.addAll(moved.get(destination.getKey()));
+                }
+                int numMoved = entries.size();
+                if (copied.containsKey(destination.getKey())) {
+                    entries.addAll(copied.get(destination.getKey()));
+                }
+                List<Image> planned = dest.planAppend(entries);
+                for (int idx = 0; idx < entries.size(); ++idx) {
+                    Image image = entries.get(idx).image;
+                    if (idx < numMoved) {
+                        plan.move(image.getImage(), planned.get(idx).getImage());
+                        plan.move(image.getAudio(), planned.get(idx).getAudio());
+                        removed.add(image);
+                        restored.add(undoEntry(image, destination.getValue().getId(), planned.get(idx).getId()));
+                    } else {
+                        plan.copy(image.getImage(), planned.get(idx).getImage());
+                        plan.copy(image.getAudio(), planned.get(idx).getAudio());
+                    }
+                }
+                targets.add(dest);
+                appended.add(planned);
+            }
+
+            // in positional layout the remaining images move to their new positions,
+            // only the images whose files change are part of the plan
+            List<Image> result = new ArrayList<>(working.size());
+            List<File[]> sources = new ArrayList<>();
+            List<File[]> destinationFiles = new ArrayList<>();
+            List<File[]> temps = new ArrayList<>();
+            for (int idx = 0; idx < working.size(); ++idx) {
+                Entry entry = working.get(idx);
+                Image image = entry.image;
+                int id = ordered ? image.getId() : idx;
+                if (id == image.getId() && entry.name.equals(image.getName())) {
+                    result.add(image);
+                    continue;
+                }
+                if (!entry.name.equals(image.getName())) {
+                    names.put(image.getId(), image.getName().toString());
+                }
+                Image after = relocated(image, id, idx, entry.name);
+                result.add(after);
+                sources.add(new File[] {image.getImage(), image.getAudio()});
+                destinationFiles.add(new File[] {after.getImage(), after.getAudio()});
+                temps.add(new File[] {tempFile(image.getId(), Image.IMAGE_SUFFIX), tempFile(image.getId(), Image.AUDIO_SUFFIX)});
+            }
+            plan.relocate(sources, destinationFiles, temps);
+
+            try {
+                journal.run(plan);
+            } catch (StorageException e) {
+                throw reloadAfterFailedPlan(e);
+            } finally {
+                if (listener != null) {
+                    for (Category destination : destinations.values()) {
+                        listener.imagesChanged(destination);
+                    }
+                }
+            }
+
+            setImages(result);
+            // saving the order modifies the folder, so the manifest is written after it
+            boolean reordered = ordered && saveOrder();
+            if (!plan.isEmpty() || reordered) {
+                manifest.save(images);
+            }
+            for (int idx = 0; idx < targets.size(); ++idx) {
+                targets.get(idx).appended(appended.get(idx));
+            }
+
+            List<Image> changed = new ArrayList<>();
+            for (int idx = 0; idx < working.size(); ++idx) {
+                if (images.get(idx) != working.get(idx).image) {
+                    changed.add(images.get(idx));
+                }
+            }
+            // ids change with the positions in positional layout, so the edit can not be undone by id
+            if (undoLog != null && ordered && (!changed.isEmpty() || !restored.isEmpty())) {
+                undoLog.record(new UndoLog.Step(category.getId(), before, names, trashPath, restored));
+            }
+            return new TransactionResult<>(removed, changed);
         }
     }
 }
@@ -0,0 +1,461 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.smilemeback.storage.datamover.MovePlan;
+import com.smilemeback.storage.datamover.ReorderPlanner;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead journal for storage mutations that touch several files.
+ *
+ * Before the files of a {@link Plan} are touched, all of its steps are appended to the journal
+ * and synced to disk. After every executed step a progress marker is appended, and once the
+ * whole plan has run the journal is cleared.
+ *
+ * If the process is killed in the middle of a plan, {@link #recover()} rolls the plan forward
+ * from the first step without a progress marker when the storage is opened again. Steps are written
+ * so that replaying the one step that may have run without its marker is harmless. Plans whose steps
+ * were not completely written have not touched any files and are dropped. A step that fails while
+ * the plan runs is not replayed, the steps done before it are rolled back instead.
+ *
+ * Paths under the journal root folder are stored relative to it.
+ */
+public class Journal {
+    private static final String TAG = Journal.class.getCanonicalName();
+    public static final String FILENAME = "journal.log";
+
+    private static final byte BEGIN = 1;
+    private static final byte STEP = 2;
+    private static final byte COMMIT = 3;
+    private static final byte DONE = 4;
+    private static final byte END = 5;
+
+    /**
+     * Kinds of steps a plan consists of.
+     */
+    public enum Kind { MOVE, COPY, DELETE }
+
+    /**
+     * Single filesystem operation of a plan.
+     */
+    public static class Step {
+        public final Kind kind;
+        public final File source;
+        public final File target;
+
+        public Step(final Kind kind, final File source, final File target) {
+            this.kind = kind;
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " <" + source + ">" + (target == null ? "" : " <" + target + ">");
+        }
+    }
+
+    /**
+     * Ordered sequence of filesystem operations that is run as a whole.
+     */
+    public static class Plan {
+        protected final String description;
+        protected final List<Step> steps = new ArrayList<>();
+
+        public Plan(final String description) {
+            this.description = description;
+        }
+
+        /**
+         * Move a file or a directory by renaming it, copying it only when renaming fails.
+         */
+        public Plan move(final File source, final File target) {
+            steps.add(new Step(Kind.MOVE, source, target));
+            return this;
+        }
+
+        /**
+         * Copy a file, overwriting the target.
+         */
+        public Plan copy(final File source, final File target) {
+            steps.add(new Step(Kind.COPY, source, target));
+            return this;
+        }
+
+        /**
+         * Delete a file or a directory with its contents.
+         */
+        public Plan delete(final File file) {
+            steps.add(new Step(Kind.DELETE, file, null));
+            return this;
+        }
+
+        /**
+         * Move groups of files to their targets, without overwriting files that are yet to be moved.
+         * The moves are ordered by the {@link com.smilemeback.storage.datamover.ReorderPlanner}:
+         * chains of groups are moved starting from the group with a free target, and only one
+         * group of every cycle is moved to its temporary files first and to its target last.
+         * Groups whose files are already at their targets are skipped.
+         *
+         * @param sources The current files of each group.
+         * @param targets The target files of each group, in the same shape as the sources.
+         * @param temps The temporary files of each group, in the same shape as the sources.
+         */
+        public Plan relocate(final List<File[]> sources, final List<File[]> targets, final List<File[]> temps) {
+            int n = sources.size();
+            Map<File, Integer> owners = new HashMap<>();
+            boolean[] moving = new boolean[n];
+            for (int idx = 0; idx < n; ++idx) {
+                moving[idx] = !Arrays.equals(sources.get(idx), targets.get(idx));
+                if (moving[idx]) {
+                    for (File file : sources.get(idx)) {
+                        owners.put(file, idx);
+                    }
+                }
+            }
+            int[] blockers = new int[n];
+            // groups whose targets are taken by several groups are moved out of the way first
+            List<Integer> early = new ArrayList<>();
+            for (int idx = 0; idx < n; ++idx) {
+                blockers[idx] = moving[idx] ? MovePlan.NONE : MovePlan.STAYS;
+                if (!moving[idx]) {
+                    continue;
+                }
+                for (File file : targets.get(idx)) {
+                    Integer owner = owners.get(file);
+                    if (owner == null || owner == idx) {
+                        continue;
+                    }
+                    if (blockers[idx] == MovePlan.NONE || blockers[idx] == owner) {
+                        blockers[idx] = owner;
+                    } else {
+                        blockers[idx] = MovePlan.STAYS;
+                        early.add(idx);
+                        break;
+                    }
+                }
+            }
+            for (int idx : early) {
+                moveAll(sources.get(idx), temps.get(idx));
+            }
+            for (int idx = 0; idx < n; ++idx) {
+                if (blockers[idx] >= 0 && blockers[blockers[idx]] == MovePlan.STAYS) {
+                    // blocked by a group that was already moved out of the way
+                    blockers[idx] = MovePlan.NONE;
+                }
+            }
+
+            MovePlan moves = ReorderPlanner.plan(blockers);
+            for (int m = 0; m < moves.size(); ++m) {
+                int idx = moves.getItem(m);
+                switch (moves.getKind(m)) {
+                    case MovePlan.DIRECT:
+                        moveAll(sources.get(idx), targets.get(idx));
+                        break;
+                    case MovePlan.TO_TEMP:
+                        moveAll(sources.get(idx), temps.get(idx));
+                        break;
+                    case MovePlan.FROM_TEMP:
+                        moveAll(temps.get(idx), targets.get(idx));
+                        break;
+                }
+            }
+
+            for (int idx : early) {
+                moveAll(temps.get(idx), targets.get(idx));
+            }
+            return this;
+        }
+
+        private void moveAll(final File[] sources, final File[] targets) {
+            for (int f = 0; f < sources.length; ++f) {
+                move(sources[f], targets[f]);
+            }
+        }
+
+        public List<Step> getSteps() {
+            return Collections.unmodifiableList(steps);
+        }
+
+        public boolean isEmpty() {
+            return steps.isEmpty();
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    protected final File root;
+    protected final File file;
+
+    /**
+     * @param root The storage folder, that contains the journal and the files it is used for.
+     */
+    public Journal(final File root) {
+        this.root = root;
+        this.file = new File(root, FILENAME);
+    }
+
+    /**
+     * @param categoriesFolder The folder containing the categories.
+     * @return The journal of the storage folder the categories are in.
+     */
+    public static Journal forCategoriesFolder(final File categoriesFolder) {
+        return new Journal(categoriesFolder.getParentFile());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Run the plan, recording its intent and progress in the journal.
+     * In case a step fails, the steps done before it are rolled back. Only if that fails too,
+     * the unfinished plan is left in the journal for {@link #recover()}.
+     *
+     * @param plan The plan to run.
+     * @throws StorageException In case a step of the plan failed.
+     */
+    public synchronized void run(final Plan plan) throws StorageException {
+        if (plan.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Running plan <" + plan.getDescription() + "> with " + plan.steps.size() + " steps");
+        FileOutputStream fos = null;
+        int done = 0;
+        try {
+            fos = new FileOutputStream(file);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeByte(BEGIN);
+            out.writeUTF(plan.getDescription());
+            for (Step step : plan.steps) {
+                out.writeByte(STEP);
+                out.writeByte(step.kind.ordinal());
+                out.writeUTF(encode(step.source));
+                out.writeUTF(step.target == null ? "" : encode(step.target));
+            }
+            out.writeByte(COMMIT);
+            out.flush();
+            fos.getFD().sync();
+            // progress markers are written through unbuffered, so that they survive the process being killed
+            for (int idx = 0; idx < plan.steps.size(); ++idx) {
+                apply(plan.steps.get(idx), false);
+                done = idx + 1;
+                out.writeByte(DONE);
+                out.writeInt(idx);
+            }
+            out.writeByte(END);
+            out.close();
+            fos = null;
+            FileUtils.deleteQuietly(file);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fos);
+            fos = null;
+            if (rollBack(plan, done)) {
+                FileUtils.deleteQuietly(file);
+            }
+            throw new StorageException("Plan <" + plan.getDescription() + "> failed: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Undo the steps of a plan that were done before one of its steps failed, last step first.
+     * Moved files are moved back and copies are deleted, as plans only copy to new files.
+     * Deleted files cannot be brought back, plans only delete files whose data is kept elsewhere.
+     *
+     * @return True if the steps were undone, otherwise the plan is left for {@link #recover()}.
+     */
+    boolean rollBack(final Plan plan, final int done) {
+        Log.i(TAG, "Rolling back plan <" + plan.getDescription() + "> from step " + done + " of " + plan.steps.size());
+        for (int idx = done - 1; idx >= 0; --idx) {
+            Step step = plan.steps.get(idx);
+            try {
+                switch (step.kind) {
+                    case MOVE:
+                        if (!step.source.equals(step.target) && step.target.exists() && !step.source.exists()) {
+                            if (step.target.isDirectory()) {
+                                FileUtils.moveDirectory(step.target, step.source);
+                            } else {
+                                FileUtils.moveFile(step.target, step.source);
+                            }
+                        }
+                        break;
+                    case COPY:
+                        FileUtils.deleteQuietly(step.target);
+                        break;
+                    case DELETE:
+                        Log.w(TAG, "Cannot bring back deleted <" + step.source + ">");
+                        break;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not roll back plan <" + plan.getDescription() + ">: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finish the plan left in the journal by an interrupted {@link #run(Plan)}.
+     *
+     * @return True if there was an unfinished plan that was rolled forward.
+     * @throws StorageException In case the plan could not be finished.
+     */
+    public synchronized boolean recover() throws StorageException {
+        if (!file.isFile()) {
+            return false;
+        }
+        String description = null;
+        List<Step> steps = new ArrayList<>();
+        boolean committed = false;
+        boolean ended = false;
+        int done = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                byte type = in.readByte();
+                if (type == BEGIN) {
+                    description = in.readUTF();
+                } else if (type == STEP) {
+                    Kind kind = Kind.values()[in.readByte()];
+                    File source = decode(in.readUTF());
+                    String target = in.readUTF();
+                    steps.add(new Step(kind, source, target.isEmpty() ? null : decode(target)));
+                } else if (type == COMMIT) {
+                    committed = true;
+                } else if (type == DONE) {
+                    done = in.readInt() + 1;
+                } else if (type == END) {
+                    ended = true;
+                } else {
+                    throw new IOException("Unknown journal record " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // end of journal or a partially written record
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read journal <" + file + ">: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        boolean recovered = false;
+        if (committed && !ended) {
+            Log.i(TAG, "Rolling forward plan <" + description + "> from step " + done + " of " + steps.size());
+            try {
+                for (int idx = done; idx < steps.size(); ++idx) {
+                    apply(steps.get(idx), true);
+                }
+                recovered = true;
+            } catch (IOException e) {
+                throw new StorageException("Could not recover plan <" + description + ">: " + e.getMessage(), e);
+            }
+        }
+        FileUtils.deleteQuietly(file);
+        return recovered;
+    }
+
+    /**
+     * Forget the plan left in the journal without finishing it.
+     */
+    public synchronized void discard() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * Execute a single step.
+     * When replaying, a step whose source no longer exists is considered done.
+     */
+    private static void apply(final Step step, final boolean replay) throws IOException {
+        switch (step.kind) {
+            case MOVE:
+                if (!step.source.exists()) {
+                    if (replay) {
+                        return;
+                    }
+                    throw new FileNotFoundException("Source <" + step.source + "> does not exist");
+                }
+                if (step.source.equals(step.target)) {
+                    return;
+                }
+                if (replay) {
+                    // remains of a move that fell back to copying
+                    FileUtils.deleteQuietly(step.target);
+                }
+                if (step.source.isDirectory()) {
+                    FileUtils.moveDirectory(step.source, step.target);
+                } else {
+                    FileUtils.moveFile(step.source, step.target);
+                }
+                break;
+            case COPY:
+                if (!step.source.exists()) {
+                    if (replay) {
+                        return;
+                    }
+                    throw new FileNotFoundException("Source <" + step.source + "> does not exist");
+                }
+                FileUtils.copyFile(step.source, step.target);
+                break;
+            case DELETE:
+                FileUtils.deleteQuietly(step.source);
+                if (step.source.exists()) {
+                    throw new IOException("Could not delete <" + step.source + ">");
+                }
+                break;
+        }
+    }
+
+    private String encode(final File path) {
+        String rootPath = root.getAbsolutePath() + File.separator;
+        String absolute = path.getAbsolutePath();
+        if (absolute.startsWith(rootPath)) {
+            return absolute.substring(rootPath.length());
+        }
+        return absolute;
+    }
+
+    private File decode(final String path) {
+        File decoded = new File(path);
+        return decoded.isAbsolute() ? decoded : new File(root, path);
+    }
+}
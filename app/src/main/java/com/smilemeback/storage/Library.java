@@ -0,0 +1,400 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide repository of the loaded {@link com.smilemeback.storage.Categories}
+ * and {@link com.smilemeback.storage.Images}.
+ *
+ * The parsed models are kept in memory, so that switching between screens does not
+ * scan the storage again. Images of the least recently used categories are evicted
+ * when more than {@link #MAX_CACHED_CATEGORIES} categories are cached.
+ * Cached entries are invalidated by the storage mutations through {@link StorageListener}.
+ */
+public class Library implements StorageListener {
+    private static final String TAG = Library.class.getCanonicalName();
+    public static final int MAX_CACHED_CATEGORIES = 8;
+
+    protected final Storage storage;
+    protected Categories categories = null;
+    protected List<LibraryLoader.Failure> loadFailures = Collections.emptyList();
+    protected boolean garbage = false;
+    protected UndoLog undoLog = null;
+    protected final Map<File, Images> images = new LinkedHashMap<File, Images>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Images> eldest) {
+            return size() > MAX_CACHED_CATEGORIES;
+        }
+    };
+
+    public Library(final Storage storage) {
+        this.storage = storage;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Storage operations left unfinished in the {@link com.smilemeback.storage.Journal} are recovered
+     * before the categories are loaded. The category folders are validated by the
+     * {@link com.smilemeback.storage.LibraryLoader} (see {@link #getLoadFailures()}), and libraries still in
+     * the positional layout are migrated to the ordered layout (see {@link com.smilemeback.storage.OrderRecord}).
+     *
+     * @return The categories, loaded from the storage on first use.
+     * @throws StorageException
+     */
+    public synchronized Categories getCategories() throws StorageException {
+        if (categories == null) {
+            loadCategories();
+        }
+        return categories;
+    }
+
+    /**
+     * Load the categories from the storage, replacing the loaded ones.
+     */
+    private void loadCategories() throws StorageException {
+        Log.d(TAG, "Loading categories");
+        // finish the storage operation interrupted when the application was killed
+        Journal journal = new Journal(storage.getStorageFolder());
+        try {
+            journal.recover();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not recover storage operation: " + e.getMessage());
+            journal.discard();
+        }
+        LibraryLoader.Result result = new LibraryLoader(storage.getCategoriesFolder()).load();
+        categories = result.getCategories();
+        loadFailures = result.getFailures();
+        categories.setListener(this);
+        categories.setUndoLog(getUndoLog());
+        try {
+            categories.migrateToOrderedLayout();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not migrate categories to ordered layout: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reload the loaded models whose folders were modified outside of the library, for example by
+     * files copied over USB. The categories are reloaded when the folders in the categories folder no
+     * longer match them, the cached images when their category folder is newer than their manifest.
+     * Cached images that cannot be loaded any more are dropped.
+     *
+     * @return True if anything was reloaded.
+     * @throws StorageException
+     */
+    public synchronized boolean refresh() throws StorageException {
+        if (categories == null) {
+            return false;
+        }
+        boolean reloaded = false;
+        if (categoriesStale()) {
+            Log.i(TAG, "Categories folder modified outside of the library, reloading");
+            loadCategories();
+            reloaded = true;
+        }
+        Map<File, Category> folders = new HashMap<>();
+        for (Category category : categories) {
+            folders.put(category.getFolder(), category);
+        }
+        for (Map.Entry<File, Images> cached : new ArrayList<>(images.entrySet())) {
+            Category category = folders.get(cached.getKey());
+            if (category == null) {
+                images.remove(cached.getKey());
+                reloaded = true;
+            } else if (cached.getValue().isStale()) {
+                Log.i(TAG, "Category <" + category + "> modified outside of the library, reloading");
+                images.remove(cached.getKey());
+                reloaded = true;
+                try {
+                    getImages(category);
+                } catch (StorageException e) {
+                    Log.e(TAG, "Could not reload <" + category + ">: " + e.getMessage());
+                }
+            }
+        }
+        if (reloaded) {
+            // removed files may have been the last links to blobs
+            garbage = true;
+        }
+        return reloaded;
+    }
+
+    /**
+     * @return True if the folders in the categories folder differ from the loaded categories
+     *         and the folders that failed to load.
+     */
+    private boolean categoriesStale() throws StorageException {
+        String[] names = storage.getCategoriesFolder().list();
+        if (names == null) {
+            return true;
+        }
+        Set<String> known = new HashSet<>();
+        for (Category category : categories) {
+            known.add(category.getFolder().getName());
+        }
+        for (LibraryLoader.Failure failure : loadFailures) {
+            known.add(failure.getFolder().getName());
+        }
+        int found = 0;
+        for (String name : names) {
+            // files starting with an underscore are not categories (see FolderScanner)
+            if (name.startsWith("_")) {
+                continue;
+            }
+            if (!known.contains(name)) {
+                return true;
+            }
+            ++found;
+        }
+        return found != known.size();
+    }
+
+    /**
+     * @return The problems with category folders found when the categories were loaded.
+     */
+    public synchronized List<LibraryLoader.Failure> getLoadFailures() {
+        return loadFailures;
+    }
+
+    /**
+     * @param category The category to get the images of.
+     * @return The images of the category, loaded from the storage in case they are not cached.
+     * @throws StorageException
+     */
+    public synchronized Images getImages(final Category category) throws StorageException {
+        Images cached = images.get(category.getFolder());
+        if (cached == null) {
+            Log.d(TAG, "Loading images of <" + category + ">");
+            cached = category.getImages();
+            cached.setListener(this);
+            cached.setUndoLog(getUndoLog());
+            images.put(category.getFolder(), cached);
+        }
+        return cached;
+    }
+
+    /**
+     * @param folder The folder of the category.
+     * @return The images of the category, in case they are cached.
+     */
+    public synchronized Optional<Images> getCachedImages(final File folder) {
+        return Optional.fromNullable(images.get(folder));
+    }
+
+    /**
+     * @param id The id of the category.
+     * @return The category with the given id, absent if there is none.
+     * @throws StorageException
+     */
+    public synchronized Optional<Category> findCategory(final int id) throws StorageException {
+        return getCategories().findById(id);
+    }
+
+    /**
+     * @return The history of the edits, that are undone by {@link #undo()}.
+     */
+    public synchronized UndoLog getUndoLog() throws StorageException {
+        if (undoLog == null) {
+            undoLog = new UndoLog(storage.getStorageFolder());
+        }
+        return undoLog;
+    }
+
+    /**
+     * Undo the last recorded edit of the categories or images (see {@link com.smilemeback.storage.UndoLog}).
+     *
+     * @return False if there was nothing to undo.
+     * @throws StorageException In case the edit could not be undone, it is dropped from the history.
+     */
+    public synchronized boolean undo() throws StorageException {
+        UndoLog log = getUndoLog();
+        Optional<UndoLog.Step> step = log.pop();
+        if (!step.isPresent()) {
+            return false;
+        }
+        log.setRecording(false);
+        try {
+            if (step.get().isImagesStep()) {
+                Optional<Category> category = findCategory(step.get().categoryId);
+                if (!category.isPresent()) {
+                    throw new StorageException("The category of the edit no longer exists");
+                }
+                getImages(category.get()).undo(step.get(), this);
+            } else {
+                getCategories().undo(step.get());
+            }
+        } finally {
+            log.setRecording(true);
+        }
+        return true;
+    }
+
+    /**
+     * @return True if blobs may have become unreferenced since the last garbage collection.
+     */
+    public synchronized boolean hasGarbage() {
+        return garbage;
+    }
+
+    /**
+     * Note that blobs may have become unreferenced outside of the library,
+     * for example when the trash was purged.
+     */
+    public synchronized void markGarbage() {
+        garbage = true;
+    }
+
+    /**
+     * @return The trash that deleted categories and images are moved to.
+     */
+    public Trash getTrash() throws StorageException {
+        return Trash.forCategoriesFolder(storage.getCategoriesFolder());
+    }
+
+    /**
+     * @return The downscaled copies of the pictures.
+     */
+    public Thumbnails getThumbnails() throws StorageException {
+        return Thumbnails.forCategoriesFolder(storage.getCategoriesFolder());
+    }
+
+    /**
+     * Delete the blobs of the {@link com.smilemeback.storage.BlobStore} that are no longer linked
+     * from any category or from the trash, and their {@link com.smilemeback.storage.Thumbnails}.
+     * Skipped while a storage operation is left unfinished in the journal.
+     *
+     * @return The number of deleted files.
+     * @throws StorageException
+     */
+    public synchronized int collectGarbage() throws StorageException {
+        if (new Journal(storage.getStorageFolder()).getFile().exists()) {
+            Log.i(TAG, "Not collecting garbage, journal not empty");
+            return 0;
+        }
+        garbage = false;
+        // the images in the trash keep their data until they are purged
+        List<File> folders = new ArrayList<>();
+        folders.add(storage.getCategoriesFolder());
+        folders.addAll(getTrash().getEntries());
+        BlobStore blobs = BlobStore.forCategoriesFolder(storage.getCategoriesFolder());
+        int deleted = blobs.collectGarbage(folders);
+        Log.d(TAG, "Deleted " + deleted + " unreferenced blobs");
+        // the thumbnails go with the blobs they are made of
+        deleted += getThumbnails().collectGarbage(blobs);
+        return deleted;
+    }
+
+    /**
+     * Repair the categories folder and the folders of all categories with
+     * {@link com.smilemeback.storage.Categories#organize()} and
+     * {@link com.smilemeback.storage.Images#organize()}, deleting files that do not belong
+     * to any category or image. Meant to be run explicitly, edits never need it.
+     *
+     * @throws StorageException
+     */
+    public synchronized void repair() throws StorageException {
+        Log.i(TAG, "Repairing library");
+        Categories categories = getCategories();
+        try {
+            categories.organize();
+            for (Category category : categories) {
+                try {
+                    new Images(category).organize();
+                } catch (StorageException e) {
+                    Log.e(TAG, "Could not repair <" + category + ">: " + e.getMessage());
+                }
+            }
+        } finally {
+            garbage = true;
+            images.clear();
+            // the repaired folders may no longer match the history
+            getUndoLog().clear();
+        }
+    }
+
+    /**
+     * Write the categories to a backup archive.
+     *
+     * @param categories The categories to back up.
+     * @param target The archive file to write.
+     * @param progress Notified of the progress, may be null.
+     * @throws StorageException
+     */
+    public synchronized void exportArchive(final Collection<Category> categories, final File target,
+                                           final LibraryArchive.Progress progress) throws StorageException {
+        new LibraryArchive(storage.getCategoriesFolder()).export(categories, target, progress);
+    }
+
+    /**
+     * Replace all categories with the ones in a backup archive and drop the cached models.
+     *
+     * @param archive The archive to restore.
+     * @param progress Notified of the progress, may be null.
+     * @throws StorageException
+     */
+    public synchronized void restoreArchive(final File archive, final LibraryArchive.Progress progress) throws StorageException {
+        try {
+            new LibraryArchive(storage.getCategoriesFolder()).restore(archive, progress);
+        } finally {
+            // the blobs of the replaced categories are no longer linked
+            invalidate();
+            garbage = true;
+            getUndoLog().clear();
+        }
+    }
+
+    /**
+     * Drop all cached models, so that they are loaded from the storage on next use.
+     */
+    public synchronized void invalidate() {
+        categories = null;
+        loadFailures = Collections.emptyList();
+        images.clear();
+    }
+
+    @Override
+    public synchronized void categoriesChanged(Collection<Category> affected) {
+        garbage = true;
+        for (Category category : affected) {
+            images.remove(category.getFolder());
+        }
+    }
+
+    @Override
+    public synchronized void imagesChanged(Category category) {
+        garbage = true;
+        images.remove(category.getFolder());
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Backup of the whole library or of selected categories in a single zip archive.
+ *
+ * The archive starts with a {@link #MARKER} entry holding the format version, followed by
+ * the files of the categories as categories/{folder}/{file} and the order of the categories as
+ * categories/{@value com.smilemeback.storage.OrderRecord#FILENAME}. Linked blobs are written with
+ * their data, so the archive does not depend on the {@link com.smilemeback.storage.BlobStore}.
+ * Images, sounds and thumbnails are already compressed and are stored as they are. Files that
+ * are rebuilt when the library is loaded, like manifests and packs, are left out.
+ *
+ * Files are streamed through a fixed buffer, so memory use does not depend on the size of the library.
+ * A restore is extracted to a staging folder first, and swapped with the categories folder
+ * through the {@link com.smilemeback.storage.Journal} only after the whole archive was read,
+ * so that a failed restore leaves the library untouched.
+ */
+public class LibraryArchive {
+    private static final String TAG = LibraryArchive.class.getCanonicalName();
+    public static final String SUFFIX = ".zip";
+    public static final String MARKER = "smilemeback-archive";
+    public static final int VERSION = 1;
+    private static final String STAGING_FOLDER = "restore";
+    private static final String PREVIOUS_FOLDER = "previous";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final List<String> SKIPPED = Arrays.asList(CategoryManifest.FILENAME, Images.PACK);
+    private static final List<String> STORED_SUFFIXES = Arrays.asList(Image.IMAGE_SUFFIX, Image.AUDIO_SUFFIX);
+
+    /**
+     * Receives the progress of an export or a restore.
+     */
+    public interface Progress {
+        /**
+         * @param done The number of bytes processed so far.
+         * @param total The total number of bytes to process.
+         */
+        void onProgress(long done, long total);
+    }
+
+    protected final File categoriesFolder;
+    protected final BlobStore blobs;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param categoriesFolder The folder containing the categories.
+     */
+    public LibraryArchive(final File categoriesFolder) {
+        this.categoriesFolder = categoriesFolder;
+        this.blobs = BlobStore.forCategoriesFolder(categoriesFolder);
+    }
+
+    /**
+     * Write the categories to an archive. The archive is written to a temporary file first,
+     * so that an interrupted export does not leave a truncated archive behind.
+     *
+     * @param categories The categories to export.
+     * @param target The archive file to write.
+     * @param progress Notified after every written buffer, may be null.
+     * @throws StorageException
+     */
+    public void export(final Collection<Category> categories, final File target, final Progress progress) throws StorageException {
+        List<String> names = new ArrayList<>();
+        List<File> sources = new ArrayList<>();
+        long total = 0;
+        for (Category category : categories) {
+            File[] files = category.getFolder().listFiles();
+            if (files == null) {
+                throw new StorageException("Could not list files of <" + category + ">");
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.isFile() || SKIPPED.contains(file.getName()) || file.getName().endsWith(TEMP_SUFFIX)) {
+                    continue;
+                }
+                File source = blobs.resolve(file, file.length());
+                names.add(Storage.CATEGORIES_FOLDER + "/" + category.getFolder().getName() + "/" + file.getName());
+                sources.add(source);
+                total += source.length();
+            }
+        }
+        // the order of the categories, without it the ids in the folder names would be taken as positions
+        File order = new OrderRecord(categoriesFolder).getFile();
+        if (order.isFile()) {
+            names.add(Storage.CATEGORIES_FOLDER + "/" + OrderRecord.FILENAME);
+            sources.add(order);
+            total += order.length();
+        }
+
+        Log.d(TAG, "Exporting " + sources.size() + " files, " + total + " bytes to <" + target + ">");
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        ZipOutputStream out = null;
+        try {
+            FileUtils.forceMkdir(target.getAbsoluteFile().getParentFile());
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+            out.putNextEntry(new ZipEntry(MARKER));
+            out.write(Integer.toString(VERSION).getBytes(ASCII));
+            out.closeEntry();
+            long done = 0;
+            for (int idx=0 ; idx<sources.size() ; ++idx) {
+                done = write(out, names.get(idx), sources.get(idx), done, total, progress);
+            }
+            out.close();
+            out = null;
+            FileUtils.deleteQuietly(target);
+            FileUtils.moveFile(temp, target);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw new StorageException("Could not export library to <" + target + ">: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private long write(final ZipOutputStream out, final String name, final File source, long done,
+                       final long total, final Progress progress) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(source.lastModified());
+        if (isStored(name)) {
+            // stored entries need their size and checksum before the data
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(source.length());
+            entry.setCompressedSize(source.length());
+            entry.setCrc(crc(source));
+        }
+        out.putNextEntry(entry);
+        InputStream in = new FileInputStream(source);
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                done += count;
+                if (progress != null) {
+                    progress.onProgress(done, total);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        out.closeEntry();
+        return done;
+    }
+
+    private static boolean isStored(final String name) {
+        for (String suffix : STORED_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long crc(final File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Replace the categories with the ones in the archive. The archive is extracted to a staging
+     * folder, which is swapped with the categories folder once the whole archive was read.
+     *
+     * @param archive The archive written by {@link #export(java.util.Collection, java.io.File, Progress)}.
+     * @param progress Notified after every read buffer, may be null.
+     * @throws StorageException In case the archive could not be read, the library is left unchanged.
+     */
+    public void restore(final File archive, final Progress progress) throws StorageException {
+        File staging = getStagingFolder();
+        File staged = new File(staging, Storage.CATEGORIES_FOLDER);
+        long total = archive.length();
+        ZipInputStream in = null;
+        try {
+            FileUtils.deleteQuietly(staging);
+            FileUtils.forceMkdir(staged);
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+            in = new ZipInputStream(counter);
+            checkMarker(in.getNextEntry(), in);
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                File target = stagedFile(staged, entry.getName());
+                FileUtils.forceMkdir(target.getParentFile());
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                        if (progress != null) {
+                            progress.onProgress(counter.getByteCount(), total);
+                        }
+                    }
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+                if (entry.getTime() != -1) {
+                    target.setLastModified(entry.getTime());
+                }
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(staging);
+            throw new StorageException("Could not read archive <" + archive + ">: " + e.getMessage(), e);
+        } catch (StorageException e) {
+            FileUtils.deleteQuietly(staging);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        Log.d(TAG, "Swapping in categories restored from <" + archive + ">");
+        Journal.forCategoriesFolder(categoriesFolder).run(new Journal.Plan("Restore library from <" + archive + ">")
+                .move(categoriesFolder, new File(staging, PREVIOUS_FOLDER))
+                .move(staged, categoriesFolder)
+                .delete(staging));
+    }
+
+    /**
+     * @return The folder the archive is extracted to during a restore.
+     */
+    public File getStagingFolder() {
+        return new File(categoriesFolder.getParentFile(), STAGING_FOLDER);
+    }
+
+    private static void checkMarker(final ZipEntry entry, final InputStream in) throws IOException, StorageException {
+        if (entry == null || !MARKER.equals(entry.getName())) {
+            throw new StorageException("Not a library archive");
+        }
+        int version;
+        try {
+            version = Integer.parseInt(new String(IOUtils.toByteArray(in), ASCII).trim());
+        } catch (NumberFormatException e) {
+            throw new StorageException("Invalid library archive version", e);
+        }
+        if (version > VERSION) {
+            throw new StorageException("Unsupported library archive version " + version);
+        }
+    }
+
+    /**
+     * @return The file an entry is extracted to, which must be a file of a category folder
+     *         or the order of the categories.
+     */
+    private static File stagedFile(final File staged, final String name) throws StorageException {
+        String[] parts = name.split("/", -1);
+        if (parts.length == 2 && Storage.CATEGORIES_FOLDER.equals(parts[0]) && OrderRecord.FILENAME.equals(parts[1])) {
+            return new File(staged, parts[1]);
+        }
+        if (parts.length != 3 || !Storage.CATEGORIES_FOLDER.equals(parts[0])
+                || !isPlainName(parts[1]) || !isPlainName(parts[2])) {
+            throw new StorageException("Invalid archive entry <" + name + ">");
+        }
+        return new File(new File(staged, parts[1]), parts[2]);
+    }
+
+    private static boolean isPlainName(final String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('\\') < 0;
+    }
+}
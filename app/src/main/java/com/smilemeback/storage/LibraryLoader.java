@@ -0,0 +1,262 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+import com.google.common.primitives.Ints;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the {@link com.smilemeback.storage.Categories} and validates every category
+ * folder concurrently on a bounded thread pool.
+ *
+ * Validating a category checks its thumbnail and the pairing of its image and audio files.
+ * It only lists the folder, the files themselves are not touched until the images are loaded.
+ * A category that fails validation does not abort the load. It stays in the loaded
+ * categories, so that the positions of the others are not affected, and is reported
+ * as a {@link Failure}. Folders with invalid names are reported and left out.
+ * So are folders whose id is taken by another folder, and in the positional layout the
+ * categories after a gap in the positions are moved up (see {@link #arrange(List, List)}).
+ */
+public class LibraryLoader {
+    private static final String TAG = LibraryLoader.class.getCanonicalName();
+    public static final int MAX_THREADS = 8;
+
+    /**
+     * Problem found with a single category folder.
+     */
+    public static class Failure {
+        private final File folder;
+        private final Optional<Category> category;
+        private final StorageException exception;
+
+        Failure(final File folder, final Optional<Category> category, final StorageException exception) {
+            this.folder = folder;
+            this.category = category;
+            this.exception = exception;
+        }
+
+        public File getFolder() {
+            return folder;
+        }
+
+        /**
+         * @return The category, absent if the folder name is not a valid category name.
+         */
+        public Optional<Category> getCategory() {
+            return category;
+        }
+
+        public StorageException getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return folder + ": " + exception.getMessage();
+        }
+    }
+
+    /**
+     * The loaded categories and the failures found while validating them.
+     */
+    public static class Result {
+        private final Categories categories;
+        private final List<Failure> failures;
+
+        Result(final Categories categories, final List<Failure> failures) {
+            this.categories = categories;
+            this.failures = Collections.unmodifiableList(failures);
+        }
+
+        public Categories getCategories() {
+            return categories;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+    }
+
+    private final File parent;
+    private final int threads;
+
+    /**
+     * Create a loader using one thread per processor, at most {@link #MAX_THREADS}.
+     */
+    public LibraryLoader(final File parent) {
+        this(parent, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param parent The categories folder.
+     * @param threads The number of threads validating the categories.
+     */
+    public LibraryLoader(final File parent, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread required, not " + threads);
+        }
+        this.parent = parent;
+        this.threads = threads;
+    }
+
+    /**
+     * Load and validate the categories.
+     *
+     * @throws StorageException In case the categories folder itself cannot be read.
+     */
+    public Result load() throws StorageException {
+        parent.mkdirs();
+        List<File> invalid = new ArrayList<>();
+        List<Category> scanned = FolderScanner.scanCategories(parent, false, invalid);
+        List<Failure> failures = new ArrayList<>();
+        for (File folder : invalid) {
+            failures.add(new Failure(folder, Optional.<Category>absent(),
+                    new StorageException("Invalid category folder name <" + folder.getName() + ">")));
+        }
+        List<Category> found = arrange(scanned, failures);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, found.size())), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LibraryLoader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Optional<StorageException>>> results = new ArrayList<>(found.size());
+            for (final Category category : found) {
+                results.add(pool.submit(new Callable<Optional<StorageException>>() {
+                    @Override
+                    public Optional<StorageException> call() {
+                        return validate(category);
+                    }
+                }));
+            }
+            // collect in the order of the categories, so that the failures are reported deterministically
+            for (int idx = 0; idx < found.size(); ++idx) {
+                Optional<StorageException> problem = get(results.get(idx));
+                if (problem.isPresent()) {
+                    Category category = found.get(idx);
+                    Log.e(TAG, "Category <" + category + "> is not valid: " + problem.get().getMessage());
+                    failures.add(new Failure(category.getFolder(), Optional.of(category), problem.get()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return new Result(new Categories(parent, found), failures);
+    }
+
+    /**
+     * Drop the folders whose id is taken by another folder, keeping the first one by name, and in the
+     * positional layout move the categories to consecutive positions. A gap or a duplicate left behind by
+     * an interrupted copy then does not keep the whole library from loading. The dropped folders and the
+     * first category after each gap are reported as failures.
+     *
+     * @param scanned The categories found in the folder.
+     * @param failures Receives the problems found.
+     * @return The categories to load, sorted by their positions.
+     */
+    private List<Category> arrange(final List<Category> scanned, final List<Failure> failures) {
+        List<Category> sorted = new ArrayList<>(scanned);
+        Collections.sort(sorted, new Comparator<Category>() {
+            @Override
+            public int compare(Category lhs, Category rhs) {
+                int byPosition = Ints.compare(lhs.getPosition(), rhs.getPosition());
+                return byPosition != 0 ? byPosition : lhs.getFolder().getName().compareTo(rhs.getFolder().getName());
+            }
+        });
+        boolean positional = !new OrderRecord(parent).exists();
+        List<Category> arranged = new ArrayList<>(sorted.size());
+        Set<Integer> ids = new HashSet<>();
+        int previous = -1;
+        for (Category category : sorted) {
+            if (!ids.add(category.getId())) {
+                Log.e(TAG, "Category <" + category + "> has the id of another category, skipping it");
+                failures.add(new Failure(category.getFolder(), Optional.of(category),
+                        new StorageException("Category id <" + category.getId() + "> is taken by another folder")));
+                continue;
+            }
+            int position = category.getPosition();
+            if (positional && position != arranged.size()) {
+                if (position != previous + 1) {
+                    Log.e(TAG, "Category <" + category + "> follows a gap in the positions, moving it to <" + arranged.size() + ">");
+                    failures.add(new Failure(category.getFolder(), Optional.of(category),
+                            new StorageException("Category position in name <" + position
+                                    + "> does not correspond to position in category list <" + arranged.size() + ">")));
+                }
+                category = category.withPosition(arranged.size());
+            }
+            previous = position;
+            arranged.add(category);
+        }
+        return arranged;
+    }
+
+    /**
+     * Check the thumbnail and the image and audio files of a category.
+     * @return The problem found with the category, if any.
+     */
+    static Optional<StorageException> validate(final Category category) {
+        try {
+            if (!category.getThumbnail().isFile()) {
+                throw new StorageException("Thumbnail <" + category.getThumbnail() + "> not a file or does not exist!");
+            }
+            FolderScanner.CategoryListing listing = FolderScanner.scanCategory(category, false);
+            for (int idx = 0; idx < listing.size(); ++idx) {
+                if (!listing.namesMatch(idx)) {
+                    throw new StorageException("Names for image and audio differ for position <" + listing.getId(idx) + ">: <"
+                            + listing.getImage(idx).getName() + "> <" + listing.getAudio(idx).getName() + ">");
+                }
+            }
+            return Optional.absent();
+        } catch (StorageException e) {
+            return Optional.of(e);
+        } catch (RuntimeException e) {
+            return Optional.of(new StorageException(e.getMessage(), e));
+        }
+    }
+
+    private static <T> T get(final Future<T> future) throws StorageException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while loading categories", e);
+        } catch (ExecutionException e) {
+            throw new StorageException(e.getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary copy of the whole library tree as it was last published: the categories with
+ * their names, positions and thumbnail data, and the images of every category that has been
+ * loaded, with their names, positions, files and the ranges of their media.
+ *
+ * The snapshot is read with a single sequential read when the application starts, so that the
+ * first screen can be drawn before any folder is listed. It is never trusted beyond that: the
+ * categories and images are loaded from the storage in the background as usual, and the differences
+ * are published as changes (see {@link com.smilemeback.storage.StorageService}).
+ * A missing, outdated or corrupt snapshot is simply ignored.
+ */
+public class LibrarySnapshot {
+    private static final String TAG = LibrarySnapshot.class.getCanonicalName();
+    public static final String FILENAME = "library.snap";
+
+    private static final int MAGIC = 0x534d4253;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Categories and images read from a snapshot.
+     */
+    public static class Contents {
+        private final ImmutableList<Category> categories;
+        private final Map<File, ImmutableList<Image>> images;
+
+        Contents(final ImmutableList<Category> categories, final Map<File, ImmutableList<Image>> images) {
+            this.categories = categories;
+            this.images = images;
+        }
+
+        public ImmutableList<Category> getCategories() {
+            return categories;
+        }
+
+        /**
+         * @return The images by the folders of their categories, for the categories whose images were known.
+         */
+        public Map<File, ImmutableList<Image>> getImages() {
+            return images;
+        }
+    }
+
+    protected final File file;
+    protected final File categoriesFolder;
+
+    /**
+     * @param storageFolder The storage folder, that contains the snapshot.
+     * @param categoriesFolder The folder of the categories.
+     */
+    public LibrarySnapshot(final File storageFolder, final File categoriesFolder) {
+        this.file = new File(storageFolder, FILENAME);
+        this.categoriesFolder = categoriesFolder;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the snapshot. No files other than the snapshot are touched.
+     *
+     * @return The categories and images, absent in case the snapshot is missing or corrupt.
+     */
+    public Optional<Contents> load() {
+        if (!file.isFile()) {
+            return Optional.absent();
+        }
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "Unknown snapshot format in <" + file + ">");
+                return Optional.absent();
+            }
+            int numCategories = in.readInt();
+            List<Category> categories = new ArrayList<>(numCategories);
+            Map<File, ImmutableList<Image>> images = new HashMap<>();
+            for (int idx = 0; idx < numCategories; ++idx) {
+                File folder = new File(categoriesFolder, in.readUTF());
+                int id = in.readInt();
+                Category category = new Category(folder, id, idx, new Name(in.readUTF()));
+                category.thumbnailData = new File(in.readUTF());
+                categories.add(category);
+                int numImages = in.readInt();
+                if (numImages >= 0) {
+                    images.put(folder, readImages(in, category, numImages));
+                }
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                Log.d(TAG, "Checksum mismatch in snapshot <" + file + ">");
+                return Optional.absent();
+            }
+            return Optional.of(new Contents(ImmutableList.copyOf(categories), images));
+        } catch (IOException | NameException e) {
+            Log.d(TAG, "Could not read snapshot <" + file + ">: " + e.getMessage());
+            return Optional.absent();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the snapshot to a temporary file that replaces the snapshot, so that a killed
+     * process leaves either the old or the new snapshot behind.
+     *
+     * @param categories The categories in their order, whose thumbnails are resolved.
+     * @param images The resolved images by the folders of their categories, for the categories
+     *               whose images are known.
+     * @throws StorageException
+     */
+    public void save(final List<Category> categories, final Map<File, ? extends List<Image>> images) throws StorageException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(categories.size());
+            for (Category category : categories) {
+                out.writeUTF(category.getFolder().getName());
+                out.writeInt(category.getId());
+                out.writeUTF(category.getName().toString());
+                out.writeUTF(category.getThumbnailData().getPath());
+                List<Image> known = images.get(category.getFolder());
+                if (known == null) {
+                    out.writeInt(-1);
+                } else {
+                    writeImages(out, known);
+                }
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                FileUtils.deleteQuietly(file);
+                FileUtils.moveFile(temp, file);
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Remove the snapshot, for example when the library was replaced.
+     */
+    public void delete() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    private static void writeImages(final DataOutputStream out, final List<Image> images) throws IOException {
+        out.writeInt(images.size());
+        for (Image image : images) {
+            out.writeInt(image.getId());
+            out.writeUTF(image.getName().toString());
+            out.writeUTF(image.getImage().getName());
+            out.writeUTF(image.getAudio().getName());
+            out.writeLong(image.imageSize);
+            out.writeLong(image.imageModified);
+            out.writeLong(image.audioSize);
+            out.writeLong(image.audioModified);
+            out.writeUTF(image.getImageData().getPath());
+            out.writeUTF(image.getAudioData().getPath());
+            writeRange(out, image.imageRange);
+            writeRange(out, image.audioRange);
+        }
+    }
+
+    private static ImmutableList<Image> readImages(final DataInputStream in, final Category category, final int count)
+            throws IOException, NameException {
+        ImmutableList.Builder<Image> images = ImmutableList.builder();
+        File folder = category.getFolder();
+        for (int idx = 0; idx < count; ++idx) {
+            int id = in.readInt();
+            Name name = new Name(in.readUTF());
+            File image = new File(folder, in.readUTF());
+            File audio = new File(folder, in.readUTF());
+            long imageSize = in.readLong();
+            long imageModified = in.readLong();
+            long audioSize = in.readLong();
+            long audioModified = in.readLong();
+            File imageData = new File(in.readUTF());
+            File audioData = new File(in.readUTF());
+            MediaRange imageRange = readRange(in);
+            MediaRange audioRange = readRange(in);
+            images.add(new Image(category, id, idx, name, image, audio, imageSize, imageModified, audioSize, audioModified,
+                    imageData, audioData, imageRange, audioRange));
+        }
+        return images.build();
+    }
+
+    private static void writeRange(final DataOutputStream out, final MediaRange range) throws IOException {
+        out.writeBoolean(range != null);
+        if (range != null) {
+            out.writeUTF(range.getFile().getPath());
+            out.writeLong(range.getOffset());
+            out.writeLong(range.getLength());
+            out.writeInt(range.getGeneration());
+        }
+    }
+
+    private static MediaRange readRange(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new MediaRange(new File(in.readUTF()), in.readLong(), in.readLong(), in.readInt());
+    }
+}
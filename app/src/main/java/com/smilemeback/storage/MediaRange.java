@@ -0,0 +1,185 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import com.google.common.base.Objects;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Range of a file holding image or audio data: either a whole file, or an entry
+ * of a {@link com.smilemeback.storage.PackFile}.
+ *
+ * Ranges in a pack are only valid for the generation of the pack they were taken from,
+ * which is checked whenever the range is opened, so that a compacted pack is never
+ * read at stale offsets.
+ */
+public class MediaRange {
+    protected final File file;
+    protected final long offset;
+    protected final long length;
+    protected final int generation;
+
+    public MediaRange(final File file, final long offset, final long length, final int generation) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.generation = generation;
+    }
+
+    /**
+     * @return The range covering the whole file.
+     */
+    public static MediaRange of(final File file) {
+        return new MediaRange(file, 0, -1, 0);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The length of the range, or -1 if the range covers the whole file.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The generation of the pack the range was taken from, 0 for whole files.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public boolean isWholeFile() {
+        return length < 0;
+    }
+
+    /**
+     * Open the file of the range, checking that a pack still has the generation of the range.
+     * The generation is checked on the opened file, so a pack replaced afterwards does not
+     * affect the returned stream. The caller reads from {@link #getOffset()} for {@link #getLength()}
+     * bytes, for example by passing the file descriptor to a media player.
+     *
+     * @throws IOException In case the file can not be opened or the pack was compacted since.
+     */
+    public FileInputStream openFile() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        if (!isWholeFile()) {
+            try {
+                PackFile.checkGeneration(in.getChannel(), generation);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(in);
+                throw e;
+            }
+        }
+        return in;
+    }
+
+    /**
+     * @return Stream of the data in the range. Ranges in a pack are read through a memory mapping.
+     * @throws IOException In case the file can not be opened or the pack was compacted since.
+     */
+    public InputStream openStream() throws IOException {
+        if (isWholeFile()) {
+            return new FileInputStream(file);
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            PackFile.checkGeneration(in, generation);
+            // the mapping stays valid after the file is closed
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            return new BufferInputStream(buffer);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MediaRange)) {
+            return false;
+        }
+        MediaRange other = (MediaRange) o;
+        return offset == other.offset && length == other.length && generation == other.generation
+                && file.equals(other.file);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(file, offset, length, generation);
+    }
+
+    @Override
+    public String toString() {
+        return isWholeFile() ? file.toString() : file + "@" + offset + "+" + length;
+    }
+
+    /**
+     * Input stream reading a byte buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long count) {
+            int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -16,17 +16,11 @@
  */
 package com.smilemeback.storage;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Category and Image Name class.
  */
 public class Name {
     public static final String ILLEGAL_CHARACTERS = "|\\?*<\":>+[]/'_.";
-    public static final Pattern VALID_REGEX = Pattern.compile("[^" + Pattern.quote(ILLEGAL_CHARACTERS) + "]+");
     protected final String name;
 
     /**
@@ -36,8 +30,7 @@ public class Name {
      * @param name The name as a {@link java.lang.String} .
      */
     public Name(String name) throws NameException {
-        Matcher m = VALID_REGEX.matcher(name);
-        if (!m.matches()) {
+        if (!FileNameCodec.isValidName(name, 0, name.length())) {
             throw new NameException("Invalid characters in name <" + name + ">");
         }
         this.name = name;
@@ -47,6 +40,18 @@ public class Name {
         this.name = name.toString();
     }
 
+    private Name(String name, boolean valid) {
+        this.name = name;
+    }
+
+    /**
+     * @param name A name already checked by the {@link com.smilemeback.storage.FileNameCodec}.
+     * @return The name without validating it again.
+     */
+    static Name valid(String name) {
+        return new Name(name, true);
+    }
+
     @Override
     public String toString() {
         return name;
@@ -54,6 +59,11 @@ public class Name {
 
     @Override
     public boolean equals(Object o) {
-        return EqualsBuilder.reflectionEquals(this, o);
+        return o instanceof Name && name.equals(((Name)o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
     }
 }
@@ -0,0 +1,243 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Function;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Small record that stores the order of items in a folder.
+ *
+ * Folders have two layouts:
+ * 1. Positional layout, where the filename prefix of each item is its position
+ *    and reordering has to rename files.
+ * 2. Ordered layout, where the filename prefix is a stable id and the order of the ids
+ *    is stored in this record. Reordering, inserting and deleting only rewrite the record.
+ *
+ * A folder is in ordered layout when it contains the record file.
+ */
+public class OrderRecord {
+    private static final String TAG = OrderRecord.class.getCanonicalName();
+    public static final String FILENAME = "_order.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x534d424f;
+    private static final int VERSION = 1;
+
+    protected final File file;
+    protected int[] ids = new int[0];
+    protected int nextId = 0;
+    // state of the file on disk, null when unknown
+    private int[] savedIds = null;
+    private int savedNextId = -1;
+
+    public OrderRecord(final File folder) {
+        this.file = new File(folder, FILENAME);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return True if the folder is in ordered layout.
+     */
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Load the record from the folder.
+     * A missing or corrupt record leaves this instance empty.
+     *
+     * @return True if the record was loaded.
+     */
+    public boolean load() {
+        ids = new int[0];
+        nextId = 0;
+        savedIds = null;
+        savedNextId = -1;
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "Unknown order record format in <" + file + ">");
+                return false;
+            }
+            int next = in.readInt();
+            int[] loaded = new int[in.readInt()];
+            for (int idx = 0; idx < loaded.length; ++idx) {
+                loaded[idx] = in.readInt();
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                Log.d(TAG, "Checksum mismatch in order record <" + file + ">");
+                return false;
+            }
+            ids = loaded;
+            nextId = next;
+            savedIds = loaded;
+            savedNextId = next;
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Could not read order record <" + file + ">: " + e.getMessage());
+            return false;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the record to a temporary file that replaces the record, so that a killed
+     * process leaves either the old or the new order behind.
+     * @throws StorageException
+     */
+    public void save() throws StorageException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nextId);
+            out.writeInt(ids.length);
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                FileUtils.deleteQuietly(file);
+                FileUtils.moveFile(temp, file);
+            }
+            savedIds = ids;
+            savedNextId = nextId;
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Remove the record, which turns the folder back to positional layout.
+     */
+    public void delete() {
+        FileUtils.deleteQuietly(file);
+        savedIds = null;
+        savedNextId = -1;
+    }
+
+    /**
+     * Forget all ids, for example after all items were deleted.
+     */
+    public void clear() {
+        ids = new int[0];
+        nextId = 0;
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return A new id, that is not used by any item in the folder.
+     */
+    public int allocateId() {
+        return nextId++;
+    }
+
+    /**
+     * Store the order of the given items.
+     * @param items The items in their new order.
+     * @param idOf Function returning the id of an item.
+     * @return True if the record changed and has to be saved.
+     */
+    public <T> boolean setOrder(final List<T> items, final Function<T, Integer> idOf) {
+        int[] order = new int[items.size()];
+        int next = nextId;
+        for (int idx = 0; idx < order.length; ++idx) {
+            order[idx] = idOf.apply(items.get(idx));
+            next = Math.max(next, order[idx] + 1);
+        }
+        boolean changed = next != savedNextId || !Arrays.equals(order, savedIds);
+        ids = order;
+        nextId = next;
+        return changed;
+    }
+
+    /**
+     * Arrange items according to the record.
+     * Items missing from the record (for example copied into the folder from outside)
+     * are appended in the order of their ids. Ids in the record without items are dropped.
+     *
+     * @param items The items found in the folder.
+     * @param idOf Function returning the id of an item.
+     * @return The items in their stored order.
+     */
+    public <T> List<T> arrange(final Collection<T> items, final Function<T, Integer> idOf) {
+        Map<Integer, T> byId = new LinkedHashMap<>();
+        List<Integer> unknown = new ArrayList<>();
+        for (T item : items) {
+            int id = idOf.apply(item);
+            byId.put(id, item);
+            nextId = Math.max(nextId, id + 1);
+        }
+        List<T> arranged = new ArrayList<>(byId.size());
+        for (int id : ids) {
+            T item = byId.remove(id);
+            if (item != null) {
+                arranged.add(item);
+            }
+        }
+        unknown.addAll(byId.keySet());
+        Collections.sort(unknown);
+        for (int id : unknown) {
+            arranged.add(byId.get(id));
+        }
+        return arranged;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file container of data entries, for example the images and audio of a category.
+ *
+ * The file consists of the data of the entries, followed by the index of the entries and
+ * a fixed-size footer pointing to the index:
+ * [data...][index][index offset, index checksum, generation, magic]
+ *
+ * New entries are appended after the existing data, overwriting the old index, after which
+ * the index is written again. Removing an entry only drops it from the index, its data is left
+ * as dead space until the pack is compacted by {@link #compact()}. Entries are never moved
+ * within a generation of the pack, only compaction starts a new generation.
+ *
+ * A pack whose footer or index is damaged, for example because the process was killed while
+ * writing it, is treated as empty.
+ */
+public class PackFile {
+    private static final String TAG = PackFile.class.getCanonicalName();
+    private static final int MAGIC = 0x534d4250;
+    private static final int FOOTER_SIZE = 20;
+    private static final long MIN_DEAD_BYTES = 256 * 1024;
+    private static final Random GENERATIONS = new Random();
+
+    protected final File file;
+    private final Map<String, long[]> index = new LinkedHashMap<>();
+    private long dataEnd = 0;
+    private long liveBytes = 0;
+    private int generation;
+
+    /**
+     * Open a pack, reading its index. The file does not have to exist.
+     */
+    public PackFile(final File file) {
+        this.file = file;
+        this.generation = newGeneration();
+        if (file.isFile()) {
+            try {
+                readIndex();
+            } catch (IOException e) {
+                Log.e(TAG, "Ignoring damaged pack <" + file + ">: " + e.getMessage());
+                index.clear();
+                dataEnd = 0;
+                liveBytes = 0;
+            }
+        }
+    }
+
+    private static int newGeneration() {
+        int generation;
+        do {
+            generation = GENERATIONS.nextInt();
+        } while (generation == 0);
+        return generation;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return The range of the entry in the current generation of the pack.
+     */
+    public Optional<MediaRange> get(final String key) {
+        long[] entry = index.get(key);
+        if (entry == null) {
+            return Optional.absent();
+        }
+        return Optional.of(new MediaRange(file, entry[0], entry[1], generation));
+    }
+
+    /**
+     * @return The number of bytes taken by removed entries.
+     */
+    public long getDeadBytes() {
+        return dataEnd - liveBytes;
+    }
+
+    /**
+     * @return True if more than half of the data is dead space, and it is worth rewriting the pack.
+     */
+    public boolean needsCompaction() {
+        return getDeadBytes() > liveBytes && getDeadBytes() > MIN_DEAD_BYTES;
+    }
+
+    /**
+     * Append entries to the pack and write the index once.
+     *
+     * @param sources The files to append by their keys. Keys already in the pack are replaced.
+     */
+    public void append(final Map<String, File> sources) throws StorageException {
+        if (sources.isEmpty()) {
+            return;
+        }
+        RandomAccessFile out = null;
+        try {
+            FileUtils.forceMkdir(file.getParentFile());
+            out = new RandomAccessFile(file, "rw");
+            FileChannel channel = out.getChannel();
+            long position = dataEnd;
+            for (Map.Entry<String, File> source : sources.entrySet()) {
+                FileInputStream in = new FileInputStream(source.getValue());
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    long length = inChannel.size();
+                    long copied = 0;
+                    while (copied < length) {
+                        copied += channel.transferFrom(inChannel, position + copied, length - copied);
+                    }
+                    put(source.getKey(), position, length);
+                    position += length;
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+            dataEnd = position;
+            writeIndex(out);
+        } catch (IOException e) {
+            throw new StorageException("Could not append to pack <" + file + ">: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void put(final String key, final long offset, final long length) {
+        long[] previous = index.put(key, new long[] {offset, length});
+        if (previous != null) {
+            liveBytes -= previous[1];
+        }
+        liveBytes += length;
+    }
+
+    /**
+     * Drop entries from the index, leaving their data as dead space.
+     */
+    public void remove(final Collection<String> keys) throws StorageException {
+        boolean changed = false;
+        for (String key : keys) {
+            long[] entry = index.remove(key);
+            if (entry != null) {
+                liveBytes -= entry[1];
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            writeIndex(out);
+        } catch (IOException e) {
+            throw new StorageException("Could not write pack <" + file + ">: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Rewrite the pack without dead space, starting a new generation.
+     * Ranges taken from the previous generation can no longer be opened.
+     */
+    public void compact() throws StorageException {
+        Log.d(TAG, "Compacting pack <" + file + ">, " + getDeadBytes() + " dead bytes");
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        Map<String, long[]> entries = new LinkedHashMap<>(index);
+        try {
+            in = new RandomAccessFile(file, "r");
+            out = new RandomAccessFile(temp, "rw");
+            out.setLength(0);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            index.clear();
+            liveBytes = 0;
+            long position = 0;
+            for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                long offset = entry.getValue()[0];
+                long length = entry.getValue()[1];
+                long copied = 0;
+                while (copied < length) {
+                    copied += inChannel.transferTo(offset + copied, length - copied, outChannel);
+                }
+                put(entry.getKey(), position, length);
+                position += length;
+            }
+            dataEnd = position;
+            generation = newGeneration();
+            writeIndex(out);
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(temp, file);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            // the original pack is left as it was, or is damaged and read as empty the next time
+            index.clear();
+            index.putAll(entries);
+            throw new StorageException("Could not compact pack <" + file + ">: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Write the index and footer after the data and sync the file.
+     */
+    private void writeIndex(final RandomAccessFile out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(index.size());
+        for (Map.Entry<String, long[]> entry : index.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeLong(entry.getValue()[0]);
+            data.writeLong(entry.getValue()[1]);
+        }
+        data.flush();
+        byte[] indexBytes = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(indexBytes);
+
+        out.seek(dataEnd);
+        out.write(indexBytes);
+        out.writeLong(dataEnd);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(generation);
+        out.writeInt(MAGIC);
+        out.setLength(out.getFilePointer());
+        out.getFD().sync();
+    }
+
+    private void readIndex() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            if (length < FOOTER_SIZE) {
+                throw new IOException("Pack too short");
+            }
+            in.seek(length - FOOTER_SIZE);
+            long indexOffset = in.readLong();
+            int checksum = in.readInt();
+            int packGeneration = in.readInt();
+            if (in.readInt() != MAGIC || indexOffset < 0 || indexOffset > length - FOOTER_SIZE) {
+                throw new IOException("Invalid pack footer");
+            }
+            byte[] indexBytes = new byte[(int) (length - FOOTER_SIZE - indexOffset)];
+            in.seek(indexOffset);
+            in.readFully(indexBytes);
+            CRC32 crc = new CRC32();
+            crc.update(indexBytes);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Invalid pack index checksum");
+            }
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            int count = data.readInt();
+            for (int idx = 0; idx < count; ++idx) {
+                String key = data.readUTF();
+                long offset = data.readLong();
+                long entryLength = data.readLong();
+                if (offset < 0 || entryLength < 0 || offset + entryLength > indexOffset) {
+                    throw new IOException("Invalid pack entry <" + key + ">");
+                }
+                put(key, offset, entryLength);
+            }
+            dataEnd = indexOffset;
+            generation = packGeneration;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Check that the pack file still has the given generation.
+     * @throws IOException In case the pack was compacted or is damaged.
+     */
+    static void checkGeneration(final RandomAccessFile in, final int generation) throws IOException {
+        checkGeneration(in.getChannel(), generation);
+    }
+
+    /**
+     * Check the generation of an opened pack through positional reads, which leave
+     * the position of the channel and its stream unchanged.
+     */
+    static void checkGeneration(final FileChannel channel, final int generation) throws IOException {
+        long length = channel.size();
+        if (length < FOOTER_SIZE) {
+            throw new IOException("Pack too short");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(8);
+        while (footer.hasRemaining()) {
+            if (channel.read(footer, length - 8 + footer.position()) < 0) {
+                throw new IOException("Pack too short");
+            }
+        }
+        footer.flip();
+        int packGeneration = footer.getInt();
+        if (footer.getInt() != MAGIC || packGeneration != generation) {
+            throw new IOException("Pack was rewritten since the range was taken");
+        }
+    }
+}
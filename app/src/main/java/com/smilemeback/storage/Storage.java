@@ -30,6 +30,7 @@ import java.io.IOException;
 public class Storage {
     public static final String STORAGE_FOLDER = "SmileMeBack";
     public static final String CATEGORIES_FOLDER = "categories";
+    public static final String BACKUPS_FOLDER = "backups";
     public static final String TEMPORARY_IMAGE = "temporary_image" + Image.IMAGE_SUFFIX;
     public static final String TEMPORARY_AUDIO = "temporary_audio" + Image.AUDIO_SUFFIX;
 
@@ -38,6 +39,12 @@ public class Storage {
      */
     protected Context context = null;
 
+    /**
+     * Folders that were already created, so that they are not checked again on every use.
+     */
+    private File storageFolder = null;
+    private File categoriesFolder = null;
+
     /**
      * Initialize a new {@link Storage} using the given application context.
      * @param context
@@ -47,31 +54,37 @@ public class Storage {
     }
 
     /**
-     * Get the storage folder.
+     * Get the storage folder, which is created on first use.
      * @return The filesystem storage folder {@link java.io.File}.
      */
-    public File getStorageFolder() throws StorageException {
-        try {
-            File folder = new File(context.getExternalFilesDir(null), STORAGE_FOLDER);
-            FileUtils.forceMkdir(folder);
-            return folder;
-        } catch (IOException e) {
-            throw new StorageException(e.getMessage(), e);
+    public synchronized File getStorageFolder() throws StorageException {
+        if (storageFolder == null) {
+            try {
+                File folder = new File(context.getExternalFilesDir(null), STORAGE_FOLDER);
+                FileUtils.forceMkdir(folder);
+                storageFolder = folder;
+            } catch (IOException e) {
+                throw new StorageException(e.getMessage(), e);
+            }
         }
+        return storageFolder;
     }
 
     /**
      * Return the categories folder.
      * @return The filesystem categories storage file.
      */
-    public File getCategoriesFolder() throws StorageException {
-        try {
-            File folder = new File(getStorageFolder(), CATEGORIES_FOLDER);
-            FileUtils.forceMkdir(folder);
-            return folder;
-        } catch (IOException e) {
-            throw new StorageException(e.getMessage(), e);
+    public synchronized File getCategoriesFolder() throws StorageException {
+        if (categoriesFolder == null) {
+            try {
+                File folder = new File(getStorageFolder(), CATEGORIES_FOLDER);
+                FileUtils.forceMkdir(folder);
+                categoriesFolder = folder;
+            } catch (IOException e) {
+                throw new StorageException(e.getMessage(), e);
+            }
         }
+        return categoriesFolder;
     }
 
     /**
@@ -86,6 +99,13 @@ public class Storage {
         return new Categories(getCategoriesFolder());
     }
 
+    /**
+     * @return The folder containing the backup archives of the library, which may not exist.
+     */
+    public File getBackupsFolder() throws StorageException {
+        return new File(getStorageFolder(), BACKUPS_FOLDER);
+    }
+
     /**
      * @return The file pointing to the path that should be used for temporary images.
      */
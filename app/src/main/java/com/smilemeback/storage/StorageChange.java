@@ -0,0 +1,296 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fine-grained change between two snapshots of the categories or of the images of a category,
+ * published by the {@link com.smilemeback.storage.StorageService} after storage work and after
+ * changes made outside of the application.
+ *
+ * The changes of a snapshot are applied in the order they are listed (see {@link #apply(java.util.List, java.util.List)}):
+ * first the removed items, then the inserted and moved items, positions referring to the list as it is
+ * when the change is applied. Renamed items and items with updated media follow with their final positions.
+ *
+ * @param <T> The type of the changed items.
+ */
+public class StorageChange<T> {
+
+    public enum Kind {
+        INSERTED,
+        REMOVED,
+        MOVED,
+        RENAMED,
+        MEDIA_UPDATED
+    }
+
+    private static final Function<Category, Object> CATEGORY_NAME = new Function<Category, Object>() {
+        @Override
+        public Object apply(Category category) {
+            return category.getName();
+        }
+    };
+
+    private static final Function<Category, Object> CATEGORY_MEDIA = new Function<Category, Object>() {
+        @Override
+        public Object apply(Category category) {
+            File thumbnail = category.getThumbnailData();
+            return thumbnail.getPath() + "@" + thumbnail.lastModified();
+        }
+    };
+
+    private static final Function<Image, Object> IMAGE_NAME = new Function<Image, Object>() {
+        @Override
+        public Object apply(Image image) {
+            return image.getName();
+        }
+    };
+
+    private static final Function<Image, Object> IMAGE_MEDIA = new Function<Image, Object>() {
+        @Override
+        public Object apply(Image image) {
+            MediaRange range = image.getImageRange();
+            return range + "#" + range.getGeneration() + "@" + image.getImageLastModified()
+                    + "|" + image.getAudioRange() + "@" + image.getAudioLastModified();
+        }
+    };
+
+    protected final Kind kind;
+    protected final int position;
+    protected final int toPosition;
+    protected final T item;
+
+    StorageChange(final Kind kind, final int position, final int toPosition, final T item) {
+        this.kind = kind;
+        this.position = position;
+        this.toPosition = toPosition;
+        this.item = item;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The position of the item, the position it is moved from for {@link Kind#MOVED}.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The position the item is moved to for {@link Kind#MOVED}, -1 otherwise.
+     */
+    public int getToPosition() {
+        return toPosition;
+    }
+
+    /**
+     * @return The changed item, as it was before the change for {@link Kind#REMOVED}
+     *         and as it is after the change otherwise.
+     */
+    public T getItem() {
+        return item;
+    }
+
+    /**
+     * @return True if items were inserted, removed or moved, as opposed to only updated in place.
+     */
+    public boolean isStructural() {
+        return kind == Kind.INSERTED || kind == Kind.REMOVED || kind == Kind.MOVED;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + position + (kind == Kind.MOVED ? "->" + toPosition : "") + " " + item;
+    }
+
+    /**
+     * @return The changes between two snapshots of the categories.
+     */
+    public static List<StorageChange<Category>> ofCategories(final List<Category> before, final List<Category> after) {
+        return diff(before, after, CATEGORY_NAME, CATEGORY_MEDIA);
+    }
+
+    /**
+     * @return The changes between two snapshots of the images of a category.
+     */
+    public static List<StorageChange<Image>> ofImages(final List<Image> before, final List<Image> after) {
+        return diff(before, after, IMAGE_NAME, IMAGE_MEDIA);
+    }
+
+    /**
+     * Compute the changes that turn one list into the other. Items are matched by equality, which is
+     * their stable id. Items that keep their relative order (the longest increasing subsequence of
+     * their new positions) are never moved, so that moving a single item results in a single move.
+     *
+     * @param before The items before the change.
+     * @param after The items after the change.
+     * @param name The name of an item, a different name results in {@link Kind#RENAMED}.
+     * @param media The key of the media of an item, a different key results in {@link Kind#MEDIA_UPDATED}.
+     * @return The changes in the order they are applied.
+     */
+    static <T> List<StorageChange<T>> diff(final List<T> before, final List<T> after,
+                                           final Function<T, Object> name, final Function<T, Object> media) {
+        if (sameItems(before, after)) {
+            return Collections.emptyList();
+        }
+        List<StorageChange<T>> changes = new ArrayList<>();
+        Map<T, Integer> newPositions = new HashMap<>(after.size() * 2);
+        for (int idx = 0; idx < after.size(); ++idx) {
+            newPositions.put(after.get(idx), idx);
+        }
+
+        // removals from the back, so that the positions of the following removals stay valid
+        List<T> current = new ArrayList<>(before);
+        for (int idx = current.size() - 1; idx >= 0; --idx) {
+            if (!newPositions.containsKey(current.get(idx))) {
+                changes.add(new StorageChange<>(Kind.REMOVED, idx, -1, current.remove(idx)));
+            }
+        }
+
+        // the kept items that are already in the right order stay in place
+        int[] kept = new int[current.size()];
+        for (int idx = 0; idx < kept.length; ++idx) {
+            kept[idx] = newPositions.get(current.get(idx));
+        }
+        Set<T> stable = new HashSet<>();
+        for (int idx : longestIncreasing(kept)) {
+            stable.add(current.get(idx));
+        }
+
+        // place every other item right after its final predecessor, in the order of the final positions
+        for (int idx = 0; idx < after.size(); ++idx) {
+            T item = after.get(idx);
+            if (stable.contains(item)) {
+                continue;
+            }
+            int from = current.indexOf(item);
+            if (from >= 0) {
+                current.remove(from);
+            }
+            int to = idx == 0 ? 0 : current.indexOf(after.get(idx - 1)) + 1;
+            current.add(to, item);
+            if (from < 0) {
+                changes.add(new StorageChange<>(Kind.INSERTED, to, -1, item));
+            } else if (from != to) {
+                changes.add(new StorageChange<>(Kind.MOVED, from, to, item));
+            }
+        }
+
+        Map<T, T> previous = new HashMap<>(before.size() * 2);
+        for (T item : before) {
+            previous.put(item, item);
+        }
+        for (int idx = 0; idx < after.size(); ++idx) {
+            T item = after.get(idx);
+            T old = previous.get(item);
+            if (old == null || old == item) {
+                continue;
+            }
+            if (!Objects.equal(name.apply(old), name.apply(item))) {
+                changes.add(new StorageChange<>(Kind.RENAMED, idx, -1, item));
+            }
+            if (!Objects.equal(media.apply(old), media.apply(item))) {
+                changes.add(new StorageChange<>(Kind.MEDIA_UPDATED, idx, -1, item));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Apply changes to a list holding the items before the changes.
+     */
+    public static <T> void apply(final List<T> items, final List<StorageChange<T>> changes) {
+        for (StorageChange<T> change : changes) {
+            switch (change.kind) {
+                case INSERTED:
+                    items.add(change.position, change.item);
+                    break;
+                case REMOVED:
+                    items.remove(change.position);
+                    break;
+                case MOVED:
+                    items.remove(change.position);
+                    items.add(change.toPosition, change.item);
+                    break;
+                default:
+                    items.set(change.position, change.item);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return True if both lists hold the very same instances, so nothing can have changed.
+     */
+    public static boolean sameItems(final List<?> lhs, final List<?> rhs) {
+        if (lhs.size() != rhs.size()) {
+            return false;
+        }
+        for (int idx = 0; idx < lhs.size(); ++idx) {
+            if (lhs.get(idx) != rhs.get(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The indices of a longest strictly increasing subsequence of the values, in ascending order.
+     */
+    private static List<Integer> longestIncreasing(final int[] values) {
+        // tails[len] is the index of the smallest value ending an increasing subsequence of length len + 1
+        int[] tails = new int[values.length];
+        int[] predecessors = new int[values.length];
+        int length = 0;
+        for (int idx = 0; idx < values.length; ++idx) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[idx]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            predecessors[idx] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = idx;
+            if (low == length) {
+                ++length;
+            }
+        }
+        List<Integer> indices = new ArrayList<>(length);
+        for (int idx = length > 0 ? tails[length - 1] : -1; idx >= 0; idx = predecessors[idx]) {
+            indices.add(idx);
+        }
+        Collections.reverse(indices);
+        return indices;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import java.util.Collection;
+
+/**
+ * Listener that gets notified when storage mutations invalidate
+ * previously loaded {@link com.smilemeback.storage.Category} or
+ * {@link com.smilemeback.storage.Images} instances.
+ */
+public interface StorageListener {
+
+    /**
+     * Called after categories were deleted or their folders were renamed.
+     * @param affected The categories (as they were before the change) that are no longer valid.
+     */
+    void categoriesChanged(Collection<Category> affected);
+
+    /**
+     * Called after the images of a category were modified from outside of its own
+     * {@link com.smilemeback.storage.Images} instance, for example when images are moved
+     * into the category.
+     * @param category The modified category.
+     */
+    void imagesChanged(Category category);
+}
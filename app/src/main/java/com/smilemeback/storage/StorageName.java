@@ -0,0 +1,69 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+/**
+ * File name of a {@link com.smilemeback.storage.Category} folder or an
+ * {@link com.smilemeback.storage.Image} file, parsed into its parts:
+ * {id}_{name}{optional_suffix}
+ *
+ * See {@link com.smilemeback.storage.StorageNameUtils#parse(String)}.
+ */
+public class StorageName {
+    protected final String fileName;
+    protected final int id;
+    protected final Name name;
+    protected final String suffix;
+
+    StorageName(final String fileName, final int id, final Name name, final String suffix) {
+        this.fileName = fileName;
+        this.id = id;
+        this.name = name;
+        this.suffix = suffix;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Name getName() {
+        return name;
+    }
+
+    /**
+     * @return The suffix including the dot, or an empty string if the name has no suffix.
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * @return True if both names have the same name part, regardless of id and suffix.
+     */
+    public boolean sameName(StorageName other) {
+        return name.toString().equals(other.name.toString());
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+}
@@ -23,6 +23,13 @@ import com.google.common.base.Optional;
  * {@link com.smilemeback.storage.Category} names.
  */
 public class StorageNameUtils {
+    // the storage is used from the writer thread and the threads of the library loader
+    private static final ThreadLocal<FileNameCodec> CODEC = new ThreadLocal<FileNameCodec>() {
+        @Override
+        protected FileNameCodec initialValue() {
+            return new FileNameCodec();
+        }
+    };
 
     /**
      * Function to construct a filename for image audio or data.
@@ -37,7 +44,7 @@ public class StorageNameUtils {
         if (!suffix.equals(Image.IMAGE_SUFFIX) && !suffix.equals(Image.AUDIO_SUFFIX)) {
             throw new IllegalArgumentException("Suffix must be either " + Image.IMAGE_SUFFIX + " or " + Image.AUDIO_SUFFIX + " not " + suffix);
         }
-        return String.format("%d_%s%s", position, name.toString(), suffix);
+        return CODEC.get().encode(position, name, suffix);
     }
 
     /**
@@ -46,7 +53,7 @@ public class StorageNameUtils {
      * @return Constructed filename for the position and category name.
      */
     public static String constructCategoryFileName(final int position, final Name name) {
-        return String.format("%d_%s", position, name.toString());
+        return CODEC.get().encode(position, name, "");
     }
 
     /**
@@ -100,4 +107,21 @@ public class StorageNameUtils {
         }
         return Optional.fromNullable(fileName.substring(idx));
     }
+
+    /**
+     * Parse the id, name and suffix of a filename at once:
+     * {id}_{name}{optional_suffix}
+     * See {@link com.smilemeback.storage.FileNameCodec} for parsing many filenames.
+     *
+     * @param fileName The filename to parse.
+     * @return The parsed name, absent if the filename does not start with an id
+     *         or the name is not a valid {@link com.smilemeback.storage.Name}.
+     */
+    public static Optional<StorageName> parse(String fileName) {
+        FileNameCodec codec = CODEC.get();
+        if (!codec.decode(fileName)) {
+            return Optional.absent();
+        }
+        return Optional.of(codec.toStorageName());
+    }
 }
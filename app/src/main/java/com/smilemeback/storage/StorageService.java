@@ -0,0 +1,678 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs all storage work of the {@link com.smilemeback.storage.Library} on a single
+ * background writer thread.
+ *
+ * Tasks are executed one at a time in the order they were submitted, so the mutable
+ * {@link com.smilemeback.storage.Categories} and {@link com.smilemeback.storage.Images}
+ * are only ever touched by the writer thread. After every task immutable snapshots of
+ * the categories and of the loaded images are published, which readers can get at any
+ * time without blocking on the writer. Callbacks and changes are delivered on the
+ * callback executor, which is the main thread by default.
+ */
+public class StorageService {
+    private static final String TAG = StorageService.class.getCanonicalName();
+
+    /**
+     * Storage work run on the writer thread.
+     */
+    public interface Task<T> {
+        T run(Library library) throws StorageException;
+    }
+
+    /**
+     * Receives the result of a {@link Task} on the callback executor.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+        void onFailure(StorageException e);
+    }
+
+    /**
+     * Receives the changes of the published snapshots on the callback executor.
+     */
+    public interface ChangeListener {
+        /**
+         * @param categories The published categories.
+         * @param changes The changes from the previously published categories.
+         */
+        void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes);
+
+        /**
+         * @param category The category of the images.
+         * @param images The published images of the category.
+         * @param changes The changes from the previously published images of the category.
+         */
+        void imagesChanged(Category category, ImmutableList<Image> images, List<StorageChange<Image>> changes);
+    }
+
+    private final Library library;
+    private final ExecutorService writer;
+    private final Executor callbackExecutor;
+    private final ExecutorService thumbnailer;
+    private volatile ImmutableList<Category> categories = ImmutableList.of();
+    private final ConcurrentMap<File, ImmutableList<Image>> images = new ConcurrentHashMap<>();
+    private volatile boolean packing = false;
+    private volatile long trashRetention = -1;
+    private volatile Thumbnails.Scaler scaler = null;
+    private volatile long thumbnailsSize = -1;
+    private final Set<File> thumbnailsQueued = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile LibrarySnapshot snapshot = null;
+    // restored images of categories that have not been loaded yet
+    private final Set<File> unverified = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    // last published images of categories that are no longer loaded, kept for the stored snapshot
+    private final ConcurrentMap<File, ImmutableList<Image>> retained = new ConcurrentHashMap<>();
+    // only accessed on the writer thread
+    private boolean garbageQueued = false;
+    private boolean purgeQueued = false;
+    private boolean snapshotQueued = false;
+    private boolean snapshotChanged = false;
+    private final Set<File> packsQueued = new HashSet<>();
+
+    /**
+     * Create a service that delivers callbacks on the main thread.
+     */
+    public StorageService(final Library library) {
+        this(library, new MainThreadExecutor());
+    }
+
+    public StorageService(final Library library, final Executor callbackExecutor) {
+        this.library = library;
+        this.callbackExecutor = callbackExecutor;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StorageWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.thumbnailer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StorageThumbnailer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a task on the writer thread. Blobs the task may have left unreferenced are collected
+     * by a task queued after it (see {@link com.smilemeback.storage.Library#collectGarbage()}),
+     * and so is the purge of the trash.
+     *
+     * @param task The task to run.
+     * @param callback Notified with the result of the task, may be null.
+     * @return Future of the result of the task.
+     */
+    public <T> Future<T> submit(final Task<T> task, final Callback<T> callback) {
+        return writer.submit(new Callable<T>() {
+            @Override
+            public T call() throws StorageException {
+                final T result;
+                try {
+                    result = task.run(library);
+                } catch (StorageException e) {
+                    fail(callback, e);
+                    throw e;
+                } catch (RuntimeException e) {
+                    StorageException wrapped = new StorageException(e.getMessage(), e);
+                    fail(callback, wrapped);
+                    throw wrapped;
+                }
+                publish();
+                if (callback != null) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(result);
+                        }
+                    });
+                }
+                queueGarbageCollection();
+                queuePurge();
+                queueSnapshotWrite();
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @param packing If true, the images of loaded categories are packed in the background,
+     *                so that they can be read from a single file. Off by default, because the
+     *                pack is a copy of the stored data.
+     */
+    public void setPackingEnabled(final boolean packing) {
+        this.packing = packing;
+    }
+
+    /**
+     * Deleted categories and images are moved to the {@link com.smilemeback.storage.Trash},
+     * so that deleting never waits for their files to be deleted.
+     *
+     * @param retention The time in milliseconds deleted items are kept in the trash, after which
+     *                  they are purged by the writer thread after the next task. Negative to never purge the trash.
+     */
+    public void setTrashRetention(final long retention) {
+        this.trashRetention = retention;
+    }
+
+    /**
+     * The missing thumbnails of published pictures that changed are scaled on a low priority
+     * thread and stored by the writer thread.
+     *
+     * @param scaler Scales the pictures down for the {@link com.smilemeback.storage.Thumbnails},
+     *               null to not generate thumbnails.
+     */
+    public void setThumbnailScaler(final Thumbnails.Scaler scaler) {
+        this.scaler = scaler;
+    }
+
+    /**
+     * @param maxBytes The space the thumbnails may take, the least recently used thumbnails are
+     *                 evicted after generating thumbnails. Negative to never evict thumbnails.
+     */
+    public void setThumbnailsSize(final long maxBytes) {
+        this.thumbnailsSize = maxBytes;
+    }
+
+    /**
+     * Publish the categories and images stored in the {@link com.smilemeback.storage.LibrarySnapshot},
+     * so that they can be shown before anything is loaded, and keep the stored snapshot up to date
+     * from now on. Must be called before any task is submitted. Reads only the snapshot file.
+     * The restored snapshots are corrected by the changes found when the categories and images are loaded.
+     *
+     * @return True if a snapshot was restored.
+     */
+    public boolean restoreSnapshot() throws StorageException {
+        Storage storage = library.getStorage();
+        LibrarySnapshot stored = new LibrarySnapshot(storage.getStorageFolder(), storage.getCategoriesFolder());
+        snapshot = stored;
+        Optional<LibrarySnapshot.Contents> contents = stored.load();
+        if (!contents.isPresent()) {
+            return false;
+        }
+        categories = contents.get().getCategories();
+        images.putAll(contents.get().getImages());
+        unverified.addAll(contents.get().getImages().keySet());
+        Log.d(TAG, "Restored snapshot of " + categories.size() + " categories");
+        return true;
+    }
+
+    /**
+     * @param listener Receives the differences between the published snapshots as
+     *                 {@link com.smilemeback.storage.StorageChange}s, so that views only update what changed.
+     */
+    public void addChangeListener(final ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(final ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queue reloading the parts of the library that were modified outside of the application
+     * (see {@link com.smilemeback.storage.Library#refresh()} and {@link com.smilemeback.storage.StorageWatcher}),
+     * unless a refresh is queued already.
+     * The changes are published like the changes of any other task.
+     */
+    public void refresh() {
+        if (!refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            submit(new Task<Boolean>() {
+                @Override
+                public Boolean run(Library library) throws StorageException {
+                    refreshQueued.set(false);
+                    return library.refresh();
+                }
+            }, null);
+        } catch (RejectedExecutionException e) {
+            refreshQueued.set(false);
+        }
+    }
+
+    /**
+     * Load the categories on the writer thread.
+     */
+    public Future<ImmutableList<Category>> loadCategories(final Callback<ImmutableList<Category>> callback) {
+        return submit(new Task<ImmutableList<Category>>() {
+            @Override
+            public ImmutableList<Category> run(Library library) throws StorageException {
+                return library.getCategories().snapshot();
+            }
+        }, callback);
+    }
+
+    /**
+     * Load the images of a category on the writer thread. Snapshots of the
+     * loaded images are kept up to date after further tasks.
+     */
+    public Future<ImmutableList<Image>> loadImages(final Category category, final Callback<ImmutableList<Image>> callback) {
+        return submit(new Task<ImmutableList<Image>>() {
+            @Override
+            public ImmutableList<Image> run(Library library) throws StorageException {
+                ImmutableList<Image> loaded = library.getImages(category).snapshot();
+                unverified.remove(category.getFolder());
+                publishImages(category, loaded);
+                return loaded;
+            }
+        }, callback);
+    }
+
+    /**
+     * @return The categories published after the last task, empty if they have not been loaded yet.
+     */
+    public ImmutableList<Category> getCategories() {
+        return categories;
+    }
+
+    /**
+     * @return The images of the category published after the last task, empty if
+     *         they have not been loaded yet.
+     */
+    public ImmutableList<Image> getImages(final Category category) {
+        ImmutableList<Image> snapshot = images.get(category.getFolder());
+        return snapshot != null ? snapshot : ImmutableList.<Image>of();
+    }
+
+    /**
+     * Stop accepting tasks. Already queued tasks are still executed.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        thumbnailer.shutdown();
+    }
+
+    /**
+     * Publish the storage state after a failed task and notify the callback.
+     */
+    private <T> void fail(final Callback<T> callback, final StorageException e) {
+        Log.e(TAG, "Storage task failed: " + e.getMessage());
+        // a failed task may still have modified the storage
+        publish();
+        if (callback != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue a garbage collection behind the already queued tasks, unless one is queued already.
+     * Runs on the writer thread.
+     */
+    private void queueGarbageCollection() {
+        if (garbageQueued || !library.hasGarbage()) {
+            return;
+        }
+        garbageQueued = true;
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    garbageQueued = false;
+                    try {
+                        library.collectGarbage();
+                    } catch (StorageException e) {
+                        Log.e(TAG, "Could not collect garbage: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the garbage is collected after the next change
+            garbageQueued = false;
+        }
+    }
+
+    /**
+     * Queue writing the stored snapshot behind the already queued tasks, unless the published
+     * snapshots did not change or a write is queued already. Runs on the writer thread.
+     */
+    private void queueSnapshotWrite() {
+        if (snapshot == null || !snapshotChanged || snapshotQueued) {
+            return;
+        }
+        snapshotQueued = true;
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotQueued = false;
+                    snapshotChanged = false;
+                    Map<File, ImmutableList<Image>> known = new HashMap<>(retained);
+                    known.putAll(images);
+                    try {
+                        snapshot.save(categories, known);
+                    } catch (StorageException e) {
+                        Log.e(TAG, "Could not write library snapshot: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the snapshot is written after the next change
+            snapshotQueued = false;
+        }
+    }
+
+    /**
+     * Queue generating the missing thumbnails of pictures on the thumbnailer thread, skipping the
+     * pictures that are queued already. Does nothing unless a scaler is set.
+     *
+     * @param pictures The files holding the data of the pictures.
+     */
+    private void queueThumbnails(final List<File> pictures) {
+        final Thumbnails.Scaler scaler = this.scaler;
+        if (scaler == null) {
+            return;
+        }
+        final List<File> queued = new ArrayList<>(pictures.size());
+        for (File picture : pictures) {
+            if (thumbnailsQueued.add(picture)) {
+                queued.add(picture);
+            }
+        }
+        if (queued.isEmpty()) {
+            return;
+        }
+        final Thumbnails thumbnails;
+        try {
+            thumbnails = library.getThumbnails();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not generate thumbnails: " + e.getMessage());
+            thumbnailsQueued.removeAll(queued);
+            return;
+        }
+        try {
+            thumbnailer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (File picture : queued) {
+                        List<File> scaled;
+                        try {
+                            scaled = thumbnails.scale(picture, scaler);
+                        } catch (StorageException e) {
+                            Log.e(TAG, e.getMessage());
+                            scaled = Collections.emptyList();
+                        }
+                        queueThumbnailStore(thumbnails, picture, scaled);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            thumbnailsQueued.removeAll(queued);
+        }
+    }
+
+    /**
+     * Queue moving the scaled thumbnails of a picture in place on the writer thread,
+     * and evicting the least recently used thumbnails afterwards.
+     */
+    private void queueThumbnailStore(final Thumbnails thumbnails, final File picture, final List<File> scaled) {
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    thumbnailsQueued.remove(picture);
+                    if (scaled.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        Log.d(TAG, "Generated " + thumbnails.store(picture, scaled) + " thumbnails");
+                    } catch (StorageException e) {
+                        Log.e(TAG, e.getMessage());
+                    }
+                    long maxBytes = thumbnailsSize;
+                    if (maxBytes >= 0) {
+                        thumbnails.trim(maxBytes);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the thumbnails are generated again the next time the picture is published
+            thumbnailsQueued.remove(picture);
+            for (File temp : scaled) {
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+    }
+
+    /**
+     * Queue purging the trash behind the already queued tasks, unless a purge is queued already.
+     * Runs on the writer thread, so that an entry is never purged while it is being restored.
+     * The blobs of the purged entries are collected afterwards.
+     */
+    private void queuePurge() {
+        final long retention = trashRetention;
+        if (retention < 0 || purgeQueued) {
+            return;
+        }
+        purgeQueued = true;
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    purgeQueued = false;
+                    int purged;
+                    try {
+                        purged = library.getTrash().purge(retention);
+                    } catch (StorageException e) {
+                        Log.e(TAG, "Could not purge trash: " + e.getMessage());
+                        return;
+                    }
+                    if (purged > 0) {
+                        Log.d(TAG, "Purged " + purged + " trash entries");
+                        library.markGarbage();
+                        queueGarbageCollection();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the trash is purged after the next change
+            purgeQueued = false;
+        }
+    }
+
+    /**
+     * Queue updating the pack of a loaded category behind the already queued tasks, unless
+     * packing is disabled or an update is queued already. Runs on the writer thread.
+     */
+    private void queuePackUpdate(final File folder) {
+        if (!packing || !packsQueued.add(folder)) {
+            return;
+        }
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    packsQueued.remove(folder);
+                    Optional<Images> cached = library.getCachedImages(folder);
+                    if (!cached.isPresent()) {
+                        return;
+                    }
+                    try {
+                        Optional<Category> category = findPublished(folder);
+                        if (cached.get().updatePack() && images.containsKey(folder) && category.isPresent()) {
+                            publishImages(category.get(), cached.get().snapshot());
+                            queueSnapshotWrite();
+                        }
+                    } catch (StorageException e) {
+                        Log.e(TAG, "Could not update pack of <" + folder + ">: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            packsQueued.remove(folder);
+        }
+    }
+
+    /**
+     * Refresh the snapshots from the library. Runs on the writer thread.
+     * Snapshots of images that are no longer cached by the library are dropped,
+     * instead of loading them again.
+     */
+    private void publish() {
+        final ImmutableList<Category> previous = categories;
+        try {
+            categories = library.getCategories().snapshot();
+        } catch (StorageException e) {
+            Log.e(TAG, "Could not publish categories: " + e.getMessage());
+            categories = ImmutableList.of();
+        }
+        final ImmutableList<Category> published = categories;
+        if (!StorageChange.sameItems(previous, published)) {
+            snapshotChanged = true;
+            List<File> thumbnails = new ArrayList<>(published.size());
+            for (Category category : published) {
+                thumbnails.add(category.getThumbnailData());
+            }
+            queueThumbnails(thumbnails);
+        }
+        if (!listeners.isEmpty()) {
+            final List<StorageChange<Category>> changes = StorageChange.ofCategories(previous, published);
+            if (!changes.isEmpty()) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ChangeListener listener : listeners) {
+                            listener.categoriesChanged(published, changes);
+                        }
+                    }
+                });
+            }
+        }
+        Map<File, Category> folders = new HashMap<>();
+        for (Category category : published) {
+            folders.put(category.getFolder(), category);
+        }
+        for (File folder : images.keySet()) {
+            Optional<Images> cached = library.getCachedImages(folder);
+            if (folders.containsKey(folder) && cached.isPresent()) {
+                unverified.remove(folder);
+                publishImages(folders.get(folder), cached.get().snapshot());
+                queuePackUpdate(folder);
+            } else if (folders.containsKey(folder) && unverified.contains(folder)) {
+                // restored from the stored snapshot, corrected when the images are loaded
+                continue;
+            } else {
+                ImmutableList<Image> dropped = images.remove(folder);
+                if (folders.containsKey(folder) && dropped != null) {
+                    retained.put(folder, dropped);
+                }
+            }
+        }
+        retained.keySet().retainAll(folders.keySet());
+        unverified.retainAll(folders.keySet());
+    }
+
+    /**
+     * Replace the published images of a category and notify the listeners about the changes.
+     * Runs on the writer thread.
+     */
+    private void publishImages(final Category category, final ImmutableList<Image> published) {
+        ImmutableList<Image> previous = images.put(category.getFolder(), published);
+        retained.remove(category.getFolder());
+        if (previous == null || !StorageChange.sameItems(previous, published)) {
+            snapshotChanged = true;
+            List<File> pictures = new ArrayList<>(published.size());
+            for (Image image : published) {
+                pictures.add(image.getImageData());
+            }
+            queueThumbnails(pictures);
+        }
+        if (previous == null || listeners.isEmpty()) {
+            return;
+        }
+        final List<StorageChange<Image>> changes = StorageChange.ofImages(previous, published);
+        if (changes.isEmpty()) {
+            return;
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ChangeListener listener : listeners) {
+                    listener.imagesChanged(category, published, changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The published category with the given folder, absent if there is none.
+     */
+    private Optional<Category> findPublished(final File folder) {
+        for (Category category : categories) {
+            if (category.getFolder().equals(folder)) {
+                return Optional.of(category);
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Executor that runs the callbacks on the main thread.
+     */
+    private static class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            handler.post(runnable);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the categories folder and the folders of the categories for changes, so that files
+ * copied in or deleted outside of the application (for example over USB) are picked up by
+ * {@link com.smilemeback.storage.StorageService#refresh()} instead of on the next full load.
+ *
+ * The changes made by the application itself are noticed as well, refreshing then finds the
+ * loaded models up to date and publishes nothing. The folders of new categories are watched
+ * as soon as the categories are published.
+ */
+public class StorageWatcher implements StorageService.ChangeListener {
+    private static final String TAG = StorageWatcher.class.getCanonicalName();
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+
+    protected final StorageService service;
+    protected final File categoriesFolder;
+    private final Map<File, FileObserver> observers = new HashMap<>();
+    private boolean watching = false;
+
+    public StorageWatcher(final StorageService service, final File categoriesFolder) {
+        this.service = service;
+        this.categoriesFolder = categoriesFolder;
+    }
+
+    /**
+     * Start watching the categories folder and the folders of the published categories.
+     */
+    public synchronized void start() {
+        if (watching) {
+            return;
+        }
+        watching = true;
+        service.addChangeListener(this);
+        watch(categoriesFolder);
+        watchCategories(service.getCategories());
+    }
+
+    /**
+     * Stop watching all folders.
+     */
+    public synchronized void stop() {
+        if (!watching) {
+            return;
+        }
+        watching = false;
+        service.removeChangeListener(this);
+        for (FileObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    @Override
+    public synchronized void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes) {
+        if (watching) {
+            watchCategories(categories);
+        }
+    }
+
+    @Override
+    public void imagesChanged(Category category, ImmutableList<Image> images, List<StorageChange<Image>> changes) { }
+
+    /**
+     * Watch the folders of the categories, stopping to watch the folders of categories that are gone.
+     */
+    private void watchCategories(final List<Category> categories) {
+        Set<File> folders = new HashSet<>();
+        folders.add(categoriesFolder);
+        for (Category category : categories) {
+            folders.add(category.getFolder());
+            watch(category.getFolder());
+        }
+        Iterator<Map.Entry<File, FileObserver>> it = observers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, FileObserver> entry = it.next();
+            if (!folders.contains(entry.getKey())) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private void watch(final File folder) {
+        if (observers.containsKey(folder)) {
+            return;
+        }
+        FileObserver observer = new FileObserver(folder.getAbsolutePath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path == null) {
+                    return;
+                }
+                Log.d(TAG, "Change of <" + path + "> in <" + folder + ">");
+                service.refresh();
+            }
+        };
+        observer.startWatching();
+        observers.put(folder, observer);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+import com.google.common.primitives.Longs;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Downscaled copies of the pictures stored in the {@link com.smilemeback.storage.BlobStore},
+ * in a few size buckets: the side pane, the grid cells and full screen previews.
+ *
+ * Views load the bucket closest to their size instead of decoding the full picture, which may be a
+ * camera picture of many megapixels. The thumbnails are named by the hash of the blob they are made of
+ * and their size, {hash}_{size}.jpg, so renaming or rearranging icons never makes them stale, and
+ * they are deleted together with their blob. Pictures that are not stored as blobs have no thumbnails.
+ *
+ * The thumbnails are generated by a {@link Scaler} in the background after pictures were added,
+ * and for the existing pictures of a category when it is loaded the first time
+ * (see {@link com.smilemeback.storage.StorageService#setThumbnailScaler(Scaler)}).
+ *
+ * The folder is a cache bounded in size: the modification time of a thumbnail is moved forward
+ * when it is used (see {@link #touch(File)}), and {@link #trim(long)} deletes the least recently
+ * used thumbnails first. Evicted thumbnails are generated again the next time their category is loaded.
+ */
+public class Thumbnails {
+    private static final String TAG = Thumbnails.class.getCanonicalName();
+    public static final String FOLDER = "thumbnails";
+    public static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // thumbnails used again within this time are not touched, to not write on every load
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Longest side of the thumbnails of each bucket in pixels, ascending.
+     */
+    public static final int[] SIZES = {192, 512, 1280};
+
+    /**
+     * Scales a picture down, so that its longest side is at most a given size.
+     */
+    public interface Scaler {
+        /**
+         * @param source The picture to scale.
+         * @param size The longest side of the scaled picture in pixels.
+         * @param target The file to write the scaled picture to.
+         */
+        void scale(File source, int size, File target) throws IOException;
+    }
+
+    protected final File folder;
+
+    public Thumbnails(final File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param categoriesFolder The folder containing the categories.
+     * @return The thumbnails next to the categories folder.
+     */
+    public static Thumbnails forCategoriesFolder(final File categoriesFolder) {
+        return new Thumbnails(new File(categoriesFolder.getParentFile(), FOLDER));
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @param data The file holding the data of a picture.
+     * @return The hash of the blob holding the data, which the thumbnails of the picture are named by,
+     *         absent if the data is not stored as a blob. No files are touched.
+     */
+    public static Optional<String> keyOf(final File data) {
+        File parent = data.getParentFile();
+        String name = data.getName();
+        int idx = name.lastIndexOf('.');
+        if (parent == null || !BlobStore.FOLDER.equals(parent.getName()) || idx <= 0) {
+            return Optional.absent();
+        }
+        return Optional.of(name.substring(0, idx));
+    }
+
+    /**
+     * @param data The file holding the data of a picture.
+     * @param size The size of the bucket.
+     * @return The thumbnail of the picture in the bucket, which may not exist, absent if the data
+     *         is not stored as a blob. No files are touched.
+     */
+    public static Optional<File> find(final File data, final int size) {
+        Optional<String> key = keyOf(data);
+        if (!key.isPresent()) {
+            return Optional.absent();
+        }
+        // the blobs and the thumbnails are in the same folder
+        File blobsFolder = data.getParentFile();
+        return Optional.of(new Thumbnails(new File(blobsFolder.getParentFile(), FOLDER)).get(key.get(), size));
+    }
+
+    /**
+     * @param size The size a picture is shown at in pixels.
+     * @return The smallest bucket that is at least as large, or the largest bucket.
+     */
+    public static int bucketFor(final int size) {
+        for (int bucket : SIZES) {
+            if (bucket >= size) {
+                return bucket;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * @return The thumbnail of the given size for a key, which may not exist.
+     */
+    public File get(final String key, final int size) {
+        return new File(folder, key + "_" + size + SUFFIX);
+    }
+
+    /**
+     * Generate the missing thumbnails of a picture, see {@link #scale(File, Scaler)} and {@link #store(File, List)}.
+     *
+     * @param data The file holding the data of the picture.
+     * @param scaler Scales the pictures.
+     * @return The number of generated thumbnails.
+     * @throws StorageException
+     */
+    public int generate(final File data, final Scaler scaler) throws StorageException {
+        return store(data, scale(data, scaler));
+    }
+
+    /**
+     * Scale the missing thumbnails of a picture into temporary files. The largest bucket is scaled from
+     * the picture, the smaller buckets from the largest one, so that the picture is decoded only once.
+     * The thumbnails themselves are not touched, so this can run next to the storage writer.
+     *
+     * @param data The file holding the data of the picture.
+     * @param scaler Scales the pictures.
+     * @return The scaled temporary files, to be moved in place by {@link #store(File, List)}.
+     * @throws StorageException
+     */
+    public List<File> scale(final File data, final Scaler scaler) throws StorageException {
+        List<File> scaled = new ArrayList<>();
+        Optional<String> key = keyOf(data);
+        if (!key.isPresent() || !data.isFile()) {
+            return scaled;
+        }
+        File source = data;
+        try {
+            FileUtils.forceMkdir(folder);
+            for (int idx = SIZES.length - 1; idx >= 0; --idx) {
+                File thumbnail = get(key.get(), SIZES[idx]);
+                if (!thumbnail.isFile()) {
+                    File temp = new File(thumbnail.getPath() + TEMP_SUFFIX);
+                    scaled.add(temp);
+                    scaler.scale(source, SIZES[idx], temp);
+                    thumbnail = temp;
+                }
+                source = thumbnail;
+            }
+        } catch (IOException e) {
+            for (File temp : scaled) {
+                FileUtils.deleteQuietly(temp);
+            }
+            throw new StorageException("Could not scale <" + source + ">: " + e.getMessage(), e);
+        }
+        return scaled;
+    }
+
+    /**
+     * Move scaled thumbnails in place, or delete them if their picture was deleted in the meantime.
+     * Runs on the storage writer, so that a thumbnail is never stored after its blob was collected.
+     *
+     * @param data The file holding the data of the picture.
+     * @param scaled The temporary files returned by {@link #scale(File, Scaler)}.
+     * @return The number of stored thumbnails.
+     * @throws StorageException
+     */
+    public int store(final File data, final List<File> scaled) throws StorageException {
+        int stored = 0;
+        try {
+            for (File temp : scaled) {
+                if (!data.isFile()) {
+                    break;
+                }
+                String name = temp.getName();
+                File thumbnail = new File(folder, name.substring(0, name.length() - TEMP_SUFFIX.length()));
+                FileUtils.deleteQuietly(thumbnail);
+                FileUtils.moveFile(temp, thumbnail);
+                ++stored;
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not store thumbnails of <" + data + ">: " + e.getMessage(), e);
+        } finally {
+            for (File temp : scaled) {
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Mark a thumbnail as used, so that it is evicted last.
+     *
+     * @param thumbnail The thumbnail that was loaded.
+     */
+    public static void touch(final File thumbnail) {
+        long now = System.currentTimeMillis();
+        if (now - thumbnail.lastModified() > TOUCH_INTERVAL_MILLIS && !thumbnail.setLastModified(now)) {
+            Log.d(TAG, "Could not touch thumbnail <" + thumbnail + ">");
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails until they take at most the given space.
+     *
+     * @param maxBytes The space the thumbnails may take in bytes.
+     * @return The number of deleted files.
+     */
+    public int trim(final long maxBytes) {
+        File[] thumbnails = folder.listFiles();
+        if (thumbnails == null) {
+            return 0;
+        }
+        final Map<File, Long> used = new HashMap<>();
+        long total = 0;
+        for (File thumbnail : thumbnails) {
+            if (!thumbnail.getName().endsWith(TEMP_SUFFIX)) {
+                used.put(thumbnail, thumbnail.lastModified());
+                total += thumbnail.length();
+            }
+        }
+        if (total <= maxBytes) {
+            return 0;
+        }
+        List<File> oldestFirst = new ArrayList<>(used.keySet());
+        Collections.sort(oldestFirst, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Longs.compare(used.get(lhs), used.get(rhs));
+            }
+        });
+        int deleted = 0;
+        for (File thumbnail : oldestFirst) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = thumbnail.length();
+            if (FileUtils.deleteQuietly(thumbnail)) {
+                total -= length;
+                ++deleted;
+            }
+        }
+        Log.d(TAG, "Evicted " + deleted + " thumbnails");
+        return deleted;
+    }
+
+    /**
+     * Delete the thumbnails whose blob no longer exists.
+     *
+     * @param blobs The store of the blobs the thumbnails are made of.
+     * @return The number of deleted files.
+     */
+    public int collectGarbage(final BlobStore blobs) {
+        String[] thumbnails = folder.list();
+        if (thumbnails == null || thumbnails.length == 0) {
+            return 0;
+        }
+        Set<String> keys = new HashSet<>();
+        String[] stored = blobs.getFolder().list();
+        if (stored != null) {
+            for (String blob : stored) {
+                Optional<String> key = keyOf(new File(blobs.getFolder(), blob));
+                if (key.isPresent()) {
+                    keys.add(key.get());
+                }
+            }
+        }
+        int deleted = 0;
+        for (String thumbnail : thumbnails) {
+            int idx = thumbnail.lastIndexOf('_');
+            // temporary files are left to the thumbnails being generated
+            if (idx < 0 || (!thumbnail.endsWith(TEMP_SUFFIX) && !keys.contains(thumbnail.substring(0, idx)))) {
+                Log.d(TAG, "Deleting unreferenced thumbnail <" + thumbnail + ">");
+                if (FileUtils.deleteQuietly(new File(folder, thumbnail))) {
+                    ++deleted;
+                }
+            }
+        }
+        return deleted;
+    }
+}
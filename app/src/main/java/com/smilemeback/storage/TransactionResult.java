@@ -0,0 +1,54 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a committed {@link com.smilemeback.storage.Images.Transaction}
+ * or {@link com.smilemeback.storage.Categories.Transaction}.
+ *
+ * @param <T> The type of the edited items.
+ */
+public class TransactionResult<T> {
+    protected final List<T> removed;
+    protected final List<T> changed;
+
+    public TransactionResult(final List<T> removed, final List<T> changed) {
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * @return The items that were deleted or moved away, as they were before the commit.
+     */
+    public List<T> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return The remaining items whose position, name or files changed, as they are after the commit.
+     */
+    public List<T> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && changed.isEmpty();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Folder that deleted categories and images are moved to, instead of deleting them right away.
+ *
+ * Every deletion gets its own entry folder named {time}-{sequence}, which mirrors the categories
+ * folder: deleted category folders are moved into the entry as they are, and deleted images into
+ * a folder named like their category. Moving is a rename on the same volume, so deleting does not
+ * depend on the size of what is deleted, and the files can be recovered until their entry is
+ * deleted by {@link #purge(long, long)}, which is meant to run in the background.
+ */
+public class Trash {
+    private static final String TAG = Trash.class.getCanonicalName();
+    public static final String FOLDER = "trash";
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /**
+     * Orders entries by their time and then by their sequence number, which do not sort
+     * by name because the numbers have different lengths.
+     */
+    private static final Comparator<File> BY_TIME = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            int result = Longs.compare(timeOf(lhs), timeOf(rhs));
+            return result != 0 ? result : Ints.compare(sequenceOf(lhs), sequenceOf(rhs));
+        }
+    };
+
+    protected final File folder;
+
+    public Trash(final File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param categoriesFolder The folder containing the categories.
+     * @return The trash next to the categories folder.
+     */
+    public static Trash forCategoriesFolder(final File categoriesFolder) {
+        return new Trash(new File(categoriesFolder.getParentFile(), FOLDER));
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Create an empty entry, which the deleted category folders are moved into.
+     */
+    public File newEntry() throws StorageException {
+        File entry = new File(folder, System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet());
+        try {
+            FileUtils.forceMkdir(entry);
+        } catch (IOException e) {
+            throw new StorageException("Could not create trash entry <" + entry + ">: " + e.getMessage(), e);
+        }
+        return entry;
+    }
+
+    /**
+     * Create an empty entry for images deleted from a category.
+     *
+     * @param categoryFolder The folder of the category the images are deleted from.
+     * @return The folder the deleted image and audio files are moved into.
+     */
+    public File newEntry(final File categoryFolder) throws StorageException {
+        File images = new File(newEntry(), categoryFolder.getName());
+        try {
+            FileUtils.forceMkdir(images);
+        } catch (IOException e) {
+            throw new StorageException("Could not create trash entry <" + images + ">: " + e.getMessage(), e);
+        }
+        return images;
+    }
+
+    /**
+     * @return The path of a file in the trash relative to the trash folder, as it is stored
+     *         by the {@link com.smilemeback.storage.UndoLog}.
+     */
+    public String pathOf(final File file) {
+        String folderPath = folder.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        return path.startsWith(folderPath) ? path.substring(folderPath.length()) : path;
+    }
+
+    /**
+     * @return The file in the trash with the given path relative to the trash folder.
+     */
+    public File fileOf(final String path) {
+        return new File(folder, path);
+    }
+
+    /**
+     * @return The entry folders, oldest first.
+     */
+    public List<File> getEntries() {
+        File[] entries = folder.listFiles();
+        if (entries == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(entries, BY_TIME);
+        List<File> folders = new ArrayList<>(entries.length);
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                folders.add(entry);
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Delete the entries that are older than the given age now.
+     * @see #purge(long, long)
+     */
+    public int purge(final long maxAge) {
+        return purge(maxAge, System.currentTimeMillis());
+    }
+
+    /**
+     * Delete the entries that are older than the given age, and anything that is not an entry.
+     * Must not run concurrently with restoring an entry, see
+     * {@link com.smilemeback.storage.StorageService#setTrashRetention(long)}.
+     *
+     * @param maxAge The age in milliseconds after which entries are deleted.
+     * @param now The current time in milliseconds, which the age of the entries is measured from.
+     * @return The number of deleted entries.
+     */
+    public int purge(final long maxAge, final long now) {
+        File[] entries = folder.listFiles();
+        if (entries == null) {
+            return 0;
+        }
+        long deadline = now - maxAge;
+        int purged = 0;
+        for (File entry : entries) {
+            if (isEntry(entry) && timeOf(entry) > deadline) {
+                continue;
+            }
+            Log.d(TAG, "Purging <" + entry + ">");
+            if (FileUtils.deleteQuietly(entry)) {
+                ++purged;
+            }
+        }
+        return purged;
+    }
+
+    private static boolean isEntry(final File entry) {
+        return entry.isDirectory() && timeOf(entry) >= 0;
+    }
+
+    /**
+     * @return The time the entry was created at, or -1 if the name is not the name of an entry.
+     */
+    private static long timeOf(final File entry) {
+        String name = entry.getName();
+        int dash = name.indexOf('-');
+        if (dash <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The sequence number of the entry, or -1 if the name is not the name of an entry.
+     */
+    private static int sequenceOf(final File entry) {
+        String name = entry.getName();
+        int dash = name.indexOf('-');
+        if (dash <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import android.util.Log;
+
+import com.google.common.base.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Bounded history of the edits of the categories and images, stored as their inverses.
+ *
+ * Every committed transaction of {@link com.smilemeback.storage.Categories} or
+ * {@link com.smilemeback.storage.Images} records a {@link Step}: the order of the ids before
+ * the edit, the previous names of the renamed items, and where the deleted and moved items
+ * went, which is the {@link com.smilemeback.storage.Trash} or another category. Ids are never
+ * reused in the ordered layout, so undoing puts items back under their previous ids and file
+ * names, without copying any data or rescanning folders. Edits in positional layout,
+ * where ids change with every edit, are not recorded.
+ *
+ * The log keeps the last {@link #MAX_STEPS} steps and is rewritten after every change,
+ * so that it survives the process being killed.
+ */
+public class UndoLog {
+    private static final String TAG = UndoLog.class.getCanonicalName();
+    public static final String FILENAME = "undo.log";
+    public static final int MAX_STEPS = 20;
+
+    private static final int MAGIC = 0x534d4255;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Item to put back by undoing a step: a deleted item from the trash, or an image
+     * moved to another category.
+     */
+    public static class Restored {
+        final int id;
+        final String name;
+        final String[] files;
+        // category the image was moved to, or -1 for items in the trash
+        final int fromCategory;
+        final int fromId;
+
+        Restored(final int id, final String name, final String[] files, final int fromCategory, final int fromId) {
+            this.id = id;
+            this.name = name;
+            this.files = files;
+            this.fromCategory = fromCategory;
+            this.fromId = fromId;
+        }
+    }
+
+    /**
+     * Inverse of a single committed transaction.
+     */
+    public static class Step {
+        // category of the edited images, or -1 for an edit of the categories
+        final int categoryId;
+        final int[] order;
+        final Map<Integer, String> names;
+        // trash entry of the deleted items, relative to the trash folder, or empty
+        final String trash;
+        final List<Restored> restored;
+
+        Step(final int categoryId, final int[] order, final Map<Integer, String> names,
+             final String trash, final List<Restored> restored) {
+            this.categoryId = categoryId;
+            this.order = order;
+            this.names = names;
+            this.trash = trash;
+            this.restored = restored;
+        }
+
+        boolean isImagesStep() {
+            return categoryId >= 0;
+        }
+    }
+
+    protected final File file;
+    private LinkedList<Step> steps = null;
+    private boolean recording = true;
+
+    /**
+     * @param storageFolder The storage folder, that contains the log.
+     */
+    public UndoLog(final File storageFolder) {
+        this.file = new File(storageFolder, FILENAME);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of steps that can be undone.
+     */
+    public synchronized int size() {
+        return steps().size();
+    }
+
+    /**
+     * @param recording If false, steps are not recorded, for example while a step is undone.
+     */
+    synchronized void setRecording(final boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Record the inverse of an edit, dropping the oldest step if the log is full.
+     */
+    synchronized void record(final Step step) {
+        if (!recording) {
+            return;
+        }
+        LinkedList<Step> steps = steps();
+        steps.addLast(step);
+        while (steps.size() > MAX_STEPS) {
+            steps.removeFirst();
+        }
+        save();
+    }
+
+    /**
+     * Remove the last step from the log.
+     * @return The last step, absent if there is nothing to undo.
+     */
+    synchronized Optional<Step> pop() {
+        LinkedList<Step> steps = steps();
+        if (steps.isEmpty()) {
+            return Optional.absent();
+        }
+        Step step = steps.removeLast();
+        save();
+        return Optional.of(step);
+    }
+
+    /**
+     * Forget all steps, for example after the library was replaced.
+     */
+    public synchronized void clear() {
+        steps = new LinkedList<>();
+        FileUtils.deleteQuietly(file);
+    }
+
+    private LinkedList<Step> steps() {
+        if (steps == null) {
+            steps = load();
+        }
+        return steps;
+    }
+
+    /**
+     * Read the log, a missing or corrupt log is empty.
+     */
+    private LinkedList<Step> load() {
+        LinkedList<Step> loaded = new LinkedList<>();
+        if (!file.isFile()) {
+            return loaded;
+        }
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "Unknown undo log format in <" + file + ">");
+                return loaded;
+            }
+            int count = in.readInt();
+            for (int idx = 0; idx < count; ++idx) {
+                loaded.add(readStep(in));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                Log.d(TAG, "Checksum mismatch in undo log <" + file + ">");
+                return new LinkedList<>();
+            }
+            return loaded;
+        } catch (IOException e) {
+            Log.d(TAG, "Could not read undo log <" + file + ">: " + e.getMessage());
+            return new LinkedList<>();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the log to a temporary file that replaces the log, so that a killed
+     * process leaves either the old or the new log behind.
+     */
+    private void save() {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(steps.size());
+            for (Step step : steps) {
+                writeStep(out, step);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                FileUtils.deleteQuietly(file);
+                FileUtils.moveFile(temp, file);
+            }
+        } catch (IOException e) {
+            // losing the history does not lose any data
+            Log.e(TAG, "Could not write undo log <" + file + ">: " + e.getMessage());
+            FileUtils.deleteQuietly(temp);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private static void writeStep(final DataOutputStream out, final Step step) throws IOException {
+        out.writeInt(step.categoryId);
+        out.writeInt(step.order.length);
+        for (int id : step.order) {
+            out.writeInt(id);
+        }
+        out.writeInt(step.names.size());
+        for (Map.Entry<Integer, String> name : step.names.entrySet()) {
+            out.writeInt(name.getKey());
+            out.writeUTF(name.getValue());
+        }
+        out.writeUTF(step.trash);
+        out.writeInt(step.restored.size());
+        for (Restored restored : step.restored) {
+            out.writeInt(restored.id);
+            out.writeUTF(restored.name);
+            out.writeInt(restored.files.length);
+            for (String name : restored.files) {
+                out.writeUTF(name);
+            }
+            out.writeInt(restored.fromCategory);
+            out.writeInt(restored.fromId);
+        }
+    }
+
+    private static Step readStep(final DataInputStream in) throws IOException {
+        int categoryId = in.readInt();
+        int[] order = new int[in.readInt()];
+        for (int idx = 0; idx < order.length; ++idx) {
+            order[idx] = in.readInt();
+        }
+        int numNames = in.readInt();
+        Map<Integer, String> names = new LinkedHashMap<>();
+        for (int idx = 0; idx < numNames; ++idx) {
+            int id = in.readInt();
+            names.put(id, in.readUTF());
+        }
+        String trash = in.readUTF();
+        int numRestored = in.readInt();
+        List<Restored> restored = new ArrayList<>(numRestored);
+        for (int idx = 0; idx < numRestored; ++idx) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            String[] files = new String[in.readInt()];
+            for (int fileIdx = 0; fileIdx < files.length; ++fileIdx) {
+                files[fileIdx] = in.readUTF();
+            }
+            restored.add(new Restored(id, name, files, in.readInt(), in.readInt()));
+        }
+        return new Step(categoryId, order, names, trash, restored);
+    }
+}
@@ -36,6 +36,8 @@ import java.util.TreeMap;
  * If all the selected items are after the target item, then the selected items are moved
  * before the target. Otherwise, selected items are moved after the target.
  *
+ * The elements are mapped to their positions and the move is planned by the {@link ReorderPlanner}.
+ *
  * @param <T> The datatype that must extend {@link java.lang.Comparable} interface.
  */
 public class DataMover<T extends Comparable> {
@@ -43,6 +45,7 @@ public class DataMover<T extends Comparable> {
     protected final List<T> collection;
     protected final List<T> selection;
     protected final T target;
+    protected final int[] order;
 
     /**
      * Initialize {@literal IconSorter}.
@@ -60,6 +63,18 @@ public class DataMover<T extends Comparable> {
         Collections.sort(this.selection);
         this.target = target;
         makeAssertions();
+        int[] selected = new int[this.selection.size()];
+        for (int idx = 0; idx < selected.length; ++idx) {
+            selected[idx] = indexOf(this.selection.get(idx));
+            if (selected[idx] < 0) {
+                throw new IllegalArgumentException("Not all selection elements in collection");
+            }
+        }
+        int targetIndex = indexOf(target);
+        if (targetIndex < 0) {
+            throw new IllegalArgumentException("Target not in collection!");
+        }
+        this.order = ReorderPlanner.rearrange(this.collection.size(), selected, targetIndex);
     }
 
     private void makeAssertions() throws IllegalArgumentException {
@@ -69,45 +84,31 @@ public class DataMover<T extends Comparable> {
         if (selection.size() == 0) {
             throw new IllegalArgumentException("Zero selection size!");
         }
-        if (!collection.containsAll(selection)) {
-            throw new IllegalArgumentException("Not all selection elements in collection");
-        }
         if (!Ordering.natural().isStrictlyOrdered(selection)) {
             throw new IllegalArgumentException("Selected items not unique");
         }
         if (!Ordering.natural().isStrictlyOrdered(collection)) {
             throw new IllegalArgumentException("Collection not unique");
         }
-        if (!collection.contains(target)) {
-            throw new IllegalArgumentException("Target not in collection!");
-        }
-        if (selection.contains(target)) {
-            throw new IllegalArgumentException("Target in selection");
-        }
     }
 
-    private boolean isTargetBeforeSelection() {
-        for (Comparable element : selection) {
-            if (target.compareTo(element) >= 0) {
-                return false;
-            }
-        }
-        return true;
+    /**
+     * @return The position of the element in the sorted collection, negative if it is not in it.
+     */
+    @SuppressWarnings("unchecked")
+    private int indexOf(final T element) {
+        int idx = Collections.binarySearch((List) collection, element);
+        return idx >= 0 && collection.get(idx).equals(element) ? idx : -1;
     }
 
     /**
      * @return The reordered copy of the resulting collection.
      */
     public List<T> getResultCollection() {
-        List<T> resultCollection = new ArrayList<>(collection);
-        resultCollection.removeAll(selection);
-        int targetIndex = resultCollection.indexOf(target);
-        if (isTargetBeforeSelection()) {
-            resultCollection.addAll(targetIndex, selection);
-        } else {
-            resultCollection.addAll(targetIndex+1, selection);
+        List<T> resultCollection = new ArrayList<>(order.length);
+        for (int position : order) {
+            resultCollection.add(collection.get(position));
         }
-        assert(collection.size() == resultCollection.size());
         return resultCollection;
     }
 
@@ -116,12 +117,10 @@ public class DataMover<T extends Comparable> {
      */
     public Map<Integer, Integer> getSourceTargetMapping() {
         Map<Integer, Integer> mapping = new TreeMap<>();
-        List<T> result = getResultCollection();
-        for (int idx=0 ; idx<result.size() ; ++idx) {
-            Comparable obj = result.get(idx);
-            int srcIdx = collection.indexOf(obj);
-            if (srcIdx != idx) {
-                mapping.put(srcIdx, idx);
+        int[] destinations = ReorderPlanner.destinations(order);
+        for (int idx = 0; idx < destinations.length; ++idx) {
+            if (destinations[idx] != idx) {
+                mapping.put(idx, destinations[idx]);
             }
         }
         return mapping;
@@ -0,0 +1,90 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage.datamover;
+
+import java.util.Arrays;
+
+/**
+ * Ordered moves planned by the {@link ReorderPlanner}.
+ * Each move names an item and whether it is moved directly to its target,
+ * to its temporary name, or from its temporary name to its target.
+ */
+public class MovePlan {
+    /** Blocker of an item whose target is free. */
+    public static final int NONE = -1;
+    /** Blocker of an item that does not move. */
+    public static final int STAYS = -2;
+
+    public static final int DIRECT = 0;
+    public static final int TO_TEMP = 1;
+    public static final int FROM_TEMP = 2;
+
+    private int[] items;
+    private int[] kinds;
+    private int size = 0;
+
+    MovePlan(final int capacity) {
+        items = new int[capacity];
+        kinds = new int[capacity];
+    }
+
+    void add(final int item, final int kind) {
+        if (size == items.length) {
+            int capacity = Math.max(4, size * 2);
+            items = Arrays.copyOf(items, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+        items[size] = item;
+        kinds[size] = kind;
+        ++size;
+    }
+
+    /**
+     * @return The number of moves.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The item of the move at the given index.
+     */
+    public int getItem(final int idx) {
+        return items[idx];
+    }
+
+    /**
+     * @return The kind of the move at the given index, one of {@link #DIRECT},
+     *         {@link #TO_TEMP} and {@link #FROM_TEMP}.
+     */
+    public int getKind(final int idx) {
+        return kinds[idx];
+    }
+
+    /**
+     * @return The number of items that go through their temporary names, which is one per cycle.
+     */
+    public int getTemporaryCount() {
+        int count = 0;
+        for (int idx = 0; idx < size; ++idx) {
+            if (kinds[idx] == TO_TEMP) {
+                ++count;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage.datamover;
+
+import java.util.Arrays;
+
+/**
+ * Plans reorder operations on positions, in time linear to the number of items.
+ *
+ * A rearrange consists of:
+ * 1. the number of items
+ * 2. the positions of the selected items, which may be any non-contiguous set
+ * 3. the position of the target item, where the selection is dropped.
+ *
+ * If all the selected items are after the target item, then the selected items are moved
+ * before the target. Otherwise, selected items are moved after the target.
+ *
+ * The resulting permutation is turned into a {@link MovePlan} with cycle decomposition:
+ * items that do not move are left alone, chains of items are moved starting from the free end,
+ * and only one item per cycle goes through a temporary name.
+ */
+public class ReorderPlanner {
+
+    /**
+     * @param size The number of items.
+     * @param selected The positions of the selected items, strictly increasing.
+     * @param target The position of the target item.
+     * @return The resulting order: the old position of the item at each new position.
+     * @throws IllegalArgumentException In case the selection is empty, not strictly increasing
+     *         or out of range, or in case the target is out of range or selected.
+     */
+    public static int[] rearrange(final int size, final int[] selected, final int target) throws IllegalArgumentException {
+        if (size == 0) {
+            throw new IllegalArgumentException("Zero collection size!");
+        }
+        if (selected.length == 0) {
+            throw new IllegalArgumentException("Zero selection size!");
+        }
+        if (target < 0 || target >= size) {
+            throw new IllegalArgumentException("Target not in collection!");
+        }
+        boolean[] isSelected = new boolean[size];
+        for (int idx = 0; idx < selected.length; ++idx) {
+            int position = selected[idx];
+            if (position < 0 || position >= size) {
+                throw new IllegalArgumentException("Not all selection elements in collection");
+            }
+            if (idx > 0 && position <= selected[idx - 1]) {
+                throw new IllegalArgumentException("Selected items not unique");
+            }
+            isSelected[position] = true;
+        }
+        if (isSelected[target]) {
+            throw new IllegalArgumentException("Target in selection");
+        }
+
+        boolean before = target < selected[0];
+        int[] order = new int[size];
+        int next = 0;
+        for (int position = 0; position < size; ++position) {
+            if (isSelected[position]) {
+                continue;
+            }
+            if (position == target && before) {
+                next = append(order, next, selected);
+            }
+            order[next++] = position;
+            if (position == target && !before) {
+                next = append(order, next, selected);
+            }
+        }
+        return order;
+    }
+
+    private static int append(final int[] order, final int next, final int[] selected) {
+        System.arraycopy(selected, 0, order, next, selected.length);
+        return next + selected.length;
+    }
+
+    /**
+     * @param order The old position of the item at each new position.
+     * @return The new position of the item at each old position.
+     */
+    public static int[] destinations(final int[] order) {
+        int[] destinations = new int[order.length];
+        for (int position = 0; position < order.length; ++position) {
+            destinations[order[position]] = position;
+        }
+        return destinations;
+    }
+
+    /**
+     * Plan the moves of a permutation of positions, where every position holds one item.
+     *
+     * @param destinations The new position of the item at each old position.
+     * @return The moves of the items that change position.
+     */
+    public static MovePlan planPermutation(final int[] destinations) {
+        // the item moving to position p is blocked by the item currently at p
+        int[] blockers = new int[destinations.length];
+        Arrays.fill(blockers, MovePlan.NONE);
+        for (int item = 0; item < destinations.length; ++item) {
+            int destination = destinations[item];
+            if (destination != item) {
+                blockers[item] = destinations[destination] != destination ? destination : MovePlan.NONE;
+            } else {
+                blockers[item] = MovePlan.STAYS;
+            }
+        }
+        return plan(blockers);
+    }
+
+    /**
+     * Order the moves of items whose targets may be taken by other items.
+     *
+     * Every item is blocked by at most one other item, so the items form chains, which
+     * are moved starting from the item with a free target, and cycles. One item of every
+     * cycle is moved to its temporary name first and to its target after the rest of the cycle.
+     *
+     * @param blockers For each item the item that is at its target until it has moved,
+     *                 {@link MovePlan#NONE} if the target is free, or {@link MovePlan#STAYS}
+     *                 if the item does not move.
+     * @return The ordered moves.
+     */
+    public static MovePlan plan(final int[] blockers) {
+        int n = blockers.length;
+        // the items blocked by each item, as linked lists
+        int[] head = new int[n];
+        int[] next = new int[n];
+        Arrays.fill(head, MovePlan.NONE);
+        int moving = 0;
+        for (int item = 0; item < n; ++item) {
+            if (blockers[item] == MovePlan.STAYS) {
+                continue;
+            }
+            ++moving;
+            int blocker = blockers[item];
+            if (blocker >= 0) {
+                if (blockers[blocker] == MovePlan.STAYS) {
+                    throw new IllegalArgumentException("Item " + item + " is blocked by item " + blocker + " that does not move");
+                }
+                next[item] = head[blocker];
+                head[blocker] = item;
+            }
+        }
+
+        MovePlan plan = new MovePlan(moving);
+        boolean[] moved = new boolean[n];
+        int[] queue = new int[n];
+        int queueEnd = 0;
+        for (int item = 0; item < n; ++item) {
+            if (blockers[item] == MovePlan.NONE) {
+                queue[queueEnd++] = item;
+            }
+        }
+        int queueStart = drain(plan, head, next, moved, queue, 0, queueEnd);
+
+        // the remaining items are in cycles, or in chains blocked by a cycle
+        int[] visited = new int[n];
+        Arrays.fill(visited, -1);
+        for (int item = 0; item < n; ++item) {
+            if (blockers[item] == MovePlan.STAYS || moved[item]) {
+                continue;
+            }
+            // walk the blockers until an item repeats, which is in the cycle
+            int current = item;
+            while (visited[current] != item) {
+                visited[current] = item;
+                current = blockers[current];
+            }
+            plan.add(current, MovePlan.TO_TEMP);
+            moved[current] = true;
+            queueEnd = queueStart;
+            for (int blocked = head[current]; blocked != MovePlan.NONE; blocked = next[blocked]) {
+                queue[queueEnd++] = blocked;
+            }
+            queueStart = drain(plan, head, next, moved, queue, queueStart, queueEnd);
+            plan.add(current, MovePlan.FROM_TEMP);
+        }
+        return plan;
+    }
+
+    /**
+     * Move the queued items, queuing the items they unblock.
+     * @return The end of the queue.
+     */
+    private static int drain(final MovePlan plan, final int[] head, final int[] next, final boolean[] moved,
+                             final int[] queue, int start, int end) {
+        while (start < end) {
+            int item = queue[start++];
+            if (moved[item]) {
+                continue;
+            }
+            plan.add(item, MovePlan.DIRECT);
+            moved[item] = true;
+            for (int blocked = head[item]; blocked != MovePlan.NONE; blocked = next[blocked]) {
+                if (!moved[blocked]) {
+                    queue[end++] = blocked;
+                }
+            }
+        }
+        return end;
+    }
+}
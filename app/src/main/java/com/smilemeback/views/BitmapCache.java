@@ -0,0 +1,287 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.views;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.squareup.picasso.Cache;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Memory cache of all bitmaps shown by the application: the grids, the side pane, drag shadows
+ * and the previews of the add flow. It is the memory cache of {@link com.squareup.picasso.Picasso}
+ * and is used directly for bitmaps that are not loaded by Picasso.
+ *
+ * The cache is sized from the memory class of the device and split into a budget per {@link Pool},
+ * so that loading a large preview does not evict the grid of the last category. The pool of a bitmap
+ * is the prefix of its key (see {@link #key(Pool, String)}), keys without a known prefix go to
+ * {@link Pool#PREVIEW}. Each pool evicts its least recently used bitmaps and counts hits and misses.
+ */
+public class BitmapCache implements Cache {
+    private static final String TAG = BitmapCache.class.getCanonicalName();
+    private static final char POOL_SEPARATOR = '/';
+    // share of the memory class of the application that is used for bitmaps
+    private static final int MEMORY_SHARE = 7;
+
+    /**
+     * Separate budgets of the cache, as a share of its size.
+     */
+    public enum Pool {
+        GRID(60),
+        SIDEBAR(15),
+        PREVIEW(25);
+
+        private final int percent;
+
+        Pool(final int percent) {
+            this.percent = percent;
+        }
+
+        private String prefix() {
+            return name().toLowerCase(Locale.US) + POOL_SEPARATOR;
+        }
+    }
+
+    /**
+     * Least recently used bitmaps of a pool, bounded in bytes.
+     */
+    private static class Entries {
+        final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+        final int maxSize;
+        int size = 0;
+        long hits = 0;
+        long misses = 0;
+
+        Entries(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        void trimTo(final int maxSize) {
+            Iterator<Map.Entry<String, Bitmap>> iterator = bitmaps.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().getValue().getByteCount();
+                iterator.remove();
+            }
+        }
+    }
+
+    private final Map<Pool, Entries> pools = new LinkedHashMap<>();
+    private final int maxSize;
+
+    /**
+     * @param maxSize The size of the cache in bytes, shared by the pools.
+     */
+    public BitmapCache(final int maxSize) {
+        this.maxSize = maxSize;
+        for (Pool pool : Pool.values()) {
+            pools.put(pool, new Entries((int) ((long) maxSize * pool.percent / 100)));
+        }
+    }
+
+    /**
+     * @return A cache taking a seventh of the memory available to the application.
+     */
+    public static BitmapCache forContext(final Context context) {
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = manager.getMemoryClass();
+        return new BitmapCache(memoryClass * 1024 * 1024 / MEMORY_SHARE);
+    }
+
+    /**
+     * @param pool The pool the bitmap is kept in.
+     * @param id Identifies the bitmap within the pool.
+     * @return The key of the bitmap, usable as the stable key of a Picasso request.
+     */
+    public static String key(final Pool pool, final String id) {
+        return pool.prefix() + id;
+    }
+
+    private Entries entriesFor(final String key) {
+        for (Map.Entry<Pool, Entries> pool : pools.entrySet()) {
+            if (key.startsWith(pool.getKey().prefix())) {
+                return pool.getValue();
+            }
+        }
+        return pools.get(Pool.PREVIEW);
+    }
+
+    @Override
+    public synchronized Bitmap get(String key) {
+        Entries entries = entriesFor(key);
+        Bitmap bitmap = entries.bitmaps.get(key);
+        if (bitmap != null) {
+            ++entries.hits;
+        } else {
+            ++entries.misses;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Get a bitmap loaded under the stable key of an id, whatever transformations it was loaded with.
+     *
+     * @param pool The pool the bitmap was loaded into.
+     * @param id The id the stable key was built from (see {@link #key(Pool, String)}).
+     * @return The most recently used bitmap of the id, or null if there is none.
+     */
+    public synchronized Bitmap find(final Pool pool, final String id) {
+        Entries entries = pools.get(pool);
+        String found = null;
+        // iterates from the least to the most recently used
+        for (String key : entries.bitmaps.keySet()) {
+            if (isKeyOf(key, id, null)) {
+                found = key;
+            }
+        }
+        if (found == null) {
+            ++entries.misses;
+            return null;
+        }
+        return get(found);
+    }
+
+    @Override
+    public synchronized void set(String key, Bitmap bitmap) {
+        Entries entries = entriesFor(key);
+        int size = bitmap.getByteCount();
+        if (size > entries.maxSize) {
+            return;
+        }
+        Bitmap previous = entries.bitmaps.put(key, bitmap);
+        if (previous != null) {
+            entries.size -= previous.getByteCount();
+        }
+        entries.size += size;
+        entries.trimTo(entries.maxSize);
+    }
+
+    @Override
+    public synchronized int size() {
+        int size = 0;
+        for (Entries entries : pools.values()) {
+            size += entries.size;
+        }
+        return size;
+    }
+
+    @Override
+    public int maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Entries entries : pools.values()) {
+            entries.trimTo(0);
+        }
+    }
+
+    @Override
+    public synchronized void clearKeyUri(String uri) {
+        String path = pathOf(uri);
+        for (Entries entries : pools.values()) {
+            Iterator<Map.Entry<String, Bitmap>> iterator = entries.bitmaps.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Bitmap> entry = iterator.next();
+                if (isKeyOf(entry.getKey(), uri, path)) {
+                    entries.size -= entry.getValue().getByteCount();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The path of a file uri, which files are loaded by, otherwise null.
+     */
+    static String pathOf(final String uri) {
+        if (!uri.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return new URI(uri).getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Picasso keys are the stable key of the request followed by a line per transformation.
+     * The stable keys are built by {@link #key(Pool, String)}, so the id after the pool prefix
+     * is compared with the uri, or with the path of a file uri.
+     *
+     * @param path The path of the uri if it is a file uri, otherwise null.
+     */
+    static boolean isKeyOf(final String key, final String uri, final String path) {
+        int start = 0;
+        for (Pool pool : Pool.values()) {
+            if (key.startsWith(pool.prefix())) {
+                start = pool.prefix().length();
+                break;
+            }
+        }
+        int end = key.indexOf('\n', start);
+        String id = key.substring(start, end < 0 ? key.length() : end);
+        return id.equals(uri) || id.equals(path);
+    }
+
+    /**
+     * Release memory when the system runs low, keeping the grid as long as possible.
+     *
+     * @param level The level passed to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public synchronized void trimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            pools.get(Pool.PREVIEW).trimTo(0);
+            pools.get(Pool.SIDEBAR).trimTo(0);
+        }
+        Log.d(TAG, getStats());
+    }
+
+    /**
+     * @return The hits, misses and sizes of the pools, for logging.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<Pool, Entries> pool : pools.entrySet()) {
+            Entries entries = pool.getValue();
+            stats.append(String.format(Locale.US, "%s: %d hits, %d misses, %d/%d bytes; ",
+                    pool.getKey(), entries.hits, entries.misses, entries.size, entries.maxSize));
+        }
+        return stats.toString().trim();
+    }
+
+    public synchronized long getHitCount(final Pool pool) {
+        return pools.get(pool).hits;
+    }
+
+    public synchronized long getMissCount(final Pool pool) {
+        return pools.get(pool).misses;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.views;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.smilemeback.storage.Thumbnails;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Scales pictures down for the {@link com.smilemeback.storage.Thumbnails}, decoding only as many
+ * pixels of the source as needed for the size.
+ */
+public class BitmapScaler implements Thumbnails.Scaler {
+    public static final int QUALITY = 85;
+
+    @Override
+    public void scale(File source, int size, File target) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getPath(), options);
+        int longest = Math.max(options.outWidth, options.outHeight);
+        if (longest <= 0) {
+            throw new IOException("Could not decode <" + source + ">");
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(longest, size);
+        Bitmap decoded = BitmapFactory.decodeFile(source.getPath(), options);
+        if (decoded == null) {
+            throw new IOException("Could not decode <" + source + ">");
+        }
+        Bitmap scaled = decoded;
+        int decodedLongest = Math.max(decoded.getWidth(), decoded.getHeight());
+        if (decodedLongest > size) {
+            float scale = (float) size / decodedLongest;
+            scaled = Bitmap.createScaledBitmap(decoded,
+                    Math.max(1, Math.round(decoded.getWidth() * scale)),
+                    Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+        }
+        try {
+            writeJpeg(scaled, target);
+        } finally {
+            if (scaled != decoded) {
+                scaled.recycle();
+            }
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * @param longest The longest side of a picture in pixels.
+     * @param size The longest side the picture is scaled to.
+     * @return The largest power of two the picture can be subsampled by when decoding,
+     *         while keeping its longest side at least the size.
+     */
+    public static int sampleSize(int longest, int size) {
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Compress a bitmap into a JPEG file.
+     */
+    public static void writeJpeg(Bitmap bitmap, File target) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(target));
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out)) {
+                throw new IOException("Could not write <" + target + ">");
+            }
+            out.close();
+            out = null;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+}
@@ -19,18 +19,24 @@ package com.smilemeback.views;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Checkable;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import com.google.common.base.Optional;
 import com.smilemeback.R;
 import com.smilemeback.misc.Constants;
+import com.smilemeback.storage.MediaRange;
+import com.smilemeback.storage.Thumbnails;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
 
 import java.io.File;
 
@@ -160,13 +166,63 @@ public class IconView extends RelativeLayout implements Checkable {
      * Load the views bitmap from a file.
      */
     public void setImageBitmap(File file) {
-        Picasso.with(getContext())
-                .load(file)
+        setImageBitmap(MediaRange.of(file), file);
+    }
+
+    /**
+     * Load the views bitmap from a range of a file, which may be an entry of a pack.
+     */
+    public void setImageBitmap(MediaRange range) {
+        setImageBitmap(range, range.getFile());
+    }
+
+    /**
+     * Load the views bitmap from a range of a file, preferring the thumbnail of the picture
+     * closest to the size of the view if it was generated. Pictures with thumbnails are cached
+     * in memory by their content, so that renaming or moving them does not load them again.
+     * @param data The file holding the data of the picture, that the thumbnails are named by.
+     */
+    public void setImageBitmap(MediaRange range, File data) {
+        Optional<File> thumbnail = Thumbnails.find(data, Thumbnails.bucketFor(getImageSize()));
+        RequestCreator request;
+        String id;
+        if (range.isWholeFile() && !thumbnail.isPresent()) {
+            request = Picasso.with(getContext()).load(range.getFile());
+            id = range.getFile().getPath();
+        } else {
+            Uri uri = MediaRequestHandler.uri(range, thumbnail);
+            request = Picasso.with(getContext()).load(uri);
+            id = thumbnail.isPresent() ? thumbnail.get().getName() : uri.toString();
+        }
+        request.stableKey(BitmapCache.key(getCachePool(), id))
                 .fit()
                 .centerCrop()
                 .into(image);
     }
 
+    /**
+     * @return The pool of the {@link com.smilemeback.views.BitmapCache} the bitmaps of the view are kept in.
+     */
+    protected BitmapCache.Pool getCachePool() {
+        return BitmapCache.Pool.GRID;
+    }
+
+    /**
+     * @return The longest side of the image in pixels, before the view was laid out
+     *         taken from its layout or the default size.
+     */
+    protected int getImageSize() {
+        int size = Math.max(image.getWidth(), image.getHeight());
+        ViewGroup.LayoutParams params = image.getLayoutParams();
+        if (size <= 0 && params != null) {
+            size = Math.max(params.width, params.height);
+        }
+        if (size <= 0) {
+            size = getResources().getDimensionPixelSize(R.dimen.iconview_image_width);
+        }
+        return size;
+    }
+
     /**
      * Load the views bitmap from a file.
      * @param resourceId The resource to load into IconView.
@@ -174,6 +230,7 @@ public class IconView extends RelativeLayout implements Checkable {
     public void setImageBitmap(int resourceId) {
         Picasso.with(getContext())
                 .load(resourceId)
+                .stableKey(BitmapCache.key(getCachePool(), "resource:" + resourceId))
                 .fit()
                 .centerCrop()
                 .into(image);
@@ -33,4 +33,9 @@ public class IconViewSide extends IconView {
     protected void inflateLayout(Context context) {
         LayoutInflater.from(context).inflate(R.layout.icon_view_side, this, true);
     }
+
+    @Override
+    protected BitmapCache.Pool getCachePool() {
+        return BitmapCache.Pool.SIDEBAR;
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.views;
+
+import android.net.Uri;
+
+import com.google.common.base.Optional;
+import com.smilemeback.storage.MediaRange;
+import com.smilemeback.storage.Thumbnails;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Request;
+import com.squareup.picasso.RequestHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Lets {@link com.squareup.picasso.Picasso} load images from ranges of a
+ * {@link com.smilemeback.storage.PackFile}, read through a memory mapping.
+ *
+ * A request may name a {@link com.smilemeback.storage.Thumbnails} file of the picture, which is
+ * loaded instead of the range if it was generated already.
+ */
+public class MediaRequestHandler extends RequestHandler {
+    public static final String SCHEME = "smbmedia";
+    private static final String OFFSET = "offset";
+    private static final String LENGTH = "length";
+    private static final String GENERATION = "generation";
+    private static final String THUMBNAIL = "thumbnail";
+
+    /**
+     * @return The uri that is loaded by this handler for the range.
+     */
+    public static Uri uri(MediaRange range) {
+        return uri(range, Optional.<File>absent());
+    }
+
+    /**
+     * @param thumbnail The thumbnail to load instead of the range if it exists.
+     * @return The uri that is loaded by this handler for the range.
+     */
+    public static Uri uri(MediaRange range, Optional<File> thumbnail) {
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(SCHEME)
+                .path(range.getFile().getPath())
+                .appendQueryParameter(OFFSET, Long.toString(range.getOffset()))
+                .appendQueryParameter(LENGTH, Long.toString(range.getLength()))
+                .appendQueryParameter(GENERATION, Integer.toString(range.getGeneration()));
+        if (thumbnail.isPresent()) {
+            builder.appendQueryParameter(THUMBNAIL, thumbnail.get().getPath());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean canHandleRequest(Request data) {
+        return data.uri != null && SCHEME.equals(data.uri.getScheme());
+    }
+
+    @Override
+    public Result load(Request request, int networkPolicy) throws IOException {
+        Uri uri = request.uri;
+        String thumbnail = uri.getQueryParameter(THUMBNAIL);
+        if (thumbnail != null && new File(thumbnail).isFile()) {
+            Thumbnails.touch(new File(thumbnail));
+            return new Result(new FileInputStream(thumbnail), Picasso.LoadedFrom.DISK);
+        }
+        MediaRange range;
+        try {
+            range = new MediaRange(new File(uri.getPath()),
+                    Long.parseLong(uri.getQueryParameter(OFFSET)),
+                    Long.parseLong(uri.getQueryParameter(LENGTH)),
+                    Integer.parseInt(uri.getQueryParameter(GENERATION)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid media uri <" + uri + ">", e);
+        }
+        return new Result(range.openStream(), Picasso.LoadedFrom.DISK);
+    }
+}
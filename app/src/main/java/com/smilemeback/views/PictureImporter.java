@@ -0,0 +1,330 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.views;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Imports a picture chosen from the gallery or taken with the camera in the background.
+ *
+ * The picture is read from its uri, which may be a content uri without a file behind it,
+ * decoded subsampled to about the imported size, turned upright according to its EXIF orientation
+ * and written as a JPEG whose longest side is at most the imported size. Icons are never shown
+ * larger than that, so the library does not keep multi-megabyte camera pictures.
+ *
+ * The target is only replaced once the picture was written completely, and an import that is
+ * cancelled leaves the target untouched.
+ */
+public class PictureImporter {
+    private static final String TAG = PictureImporter.class.getCanonicalName();
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String SPOOL_SUFFIX = ".import";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // share of the progress taken by reading the picture, the rest is decoding and writing
+    private static final int READ_PERCENT = 80;
+
+    private static final ExecutorService importer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PictureImporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Receives the progress of an import on the importing thread.
+     */
+    public interface Progress {
+        /**
+         * @param percent The progress of the import, from 0 to 100.
+         */
+        void onProgress(int percent);
+    }
+
+    /**
+     * Receives the progress and the result of an import on the main thread.
+     * Nothing is received after the import was cancelled.
+     */
+    public interface Callback {
+        /**
+         * @param percent The progress of the import, from 0 to 100.
+         */
+        void onProgress(int percent);
+
+        /**
+         * @param picture The imported picture.
+         */
+        void onImported(File picture);
+
+        void onFailure(IOException e);
+    }
+
+    protected final ContentResolver resolver;
+    protected final int size;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param size The longest side of the imported pictures in pixels.
+     */
+    public PictureImporter(final ContentResolver resolver, final int size) {
+        this.resolver = resolver;
+        this.size = size;
+    }
+
+    /**
+     * Start importing a picture in the background.
+     *
+     * @param source The uri of the picture, a content or a file uri. May be the target.
+     * @param target The file the imported picture is written to.
+     * @param callback Receives the progress and the result on the main thread.
+     * @return The import, which is cancelled by {@link java.util.concurrent.Future#cancel(boolean)}.
+     */
+    public Future<File> start(final Uri source, final File target, final Callback callback) {
+        final Progress progress = new Progress() {
+            private int reported = -1;
+
+            @Override
+            public void onProgress(final int percent) {
+                if (percent != reported) {
+                    reported = percent;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onProgress(percent);
+                        }
+                    });
+                }
+            }
+        };
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                importPicture(source, target, progress);
+                return target;
+            }
+        }) {
+            @Override
+            protected void done() {
+                final FutureTask<File> task = this;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.isCancelled()) {
+                            return;
+                        }
+                        try {
+                            callback.onImported(task.get());
+                        } catch (ExecutionException e) {
+                            callback.onFailure(e.getCause() instanceof IOException
+                                    ? (IOException) e.getCause()
+                                    : new IOException(e.getCause().getMessage(), e.getCause()));
+                        } catch (InterruptedException e) {
+                            callback.onFailure(new InterruptedIOException(e.getMessage()));
+                        }
+                    }
+                });
+            }
+        };
+        importer.execute(task);
+        return task;
+    }
+
+    /**
+     * Import a picture, blocking until it is written. Stops with an
+     * {@link java.io.InterruptedIOException} when the thread is interrupted.
+     *
+     * @param source The uri of the picture, a content or a file uri. May be the target.
+     * @param target The file the imported picture is written to.
+     * @param progress Receives the progress.
+     */
+    public void importPicture(final Uri source, final File target, final Progress progress) throws IOException {
+        // decoding twice and reading the orientation need a file
+        boolean spooled = !ContentResolver.SCHEME_FILE.equals(source.getScheme());
+        File picture = spooled ? new File(target.getPath() + SPOOL_SUFFIX) : new File(source.getPath());
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try {
+            if (spooled) {
+                spool(source, picture, progress);
+            }
+            progress.onProgress(READ_PERCENT);
+            checkInterrupted();
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(picture.getPath(), options);
+            int longest = Math.max(options.outWidth, options.outHeight);
+            if (longest <= 0) {
+                throw new IOException("Could not decode <" + source + ">");
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = BitmapScaler.sampleSize(longest, size);
+            Bitmap decoded = BitmapFactory.decodeFile(picture.getPath(), options);
+            if (decoded == null) {
+                throw new IOException("Could not decode <" + source + ">");
+            }
+            checkInterrupted();
+
+            Bitmap upright = transform(decoded, getRotation(picture));
+            try {
+                checkInterrupted();
+                BitmapScaler.writeJpeg(upright, temp);
+            } finally {
+                if (upright != decoded) {
+                    upright.recycle();
+                }
+                decoded.recycle();
+            }
+            FileUtils.deleteQuietly(target);
+            FileUtils.moveFile(temp, target);
+            progress.onProgress(100);
+            Log.d(TAG, "Imported <" + source + "> to <" + target + "> with " + target.length() + " bytes");
+        } finally {
+            FileUtils.deleteQuietly(temp);
+            if (spooled) {
+                FileUtils.deleteQuietly(picture);
+            }
+        }
+    }
+
+    /**
+     * Copy the picture behind a content uri into a file.
+     */
+    private void spool(final Uri source, final File target, final Progress progress) throws IOException {
+        long total = getLength(source);
+        InputStream in = resolver.openInputStream(source);
+        if (in == null) {
+            throw new IOException("Could not open <" + source + ">");
+        }
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(target));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long done = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                checkInterrupted();
+                out.write(buffer, 0, count);
+                done += count;
+                if (total > 0) {
+                    progress.onProgress((int) (Math.min(done, total) * READ_PERCENT / total));
+                }
+            }
+            out.close();
+            out = null;
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return The length of the picture behind a uri, or -1 if it is not known.
+     */
+    private long getLength(final Uri source) {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openAssetFileDescriptor(source, "r");
+            return descriptor != null ? descriptor.getLength() : -1;
+        } catch (IOException | SecurityException e) {
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not close <" + source + ">: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The clockwise rotation in degrees that turns the picture upright, from its EXIF orientation.
+     */
+    private static int getRotation(final File picture) {
+        try {
+            int orientation = new ExifInterface(picture.getPath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not read the orientation of <" + picture + ">: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Scale a decoded picture down to the imported size and rotate it.
+     *
+     * @return The transformed picture, or the decoded picture if it needs no transformation.
+     */
+    private Bitmap transform(final Bitmap decoded, final int rotation) {
+        int longest = Math.max(decoded.getWidth(), decoded.getHeight());
+        if (longest <= size && rotation == 0) {
+            return decoded;
+        }
+        Matrix matrix = new Matrix();
+        if (longest > size) {
+            float scale = (float) size / longest;
+            matrix.postScale(scale, scale);
+        }
+        matrix.postRotate(rotation);
+        return Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Import cancelled");
+        }
+    }
+}
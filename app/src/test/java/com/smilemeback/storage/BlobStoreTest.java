@@ -0,0 +1,147 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class BlobStoreTest extends FakeContextTestCase {
+
+    private Category category(int position, String name) throws IOException, StorageException, NameException {
+        makeCategory(position, new Name(name), true);
+        return initCategory(position, new Name(name));
+    }
+
+    private BlobStore blobs() throws StorageException {
+        return BlobStore.forCategoriesFolder(storage.getCategoriesFolder());
+    }
+
+    private int numBlobs() throws StorageException {
+        String[] blobs = blobs().getFolder().list();
+        return blobs == null ? 0 : blobs.length;
+    }
+
+    @Test
+    public void testAddStoresDataOnce() throws IOException, StorageException, NameException {
+        // given
+        Images imagesA = new Images(category(0, "A"));
+        Images imagesB = new Images(category(1, "B"));
+        File image = tempFileWithContents();
+        File audio = tempFileWithContents();
+
+        // when
+        imagesA.add(new Name("yes"), image, audio);
+        imagesB.add(new Name("yes"), image, audio);
+
+        // then
+        assertThat(numBlobs(), is(2));
+        Image added = imagesB.get(0);
+        assertThat(added.getImage().length(), is((long) BlobStore.LINK_SIZE));
+        assertThat(added.getImageData().getParentFile(), is(equalTo(blobs().getFolder())));
+        assertThat(added.getImageData().length(), is(image.length()));
+        assertThat(added.getAudioData(), is(not(equalTo(added.getImageData()))));
+    }
+
+    @Test
+    public void testCopyToLinksOriginal() throws IOException, StorageException, NameException {
+        // given
+        Category categoryA = category(0, "A");
+        Category categoryB = category(1, "B");
+        makeImage(categoryA, 0, new Name("toilet"));
+        Images imagesA = new Images(categoryA);
+        long size = imagesA.get(0).getImage().length();
+
+        // when
+        imagesA.copyTo(categoryB, Arrays.asList(imagesA.get(0)));
+
+        // then
+        Images imagesB = new Images(categoryB);
+        assertThat(imagesB.size(), is(1));
+        assertThat(imagesB.get(0).getName(), is(equalTo(new Name("toilet"))));
+        assertThat(imagesB.get(0).getImageData(), is(equalTo(imagesA.get(0).getImageData())));
+        assertThat(imagesA.get(0).getImage().length(), is((long) BlobStore.LINK_SIZE));
+        assertThat(new Images(categoryA).get(0).getAudioData().length(), is(size));
+        assertThat(numBlobs(), is(2));
+    }
+
+    @Test
+    public void testCollectGarbage() throws IOException, StorageException, NameException {
+        // given
+        Category categoryA = category(0, "A");
+        Category categoryB = category(1, "B");
+        makeImage(categoryA, 0, new Name("no"));
+        Images imagesA = new Images(categoryA);
+        imagesA.copyTo(categoryB, Arrays.asList(imagesA.get(0)));
+
+        // when
+        imagesA.delete(Arrays.asList(imagesA.get(0)));
+        int deletedWhileLinked = blobs().collectGarbage(storage.getCategoriesFolder());
+        Images imagesB = new Images(categoryB);
+        imagesB.delete(Arrays.asList(imagesB.get(0)));
+        int deleted = blobs().collectGarbage(storage.getCategoriesFolder());
+
+        // then
+        assertThat(deletedWhileLinked, is(0));
+        assertThat(deleted, is(2));
+        assertThat(numBlobs(), is(0));
+    }
+
+    @Test
+    public void testCollectGarbageKeepsFilesOfPlannedLinks() throws IOException, StorageException, NameException {
+        // given
+        Category category = category(0, "A");
+        File target = new File(category.getFolder(), "0_planned" + Image.IMAGE_SUFFIX);
+        Journal.Plan plan = new Journal.Plan("link");
+        blobs().planLink(plan, blobs().planStore(plan, tempFileWithContents(), true, Image.IMAGE_SUFFIX), target);
+        File interrupted = new File(blobs().getFolder(), "interrupted.tmp");
+        FileUtils.writeStringToFile(interrupted, "left behind by an earlier process");
+        interrupted.setLastModified(interrupted.lastModified() - 24 * 60 * 60 * 1000L);
+
+        // when
+        blobs().collectGarbage(storage.getCategoriesFolder());
+        new Journal(storage.getStorageFolder()).run(plan);
+
+        // then
+        assertThat(interrupted.exists(), is(false));
+        assertThat(BlobStore.readLink(target, -1).isPresent(), is(true));
+        assertThat(blobs().resolve(target, -1).isFile(), is(true));
+    }
+
+    @Test
+    public void testSharedThumbnail() throws StorageException, NameException {
+        // given
+        Categories categories = new Categories(storage.getCategoriesFolder());
+
+        // when
+        Category a = categories.add(new Name("A"), inputStream());
+        Category b = categories.add(new Name("B"), inputStream());
+
+        // then
+        assertThat(numBlobs(), is(1));
+        assertThat(a.getThumbnailData(), is(equalTo(b.getThumbnailData())));
+        assertThat(a.getThumbnailData().length(), is((long) 64 * 1024));
+    }
+}
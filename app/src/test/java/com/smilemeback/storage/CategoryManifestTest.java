@@ -0,0 +1,176 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class CategoryManifestTest extends FakeContextTestCase {
+
+    private Category category() throws IOException, StorageException, NameException {
+        Name categoryName = new Name("CATEGORY A");
+        makeCategory(0, categoryName, true);
+        return initCategory(0, categoryName);
+    }
+
+    @Test
+    public void testManifestWrittenOnScan() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        makeImage(category, 0, new Name("first image"));
+        makeImage(category, 1, new Name("second image"));
+
+        // when
+        new Images(category);
+        CategoryManifest manifest = new CategoryManifest(category);
+
+        // then
+        assertThat(manifest.getFile().isFile(), is(true));
+        assertThat(manifest.isFresh(), is(true));
+        List<Image> loaded = manifest.load().get();
+        assertThat(loaded.size(), is(2));
+        assertThat(loaded.get(0).getName(), is(equalTo(new Name("first image"))));
+        assertThat(loaded.get(1).getPosition(), is(1));
+        assertThat(loaded.get(1).getAudio().getName(), is(equalTo("1_second image" + Image.AUDIO_SUFFIX)));
+    }
+
+    @Test
+    public void testManifestRecordsLinkedBlobs() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        images.add(new Name("linked image"), tempFileWithContents(), tempFileWithContents());
+        File blob = images.snapshot().get(0).getImageData();
+
+        // when
+        Image loaded = new CategoryManifest(category).load().get().get(0);
+
+        // then
+        assertThat(blob.getParentFile(), is(equalTo(BlobStore.forCategoriesFolder(storage.getCategoriesFolder()).getFolder())));
+        assertThat(loaded.imageData, is(equalTo(blob)));
+        assertThat(loaded.audioData, is(equalTo(images.snapshot().get(0).getAudioData())));
+    }
+
+    @Test
+    public void testManifestStaleAfterExternalChange() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        makeImage(category, 0, new Name("first image"));
+        new Images(category);
+        CategoryManifest manifest = new CategoryManifest(category);
+
+        // when
+        makeImage(category, 1, new Name("copied image"));
+        // the copy happens on a later tick of the folder clock
+        category.getFolder().setLastModified(category.getFolder().lastModified() + 2000);
+        Images images = new Images(category);
+
+        // then
+        assertThat(images.size(), is(2));
+        assertThat(images.get(1).getName(), is(equalTo(new Name("copied image"))));
+        assertThat(manifest.isFresh(), is(true));
+    }
+
+    @Test
+    public void testManifestFreshAfterEdits() throws Exception {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        CategoryManifest manifest = new CategoryManifest(category);
+
+        // when
+        addImages(images, "I1", "I2", "I3");
+        boolean freshAfterAdd = manifest.isFresh();
+        images.rearrange(Arrays.asList(images.get(2)), images.get(0));
+        boolean freshAfterRearrange = manifest.isFresh();
+        images.delete(Arrays.asList(images.get(1)));
+        boolean freshAfterDelete = manifest.isFresh();
+        images.migrateToOrderedLayout();
+        images.rearrange(Arrays.asList(images.get(1)), images.get(0));
+        boolean freshAfterOrderedRearrange = manifest.isFresh();
+
+        // then
+        assertThat(freshAfterAdd, is(true));
+        assertThat(freshAfterRearrange, is(true));
+        assertThat(freshAfterDelete, is(true));
+        assertThat(freshAfterOrderedRearrange, is(true));
+        assertThat(manifest.load().get().size(), is(2));
+    }
+
+    @Test
+    public void testCorruptManifestIgnored() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        makeImage(category, 0, new Name("first image"));
+        new Images(category);
+        CategoryManifest manifest = new CategoryManifest(category);
+        FileUtils.writeStringToFile(manifest.getFile(), "garbage");
+
+        // when
+        Images images = new Images(category);
+
+        // then
+        assertThat(manifest.load().isPresent(), is(true));
+        assertThat(images.size(), is(1));
+    }
+
+    @Test
+    public void testManifestUpdatedOnRename() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        images.add(new Name("old name"), tempFileWithContents(), tempFileWithContents());
+
+        // when
+        images.rename(images.get(0), new Name("new name"));
+
+        // then
+        List<Image> loaded = new CategoryManifest(category).load().get();
+        assertThat(loaded.get(0).getName(), is(equalTo(new Name("new name"))));
+        assertThat(loaded.get(0).getImage().isFile(), is(true));
+        assertThat(new Images(category).get(0).getName(), is(equalTo(new Name("new name"))));
+    }
+
+    @Test
+    public void testManifestKeptByOrganize() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        images.add(new Name("A"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("B"), tempFileWithContents(), tempFileWithContents());
+
+        // when
+        images.delete(Arrays.asList(images.get(0)));
+
+        // then
+        CategoryManifest manifest = new CategoryManifest(category);
+        assertThat(manifest.getFile().isFile(), is(true));
+        List<Image> loaded = manifest.load().get();
+        assertThat(loaded.size(), is(1));
+        assertThat(loaded.get(0).getName(), is(equalTo(new Name("B"))));
+        assertThat(loaded.get(0).getPosition(), is(0));
+    }
+}
@@ -84,6 +84,13 @@ public class FakeContextTestCase {
         FileUtils.copyInputStreamToFile(inputStream(), audioFile);
     }
 
+    protected static Images addImages(Images images, String... names) throws IOException, StorageException, NameException {
+        for (String name : names) {
+            images.add(new Name(name), tempFileWithContents(), tempFileWithContents());
+        }
+        return images;
+    }
+
     @Before
     public void setUp() throws IOException {
         context.deleteFiles();
@@ -0,0 +1,132 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+/**
+ * Compares decoding and encoding a listing of {@link #SIZE} file names with the
+ * {@link com.smilemeback.storage.FileNameCodec} against the previous implementation,
+ * which used substrings, a regular expression and {@link String#format(String, Object...)}.
+ * Ignored in the unit test runs, run the main method to get the timings.
+ */
+public class FileNameCodecBenchmark {
+    public static final int SIZE = 50000;
+    public static final int ROUNDS = 20;
+    private static final Pattern VALID_REGEX = Pattern.compile("[^" + Pattern.quote(Name.ILLEGAL_CHARACTERS) + "]+");
+
+    @Test
+    @Ignore("Benchmark, run explicitly")
+    public void benchmark() throws NameException {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) throws NameException {
+        String[] fileNames = new String[SIZE];
+        Name[] names = new Name[SIZE];
+        for (int idx = 0; idx < SIZE; ++idx) {
+            names[idx] = new Name("icon number " + idx);
+            fileNames[idx] = idx + "_" + names[idx] + (idx % 2 == 0 ? Image.IMAGE_SUFFIX : Image.AUDIO_SUFFIX);
+        }
+
+        // warm up
+        for (int round = 0; round < ROUNDS; ++round) {
+            decodeLegacy(fileNames);
+            decodeCodec(fileNames);
+            encodeLegacy(names);
+            encodeCodec(names);
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            decodeLegacy(fileNames);
+        }
+        report("decode, substrings and regex", start);
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            decodeCodec(fileNames);
+        }
+        report("decode, codec", start);
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            encodeLegacy(names);
+        }
+        report("encode, String.format", start);
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            encodeCodec(names);
+        }
+        report("encode, codec", start);
+    }
+
+    private static int decodeLegacy(final String[] fileNames) {
+        int valid = 0;
+        for (String fileName : fileNames) {
+            int underscore = fileName.indexOf('_');
+            int suffix = fileName.lastIndexOf('.');
+            try {
+                Integer.parseInt(fileName.substring(0, underscore));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (VALID_REGEX.matcher(fileName.substring(underscore + 1, suffix)).matches()
+                    && fileName.substring(suffix).equals(Image.IMAGE_SUFFIX)) {
+                ++valid;
+            }
+        }
+        return valid;
+    }
+
+    private static int decodeCodec(final String[] fileNames) {
+        FileNameCodec codec = new FileNameCodec();
+        int valid = 0;
+        for (String fileName : fileNames) {
+            if (codec.decode(fileName) && codec.hasSuffix(Image.IMAGE_SUFFIX)) {
+                ++valid;
+            }
+        }
+        return valid;
+    }
+
+    private static int encodeLegacy(final Name[] names) {
+        int length = 0;
+        for (int idx = 0; idx < names.length; ++idx) {
+            length += String.format("%d_%s%s", idx, names[idx].toString(), Image.IMAGE_SUFFIX).length();
+        }
+        return length;
+    }
+
+    private static int encodeCodec(final Name[] names) {
+        FileNameCodec codec = new FileNameCodec();
+        int length = 0;
+        for (int idx = 0; idx < names.length; ++idx) {
+            length += codec.encode(idx, names[idx], Image.IMAGE_SUFFIX).length();
+        }
+        return length;
+    }
+
+    private static void report(final String name, final long start) {
+        double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+        System.out.println(String.format("%s: %.3f ms per %d file names", name, millis, SIZE));
+    }
+}
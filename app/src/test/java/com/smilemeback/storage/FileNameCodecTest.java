@@ -0,0 +1,88 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+@RunWith(value = BlockJUnit4ClassRunner.class)
+public class FileNameCodecTest {
+
+    @Test
+    public void testDecode() throws NameException {
+        FileNameCodec codec = new FileNameCodec();
+
+        assertThat(codec.decode("12354_file name.3gpp"), is(true));
+        assertThat(codec.getId(), is(12354));
+        assertThat(codec.getName(), is(equalTo(new Name("file name"))));
+        assertThat(codec.hasSuffix(Image.AUDIO_SUFFIX), is(true));
+        assertThat(codec.getSuffix(), is(sameInstance(Image.AUDIO_SUFFIX)));
+
+        assertThat(codec.decode("-3_CATEGORY A"), is(true));
+        assertThat(codec.getId(), is(-3));
+        assertThat(codec.hasSuffix(""), is(true));
+
+        assertThat(codec.decode("7_name.tar_gz"), is(true));
+        assertThat(codec.getSuffix(), is(equalTo(".tar_gz")));
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        FileNameCodec codec = new FileNameCodec();
+
+        assertThat(codec.decode("_thumbnail.jpg"), is(false));
+        assertThat(codec.decode("15"), is(false));
+        assertThat(codec.decode("15_"), is(false));
+        assertThat(codec.decode("15_.jpg"), is(false));
+        assertThat(codec.decode("a5_name.jpg"), is(false));
+        assertThat(codec.decode("1234567890_name.jpg"), is(false));
+        assertThat(codec.decode("1_two_parts.jpg"), is(false));
+        assertThat(codec.decode("1_two.dots.jpg"), is(false));
+        assertThat(codec.decode("-_name"), is(false));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetAfterInvalid() {
+        FileNameCodec codec = new FileNameCodec();
+        codec.decode("invalid");
+        codec.getId();
+    }
+
+    @Test
+    public void testEncode() throws NameException {
+        FileNameCodec codec = new FileNameCodec();
+
+        assertThat(codec.encode(25, new Name("image"), Image.IMAGE_SUFFIX), is(equalTo("25_image.jpg")));
+        assertThat(codec.encode(-1, new Name("CATEGORY A"), ""), is(equalTo("-1_CATEGORY A")));
+    }
+
+    @Test
+    public void testValidName() {
+        assertThat(FileNameCodec.isValidName("Running very fast!", 0, 18), is(true));
+        assertThat(FileNameCodec.isValidName("Õun ja päike", 0, 12), is(true));
+        assertThat(FileNameCodec.isValidName("", 0, 0), is(false));
+        for (char c : Name.ILLEGAL_CHARACTERS.toCharArray()) {
+            assertThat(FileNameCodec.isValidChar(c), is(false));
+        }
+    }
+}
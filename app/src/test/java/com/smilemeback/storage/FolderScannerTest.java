@@ -0,0 +1,93 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class FolderScannerTest extends FakeContextTestCase {
+
+    private Category category() throws IOException, StorageException, NameException {
+        makeCategory(0, new Name("A"), true);
+        return initCategory(0, new Name("A"));
+    }
+
+    private void touch(Category category, String fileName) throws IOException {
+        FileUtils.copyInputStreamToFile(inputStream(), new File(category.getFolder(), fileName));
+    }
+
+    @Test
+    public void testScanCategoryPairsById() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        touch(category, "3_three.jpg");
+        touch(category, "3_three.3gpp");
+        touch(category, "1_one.jpg");
+        touch(category, "1_one.3gpp");
+        touch(category, "2_no audio.jpg");
+        touch(category, "4_other.jpg");
+        touch(category, "4_different.3gpp");
+        touch(category, "unknown.txt");
+
+        // when
+        FolderScanner.CategoryListing listing = FolderScanner.scanCategory(category, true);
+
+        // then
+        assertThat(listing.size(), is(3));
+        assertThat(listing.getId(0), is(1));
+        assertThat(listing.getId(1), is(3));
+        assertThat(listing.getImageFile(1), is(equalTo(new File(category.getFolder(), "3_three.jpg"))));
+        assertThat(listing.getAudioFile(1), is(equalTo(new File(category.getFolder(), "3_three.3gpp"))));
+        assertThat(listing.namesMatch(1), is(true));
+        assertThat(listing.namesMatch(2), is(false));
+    }
+
+    @Test
+    public void testScanCategoriesDeletesStrayFiles() throws IOException, StorageException, NameException {
+        // given
+        makeCategory(1, new Name("B"), true);
+        makeCategory(0, new Name("A"), true);
+        File stray = new File(storage.getCategoriesFolder(), "stray.txt");
+        FileUtils.copyInputStreamToFile(inputStream(), stray);
+
+        // when
+        List<Category> categories = FolderScanner.scanCategories(storage.getCategoriesFolder(), true);
+
+        // then
+        assertThat(categories.size(), is(2));
+        assertThat(categories.get(0).getName(), is(equalTo(new Name("A"))));
+        assertThat(categories.get(1).getName(), is(equalTo(new Name("B"))));
+        assertThat(stray.exists(), is(false));
+    }
+
+    @Test(expected = StorageException.class)
+    public void testVerifyMissingThumbnail() throws IOException, StorageException, NameException {
+        // given
+        makeCategory(0, new Name("A"), false);
+
+        // when
+        FolderScanner.scanCategories(storage.getCategoriesFolder(), true);
+    }
+}
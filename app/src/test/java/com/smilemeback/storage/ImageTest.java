@@ -21,6 +21,9 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -104,6 +107,22 @@ public class ImageTest extends FakeContextTestCase {
         );
     }
 
+    @Test
+    public void testRenamedImageKeepsIdentity() throws NameException, StorageException, IOException {
+        // given
+        Image image = image();
+        Set<Image> selection = new HashSet<>();
+        selection.add(image);
+
+        // when
+        Image newImage = image.rename(new Name("More awesome picture"));
+
+        // then
+        assertThat(newImage, is(equalTo(image)));
+        assertThat(newImage.hashCode(), is(equalTo(image.hashCode())));
+        assertThat(selection.contains(newImage), is(true));
+    }
+
     @Test
     public void testDelete()  throws NameException, StorageException, IOException {
         // given
@@ -122,4 +141,39 @@ public class ImageTest extends FakeContextTestCase {
                 is(false)
         );
     }
+
+    @Test
+    public void testEqualityFollowsPositionInPositionalLayout() throws Exception {
+        // given
+        makeCategory(0, new Name("CATEGORY A"), true);
+        Images images = addImages(new Images(initCategory(0, new Name("CATEGORY A"))), "A", "B");
+        Image A = images.get(0);
+        Image B = images.get(1);
+
+        // when
+        images.delete(Arrays.asList(A));
+
+        // then
+        // B took the position, and with it the id, of A
+        assertThat(images.get(0).getName(), is(equalTo(B.getName())));
+        assertThat(images.get(0), is(equalTo(A)));
+        assertThat(images.get(0), is(not(equalTo(B))));
+    }
+
+    @Test
+    public void testEqualityStableInOrderedLayout() throws Exception {
+        // given
+        makeCategory(0, new Name("CATEGORY A"), true);
+        Images images = addImages(new Images(initCategory(0, new Name("CATEGORY A"))), "A", "B");
+        images.migrateToOrderedLayout();
+        Image A = images.get(0);
+        Image B = images.get(1);
+
+        // when
+        images.delete(Arrays.asList(A));
+
+        // then
+        assertThat(images.get(0), is(equalTo(B)));
+        assertThat(images.get(0), is(not(equalTo(A))));
+    }
 }
@@ -27,6 +27,7 @@ import java.util.List;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class ImagesTest extends FakeContextTestCase {
 
@@ -104,6 +105,30 @@ public class ImagesTest extends FakeContextTestCase {
         assertThat(images.get(1).getName(), is(equalTo(nameC)));
     }
 
+    @Test
+    public void testDeleteOnlyTouchesFollowingImages() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I3"), tempFileWithContents(), tempFileWithContents());
+        Image first = images.get(0);
+        File stray = new File(category.getFolder(), "stray.txt");
+        FileUtils.writeStringToFile(stray, "stray");
+
+        // when
+        images.delete(Arrays.asList(images.get(1)));
+
+        // then
+        assertThat(images.get(0), is(sameInstance(first)));
+        assertThat(first.getImage().isFile(), is(true));
+        assertThat(images.get(1).getName(), is(equalTo(new Name("I3"))));
+        assertThat(images.get(1).getImage().isFile(), is(true));
+        assertThat(stray.isFile(), is(true));
+        assertThat(new Images(category).size(), is(2));
+    }
+
 
     @Test
     public void testOrganize() throws IOException, StorageException, NameException {
@@ -149,6 +174,74 @@ public class ImagesTest extends FakeContextTestCase {
         assertThat(images.get(2).getName(), is(equalTo(nameC)));
     }
 
+    @Test
+    public void testAddTakingOwnership() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        File imageFile = tempFileWithContents();
+        File audioFile = tempFileWithContents();
+
+        // when
+        Image image = images.add(new Name("my image"), imageFile, audioFile, true);
+
+        // then
+        assertThat(imageFile.exists(), is(false));
+        assertThat(audioFile.exists(), is(false));
+        assertThat(image.getImage().isFile(), is(true));
+        assertThat(image.getAudio().isFile(), is(true));
+        assertThat(new Images(category).get(0).getName(), is(equalTo(new Name("my image"))));
+    }
+
+    @Test
+    public void testFailedAddTakingOwnershipRolledBack() throws IOException, StorageException, NameException {
+        // given
+        Category category = category();
+        Images images = new Images(category);
+        File imageFile = tempFileWithContents();
+        File audioFile = tempFileWithContents();
+        File blocking = new File(category.getFolder(),
+                StorageNameUtils.constructImageFileName(0, new Name("my image"), Image.IMAGE_SUFFIX));
+        FileUtils.forceMkdir(blocking);
+
+        // when
+        boolean failed = false;
+        try {
+            images.add(new Name("my image"), imageFile, audioFile, true);
+        } catch (StorageException e) {
+            failed = true;
+        }
+
+        // then
+        assertThat(failed, is(true));
+        assertThat(imageFile.isFile(), is(true));
+        assertThat(audioFile.isFile(), is(true));
+        assertThat(images.size(), is(0));
+        assertThat(new Journal(storage.getStorageFolder()).getFile().exists(), is(false));
+    }
+
+    @Test
+    public void testMoveToRenamesFiles() throws IOException, StorageException, NameException {
+        // given
+        Category category = category(0, new Name("A"));
+        Images images = new Images(category);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+        Image moved = images.get(0);
+        long modified = moved.getImage().lastModified();
+        Category destination = category(1, new Name("B"));
+
+        // when
+        images.moveTo(destination, Arrays.asList(moved));
+        Images destImages = destination.getImages();
+
+        // then
+        assertThat(moved.getImage().getName(), is("0_I1.jpg"));
+        assertThat(new File(category.getFolder(), "0_I2.jpg").isFile(), is(true));
+        assertThat(new File(category.getFolder(), "1_I2.jpg").exists(), is(false));
+        assertThat(destImages.get(0).getImage().lastModified(), is(modified));
+    }
+
     @Test
     public void testMoveToOtherCategory() throws IOException, StorageException, NameException {
         // given
@@ -208,4 +301,50 @@ public class ImagesTest extends FakeContextTestCase {
         assertThat(images.get(2).getName(), is(equalTo(nameD)));
         assertThat(images.get(3).getName(), is(equalTo(nameC)));
     }
+
+    @Test
+    public void testUpdatePackServesRanges() throws IOException, StorageException, NameException {
+        // given
+        Category category = category(0, new Name("A"));
+        Images images = new Images(category);
+        File image = tempFileWithContents();
+        images.add(new Name("I1"), image, tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+
+        // when
+        boolean updated = images.updatePack();
+        List<Image> snapshot = images.snapshot();
+
+        // then
+        assertThat(updated, is(true));
+        assertThat(images.updatePack(), is(false));
+        MediaRange range = snapshot.get(0).getImageRange();
+        assertThat(range.isWholeFile(), is(false));
+        assertThat(range.getFile(), is(equalTo(new File(category.getFolder(), Images.PACK))));
+        assertThat(range.getLength(), is(image.length()));
+        assertThat(new Images(category).size(), is(2));
+    }
+
+    @Test
+    public void testSnapshotsNotChangedByPacking() throws IOException, StorageException, NameException {
+        // given
+        Category category = category(0, new Name("A"));
+        Images images = new Images(category);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        List<Image> before = images.snapshot();
+        MediaRange unpacked = before.get(0).getImageRange();
+
+        // when
+        images.updatePack();
+        List<Image> after = images.snapshot();
+
+        // then
+        assertThat(before.get(0).getImageRange(), is(equalTo(unpacked)));
+        assertThat(unpacked.isWholeFile(), is(true));
+        assertThat(after.get(0).getImageRange().isWholeFile(), is(false));
+        List<StorageChange<Image>> changes = StorageChange.ofImages(before, after);
+        assertThat(changes.size(), is(1));
+        assertThat(changes.get(0).getKind(), is(StorageChange.Kind.MEDIA_UPDATED));
+        assertThat(images.snapshot().get(0), is(sameInstance(after.get(0))));
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class JournalTest extends FakeContextTestCase {
+
+    private File file(String name, String contents) throws IOException, StorageException {
+        File file = new File(storage.getStorageFolder(), name);
+        FileUtils.writeStringToFile(file, contents);
+        return file;
+    }
+
+    @Test
+    public void testRunClearsJournal() throws IOException, StorageException {
+        // given
+        Journal journal = new Journal(storage.getStorageFolder());
+        File a = file("a", "A");
+        File b = new File(storage.getStorageFolder(), "b");
+        File c = file("c", "C");
+
+        // when
+        journal.run(new Journal.Plan("test").move(a, b).copy(b, a).delete(c));
+
+        // then
+        assertThat(journal.getFile().exists(), is(false));
+        assertThat(FileUtils.readFileToString(a), is("A"));
+        assertThat(FileUtils.readFileToString(b), is("A"));
+        assertThat(c.exists(), is(false));
+        assertThat(journal.recover(), is(false));
+    }
+
+    @Test
+    public void testFailedPlanRolledBack() throws IOException, StorageException {
+        // given
+        Journal journal = new Journal(storage.getStorageFolder());
+        File a = file("a", "A");
+        File b = file("b", "B");
+        File temp = new File(storage.getStorageFolder(), "temp");
+        File copy = new File(storage.getStorageFolder(), "copy");
+        Journal.Plan plan = new Journal.Plan("swap")
+                .move(a, temp)
+                .copy(b, copy)
+                .move(new File(storage.getStorageFolder(), "missing"), new File(storage.getStorageFolder(), "found"))
+                .move(b, a)
+                .move(temp, b);
+
+        // when
+        boolean failed = false;
+        try {
+            journal.run(plan);
+        } catch (StorageException e) {
+            failed = true;
+        }
+
+        // then
+        assertThat(failed, is(true));
+        assertThat(journal.getFile().exists(), is(false));
+        assertThat(FileUtils.readFileToString(a), is("A"));
+        assertThat(FileUtils.readFileToString(b), is("B"));
+        assertThat(temp.exists(), is(false));
+        assertThat(copy.exists(), is(false));
+        assertThat(journal.recover(), is(false));
+    }
+
+    @Test
+    public void testInterruptedPlanRolledForward() throws IOException, StorageException {
+        // given
+        // a process killed in the middle of the plan does not get to roll it back
+        Journal journal = new Journal(storage.getStorageFolder()) {
+            @Override
+            boolean rollBack(Plan plan, int done) {
+                return false;
+            }
+        };
+        File a = file("a", "A");
+        File b = file("b", "B");
+        File temp = new File(storage.getStorageFolder(), "temp");
+        File missing = new File(storage.getStorageFolder(), "missing");
+        // swap a and b, but fail in the middle
+        Journal.Plan plan = new Journal.Plan("swap")
+                .move(a, temp)
+                .move(missing, new File(storage.getStorageFolder(), "found"))
+                .move(b, a)
+                .move(temp, b);
+        try {
+            journal.run(plan);
+        } catch (StorageException e) {
+            // expected
+        }
+        assertThat(journal.getFile().exists(), is(true));
+        FileUtils.writeStringToFile(missing, "M");
+
+        // when
+        boolean recovered = new Journal(storage.getStorageFolder()).recover();
+
+        // then
+        assertThat(recovered, is(true));
+        assertThat(journal.getFile().exists(), is(false));
+        assertThat(FileUtils.readFileToString(a), is("B"));
+        assertThat(FileUtils.readFileToString(b), is("A"));
+        assertThat(temp.exists(), is(false));
+    }
+
+    @Test
+    public void testPartialJournalIgnored() throws IOException, StorageException {
+        // given
+        Journal journal = new Journal(storage.getStorageFolder());
+        File a = file("a", "A");
+        FileUtils.writeByteArrayToFile(journal.getFile(), new byte[] {1, 0});
+
+        // when
+        boolean recovered = journal.recover();
+
+        // then
+        assertThat(recovered, is(false));
+        assertThat(journal.getFile().exists(), is(false));
+        assertThat(a.exists(), is(true));
+    }
+
+    @Test
+    public void testRearrangeDoesNotOrganize() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = new Images(category);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+        File stray = new File(category.getFolder(), "unknown.txt");
+        FileUtils.writeStringToFile(stray, "data");
+
+        // when
+        images.rearrange(Arrays.asList(images.get(1)), images.get(0));
+
+        // then
+        assertThat(stray.exists(), is(true));
+        assertThat(images.get(0).getName(), is(equalTo(new Name("I2"))));
+        assertThat(images.get(0).getImage().getName(), is("0_I2.jpg"));
+        assertThat(images.get(0).getImage().isFile(), is(true));
+        assertThat(new Images(category).get(1).getName(), is(equalTo(new Name("I1"))));
+    }
+}
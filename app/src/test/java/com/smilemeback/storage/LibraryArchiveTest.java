@@ -0,0 +1,149 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class LibraryArchiveTest extends FakeContextTestCase {
+
+    private File archiveFile() throws IOException {
+        File file = File.createTempFile("library", LibraryArchive.SUFFIX);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testRestoreExportedLibrary() throws IOException, StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+        library.getCategories().add(new Name("B"), inputStream());
+        File image = tempFileWithContents();
+        library.getImages(A).add(new Name("I1"), image, tempFileWithContents());
+        File archive = archiveFile();
+        final long[] progress = new long[2];
+        library.exportArchive(library.getCategories().snapshot(), archive, new LibraryArchive.Progress() {
+            @Override
+            public void onProgress(long done, long total) {
+                progress[0] = done;
+                progress[1] = total;
+            }
+        });
+        library.getCategories().delete(library.getCategories().snapshot());
+
+        // when
+        library.restoreArchive(archive, null);
+
+        // then
+        assertThat(progress[0], is(progress[1]));
+        List<Category> categories = library.getCategories().snapshot();
+        assertThat(categories.size(), is(2));
+        assertThat(categories.get(0).getName(), is(equalTo(new Name("A"))));
+        Images images = library.getImages(categories.get(0));
+        assertThat(images.size(), is(1));
+        assertThat(images.get(0).getName(), is(equalTo(new Name("I1"))));
+        assertThat(images.get(0).getImageData().length(), is(image.length()));
+        assertThat(new LibraryArchive(storage.getCategoriesFolder()).getStagingFolder().exists(), is(false));
+    }
+
+    @Test
+    public void testMediaIsStored() throws IOException, StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+        library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        File archive = archiveFile();
+
+        // when
+        library.exportArchive(Arrays.asList(A), archive, null);
+
+        // then
+        ZipInputStream in = new ZipInputStream(new FileInputStream(archive));
+        try {
+            assertThat(in.getNextEntry().getName(), is(LibraryArchive.MARKER));
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                boolean media = entry.getName().endsWith(Image.IMAGE_SUFFIX) || entry.getName().endsWith(Image.AUDIO_SUFFIX);
+                assertThat(entry.getName(), entry.getMethod() == ZipEntry.STORED, is(media));
+                assertThat(entry.getName().endsWith(Images.PACK), is(false));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testFailedRestoreKeepsLibrary() throws IOException, StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        library.getCategories().add(new Name("A"), inputStream());
+        File archive = archiveFile();
+        FileUtils.writeStringToFile(archive, "not an archive");
+
+        // when
+        boolean failed = false;
+        try {
+            library.restoreArchive(archive, null);
+        } catch (StorageException e) {
+            failed = true;
+        }
+
+        // then
+        assertThat(failed, is(true));
+        assertThat(library.getCategories().size(), is(1));
+        assertThat(new LibraryArchive(storage.getCategoriesFolder()).getStagingFolder().exists(), is(false));
+    }
+
+    @Test
+    public void testRestoreKeepsOrderOfCategories() throws IOException, StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        Categories categories = library.getCategories();
+        Category A = categories.add(new Name("A"), inputStream());
+        categories.add(new Name("B"), inputStream());
+        Category C = categories.add(new Name("C"), inputStream());
+        categories.add(new Name("D"), inputStream());
+        categories.delete(Arrays.asList(A));
+        categories.rearrange(Arrays.asList(C), categories.get(0));
+        File archive = archiveFile();
+        library.exportArchive(categories.snapshot(), archive, null);
+
+        // when
+        library.restoreArchive(archive, null);
+
+        // then
+        List<Category> restored = library.getCategories().snapshot();
+        assertThat(restored.size(), is(3));
+        assertThat(restored.get(0).getName(), is(equalTo(new Name("C"))));
+        assertThat(restored.get(1).getName(), is(equalTo(new Name("B"))));
+        assertThat(restored.get(2).getName(), is(equalTo(new Name("D"))));
+        assertThat(new Categories(storage.getCategoriesFolder()).snapshot(), is(equalTo((List<Category>) restored)));
+    }
+}
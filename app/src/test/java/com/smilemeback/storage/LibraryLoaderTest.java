@@ -0,0 +1,93 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class LibraryLoaderTest extends FakeContextTestCase {
+
+    @Test
+    public void testLoadsCategoriesInOrder() throws IOException, StorageException, NameException {
+        // given
+        for (int idx = 0; idx < 20; ++idx) {
+            makeCategory(idx, new Name("C" + idx), true);
+        }
+
+        // when
+        LibraryLoader.Result result = new LibraryLoader(storage.getCategoriesFolder(), 4).load();
+
+        // then
+        assertThat(result.getFailures().size(), is(0));
+        assertThat(result.getCategories().size(), is(20));
+        for (int idx = 0; idx < 20; ++idx) {
+            assertThat(result.getCategories().get(idx).getName(), is(equalTo(new Name("C" + idx))));
+        }
+    }
+
+    @Test
+    public void testFailuresReportedPerCategory() throws IOException, StorageException, NameException {
+        // given
+        makeCategory(0, new Name("A"), true);
+        makeCategory(1, new Name("B"), false);
+        makeCategory(2, new Name("C"), true);
+        Category C = initCategory(2, new Name("C"));
+        FileUtils.copyInputStreamToFile(inputStream(), new File(C.getFolder(), "0_image.jpg"));
+        FileUtils.copyInputStreamToFile(inputStream(), new File(C.getFolder(), "0_other.3gpp"));
+        FileUtils.forceMkdir(new File(storage.getCategoriesFolder(), "invalid"));
+
+        // when
+        LibraryLoader.Result result = new LibraryLoader(storage.getCategoriesFolder(), 2).load();
+
+        // then
+        assertThat(result.getCategories().size(), is(3));
+        assertThat(result.getFailures().size(), is(3));
+        assertThat(result.getFailures().get(0).getFolder().getName(), is("invalid"));
+        assertThat(result.getFailures().get(0).getCategory().isPresent(), is(false));
+        assertThat(result.getFailures().get(1).getCategory().get().getName(), is(equalTo(new Name("B"))));
+        assertThat(result.getFailures().get(2).getCategory().get().getName(), is(equalTo(new Name("C"))));
+    }
+
+    @Test
+    public void testGapsAndDuplicatesReported() throws IOException, StorageException, NameException {
+        // given
+        makeCategory(0, new Name("A"), true);
+        makeCategory(2, new Name("C"), true);
+        makeCategory(2, new Name("D"), true);
+        makeCategory(3, new Name("E"), true);
+
+        // when
+        LibraryLoader.Result result = new LibraryLoader(storage.getCategoriesFolder(), 2).load();
+
+        // then
+        assertThat(result.getCategories().size(), is(3));
+        assertThat(result.getCategories().get(1).getName(), is(equalTo(new Name("C"))));
+        assertThat(result.getCategories().get(1).getPosition(), is(1));
+        assertThat(result.getCategories().get(2).getName(), is(equalTo(new Name("E"))));
+        assertThat(result.getCategories().get(2).getPosition(), is(2));
+        assertThat(result.getFailures().size(), is(2));
+        assertThat(result.getFailures().get(0).getCategory().get().getName(), is(equalTo(new Name("C"))));
+        assertThat(result.getFailures().get(1).getCategory().get().getName(), is(equalTo(new Name("D"))));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class LibrarySnapshotTest extends FakeContextTestCase {
+
+    private LibrarySnapshot snapshot() throws StorageException {
+        return new LibrarySnapshot(storage.getStorageFolder(), storage.getCategoriesFolder());
+    }
+
+    @Test
+    public void testSavedSnapshotLoaded() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        Category A = categories.add(new Name("A"), inputStream());
+        categories.add(new Name("B"), inputStream());
+        Images images = new Images(A);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+        Map<File, List<Image>> known = new HashMap<>();
+        known.put(A.getFolder(), images.snapshot());
+        snapshot().save(categories.snapshot(), known);
+
+        // when
+        Optional<LibrarySnapshot.Contents> contents = snapshot().load();
+
+        // then
+        assertThat(contents.isPresent(), is(true));
+        ImmutableList<Category> loaded = contents.get().getCategories();
+        assertThat(loaded, is(equalTo((List<Category>) categories.snapshot())));
+        assertThat(loaded.get(1).getName().toString(), is("B"));
+        assertThat(loaded.get(0).getThumbnailData(), is(A.getThumbnailData()));
+        assertThat(contents.get().getImages().size(), is(1));
+        List<Image> loadedImages = contents.get().getImages().get(A.getFolder());
+        assertThat(loadedImages, is(equalTo((List<Image>) images.snapshot())));
+        assertThat(loadedImages.get(1).getName().toString(), is("I2"));
+        assertThat(loadedImages.get(1).getImageData(), is(images.get(1).getImageData()));
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        categories.add(new Name("A"), inputStream());
+        LibrarySnapshot snapshot = snapshot();
+        snapshot.save(categories.snapshot(), new HashMap<File, List<Image>>());
+        byte[] data = FileUtils.readFileToByteArray(snapshot.getFile());
+        data[data.length / 2] ^= 0x5a;
+        FileUtils.writeByteArrayToFile(snapshot.getFile(), data);
+
+        // when
+        Optional<LibrarySnapshot.Contents> contents = snapshot.load();
+
+        // then
+        assertThat(contents.isPresent(), is(false));
+    }
+}
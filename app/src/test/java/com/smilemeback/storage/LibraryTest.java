@@ -0,0 +1,158 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class LibraryTest extends FakeContextTestCase {
+
+    @Test
+    public void testModelsAreCached() throws StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+
+        // when
+        Categories categories = library.getCategories();
+        Images images = library.getImages(A);
+
+        // then
+        assertThat(library.getCategories(), is(sameInstance(categories)));
+        assertThat(library.getImages(A), is(sameInstance(images)));
+    }
+
+    @Test
+    public void testDestinationInvalidatedOnMove() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+        Category B = library.getCategories().add(new Name("B"), inputStream());
+        Images source = library.getImages(A);
+        Images destination = library.getImages(B);
+        source.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+
+        // when
+        source.moveTo(B, Arrays.asList(source.get(0)));
+
+        // then
+        assertThat(library.getImages(A), is(sameInstance(source)));
+        assertThat(library.getImages(B), is(not(sameInstance(destination))));
+        assertThat(library.getImages(B).size(), is(1));
+    }
+
+    @Test
+    public void testRenamedCategoriesInvalidated() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Categories categories = library.getCategories();
+        Category A = categories.add(new Name("A"), inputStream());
+        Category B = categories.add(new Name("B"), inputStream());
+        Category C = categories.add(new Name("C"), inputStream());
+        Images imagesA = library.getImages(A);
+        library.getImages(B).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+
+        // when
+        categories.delete(Arrays.asList(categories.get(1)));
+
+        // then
+        assertThat(library.getImages(A), is(sameInstance(imagesA)));
+        assertThat(library.getImages(categories.get(1)).size(), is(0));
+        assertThat(categories.get(1).getName(), is(equalTo(C.getName())));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws StorageException, NameException {
+        // given
+        Library library = new Library(storage);
+        Categories categories = library.getCategories();
+        for (int idx = 0; idx <= Library.MAX_CACHED_CATEGORIES; ++idx) {
+            categories.add(new Name("C" + idx), inputStream());
+        }
+        Images first = library.getImages(categories.get(0));
+
+        // when
+        for (int idx = 1; idx <= Library.MAX_CACHED_CATEGORIES; ++idx) {
+            library.getImages(categories.get(idx));
+        }
+
+        // then
+        assertThat(library.getImages(categories.get(0)), is(not(sameInstance(first))));
+    }
+
+    @Test
+    public void testRepairDeletesStrayFiles() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+        library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        File stray = new File(A.getFolder(), "stray.txt");
+        FileUtils.writeStringToFile(stray, "stray");
+
+        // when
+        library.repair();
+
+        // then
+        assertThat(stray.exists(), is(false));
+        assertThat(library.getImages(A).size(), is(1));
+    }
+
+    @Test
+    public void testRefreshLoadsCategoriesAddedOutside() throws Exception {
+        // given
+        Library library = new Library(storage);
+        library.getCategories().add(new Name("A"), inputStream());
+        makeCategory(7, new Name("B"), true);
+
+        // when
+        boolean reloaded = library.refresh();
+
+        // then
+        assertThat(reloaded, is(true));
+        assertThat(library.getCategories().size(), is(2));
+        assertThat(library.refresh(), is(false));
+    }
+
+    @Test
+    public void testRefreshReloadsImagesModifiedOutside() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category A = library.getCategories().add(new Name("A"), inputStream());
+        library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        boolean reloadedOwnEdit = library.refresh();
+        makeImage(A, 7, new Name("I2"));
+        // the folder must look newer than the manifest regardless of the timestamp granularity
+        A.getFolder().setLastModified(System.currentTimeMillis() + 10000);
+
+        // when
+        boolean reloaded = library.refresh();
+
+        // then
+        assertThat(reloadedOwnEdit, is(false));
+        assertThat(reloaded, is(true));
+        assertThat(library.getImages(A).size(), is(2));
+    }
+}
@@ -49,6 +49,7 @@ public class NameTest {
         Name c = new Name("Running");
 
         assertThat(a, is(equalTo(b)));
+        assertThat(a.hashCode(), is(equalTo(b.hashCode())));
         assertThat(a, is(not(equalTo(c))));
     }
 }
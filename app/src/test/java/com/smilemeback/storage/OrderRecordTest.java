@@ -0,0 +1,178 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class OrderRecordTest extends FakeContextTestCase {
+
+    private Images orderedImages(Category category, String... names) throws Exception {
+        Images images = new Images(category);
+        images.migrateToOrderedLayout();
+        return addImages(images, names);
+    }
+
+    @Test
+    public void testMigrationKeepsFileNames() throws IOException, StorageException, NameException {
+        // given
+        makeCategory(0, new Name("A"), true);
+        Category category = initCategory(0, new Name("A"));
+        makeImage(category, 0, new Name("I1"));
+        makeImage(category, 1, new Name("I2"));
+        Images images = new Images(category);
+        assertThat(images.isOrdered(), is(false));
+
+        // when
+        images.migrateToOrderedLayout();
+        Images reloaded = new Images(category);
+
+        // then
+        assertThat(reloaded.isOrdered(), is(true));
+        assertThat(reloaded.size(), is(2));
+        assertThat(reloaded.get(1).getName(), is(equalTo(new Name("I2"))));
+        assertThat(reloaded.get(1).getImage().getName(), is("1_I2.jpg"));
+    }
+
+    @Test
+    public void testRearrangeOnlyWritesOrder() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = orderedImages(category, "I1", "I2", "I3", "I4");
+        File first = images.get(0).getImage();
+
+        // when
+        images.rearrange(Arrays.asList(images.get(0), images.get(3)), images.get(1));
+        Images reloaded = new Images(category);
+
+        // then
+        assertThat(first.isFile(), is(true));
+        assertThat(reloaded.get(0).getName(), is(equalTo(new Name("I2"))));
+        assertThat(reloaded.get(1).getName(), is(equalTo(new Name("I1"))));
+        assertThat(reloaded.get(1).getImage(), is(equalTo(first)));
+        assertThat(reloaded.get(1).getPosition(), is(1));
+        assertThat(reloaded.get(2).getName(), is(equalTo(new Name("I4"))));
+        assertThat(reloaded.get(3).getName(), is(equalTo(new Name("I3"))));
+    }
+
+    @Test
+    public void testDeleteAndAddKeepIdsStable() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = orderedImages(category, "I1", "I2", "I3");
+        File last = images.get(2).getImage();
+
+        // when
+        images.delete(Arrays.asList(images.get(0)));
+        Image added = images.add(new Name("I4"), tempFileWithContents(), tempFileWithContents());
+
+        // then
+        assertThat(images.size(), is(3));
+        assertThat(images.get(1).getImage(), is(equalTo(last)));
+        assertThat(images.get(1).getPosition(), is(1));
+        assertThat(added.getId(), is(3));
+        assertThat(added.getPosition(), is(2));
+        assertThat(new Images(category).get(2).getName(), is(equalTo(new Name("I4"))));
+    }
+
+    @Test
+    public void testSaveReplacesRecordThroughTemporaryFile() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = orderedImages(category, "I1", "I2", "I3");
+        File record = new OrderRecord(category.getFolder()).getFile();
+        File temp = new File(record.getPath() + ".tmp");
+        FileUtils.writeStringToFile(temp, "left over by a killed write");
+
+        // when
+        images.rearrange(Arrays.asList(images.get(2)), images.get(0));
+        Images reloaded = new Images(category);
+
+        // then
+        assertThat(temp.exists(), is(false));
+        assertThat(reloaded.get(0).getName(), is(equalTo(new Name("I3"))));
+        assertThat(reloaded.get(1).getName(), is(equalTo(new Name("I1"))));
+    }
+
+    @Test
+    public void testUnknownFilesAppended() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = orderedImages(category, "I1", "I2");
+        images.rearrange(Arrays.asList(images.get(1)), images.get(0));
+
+        // when
+        makeImage(category, 7, new Name("copied"));
+        // the copy happens on a later tick of the folder clock
+        category.getFolder().setLastModified(category.getFolder().lastModified() + 2000);
+        Images reloaded = new Images(category);
+
+        // then
+        assertThat(reloaded.size(), is(3));
+        assertThat(reloaded.get(0).getName(), is(equalTo(new Name("I2"))));
+        assertThat(reloaded.get(2).getName(), is(equalTo(new Name("copied"))));
+        assertThat(reloaded.add(new Name("I3"), tempFileWithContents(), tempFileWithContents()).getId(), is(8));
+    }
+
+    @Test
+    public void testOrderedCategories() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        categories.add(new Name("A"), inputStream());
+        categories.add(new Name("B"), inputStream());
+        categories.add(new Name("C"), inputStream());
+        categories.migrateToOrderedLayout();
+        File folderA = categories.get(0).getFolder();
+
+        // when
+        categories.rearrange(Arrays.asList(categories.get(0)), categories.get(2));
+        categories.delete(Arrays.asList(categories.get(0)));
+        Categories reloaded = storage.getCategories();
+
+        // then
+        assertThat(reloaded.isOrdered(), is(true));
+        assertThat(reloaded.size(), is(2));
+        assertThat(reloaded.get(0).getName(), is(equalTo(new Name("C"))));
+        assertThat(reloaded.get(1).getName(), is(equalTo(new Name("A"))));
+        assertThat(reloaded.get(1).getFolder(), is(equalTo(folderA)));
+        assertThat(new Images(reloaded.get(1)).isOrdered(), is(true));
+    }
+
+    @Test
+    public void testMigrationSkippedOnceOrdered() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        categories.add(new Name("A"), inputStream());
+        categories.migrateToOrderedLayout();
+        OrderRecord record = new OrderRecord(categories.get(0).getFolder());
+        record.delete();
+
+        // when
+        storage.getCategories().migrateToOrderedLayout();
+
+        // then
+        assertThat(record.exists(), is(false));
+    }
+}
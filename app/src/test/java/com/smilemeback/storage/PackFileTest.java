@@ -0,0 +1,182 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class PackFileTest extends FakeContextTestCase {
+
+    private File packFile() throws StorageException {
+        return new File(storage.getCategoriesFolder(), Images.PACK);
+    }
+
+    private static File tempFileWithBytes(int size, int seed) throws IOException {
+        File file = File.createTempFile("pack", ".dat");
+        file.deleteOnExit();
+        byte[] bytes = new byte[size];
+        for (int idx=0 ; idx<size ; ++idx) {
+            bytes[idx] = (byte) (idx * 31 + seed);
+        }
+        FileUtils.writeByteArrayToFile(file, bytes);
+        return file;
+    }
+
+    private static byte[] read(MediaRange range) throws IOException {
+        InputStream in = range.openStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static Map<String, File> entries(Object... keysAndFiles) {
+        Map<String, File> entries = new LinkedHashMap<>();
+        for (int idx=0 ; idx<keysAndFiles.length ; idx+=2) {
+            entries.put((String) keysAndFiles[idx], (File) keysAndFiles[idx + 1]);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testAppendedEntriesCanBeRead() throws IOException, StorageException {
+        // given
+        File a = tempFileWithBytes(1000, 1);
+        File b = tempFileWithBytes(3000, 2);
+        PackFile pack = new PackFile(packFile());
+
+        // when
+        pack.append(entries("a", a, "b", b));
+        PackFile reopened = new PackFile(packFile());
+
+        // then
+        assertThat(reopened.size(), is(2));
+        MediaRange range = reopened.get("b").get();
+        assertThat(range.getFile(), is(equalTo(packFile())));
+        assertThat(range.getOffset(), is(1000L));
+        assertThat(range.getLength(), is(3000L));
+        assertThat(read(range), is(equalTo(FileUtils.readFileToByteArray(b))));
+        assertThat(read(reopened.get("a").get()), is(equalTo(FileUtils.readFileToByteArray(a))));
+        assertThat(reopened.get("c").isPresent(), is(false));
+    }
+
+    @Test
+    public void testRemoveLeavesDeadBytes() throws IOException, StorageException {
+        // given
+        PackFile pack = new PackFile(packFile());
+        pack.append(entries("a", tempFileWithBytes(1000, 1), "b", tempFileWithBytes(500, 2)));
+
+        // when
+        pack.remove(Arrays.asList("a"));
+        PackFile reopened = new PackFile(packFile());
+
+        // then
+        assertThat(reopened.contains("a"), is(false));
+        assertThat(reopened.contains("b"), is(true));
+        assertThat(reopened.getDeadBytes(), is(1000L));
+        assertThat(reopened.needsCompaction(), is(false));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCompactInvalidatesOldRanges() throws IOException, StorageException {
+        // given
+        File b = tempFileWithBytes(500, 2);
+        PackFile pack = new PackFile(packFile());
+        pack.append(entries("a", tempFileWithBytes(1000, 1), "b", b));
+        pack.remove(Arrays.asList("a"));
+        MediaRange old = pack.get("b").get();
+
+        // when
+        pack.compact();
+
+        // then
+        MediaRange range = pack.get("b").get();
+        assertThat(range.getOffset(), is(0L));
+        assertThat(range.getGeneration(), is(not(old.getGeneration())));
+        assertThat(pack.getDeadBytes(), is(0L));
+        assertThat(read(range), is(equalTo(FileUtils.readFileToByteArray(b))));
+        old.openStream();
+    }
+
+    @Test
+    public void testDamagedPackIsEmpty() throws IOException, StorageException {
+        // given
+        PackFile pack = new PackFile(packFile());
+        pack.append(entries("a", tempFileWithBytes(1000, 1)));
+        RandomAccessFile out = new RandomAccessFile(packFile(), "rw");
+        try {
+            out.setLength(out.length() - 3);
+        } finally {
+            out.close();
+        }
+
+        // when
+        PackFile damaged = new PackFile(packFile());
+
+        // then
+        assertThat(damaged.size(), is(0));
+    }
+
+    @Test
+    public void testOpenFileChecksGenerationOfOpenedFile() throws IOException, StorageException {
+        // given
+        File b = tempFileWithBytes(500, 2);
+        PackFile pack = new PackFile(packFile());
+        pack.append(entries("a", tempFileWithBytes(1000, 1), "b", b));
+        pack.remove(Arrays.asList("a"));
+        MediaRange old = pack.get("b").get();
+        FileInputStream opened = old.openFile();
+
+        // when
+        pack.compact();
+
+        // then
+        boolean stale = false;
+        try {
+            old.openFile().close();
+        } catch (IOException e) {
+            stale = true;
+        }
+        assertThat(stale, is(true));
+        try {
+            // the descriptor opened before still reads the old pack from its start
+            assertThat(opened.getChannel().position(), is(0L));
+            byte[] data = new byte[(int) old.getLength()];
+            opened.skip(old.getOffset());
+            IOUtils.readFully(opened, data);
+            assertThat(data, is(equalTo(FileUtils.readFileToByteArray(b))));
+        } finally {
+            opened.close();
+        }
+    }
+}
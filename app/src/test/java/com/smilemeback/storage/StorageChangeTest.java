@@ -0,0 +1,184 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import com.google.common.base.Function;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class StorageChangeTest {
+
+    /**
+     * Item identified by its id, like categories and images.
+     */
+    private static class Item {
+        final int id;
+        final String name;
+        final String media;
+
+        Item(int id, String name, String media) {
+            this.id = id;
+            this.name = name;
+            this.media = media;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return id + name;
+        }
+    }
+
+    private static final Function<Item, Object> NAME = new Function<Item, Object>() {
+        @Override
+        public Object apply(Item item) {
+            return item.name;
+        }
+    };
+
+    private static final Function<Item, Object> MEDIA = new Function<Item, Object>() {
+        @Override
+        public Object apply(Item item) {
+            return item.media;
+        }
+    };
+
+    private static List<Item> items(int... ids) {
+        List<Item> items = new ArrayList<>();
+        for (int id : ids) {
+            items.add(new Item(id, "", ""));
+        }
+        return items;
+    }
+
+    private static List<StorageChange<Item>> diff(List<Item> before, List<Item> after) {
+        return StorageChange.diff(before, after, NAME, MEDIA);
+    }
+
+    @Test
+    public void testSingleMove() {
+        // given
+        List<Item> before = items(0, 1, 2, 3, 4);
+        List<Item> after = items(1, 2, 3, 4, 0);
+
+        // when
+        List<StorageChange<Item>> changes = diff(before, after);
+
+        // then
+        assertThat(changes.size(), is(1));
+        assertThat(changes.get(0).getKind(), is(StorageChange.Kind.MOVED));
+        assertThat(changes.get(0).getPosition(), is(0));
+        assertThat(changes.get(0).getToPosition(), is(4));
+    }
+
+    @Test
+    public void testInsertedAndRemoved() {
+        // given
+        List<Item> before = items(0, 1, 2);
+        List<Item> after = items(0, 2, 3);
+
+        // when
+        List<StorageChange<Item>> changes = diff(before, after);
+
+        // then
+        assertThat(changes.size(), is(2));
+        assertThat(changes.get(0).getKind(), is(StorageChange.Kind.REMOVED));
+        assertThat(changes.get(0).getPosition(), is(1));
+        assertThat(changes.get(1).getKind(), is(StorageChange.Kind.INSERTED));
+        assertThat(changes.get(1).getPosition(), is(2));
+    }
+
+    @Test
+    public void testRenamedAndMediaUpdated() {
+        // given
+        List<Item> before = items(0, 1, 2);
+        List<Item> after = new ArrayList<>(before);
+        after.set(1, new Item(1, "renamed", ""));
+        after.set(2, new Item(2, "", "new media"));
+
+        // when
+        List<StorageChange<Item>> changes = diff(before, after);
+
+        // then
+        assertThat(changes.size(), is(2));
+        assertThat(changes.get(0).getKind(), is(StorageChange.Kind.RENAMED));
+        assertThat(changes.get(0).getPosition(), is(1));
+        assertThat(changes.get(1).getKind(), is(StorageChange.Kind.MEDIA_UPDATED));
+        assertThat(changes.get(1).getPosition(), is(2));
+    }
+
+    @Test
+    public void testSameInstancesHaveNoChanges() {
+        // given
+        List<Item> before = items(0, 1, 2);
+
+        // when
+        List<StorageChange<Item>> changes = diff(before, new ArrayList<>(before));
+
+        // then
+        assertThat(changes.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testApplyingChangesGivesNewList() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; ++round) {
+            // given
+            List<Item> before = new ArrayList<>();
+            List<Item> after = new ArrayList<>();
+            for (int id = 0; id < 12; ++id) {
+                Item item = new Item(id, "", "");
+                if (random.nextInt(4) != 0) {
+                    before.add(item);
+                }
+                if (random.nextInt(4) != 0) {
+                    after.add(random.nextBoolean() ? item : new Item(id, "renamed", ""));
+                }
+            }
+            Collections.shuffle(after, random);
+
+            // when
+            List<Item> applied = new ArrayList<>(before);
+            StorageChange.apply(applied, diff(before, after));
+
+            // then
+            assertThat(applied, is(equalTo(after)));
+            for (int idx = 0; idx < after.size(); ++idx) {
+                assertThat(applied.get(idx).name, is(after.get(idx).name));
+            }
+        }
+    }
+}
@@ -91,4 +91,17 @@ public class StorageNameUtilsTest {
                 is(false)
         );
     }
+
+    @Test
+    public void testParse() throws NameException {
+        StorageName parsed = StorageNameUtils.parse("15_file name.3gpp").get();
+        assertThat(parsed.getId(), is(equalTo(15)));
+        assertThat(parsed.getName(), is(equalTo(new Name("file name"))));
+        assertThat(parsed.getSuffix(), is(equalTo(".3gpp")));
+        assertThat(StorageNameUtils.parse("-5_folder").get().getId(), is(equalTo(-5)));
+        assertThat(StorageNameUtils.parse("-5_folder").get().getSuffix(), is(equalTo("")));
+        assertThat(StorageNameUtils.parse("_thumbnail.jpg").isPresent(), is(false));
+        assertThat(StorageNameUtils.parse("1a_name.jpg").isPresent(), is(false));
+        assertThat(StorageNameUtils.parse("1_.jpg").isPresent(), is(false));
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class StorageServiceTest extends FakeContextTestCase {
+    private StorageService service;
+
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Before
+    public void setUpService() {
+        service = new StorageService(new Library(storage), direct);
+    }
+
+    @After
+    public void tearDownService() {
+        service.shutdown();
+    }
+
+    private StorageService.Task<Category> addCategory(final String name) {
+        return new StorageService.Task<Category>() {
+            @Override
+            public Category run(Library library) throws StorageException {
+                try {
+                    return library.getCategories().add(new Name(name), inputStream());
+                } catch (NameException e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testSnapshotsPublishedAfterTask() throws Exception {
+        // given
+        ImmutableList<Category> before = service.loadCategories(null).get();
+
+        // when
+        Category A = service.submit(addCategory("A"), null).get();
+
+        // then
+        assertThat(before.size(), is(0));
+        assertThat(service.getCategories().size(), is(1));
+        assertThat(service.getCategories().get(0), is(equalTo(A)));
+    }
+
+    @Test
+    public void testImageSnapshotsFollowEdits() throws Exception {
+        // given
+        final Category A = service.submit(addCategory("A"), null).get();
+        service.loadImages(A, null).get();
+        ImmutableList<Image> before = service.getImages(A);
+
+        // when
+        service.submit(new StorageService.Task<Image>() {
+            @Override
+            public Image run(Library library) throws StorageException {
+                try {
+                    return library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+                } catch (Exception e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+            }
+        }, null).get();
+
+        // then
+        assertThat(before.size(), is(0));
+        assertThat(service.getImages(A).size(), is(1));
+        assertThat(service.getImages(A), is(not(equalTo(before))));
+    }
+
+    @Test
+    public void testSnapshotsOfDeletedCategoriesDropped() throws Exception {
+        // given
+        final Category A = service.submit(addCategory("A"), null).get();
+        service.loadImages(A, null).get();
+
+        // when
+        service.submit(new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                library.getCategories().delete(Arrays.asList(A));
+                return null;
+            }
+        }, null).get();
+
+        // then
+        assertThat(service.getCategories().size(), is(0));
+        assertThat(service.getImages(A).size(), is(0));
+    }
+
+    @Test
+    public void testFailureDeliveredToCallback() throws Exception {
+        // given
+        final AtomicReference<StorageException> failure = new AtomicReference<>();
+        final AtomicReference<Object> result = new AtomicReference<>();
+        StorageService.Callback<Object> callback = new StorageService.Callback<Object>() {
+            @Override
+            public void onSuccess(Object value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(StorageException e) {
+                failure.set(e);
+            }
+        };
+
+        // when
+        Exception thrown = null;
+        try {
+            service.submit(new StorageService.Task<Object>() {
+                @Override
+                public Object run(Library library) throws StorageException {
+                    throw new StorageException("failed");
+                }
+            }, callback).get();
+        } catch (ExecutionException e) {
+            thrown = e;
+        }
+
+        // then
+        assertThat(thrown.getCause(), is(instanceOf(StorageException.class)));
+        assertThat(failure.get().getMessage(), is("failed"));
+        assertThat(result.get(), is(nullValue()));
+    }
+
+    @Test
+    public void testChangesDeliveredToListeners() throws Exception {
+        // given
+        final Category A = service.submit(addCategory("A"), null).get();
+        service.loadImages(A, null).get();
+        final List<StorageChange<Image>> delivered = new ArrayList<>();
+        service.addChangeListener(new StorageService.ChangeListener() {
+            @Override
+            public void categoriesChanged(ImmutableList<Category> categories, List<StorageChange<Category>> changes) { }
+
+            @Override
+            public void imagesChanged(Category category, ImmutableList<Image> images, List<StorageChange<Image>> changes) {
+                delivered.addAll(changes);
+            }
+        });
+
+        // when
+        service.submit(new StorageService.Task<Image>() {
+            @Override
+            public Image run(Library library) throws StorageException {
+                try {
+                    return library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+                } catch (Exception e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+            }
+        }, null).get();
+
+        // then
+        assertThat(delivered.size(), is(1));
+        assertThat(delivered.get(0).getKind(), is(StorageChange.Kind.INSERTED));
+        assertThat(delivered.get(0).getPosition(), is(0));
+    }
+
+    @Test
+    public void testSnapshotRestoredBeforeLoading() throws Exception {
+        // given
+        service.restoreSnapshot();
+        final Category A = service.submit(addCategory("A"), null).get();
+        service.loadImages(A, null).get();
+        service.submit(new StorageService.Task<Image>() {
+            @Override
+            public Image run(Library library) throws StorageException {
+                try {
+                    return library.getImages(A).add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+                } catch (Exception e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+            }
+        }, null).get();
+        // the snapshot is written behind the edit
+        service.loadCategories(null).get();
+        StorageService restarted = new StorageService(new Library(storage), direct);
+
+        // when
+        boolean restored = restarted.restoreSnapshot();
+
+        // then
+        assertThat(restored, is(true));
+        assertThat(restarted.getCategories(), is(equalTo((List<Category>) Arrays.asList(A))));
+        assertThat(restarted.getImages(A).size(), is(1));
+        assertThat(restarted.getImages(A).get(0).getName().toString(), is("I1"));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testPurgeQueuedBehindUndo() throws Exception {
+        // given
+        final Category A = service.submit(addCategory("A"), null).get();
+        service.submit(new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                try {
+                    addImages(library.getImages(A), "I1");
+                } catch (Exception e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+                return null;
+            }
+        }, null).get();
+        service.setTrashRetention(0);
+
+        // when
+        service.submit(new StorageService.Task<Void>() {
+            @Override
+            public Void run(Library library) throws StorageException {
+                Images images = library.getImages(A);
+                images.delete(Arrays.asList(images.get(0)));
+                return null;
+            }
+        }, null);
+        Boolean undone = service.submit(new StorageService.Task<Boolean>() {
+            @Override
+            public Boolean run(Library library) throws StorageException {
+                try {
+                    // a purge running next to the writer would empty the trash in the meantime
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new StorageException(e.getMessage(), e);
+                }
+                return library.undo();
+            }
+        }, null).get();
+        service.loadImages(A, null).get();
+
+        // then
+        assertThat(undone, is(true));
+        assertThat(service.getImages(A).size(), is(1));
+        assertThat(service.getImages(A).get(0).getImage().isFile(), is(true));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+public class ThumbnailsTest extends FakeContextTestCase {
+
+    /**
+     * Copies the pictures, remembering what it was asked to scale.
+     */
+    private static class CopyingScaler implements Thumbnails.Scaler {
+        final List<File> sources = new ArrayList<>();
+
+        @Override
+        public void scale(File source, int size, File target) throws IOException {
+            sources.add(source);
+            FileUtils.copyFile(source, target);
+        }
+    }
+
+    private Thumbnails thumbnails() throws StorageException {
+        return Thumbnails.forCategoriesFolder(storage.getCategoriesFolder());
+    }
+
+    private static File pictureWithContents(String contents) throws IOException {
+        File picture = File.createTempFile("fake", "file");
+        FileUtils.writeStringToFile(picture, contents);
+        return picture;
+    }
+
+    private Image addImage() throws Exception {
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = new Images(category);
+        images.add(new Name("I1"), pictureWithContents("picture"), tempFileWithContents());
+        return images.get(0);
+    }
+
+    @Test
+    public void testAllBucketsGenerated() throws Exception {
+        // given
+        Image image = addImage();
+        Thumbnails thumbnails = thumbnails();
+        CopyingScaler scaler = new CopyingScaler();
+        String key = Thumbnails.keyOf(image.getImageData()).get();
+
+        // when
+        int generated = thumbnails.generate(image.getImageData(), scaler);
+        int regenerated = thumbnails.generate(image.getImageData(), scaler);
+
+        // then
+        assertThat(generated, is(Thumbnails.SIZES.length));
+        assertThat(regenerated, is(0));
+        for (int size : Thumbnails.SIZES) {
+            assertThat(thumbnails.get(key, size).isFile(), is(true));
+            assertThat(Thumbnails.find(image.getImageData(), size).get(), is(thumbnails.get(key, size)));
+        }
+        // only the largest bucket is scaled from the picture, the others from its scaled copy
+        assertThat(scaler.sources.get(0), is(image.getImageData()));
+        assertThat(scaler.sources.get(1).getName(), startsWith(thumbnails.get(key, Thumbnails.SIZES[2]).getName()));
+        assertThat(thumbnails.getFolder().list().length, is(Thumbnails.SIZES.length));
+    }
+
+    @Test
+    public void testScaledThumbnailsOfDeletedPictureDropped() throws Exception {
+        // given
+        Image image = addImage();
+        Thumbnails thumbnails = thumbnails();
+        File picture = image.getImageData();
+        List<File> scaled = thumbnails.scale(picture, new CopyingScaler());
+
+        // when
+        FileUtils.forceDelete(picture);
+        int stored = thumbnails.store(picture, scaled);
+
+        // then
+        assertThat(scaled.size(), is(Thumbnails.SIZES.length));
+        assertThat(stored, is(0));
+        assertThat(thumbnails.getFolder().list().length, is(0));
+    }
+
+    @Test
+    public void testPicturesOutsideBlobsSkipped() throws Exception {
+        // given
+        File picture = tempFileWithContents();
+
+        // when
+        int generated = thumbnails().generate(picture, new CopyingScaler());
+
+        // then
+        assertThat(generated, is(0));
+        assertThat(Thumbnails.find(picture, Thumbnails.SIZES[0]).isPresent(), is(false));
+    }
+
+    @Test
+    public void testBucketFor() {
+        assertThat(Thumbnails.bucketFor(100), is(192));
+        assertThat(Thumbnails.bucketFor(192), is(192));
+        assertThat(Thumbnails.bucketFor(300), is(512));
+        assertThat(Thumbnails.bucketFor(4000), is(1280));
+    }
+
+    @Test
+    public void testThumbnailsOfMissingBlobsCollected() throws Exception {
+        // given
+        Image image = addImage();
+        Thumbnails thumbnails = thumbnails();
+        thumbnails.generate(image.getImageData(), new CopyingScaler());
+        Image other = new Images(image.getCategory()).add(new Name("I2"), pictureWithContents("other picture"), tempFileWithContents());
+        thumbnails.generate(other.getImageData(), new CopyingScaler());
+        FileUtils.forceDelete(image.getImageData());
+
+        // when
+        int deleted = thumbnails.collectGarbage(BlobStore.forCategoriesFolder(storage.getCategoriesFolder()));
+
+        // then
+        assertThat(deleted, is(Thumbnails.SIZES.length));
+        assertThat(thumbnails.getFolder().list().length, is(Thumbnails.SIZES.length));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedThumbnailsEvicted() throws Exception {
+        // given
+        Image image = addImage();
+        Thumbnails thumbnails = thumbnails();
+        thumbnails.generate(image.getImageData(), new CopyingScaler());
+        String key = Thumbnails.keyOf(image.getImageData()).get();
+        long length = thumbnails.get(key, Thumbnails.SIZES[0]).length();
+        long now = System.currentTimeMillis();
+        for (int idx = 0; idx < Thumbnails.SIZES.length; ++idx) {
+            thumbnails.get(key, Thumbnails.SIZES[idx]).setLastModified(now - (idx + 2) * 60 * 60 * 1000L);
+        }
+        Thumbnails.touch(thumbnails.get(key, Thumbnails.SIZES[2]));
+
+        // when
+        int deleted = thumbnails.trim(length);
+
+        // then
+        assertThat(deleted, is(2));
+        assertThat(thumbnails.get(key, Thumbnails.SIZES[0]).isFile(), is(false));
+        assertThat(thumbnails.get(key, Thumbnails.SIZES[1]).isFile(), is(false));
+        assertThat(thumbnails.get(key, Thumbnails.SIZES[2]).isFile(), is(true));
+        assertThat(thumbnails.trim(length), is(0));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class TransactionTest extends FakeContextTestCase {
+
+    @Test
+    public void testBatchedImageEdits() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        Category source = categories.add(new Name("A"), inputStream());
+        Category destination = categories.add(new Name("B"), inputStream());
+        Images images = addImages(new Images(source), "I1", "I2", "I3", "I4", "I5");
+        Image I1 = images.get(0);
+        Image I2 = images.get(1);
+        Image I3 = images.get(2);
+        Image I5 = images.get(4);
+
+        // when
+        TransactionResult<Image> result = images.transaction()
+                .delete(Arrays.asList(I1))
+                .moveTo(destination, Arrays.asList(I3))
+                .rename(I2, new Name("renamed"))
+                .rearrange(Arrays.asList(I5), I2)
+                .commit();
+
+        // then
+        assertThat(images.size(), is(3));
+        assertThat(images.get(0).getName(), is(equalTo(new Name("I5"))));
+        assertThat(images.get(1).getName(), is(equalTo(new Name("renamed"))));
+        assertThat(images.get(2).getName(), is(equalTo(new Name("I4"))));
+        assertThat(result.getRemoved(), is(equalTo(Arrays.asList(I1, I3))));
+        assertThat(result.getChanged().size(), is(3));
+
+        Images reloaded = new Images(source);
+        assertThat(reloaded.get(0).getImage().getName(), is("0_I5.jpg"));
+        assertThat(reloaded.get(1).getImage().getName(), is("1_renamed.jpg"));
+        assertThat(reloaded.get(2).getImage().getName(), is("2_I4.jpg"));
+        assertThat(source.getFolder().list().length, is(3 * 2 + 2));
+        assertThat(new Images(destination).get(0).getName(), is(equalTo(new Name("I3"))));
+    }
+
+    @Test
+    public void testRemovedImageCannotBeEdited() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = addImages(new Images(category), "I1", "I2");
+        Image I1 = images.get(0);
+
+        // when
+        Images.Transaction transaction = images.transaction().delete(Arrays.asList(I1));
+
+        // then
+        try {
+            transaction.rename(I1, new Name("other"));
+            throw new AssertionError("Renaming a deleted image should fail");
+        } catch (StorageException e) {
+            // expected
+        }
+        transaction.commit();
+        assertThat(images.size(), is(1));
+    }
+
+    @Test
+    public void testBatchedCategoryEdits() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        Category A = categories.add(new Name("A"), inputStream());
+        Category B = categories.add(new Name("B"), inputStream());
+        Category C = categories.add(new Name("C"), inputStream());
+        Category D = categories.add(new Name("D"), inputStream());
+
+        // when
+        TransactionResult<Category> result = categories.transaction()
+                .delete(Arrays.asList(A))
+                .rename(C, new Name("renamed"))
+                .rearrange(Arrays.asList(D), B)
+                .commit();
+
+        // then
+        assertThat(result.getRemoved(), is(equalTo(Arrays.asList(A))));
+        Categories reloaded = storage.getCategories();
+        assertThat(reloaded.size(), is(3));
+        assertThat(reloaded.get(0).getFolder().getName(), is("0_D"));
+        assertThat(reloaded.get(1).getFolder().getName(), is("1_B"));
+        assertThat(reloaded.get(2).getFolder().getName(), is("2_renamed"));
+        assertThat(categories.get(2).getName(), is(equalTo(new Name("renamed"))));
+    }
+
+    @Test
+    public void testRelocateUsesTemporaryFilesOnlyForCycles() throws Exception {
+        // given
+        File folder = storage.getStorageFolder();
+        List<File[]> sources = new ArrayList<>();
+        List<File[]> targets = new ArrayList<>();
+        List<File[]> temps = new ArrayList<>();
+        String[][] moves = {{"b", "a"}, {"c", "b"}, {"x", "y"}, {"y", "x"}};
+        for (String[] move : moves) {
+            sources.add(new File[] {new File(folder, move[0])});
+            targets.add(new File[] {new File(folder, move[1])});
+            temps.add(new File[] {new File(folder, "temp_" + move[0])});
+        }
+
+        // when
+        Journal.Plan plan = new Journal.Plan("test").relocate(sources, targets, temps);
+
+        // then
+        assertThat(plan.getSteps().size(), is(5));
+        assertThat(plan.getSteps().get(0).target.getName(), is("a"));
+        assertThat(plan.getSteps().get(1).target.getName(), is("b"));
+        assertThat(plan.getSteps().get(2).target.getName(), is("temp_x"));
+        assertThat(plan.getSteps().get(3).target.getName(), is("x"));
+        assertThat(plan.getSteps().get(4).target.getName(), is("y"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class TrashTest extends FakeContextTestCase {
+
+    private Trash trash() throws StorageException {
+        return Trash.forCategoriesFolder(storage.getCategoriesFolder());
+    }
+
+    private File entry(Trash trash, String name) throws IOException {
+        File entry = new File(trash.getFolder(), name);
+        FileUtils.forceMkdir(entry);
+        return entry;
+    }
+
+    @Test
+    public void testDeletedImagesMovedToTrash() throws Exception {
+        // given
+        Category category = storage.getCategories().add(new Name("A"), inputStream());
+        Images images = new Images(category);
+        images.add(new Name("I1"), tempFileWithContents(), tempFileWithContents());
+        images.add(new Name("I2"), tempFileWithContents(), tempFileWithContents());
+        Image deleted = images.get(0);
+
+        // when
+        images.delete(Arrays.asList(deleted));
+
+        // then
+        assertThat(deleted.getImage().exists(), is(false));
+        List<File> entries = trash().getEntries();
+        assertThat(entries.size(), is(1));
+        File trashed = new File(entries.get(0), category.getFolder().getName());
+        assertThat(new File(trashed, deleted.getImage().getName()).isFile(), is(true));
+        assertThat(new File(trashed, deleted.getAudio().getName()).isFile(), is(true));
+    }
+
+    @Test
+    public void testDeletedCategoriesMovedToTrash() throws Exception {
+        // given
+        Categories categories = storage.getCategories();
+        Category category = categories.add(new Name("A"), inputStream());
+
+        // when
+        categories.delete(Arrays.asList(category));
+
+        // then
+        assertThat(category.getFolder().exists(), is(false));
+        List<File> entries = trash().getEntries();
+        assertThat(entries.size(), is(1));
+        assertThat(new File(entries.get(0), category.getFolder().getName()).isDirectory(), is(true));
+    }
+
+    @Test
+    public void testEntriesOrderedByTimeAndSequence() throws Exception {
+        // given
+        Trash trash = trash();
+        File first = entry(trash, "999-12");
+        File third = entry(trash, "1000-10");
+        File second = entry(trash, "1000-9");
+
+        // when
+        List<File> entries = trash.getEntries();
+
+        // then
+        assertThat(entries, is(equalTo(Arrays.asList(first, second, third))));
+    }
+
+    @Test
+    public void testPurgeDeletesOldEntries() throws Exception {
+        // given
+        Trash trash = trash();
+        File old = entry(trash, "1000-1");
+        File unknown = entry(trash, "unknown");
+        File recent = entry(trash, "2000-2");
+
+        // when
+        int purged = trash.purge(1000, 2500);
+
+        // then
+        assertThat(purged, is(2));
+        assertThat(old.exists(), is(false));
+        assertThat(unknown.exists(), is(false));
+        assertThat(trash.getEntries(), is(equalTo(Arrays.asList(recent))));
+    }
+
+    @Test
+    public void testTrashedImagesKeepTheirBlobs() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category category = library.getCategories().add(new Name("A"), inputStream());
+        Images images = library.getImages(category);
+        // the image data differs from the thumbnail, so it is not linked from the category
+        File image = tempFileWithContents();
+        FileUtils.writeStringToFile(image, "image");
+        images.add(new Name("I1"), image, tempFileWithContents());
+        File data = images.get(0).getImageData();
+        images.delete(Arrays.asList(images.get(0)));
+
+        // when
+        library.collectGarbage();
+        boolean keptWhileTrashed = data.exists();
+        library.getTrash().purge(-1);
+        library.collectGarbage();
+
+        // then
+        assertThat(keptWhileTrashed, is(true));
+        assertThat(data.exists(), is(false));
+    }
+}
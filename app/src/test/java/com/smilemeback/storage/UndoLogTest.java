@@ -0,0 +1,156 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class UndoLogTest extends FakeContextTestCase {
+
+    private List<String> names(Iterable<?> items) {
+        List<String> names = new ArrayList<>();
+        for (Object item : items) {
+            names.add(item instanceof Image ? ((Image) item).getName().toString() : ((Category) item).getName().toString());
+        }
+        return names;
+    }
+
+    @Test
+    public void testUndoRearrange() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category category = library.getCategories().add(new Name("A"), inputStream());
+        Images images = addImages(library.getImages(category), "I1", "I2", "I3");
+        images.rearrange(Arrays.asList(images.get(2)), images.get(0));
+
+        // when
+        boolean undone = library.undo();
+
+        // then
+        assertThat(undone, is(true));
+        assertThat(names(library.getImages(category)), is(equalTo(Arrays.asList("I1", "I2", "I3"))));
+    }
+
+    @Test
+    public void testUndoRename() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category category = library.getCategories().add(new Name("A"), inputStream());
+        Images images = addImages(library.getImages(category), "I1", "I2");
+        images.rename(images.get(1), new Name("Renamed"));
+
+        // when
+        library.undo();
+
+        // then
+        assertThat(names(library.getImages(category)), is(equalTo(Arrays.asList("I1", "I2"))));
+        assertThat(names(new Images(category)), is(equalTo(Arrays.asList("I1", "I2"))));
+    }
+
+    @Test
+    public void testUndoDeleteRestoresFromTrash() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category category = library.getCategories().add(new Name("A"), inputStream());
+        Images images = addImages(library.getImages(category), "I1", "I2", "I3");
+        Image deleted = images.get(1);
+        images.delete(Arrays.asList(deleted));
+
+        // when
+        library.undo();
+
+        // then
+        Images restored = library.getImages(category);
+        assertThat(names(restored), is(equalTo(Arrays.asList("I1", "I2", "I3"))));
+        assertThat(restored.get(1).getId(), is(deleted.getId()));
+        assertThat(deleted.getImage().isFile(), is(true));
+        assertThat(deleted.getAudio().isFile(), is(true));
+    }
+
+    @Test
+    public void testUndoMoveReturnsImages() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category source = library.getCategories().add(new Name("A"), inputStream());
+        Category destination = library.getCategories().add(new Name("B"), inputStream());
+        Images images = addImages(library.getImages(source), "I1", "I2");
+        addImages(library.getImages(destination), "J1");
+        images.moveTo(destination, Arrays.asList(images.get(0)));
+
+        // when
+        library.undo();
+
+        // then
+        assertThat(names(library.getImages(source)), is(equalTo(Arrays.asList("I1", "I2"))));
+        assertThat(names(library.getImages(destination)), is(equalTo(Arrays.asList("J1"))));
+    }
+
+    @Test
+    public void testUndoCategoryDelete() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Categories categories = library.getCategories();
+        categories.add(new Name("A"), inputStream());
+        Category deleted = categories.add(new Name("B"), inputStream());
+        addImages(library.getImages(deleted), "I1");
+        categories.delete(Arrays.asList(deleted));
+
+        // when
+        library.undo();
+
+        // then
+        assertThat(names(library.getCategories()), is(equalTo(Arrays.asList("A", "B"))));
+        assertThat(names(library.getImages(library.getCategories().get(1))), is(equalTo(Arrays.asList("I1"))));
+    }
+
+    @Test
+    public void testLogPersistedAndBounded() throws Exception {
+        // given
+        Library library = new Library(storage);
+        Category category = library.getCategories().add(new Name("A"), inputStream());
+        Images images = addImages(library.getImages(category), "I1");
+        for (int i = 0; i < UndoLog.MAX_STEPS + 5; ++i) {
+            images.rename(images.get(0), new Name("I" + (i + 2)));
+        }
+
+        // when
+        UndoLog reloaded = new UndoLog(storage.getStorageFolder());
+
+        // then
+        assertThat(reloaded.size(), is(UndoLog.MAX_STEPS));
+    }
+
+    @Test
+    public void testNothingToUndo() throws Exception {
+        // given
+        Library library = new Library(storage);
+        library.getCategories();
+
+        // when
+        boolean undone = library.undo();
+
+        // then
+        assertThat(undone, is(false));
+    }
+}
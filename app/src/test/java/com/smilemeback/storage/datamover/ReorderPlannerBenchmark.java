@@ -0,0 +1,82 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage.datamover;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the reorder planning of {@link #SIZE} items. Ignored in the unit test runs,
+ * run the main method to get the timings.
+ */
+public class ReorderPlannerBenchmark {
+    public static final int SIZE = 10000;
+    public static final int ROUNDS = 50;
+
+    @Test
+    @Ignore("Benchmark, run explicitly")
+    public void benchmark() {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) {
+        int[] selected = new int[SIZE / 3];
+        List<Integer> items = new ArrayList<>();
+        List<Integer> selection = new ArrayList<>();
+        for (int idx = 0; idx < SIZE; ++idx) {
+            items.add(idx);
+        }
+        for (int idx = 0; idx < selected.length; ++idx) {
+            selected[idx] = idx * 3 + 1;
+            selection.add(selected[idx]);
+        }
+
+        // warm up
+        for (int round = 0; round < ROUNDS; ++round) {
+            ReorderPlanner.planPermutation(ReorderPlanner.destinations(ReorderPlanner.rearrange(SIZE, selected, SIZE - 1)));
+        }
+
+        long start = System.nanoTime();
+        int[] order = null;
+        for (int round = 0; round < ROUNDS; ++round) {
+            order = ReorderPlanner.rearrange(SIZE, selected, SIZE - 1);
+        }
+        report("rearrange", start);
+
+        start = System.nanoTime();
+        MovePlan plan = null;
+        for (int round = 0; round < ROUNDS; ++round) {
+            plan = ReorderPlanner.planPermutation(ReorderPlanner.destinations(order));
+        }
+        report("planPermutation", start);
+        System.out.println("moves: " + plan.size() + ", temporary names: " + plan.getTemporaryCount());
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            new DataMover<>(items, selection, SIZE - 1).getSourceTargetMapping();
+        }
+        report("DataMover", start);
+    }
+
+    private static void report(final String name, final long start) {
+        double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+        System.out.println(String.format("%s: %.3f ms per %d items", name, millis, SIZE));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.storage.datamover;
+
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(value = BlockJUnit4ClassRunner.class)
+public class ReorderPlannerTest {
+
+    /**
+     * Apply the plan to slots holding the items, checking that no move overwrites an item.
+     * @return The item at each position after the moves.
+     */
+    static int[] apply(final MovePlan plan, final int[] destinations) {
+        int n = destinations.length;
+        int[] slots = new int[n];
+        for (int idx = 0; idx < n; ++idx) {
+            slots[idx] = idx;
+        }
+        int temp = -1;
+        for (int m = 0; m < plan.size(); ++m) {
+            int item = plan.getItem(m);
+            int target = destinations[item];
+            switch (plan.getKind(m)) {
+                case MovePlan.DIRECT:
+                    slots[item] = -1;
+                    assertThat(slots[target], is(-1));
+                    slots[target] = item;
+                    break;
+                case MovePlan.TO_TEMP:
+                    assertThat(temp, is(-1));
+                    temp = item;
+                    slots[item] = -1;
+                    break;
+                case MovePlan.FROM_TEMP:
+                    assertThat(slots[target], is(-1));
+                    slots[target] = temp;
+                    temp = -1;
+                    break;
+            }
+        }
+        return slots;
+    }
+
+    @Test
+    public void testRearrangeNonContiguousSelectionAfterTarget() {
+        int[] order = ReorderPlanner.rearrange(10, new int[] {1, 4, 8}, 6);
+        assertThat(order, is(equalTo(new int[] {0, 2, 3, 5, 6, 1, 4, 8, 7, 9})));
+    }
+
+    @Test
+    public void testRearrangeSelectionBeforeTarget() {
+        int[] order = ReorderPlanner.rearrange(10, new int[] {5, 9}, 2);
+        assertThat(order, is(equalTo(new int[] {0, 1, 5, 9, 2, 3, 4, 6, 7, 8})));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTargetInSelection() {
+        ReorderPlanner.rearrange(10, new int[] {1, 2}, 2);
+    }
+
+    @Test
+    public void testRotationIsSingleCycle() {
+        // given
+        int[] destinations = ReorderPlanner.destinations(ReorderPlanner.rearrange(10, new int[] {0}, 9));
+
+        // when
+        MovePlan plan = ReorderPlanner.planPermutation(destinations);
+
+        // then
+        assertThat(plan.size(), is(11));
+        assertThat(plan.getTemporaryCount(), is(1));
+    }
+
+    @Test
+    public void testUnaffectedItemsDoNotMove() {
+        // given
+        int[] destinations = ReorderPlanner.destinations(ReorderPlanner.rearrange(10, new int[] {4}, 5));
+
+        // when
+        MovePlan plan = ReorderPlanner.planPermutation(destinations);
+
+        // then
+        assertThat(plan.size(), is(3));
+        assertThat(plan.getTemporaryCount(), is(1));
+    }
+
+    @Test
+    public void testChainsNeedNoTemporaryNames() {
+        // given: 0 -> free, 1 -> 0, 2 -> 1
+        int[] blockers = {MovePlan.NONE, 0, 1};
+
+        // when
+        MovePlan plan = ReorderPlanner.plan(blockers);
+
+        // then
+        assertThat(plan.size(), is(3));
+        assertThat(plan.getTemporaryCount(), is(0));
+        assertThat(plan.getItem(0), is(0));
+        assertThat(plan.getItem(1), is(1));
+        assertThat(plan.getItem(2), is(2));
+    }
+
+    @Test
+    public void testLargeRearrangeOneTemporaryPerCycle() {
+        // given
+        int n = 10000;
+        int[] selected = new int[n / 3];
+        for (int idx = 0; idx < selected.length; ++idx) {
+            selected[idx] = idx * 3 + 1;
+        }
+
+        // when
+        int[] order = ReorderPlanner.rearrange(n, selected, n - 1);
+        int[] destinations = ReorderPlanner.destinations(order);
+        MovePlan plan = ReorderPlanner.planPermutation(destinations);
+
+        // then
+        int moving = 0;
+        for (int idx = 0; idx < n; ++idx) {
+            if (destinations[idx] != idx) {
+                ++moving;
+            }
+        }
+        assertThat(plan.size(), is(moving + plan.getTemporaryCount()));
+        int[] slots = apply(plan, destinations);
+        for (int idx = 0; idx < n; ++idx) {
+            assertThat(slots[idx], is(order[idx]));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ This file is part of SmileMeBack.
+
+ SmileMeBack is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ SmileMeBack is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with SmileMeBack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smilemeback.views;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class BitmapCacheTest {
+
+    // the memory key picasso builds for a resized and center cropped request with a stable key
+    private static String picassoKey(String stableKey) {
+        return stableKey + "\nresize:120x120\ncenterCrop\n";
+    }
+
+    @Test
+    public void testFileUriMatchesKeyOfPath() {
+        // given
+        String key = picassoKey(BitmapCache.key(BitmapCache.Pool.GRID, "/sdcard/SmileMeBack/categories/0_A/0_my image.jpg"));
+        // as passed by Picasso.invalidate(File)
+        String uri = "file:///sdcard/SmileMeBack/categories/0_A/0_my%20image.jpg";
+
+        // when
+        boolean matches = BitmapCache.isKeyOf(key, uri, BitmapCache.pathOf(uri));
+
+        // then
+        assertThat(matches, is(true));
+    }
+
+    @Test
+    public void testOtherFilesNotMatched() {
+        // given
+        String uri = "file:///sdcard/SmileMeBack/categories/0_A/0_my%20image.jpg";
+        String longer = picassoKey(BitmapCache.key(BitmapCache.Pool.GRID, "/sdcard/SmileMeBack/categories/0_A/0_my image.jpg.tmp"));
+        String other = picassoKey(BitmapCache.key(BitmapCache.Pool.SIDEBAR, "/sdcard/SmileMeBack/categories/0_A/1_other.jpg"));
+
+        // when
+        boolean longerMatches = BitmapCache.isKeyOf(longer, uri, BitmapCache.pathOf(uri));
+        boolean otherMatches = BitmapCache.isKeyOf(other, uri, BitmapCache.pathOf(uri));
+
+        // then
+        assertThat(longerMatches, is(false));
+        assertThat(otherMatches, is(false));
+    }
+
+    @Test
+    public void testMediaUriMatchesKeyOfUri() {
+        // given
+        String uri = "smbmedia:///sdcard/SmileMeBack/categories/0_A/_pack.dat?offset=0&length=10&generation=1";
+        String key = picassoKey(BitmapCache.key(BitmapCache.Pool.PREVIEW, uri));
+
+        // when
+        boolean matches = BitmapCache.isKeyOf(key, uri, BitmapCache.pathOf(uri));
+
+        // then
+        assertThat(BitmapCache.pathOf(uri) == null, is(true));
+        assertThat(matches, is(true));
+    }
+}